@@ -2,12 +2,15 @@ package com.pjh.mydb.backend;
 
 import com.pjh.mydb.backend.dm.DataManager;
 import com.pjh.mydb.backend.server.Server;
+import com.pjh.mydb.backend.stats.Stats;
 import com.pjh.mydb.backend.tbm.TableManager;
 import com.pjh.mydb.backend.tm.TransactionManager;
+import com.pjh.mydb.backend.utils.Log;
 import com.pjh.mydb.backend.utils.Panic;
 import com.pjh.mydb.backend.vm.VersionManager;
 import com.pjh.mydb.backend.vm.VersionManagerImpl;
 import com.pjh.mydb.common.Error;
+import com.pjh.mydb.transport.Transporter;
 import org.apache.commons.cli.*;
 
 /**
@@ -32,12 +35,29 @@ public class Launcher {
         options.addOption("open", true, "-open DBPath");
         options.addOption("create", true, "-create DBPath");
         options.addOption("mem", true, "-mem 64MB");
+        options.addOption("vthreads", false, "-vthreads");
+        options.addOption("slow", true, "-slow 1000");
+        options.addOption("log", true, "-log info,server=debug");
+        options.addOption("maxframe", true, "-maxframe 64MB");
 
         CommandLineParser parser = new DefaultParser();
         CommandLine cmd = parser.parse(options,args);
 
+        if(cmd.hasOption("log")) {
+            Log.configure(cmd.getOptionValue("log"));
+        }
+        if(cmd.hasOption("slow")) {
+            Stats.setSlowQueryThreshold(Long.parseLong(cmd.getOptionValue("slow")));
+        }
+        if(cmd.hasOption("maxframe")) {
+            long maxFrame = parseMem(cmd.getOptionValue("maxframe"));
+            if(maxFrame > Integer.MAX_VALUE) {
+                Panic.panic(Error.InvalidMemException);
+            }
+            Transporter.setMaxFrame((int) maxFrame);
+        }
         if(cmd.hasOption("open")) {
-            openDB(cmd.getOptionValue("open"), parseMem(cmd.getOptionValue("mem")));
+            openDB(cmd.getOptionValue("open"), parseMem(cmd.getOptionValue("mem")), cmd.hasOption("vthreads"));
             return;
         }
 
@@ -48,12 +68,12 @@ public class Launcher {
         System.out.println("Usage: launcher (open|create) DBPath");
     }
 
-    private static void openDB(String path, long mem) {
+    private static void openDB(String path, long mem, boolean virtualThreads) {
         TransactionManager tm = TransactionManager.open(path);
         DataManager dm = DataManager.open(path, mem, tm);
         VersionManager vm = new VersionManagerImpl(tm, dm);
         TableManager tbm = TableManager.open(path, vm, dm);
-        new Server(port, tbm).start();
+        new Server(port, tbm, virtualThreads).start();
     }
 
     private static void createDB(String path) {
@@ -9,6 +9,7 @@ import com.pjh.mydb.common.Error;
 
 import java.util.HashMap;
 import java.util.Set;
+import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
@@ -46,12 +47,19 @@ public abstract class AbstractCache<T> {
 
     private Lock lock;
 
+    /**
+     * 有资源获取结束时通知等待它的线程。使用条件变量而不是 sleep 轮询，等待的线程不占用 CPU，
+     * 在虚拟线程中等待时也不占用平台线程
+     */
+    private Condition loaded;
+
     public AbstractCache(int maxResource){
         this.maxResource = maxResource;
         cache = new HashMap<>();
         references = new HashMap<>();
         getting = new HashMap<>();
         lock = new ReentrantLock();
+        loaded = lock.newCondition();
     }
 
     /**
@@ -60,41 +68,35 @@ public abstract class AbstractCache<T> {
      * @return
      */
     protected T get(long key) throws Exception {
-        System.out.println(key);
-        // 死循环，来无限尝试从缓存里获取
-        while (true){
-            lock.lock();
-            // 如果当前有其他线程正在获取这个资源，就先等待一下，过会再来看看
-            if(getting.containsKey(key)){
-                lock.unlock();
-                try {
-                    Thread.sleep(1);
-                } catch (InterruptedException e) {
-                    e.printStackTrace();
+        lock.lock();
+        try {
+            // 循环尝试从缓存里获取
+            while (true){
+                // 如果当前有其他线程正在获取这个资源，就等它获取完成后再来看看
+                if(getting.containsKey(key)){
+                    loaded.await();
                     continue;
                 }
-                continue;
-            }
 
-            // 如果资源在缓存中，直接返回
-            if (cache.containsKey(key)){
-                T data = cache.get(key);
-                references.put(key, references.get(key) + 1);
-                lock.unlock();
-                return data;
-            }
+                // 如果资源在缓存中，直接返回
+                if (cache.containsKey(key)){
+                    T data = cache.get(key);
+                    references.put(key, references.get(key) + 1);
+                    return data;
+                }
 
-            // 如果资源既没有被别的线程请求，也不在缓存中，则尝试获取该资源，并放入缓存
-            // 缓存满了，类似于OOM
-            if (maxResource > 0 && count == maxResource){
-                lock.unlock();
-                throw Error.CacheFullException;
+                // 如果资源既没有被别的线程请求，也不在缓存中，则尝试获取该资源，并放入缓存
+                // 缓存满了，类似于OOM
+                if (maxResource > 0 && count == maxResource){
+                    throw Error.CacheFullException;
+                }
+                // 缓存未满，在getting中注册一下，表明该线程准备从数据源获取资源了。
+                count++;
+                getting.put(key, true);
+                break;
             }
-            // 缓存未满，在getting中注册一下，表明该线程准备从数据源获取资源了。
-            count++;
-            getting.put(key, true);
+        } finally {
             lock.unlock();
-            break;
         }
 
         // 缓存中没有，从数据源获取资源
@@ -106,6 +108,7 @@ public abstract class AbstractCache<T> {
             lock.lock();
             count--;
             getting.remove(key);
+            loaded.signalAll();
             lock.unlock();
             throw e;
         }
@@ -115,6 +118,7 @@ public abstract class AbstractCache<T> {
         getting.remove(key);
         cache.put(key, data);
         references.put(key, 1); // 走到这里一定是缓存中没有的情况，所以将引用设置为1
+        loaded.signalAll();
         lock.unlock();
 
         return data;
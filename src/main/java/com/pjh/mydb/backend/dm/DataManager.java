@@ -6,10 +6,14 @@ import com.pjh.mydb.backend.dm.page.PageOne;
 import com.pjh.mydb.backend.dm.pageCache.PageCache;
 import com.pjh.mydb.backend.tm.TransactionManager;
 
+import java.util.List;
+
 public interface DataManager {
 
     DataItem read(long uid) throws Exception;
     long insert(long tid, byte[] data) throws Exception;
+    long insert(long tid, byte[] data, long near) throws Exception;
+    long[] insert(long tid, List<byte[]> data) throws Exception;
     void close();
 
     /**
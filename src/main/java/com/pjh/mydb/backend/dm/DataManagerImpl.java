@@ -15,6 +15,9 @@ import com.pjh.mydb.backend.tm.TransactionManager;
 import com.pjh.mydb.backend.utils.Panic;
 import com.pjh.mydb.backend.utils.Types;
 
+import java.util.ArrayList;
+import java.util.List;
+
 /**
  * DataManager 是 DM 层直接对外提供方法的类，同时，也实现成 DataItem 对象的缓存。
  * DataItem 存储的 key，是由页号和页内偏移组成的一个 8 字节无符号整数，页号和偏移各占 4 字节。
@@ -115,6 +118,20 @@ public class DataManagerImpl extends AbstractCache<DataItem> implements DataMana
      */
     @Override
     public long insert(long tid, byte[] data) throws Exception {
+        return insert(tid, data, 0);
+    }
+
+    /**
+     * 插入数据，尽量与 UID 为 near 的数据放在同一页中，该页放不下或者正被其他线程写入时与普通插入相同。
+     * near 为 0 时不指定页面
+     * @param tid
+     * @param data
+     * @param near
+     * @return
+     * @throws Exception
+     */
+    @Override
+    public long insert(long tid, byte[] data, long near) throws Exception {
         byte[] raw = DataItem.wrapDataItemRaw(data);
         // 数据太大
         if (raw.length > PageX.MAX_FREE_SPACE){
@@ -122,19 +139,9 @@ public class DataManagerImpl extends AbstractCache<DataItem> implements DataMana
         }
 
         // 从pageIndex中获取足够插入的页面页号
-        PageInfo pageInfo = null;
-        for(int i = 0; i < 5; ++i){
-            pageInfo = pIndex.select(raw.length);
-            if (pageInfo != null){
-                break;
-            }else {
-                int newPageNo = pc.newPage(PageX.initRaw());
-                pIndex.add(newPageNo, PageX.MAX_FREE_SPACE);
-            }
-        }
-
+        PageInfo pageInfo = near == 0 ? null : pIndex.take((int)(near >>> 32), raw.length);
         if (pageInfo == null){
-            throw Error.DatabaseBusyException;
+            pageInfo = selectPage(raw.length);
         }
 
         Page pg = null;
@@ -162,6 +169,74 @@ public class DataManagerImpl extends AbstractCache<DataItem> implements DataMana
         }
     }
 
+    /**
+     * 批量插入同一事务的多条数据，返回的 UID 与 data 一一对应。
+     * 每次从 pageIndex 取得一页后依次插入，直到放不下下一条为止，这一页的插入日志合并为一次写入和刷盘；
+     * 页面在释放时才会写回，日志写入后才释放页面，因此仍然是先写日志。
+     * 相比逐条插入，每页只需要一次日志刷盘和一次页面写回，而不是每条数据各一次。
+     * @param tid
+     * @param data
+     * @return
+     * @throws Exception
+     */
+    @Override
+    public long[] insert(long tid, List<byte[]> data) throws Exception {
+        byte[][] raws = new byte[data.size()][];
+        for (int i = 0; i < raws.length; i++) {
+            raws[i] = DataItem.wrapDataItemRaw(data.get(i));
+            if (raws[i].length > PageX.MAX_FREE_SPACE){
+                throw Error.DataTooLargeException;
+            }
+        }
+
+        long[] uids = new long[raws.length];
+        int i = 0;
+        while (i < raws.length){
+            PageInfo pageInfo = selectPage(raws[i].length);
+            Page pg = null;
+            try {
+                pg = pc.getPage(pageInfo.pageNo);
+                List<byte[]> logs = new ArrayList<>();
+                do {
+                    logs.add(Recover.insertLog(tid, pg, raws[i]));
+                    short offset = PageX.insert(pg, raws[i]);
+                    uids[i] = Types.addressToUid(pageInfo.pageNo, offset);
+                    i ++;
+                } while (i < raws.length && PageX.getFreeSpace(pg) >= raws[i].length);
+                logger.log(logs);
+            } finally {
+                if (pg != null){
+                    pIndex.add(pageInfo.pageNo, PageX.getFreeSpace(pg));
+                    pg.release();
+                }else {
+                    pIndex.add(pageInfo.pageNo, 0);
+                }
+            }
+        }
+        return uids;
+    }
+
+    /**
+     * 从 pageIndex 中取出一个空闲空间足够的页面，没有时新建页面
+     */
+    private PageInfo selectPage(int size) throws Exception {
+        PageInfo pageInfo = null;
+        for(int i = 0; i < 5; ++i){
+            pageInfo = pIndex.select(size);
+            if (pageInfo != null){
+                break;
+            }else {
+                int newPageNo = pc.newPage(PageX.initRaw());
+                pIndex.add(newPageNo, PageX.MAX_FREE_SPACE);
+            }
+        }
+
+        if (pageInfo == null){
+            throw Error.DatabaseBusyException;
+        }
+        return pageInfo;
+    }
+
     /**
      * 关闭DM，执行缓存和日志的关闭，并设置第一页的字节校验
      */
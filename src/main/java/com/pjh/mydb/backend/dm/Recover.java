@@ -7,6 +7,7 @@ import com.pjh.mydb.backend.dm.logger.Logger;
 import com.pjh.mydb.backend.dm.page.Page;
 import com.pjh.mydb.backend.dm.page.PageX;
 import com.pjh.mydb.backend.dm.pageCache.PageCache;
+import com.pjh.mydb.backend.utils.Log;
 import com.pjh.mydb.backend.utils.Parser;
 import com.pjh.mydb.backend.tm.TransactionManager;
 import com.pjh.mydb.backend.utils.Panic;
@@ -21,6 +22,9 @@ import java.util.*;
  * @date 2022/7/30 0:17
  */
 public class Recover {
+
+    private static final Log LOG = Log.get("dm");
+
     /**
      * insert 类型
      * [LogType] [TID] [PageNo] [Offset] [Raw]
@@ -57,7 +61,7 @@ public class Recover {
     }
 
     public static void recover(TransactionManager tm, Logger lg, PageCache pc) {
-        System.out.println("Recovering...");
+        LOG.info("Recovering...");
 
         lg.rewind();
         int maxPageNo = 0;
@@ -78,15 +82,15 @@ public class Recover {
             maxPageNo = 1;
         }
         pc.truncateByPageNo(maxPageNo);
-        System.out.println("Truncate to " + maxPageNo + " pages.");
+        LOG.info("Truncate to " + maxPageNo + " pages.");
 
         redoTransactions(tm, lg, pc);
-        System.out.println("Redo Transactions Over.");
+        LOG.info("Redo Transactions Over.");
 
         undoTransactions(tm, lg, pc);
-        System.out.println("Undo Transactions Over.");
+        LOG.info("Undo Transactions Over.");
 
-        System.out.println("Recovery Over.");
+        LOG.info("Recovery Over.");
 
     }
 
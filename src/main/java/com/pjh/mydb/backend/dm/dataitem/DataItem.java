@@ -65,7 +65,7 @@ public interface DataItem {
         short length = (short) (size + DataItemImpl.OF_DATA);
         long uid = Types.addressToUid(pg.getPageNumber(), offset);
         // 将这一段数据放入DataItem
-        return new DataItemImpl(new SubArray(raw, offset, offset + length), new byte[length], pg, uid, dm);
+        return new DataItemImpl(new SubArray(raw, offset, offset + length), null, pg, uid, dm);
     }
 
 }
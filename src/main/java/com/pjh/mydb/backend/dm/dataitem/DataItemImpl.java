@@ -94,6 +94,10 @@ public class DataItemImpl implements DataItem{
          * destPos:目的数组放置的起始位置;
          * length:复制的长度.
          */
+        if(oldRaw == null) {
+            // 旧数据的备份在第一次修改时才分配，只读的 DataItem 不必为此多占一份内存
+            oldRaw = new byte[raw.end - raw.start];
+        }
         System.arraycopy(raw.raw, raw.start, oldRaw, 0, oldRaw.length);
     }
 
@@ -102,7 +106,7 @@ public class DataItemImpl implements DataItem{
      */
     @Override
     public void unBefore() {
-        System.arraycopy(oldRaw, 0, raw, raw.start, oldRaw.length);
+        System.arraycopy(oldRaw, 0, raw.raw, raw.start, oldRaw.length);
         wLock.unlock();
     }
 
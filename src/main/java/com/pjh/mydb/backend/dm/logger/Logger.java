@@ -9,10 +9,12 @@ import java.io.FileNotFoundException;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.util.List;
 
 public interface Logger {
 
     void log(byte[] data);
+    void log(List<byte[]> data);
     void truncate(long x) throws Exception;
     byte[] next();
     void rewind();
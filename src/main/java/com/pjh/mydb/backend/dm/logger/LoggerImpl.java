@@ -1,7 +1,9 @@
 package com.pjh.mydb.backend.dm.logger;
 
 import com.google.common.primitives.Bytes;
+import com.pjh.mydb.backend.stats.Stats;
 import com.pjh.mydb.common.Error;
+import com.pjh.mydb.backend.utils.Log;
 import com.pjh.mydb.backend.utils.Parser;
 import com.pjh.mydb.backend.utils.Panic;
 
@@ -10,6 +12,7 @@ import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
 import java.util.Arrays;
+import java.util.List;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
@@ -162,23 +165,56 @@ public class LoggerImpl implements Logger{
         try {
             fc.position(fc.size());
             fc.write(buf);
+            // 写入完成，更新校验和并flush缓存；与追加在同一把锁下，校验和的顺序与文件中日志的顺序一致
+            updateXChechsum(log);
         }catch (IOException e){
             Panic.panic(e);
         }finally {
             lock.unlock();
         }
-        // 写入完成，更新校验和并flush缓存
-        updateXChechsum(log);
     }
 
-    private void updateXChechsum(byte[] log) {
-        this.xChecksum = calChecksum(this.xChecksum, log);
+    /**
+     * 批量写入日志，所有日志合并为一次写入，校验和只写回和刷盘一次
+     * @param data 按顺序排列的日志
+     */
+    @Override
+    public void log(List<byte[]> data) {
+        if(data.isEmpty()) {
+            return;
+        }
+        byte[][] logs = new byte[data.size()][];
+        for (int i = 0; i < logs.length; i++) {
+            logs[i] = wrapLog(data.get(i));
+        }
+        ByteBuffer buf = ByteBuffer.wrap(Bytes.concat(logs));
+        lock.lock();
+        try {
+            fc.position(fc.size());
+            fc.write(buf);
+            updateXChechsum(logs);
+        }catch (IOException e){
+            Panic.panic(e);
+        }finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 把 logs 计入校验和并写回文件头，调用时需要持有 lock
+     */
+    private void updateXChechsum(byte[]... logs) {
+        for (byte[] log : logs) {
+            this.xChecksum = calChecksum(this.xChecksum, log);
+        }
         try {
             fc.position(0);
             fc.write(ByteBuffer.wrap(Parser.int2Byte(this.xChecksum)));
+            long start = System.nanoTime();
             fc.force(false);
+            Stats.logFsynced(System.nanoTime() - start);
         } catch (IOException e) {
-            e.printStackTrace();
+            Log.get("dm").error("Failed to update log checksum", e);
         }
     }
 
@@ -231,7 +267,6 @@ public class LoggerImpl implements Logger{
             fc.position(position);
             fc.read(temp);
         } catch (IOException e) {
-            e.printStackTrace();
             Panic.panic(e);
         }
 
@@ -4,6 +4,7 @@ import com.pjh.mydb.common.Error;
 import com.pjh.mydb.backend.common.AbstractCache;
 import com.pjh.mydb.backend.dm.page.Page;
 import com.pjh.mydb.backend.dm.page.PageImpl;
+import com.pjh.mydb.backend.stats.Stats;
 import com.pjh.mydb.backend.utils.Panic;
 
 import java.io.IOException;
@@ -60,6 +61,7 @@ public class PageCacheImpl extends AbstractCache<Page> implements PageCache{
     protected Page getForCache(long key) throws Exception {
         int pageNo = (int) key;
         long offset = pageOffset(pageNo);
+        Stats.pageMissed();
 
         // 从DB文件中读取出一页的数据，并包装成page返回
         ByteBuffer buf = ByteBuffer.allocate(PAGE_SIZE);
@@ -113,6 +115,7 @@ public class PageCacheImpl extends AbstractCache<Page> implements PageCache{
 
     @Override
     public Page getPage(int pageNo) throws Exception {
+        Stats.pageRequested();
         return get((long) pageNo);
     }
 
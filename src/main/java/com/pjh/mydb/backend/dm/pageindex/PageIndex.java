@@ -2,8 +2,11 @@ package com.pjh.mydb.backend.dm.pageindex;
 
 import com.pjh.mydb.backend.dm.pageCache.PageCache;
 
-import java.util.ArrayList;
-import java.util.List;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
@@ -24,17 +27,20 @@ public class PageIndex {
 
     private Lock lock;
     /**
-     * 大小为41的数组 存的是区间号（区间号从1>开始），然后每个区间号数组后面跟一个数组存满足空闲大小
+     * 大小为41的数组 存的是区间号（区间号从1>开始），然后每个区间号后面跟一个集合存满足空闲大小
      * 	的所有数据页信息（PageInfo）
      */
-    private List<PageInfo>[] lists;
+    private Set<PageInfo>[] lists;
+    // 页号到索引中页面信息的映射，按页号取出页面时不需要遍历区间
+    private Map<Integer, PageInfo> pages;
 
     public PageIndex() {
         lock = new ReentrantLock();
-        lists = new List[INTERVALS_NO + 1];
+        lists = new Set[INTERVALS_NO + 1];
         for(int i = 0; i < INTERVALS_NO + 1; ++i){
-            lists[i] = new ArrayList<>();
+            lists[i] = new LinkedHashSet<>();
         }
+        pages = new HashMap<>();
     }
 
     /**
@@ -53,8 +59,25 @@ public class PageIndex {
                     number++;
                     continue;
                 }
+                if(number == INTERVALS_NO) {
+                    // 最后一个区间没有上界，其中的页面不一定都放得下，需要逐个检查
+                    // 占满一页的数据（如 B+ 树节点）只能放进几乎全空的页面
+                    for(Iterator<PageInfo> it = lists[number].iterator(); it.hasNext(); ) {
+                        PageInfo pi = it.next();
+                        if(pi.freeSpace >= spaceSize) {
+                            it.remove();
+                            pages.remove(pi.pageNo);
+                            return pi;
+                        }
+                    }
+                    return null;
+                }
                 // 返回合适的页面，并将这个页面的索引移除，防止同时多个线程对同一个页面进行写入
-                return lists[number].remove(0);
+                Iterator<PageInfo> it = lists[number].iterator();
+                PageInfo pi = it.next();
+                it.remove();
+                pages.remove(pi.pageNo);
+                return pi;
             }
             return null;
         }finally {
@@ -62,12 +85,36 @@ public class PageIndex {
         }
     }
 
+    /**
+     * 取出指定的页面，用于把数据放在相关数据所在的页中。
+     * 页面不在索引中（正被其他线程写入），或者空闲空间不足 spaceSize 时返回 null
+     * @param pageNo
+     * @param spaceSize
+     * @return
+     */
+    public PageInfo take(int pageNo, int spaceSize) {
+        lock.lock();
+        try {
+            PageInfo pi = pages.get(pageNo);
+            if(pi == null || pi.freeSpace < spaceSize) {
+                return null;
+            }
+            pages.remove(pageNo);
+            lists[pi.freeSpace / THRESHOLD].remove(pi);
+            return pi;
+        }finally {
+            lock.unlock();
+        }
+    }
+
     public void add(int pageNo, int freeSpace) {
         lock.lock();
         try {
             // 页面加入进来时，先计算该页面空闲空间所在的区间，然后加入
             int number = freeSpace / THRESHOLD;
-            lists[number].add(new PageInfo(pageNo, freeSpace));
+            PageInfo pi = new PageInfo(pageNo, freeSpace);
+            lists[number].add(pi);
+            pages.put(pageNo, pi);
         }finally {
             lock.unlock();
         }
@@ -1,19 +1,29 @@
 package com.pjh.mydb.backend.im;
 
+import com.google.common.primitives.Bytes;
+import com.pjh.mydb.common.Error;
 import com.pjh.mydb.backend.common.SubArray;
 import com.pjh.mydb.backend.dm.DataManager;
 import com.pjh.mydb.backend.dm.dataitem.DataItem;
 import com.pjh.mydb.backend.utils.Parser;
 import com.pjh.mydb.backend.tm.TransactionManagerImpl;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
 import java.util.List;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * IM 对上层模块主要提供两种能力：插入索引和搜索节点。
+ *
+ * boot 的结构：[RootUid][BalanceNumber][KeyWidth]  --> [long][short][short]
+ * 旧版本的 boot 只有 8 字节的 RootUid，此时阶按 Node.LEGACY_BALANCE_NUMBER 处理。
+ * 没有 KeyWidth 的树使用 long key；有 KeyWidth 的树使用变长的字节串 key，每个 key 在节点中内联前 KeyWidth 个字节，
+ * 更长的部分溢出到单独的 DataItem 中，见 Node。
  * @author Joseph Peng
  * @date 2022/8/3 11:40
  */
@@ -27,17 +37,192 @@ public class BPlusTree {
      */
     DataItem bootDataItem;
     Lock bootLock;
+    // 该树的阶，每个节点最多 2*balanceNumber 个 key
+    int balanceNumber;
+    // 字节串 key 在节点中内联的字节数，0 表示该树使用 long key
+    int keyWidth;
 
     /**
-     * 创建一棵B+树, 并返回其bootUID.
+     * 默认的阶，让一个节点恰好占满一页
+     */
+    public static final int DEFAULT_BALANCE_NUMBER = Node.MAX_BALANCE_NUMBER;
+
+    /**
+     * 字节串 key 最多内联的字节数
+     */
+    public static final int MAX_KEY_WIDTH = 255;
+
+    /**
+     * key 宽度为 keyWidth 的树中 [Son][Key] 的大小
+     */
+    static int slotSize(int keyWidth) {
+        return keyWidth == 0 ? Node.LONG_SLOT_SIZE : 8 + 2 + keyWidth + 8;
+    }
+
+    /**
+     * key 宽度为 keyWidth 时，一个节点恰好占满一页的阶
+     * @param keyWidth 0 表示 long key
+     * @return
+     */
+    public static int maxBalanceNumber(int keyWidth) {
+        return Node.maxBalanceNumber(slotSize(keyWidth));
+    }
+
+    /**
+     * 根据扇出（每个节点最多容纳的 key 数）计算 long key 树的阶，扇出不合法时抛出异常
+     * @param fanout
+     * @return
+     */
+    public static int balanceOfFanout(int fanout) throws Exception {
+        return balanceOfFanout(fanout, 0);
+    }
+
+    public static int balanceOfFanout(int fanout, int keyWidth) throws Exception {
+        if(fanout < Node.MIN_BALANCE_NUMBER*2 || fanout > maxBalanceNumber(keyWidth)*2 || fanout % 2 != 0) {
+            throw Error.InvalidFanoutException;
+        }
+        return fanout / 2;
+    }
+
+    /**
+     * 是否使用字节串 key
+     */
+    public boolean isBytesKey() {
+        return keyWidth != 0;
+    }
+
+    int slotSize() {
+        return slotSize(keyWidth);
+    }
+
+    int nodeSize() {
+        return Node.nodeSize(balanceNumber, slotSize());
+    }
+
+    /**
+     * 最右侧内部节点的最后一个 key
+     */
+    byte[] infRawKey() {
+        if(!isBytesKey()) {
+            return Parser.long2Byte(Long.MAX_VALUE);
+        }
+        byte[] raw = new byte[slotSize() - 8];
+        System.arraycopy(Parser.short2Byte((short)Node.INF_KEY_LENGTH), 0, raw, 0, 2);
+        return raw;
+    }
+
+    private static byte[] bootRaw(long rootUid, int balanceNumber, int keyWidth) {
+        byte[] raw = Bytes.concat(Parser.long2Byte(rootUid), Parser.short2Byte((short)balanceNumber));
+        if(keyWidth != 0) {
+            raw = Bytes.concat(raw, Parser.short2Byte((short)keyWidth));
+        }
+        return raw;
+    }
+
+    /**
+     * 以默认的阶创建一棵B+树, 并返回其bootUID.
      * @param dm
      * @return
      * @throws Exception
      */
     public static long create(DataManager dm) throws Exception {
-        byte[] rawRoot = Node.newNilRootRaw();
+        return create(dm, DEFAULT_BALANCE_NUMBER);
+    }
+
+    /**
+     * 以指定的阶创建一棵B+树, 并返回其bootUID.
+     * @param dm
+     * @param balanceNumber
+     * @return
+     * @throws Exception
+     */
+    public static long create(DataManager dm, int balanceNumber) throws Exception {
+        return create(dm, balanceNumber, 0);
+    }
+
+    /**
+     * 创建一棵使用字节串 key 的B+树, 并返回其bootUID.
+     * @param dm
+     * @param balanceNumber
+     * @param keyWidth 每个 key 在节点中内联的字节数, 0 表示使用 long key
+     * @return
+     * @throws Exception
+     */
+    public static long create(DataManager dm, int balanceNumber, int keyWidth) throws Exception {
+        BPlusTree t = new BPlusTree();
+        t.balanceNumber = balanceNumber;
+        t.keyWidth = keyWidth;
+        byte[] rawRoot = Node.newNilRootRaw(t);
         long rootUid = dm.insert(TransactionManagerImpl.SUPER_TID, rawRoot);
-        return dm.insert(TransactionManagerImpl.SUPER_TID, Parser.long2Byte(rootUid));
+        return dm.insert(TransactionManagerImpl.SUPER_TID, bootRaw(rootUid, balanceNumber, keyWidth));
+    }
+
+    /**
+     * 自底向上批量建一棵 long key 的树, 并返回其bootUID.
+     * sorter 需以降序创建: 节点从右向左依次写入, 每个节点的兄弟就是上一个写入的节点,
+     * 这样每个节点只在 DM 中插入一次, 只产生一条插入日志, 不需要逐个 key 下降、分裂和记录更新日志.
+     * @param dm
+     * @param sorter 已装入所有 (key, uid) 的降序排序器
+     * @return
+     * @throws Exception
+     */
+    public static long bulkLoad(DataManager dm, KeyUidSorter sorter) throws Exception {
+        return bulkLoad(dm, sorter, DEFAULT_BALANCE_NUMBER);
+    }
+
+    public static long bulkLoad(DataManager dm, KeyUidSorter sorter, int balanceNumber) throws Exception {
+        assert sorter.isDescending();
+        int nodeSize = Node.nodeSize(balanceNumber);
+        int fill = Node.bulkFill(balanceNumber);
+        long[] sons = new long[fill];
+        long[] keys = new long[fill];
+
+        // 每一层节点的 [首个key, uid], 写入时是从右到左的顺序
+        List<long[]> level = new ArrayList<>();
+        long sibling = 0;
+        int n = 0;
+        try (KeyUidSorter.PairIterator it = sorter.sort()) {
+            while (it.next()) {
+                n ++;
+                keys[fill-n] = it.key();
+                sons[fill-n] = it.uid();
+                if(n == fill) {
+                    sibling = dm.insert(TransactionManagerImpl.SUPER_TID, Node.newFilledRaw(nodeSize, true, sons, keys, 0, fill, sibling));
+                    level.add(new long[]{keys[0], sibling});
+                    n = 0;
+                }
+            }
+        }
+        if(n > 0) {
+            sibling = dm.insert(TransactionManagerImpl.SUPER_TID, Node.newFilledRaw(nodeSize, true, sons, keys, fill-n, n, sibling));
+            level.add(new long[]{keys[fill-n], sibling});
+        }
+        if(level.isEmpty()) {
+            return create(dm, balanceNumber);
+        }
+        Collections.reverse(level);
+
+        // 逐层向上构造内部节点, 直到只剩一个根节点
+        while(level.size() > 1) {
+            List<long[]> upper = new ArrayList<>();
+            sibling = 0;
+            int end = level.size();
+            while(end > 0) {
+                int start = Math.max(0, end - fill);
+                int cnt = end - start;
+                for(int i = 0; i < cnt; i ++) {
+                    sons[i] = level.get(start+i)[1];
+                    // 子节点的上界是下一个子节点的首个key, 整层最右侧的节点以 MAX_VALUE 结尾
+                    keys[i] = start+i+1 < level.size() ? level.get(start+i+1)[0] : Long.MAX_VALUE;
+                }
+                sibling = dm.insert(TransactionManagerImpl.SUPER_TID, Node.newFilledRaw(nodeSize, false, sons, keys, 0, cnt, sibling));
+                upper.add(new long[]{level.get(start)[0], sibling});
+                end = start;
+            }
+            Collections.reverse(upper);
+            level = upper;
+        }
+        return dm.insert(TransactionManagerImpl.SUPER_TID, bootRaw(level.get(0)[1], balanceNumber, 0));
     }
 
     /**
@@ -55,9 +240,25 @@ public class BPlusTree {
         t.dm = dm;
         t.bootDataItem = bootDataItem;
         t.bootLock = new ReentrantLock();
+        SubArray sa = bootDataItem.data();
+        if(sa.end - sa.start >= 10) {
+            t.balanceNumber = Parser.parseShort(sa.raw, sa.start+8);
+        } else {
+            t.balanceNumber = Node.LEGACY_BALANCE_NUMBER;
+        }
+        if(sa.end - sa.start >= 12) {
+            t.keyWidth = Parser.parseShort(sa.raw, sa.start+10);
+        }
         return t;
     }
 
+    /**
+     * 每个节点最多容纳的 key 数
+     */
+    public int fanout() {
+        return balanceNumber * 2;
+    }
+
     /**
      * 获取根节点的UID
      * @return
@@ -66,7 +267,7 @@ public class BPlusTree {
         bootLock.lock();
         try {
             SubArray sa = bootDataItem.data();
-            return Parser.parseLong(Arrays.copyOfRange(sa.raw, sa.start, sa.start+8));
+            return Parser.parseLong(sa.raw, sa.start);
         } finally {
             bootLock.unlock();
         }
@@ -76,13 +277,13 @@ public class BPlusTree {
      * 更新该树的根节点
      * @param left
      * @param right
-     * @param rightKey
+     * @param rightKey right 中第一个 key 的存储格式
      * @throws Exception
      */
-    private void updateRootUid(long left, long right, long rightKey) throws Exception {
+    private void updateRootUid(long left, long right, byte[] rightKey) throws Exception {
         bootLock.lock();
         try {
-            byte[] rootRaw = Node.newRootRaw(left, right, rightKey);
+            byte[] rootRaw = Node.newRootRaw(this, left, right, rightKey);
             long newRootUid = dm.insert(TransactionManagerImpl.SUPER_TID, rootRaw);
             bootDataItem.before();
             SubArray diRaw = bootDataItem.data();
@@ -100,7 +301,7 @@ public class BPlusTree {
      * @return
      * @throws Exception
      */
-    private long searchLeaf(long nodeUid, long key) throws Exception {
+    private long searchLeaf(long nodeUid, byte[] key) throws Exception {
         Node node = Node.loadNode(this, nodeUid);
         boolean isLeaf = node.isLeaf();
         node.release();
@@ -108,11 +309,21 @@ public class BPlusTree {
         if (isLeaf){
             return nodeUid;
         }else {
-            long next = searchNext(nodeUid, key);
+            long next = searchNextLeftmost(nodeUid, key);
             return searchLeaf(next, key);
         }
     }
 
+    private long searchNextLeftmost(long nodeUid, byte[] key) throws Exception {
+        while (true){
+            Node node = Node.loadNode(this, nodeUid);
+            Node.SearchNextRes res = node.searchNextLeftmost(key);
+            node.release();
+            if (res.uid != 0) return res.uid;
+            nodeUid = res.siblingUid;
+        }
+    }
+
     /**
      * 寻找对应key的uid, 如果找不到, 则返回sibling uid兄弟节点的
      * @param nodeUid
@@ -120,7 +331,7 @@ public class BPlusTree {
      * @return
      * @throws Exception
      */
-    private long searchNext(long nodeUid, long key) throws Exception {
+    private long searchNext(long nodeUid, byte[] key) throws Exception {
         while (true){
             Node node = Node.loadNode(this, nodeUid);
             Node.SearchNextRes res = node.searchNext(key);
@@ -134,13 +345,31 @@ public class BPlusTree {
         return searchRange(key, key);
     }
 
+    /**
+     * long key 的范围查找，范围是 [leftKey, rightKey]
+     */
     public List<Long> searchRange(long leftKey, long rightKey) throws Exception {
+        return searchRange(Parser.long2Byte(leftKey), Parser.long2Byte(rightKey), true);
+    }
+
+    /**
+     * 字节串 key 的范围查找，范围是 [leftKey, rightKey)
+     * @param leftKey 为 null 表示没有下界
+     * @param rightKey 为 null 表示没有上界
+     * @return
+     * @throws Exception
+     */
+    public List<Long> searchRange(byte[] leftKey, byte[] rightKey) throws Exception {
+        return searchRange(leftKey == null ? new byte[0] : leftKey, rightKey, false);
+    }
+
+    private List<Long> searchRange(byte[] leftKey, byte[] rightKey, boolean rightInclusive) throws Exception {
         long rootUid = rootUid();
         long leafUid = searchLeaf(rootUid, leftKey);
         List<Long> uids = new ArrayList<>();
         while (true){
             Node leaf = Node.loadNode(this, leafUid);
-            Node.LeafSearchRangeRes res = leaf.leafSearchRange(leftKey, rightKey);
+            Node.LeafSearchRangeRes res = leaf.leafSearchRange(leftKey, rightKey, rightInclusive);
             leaf.release();
             uids.addAll(res.uids);
             if(res.siblingUid == 0) {
@@ -152,32 +381,219 @@ public class BPlusTree {
         return uids;
     }
 
+    /**
+     * 按顺序访问索引项的回调，返回 false 时停止扫描
+     */
+    public interface UidVisitor {
+        boolean visit(long uid) throws Exception;
+    }
+
+    /**
+     * long key 的有序扫描，范围是 [leftKey, rightKey]，逐个把 UID 交给 visitor，可以随时停止
+     */
+    public void scan(long leftKey, long rightKey, boolean descending, UidVisitor visitor) throws Exception {
+        scan(Parser.long2Byte(leftKey), Parser.long2Byte(rightKey), true, descending, visitor);
+    }
+
+    /**
+     * 字节串 key 的有序扫描，范围是 [leftKey, rightKey)，null 表示没有对应的边界
+     */
+    public void scan(byte[] leftKey, byte[] rightKey, boolean descending, UidVisitor visitor) throws Exception {
+        scan(leftKey == null ? minKey() : leftKey, rightKey, false, descending, visitor);
+    }
+
+    private void scan(byte[] leftKey, byte[] rightKey, boolean rightInclusive, boolean descending, UidVisitor visitor) throws Exception {
+        if(descending) {
+            scanDescending(leftKey, rightKey, rightInclusive, visitor);
+            return;
+        }
+        long leafUid = searchLeaf(rootUid(), leftKey);
+        while (leafUid != 0){
+            Node leaf = Node.loadNode(this, leafUid);
+            Node.LeafSearchRangeRes res = leaf.leafSearchRange(leftKey, rightKey, rightInclusive);
+            leaf.release();
+            for (long uid : res.uids) {
+                if(!visitor.visit(uid)) {
+                    return;
+                }
+            }
+            leafUid = res.siblingUid;
+        }
+    }
+
+    /**
+     * 逆序扫描。叶子节点只有指向右侧兄弟的指针，所以从右向左深度优先遍历整棵树：
+     * 先沿右边界下降到可能包含 rightKey 的叶子，路径上每个内部节点左侧尚未访问的子节点记录在栈中，
+     * 每访问完一个叶子，就从栈顶取出左侧相邻的子树，下降到它最右侧的叶子。
+     * 栈中的子节点列表是访问内部节点时的快照，之后子节点可能分裂，分裂出的节点位于它和上一个访问过的叶子之间，
+     * 所以每个叶子都沿兄弟指针向右读到上一个访问过的叶子为止，再把这一组叶子中的 UID 逆序交给 visitor。
+     */
+    private void scanDescending(byte[] leftKey, byte[] rightKey, boolean rightInclusive, UidVisitor visitor) throws Exception {
+        Deque<long[]> stack = new ArrayDeque<>();
+        long nodeUid = rootUid();
+        byte[] bound = rightKey;
+        long visited = 0;
+        while (true){
+            // 下降到 nodeUid 子树中最右侧的叶子
+            while (true){
+                Node node = Node.loadNode(this, nodeUid);
+                boolean isLeaf = node.isLeaf();
+                long[] sons = isLeaf ? null : node.sons(bound, rightInclusive);
+                node.release();
+                if(isLeaf) {
+                    break;
+                }
+                stack.push(Arrays.copyOf(sons, sons.length - 1));
+                nodeUid = sons[sons.length - 1];
+            }
+            bound = null;
+
+            List<List<Long>> group = new ArrayList<>();
+            boolean belowLeft = false;
+            long leafUid = nodeUid;
+            while (leafUid != 0 && leafUid != visited){
+                Node leaf = Node.loadNode(this, leafUid);
+                Node.LeafSearchRangeRes res = leaf.leafSearchRange(leftKey, rightKey, rightInclusive);
+                leaf.release();
+                group.add(res.uids);
+                belowLeft |= res.belowLeft;
+                leafUid = res.siblingUid;
+            }
+            for (int i = group.size() - 1; i >= 0; i --) {
+                List<Long> uids = group.get(i);
+                for (int j = uids.size() - 1; j >= 0; j --) {
+                    if(!visitor.visit(uids.get(j))) {
+                        return;
+                    }
+                }
+            }
+            if(belowLeft) {
+                return;
+            }
+            visited = nodeUid;
+
+            while (!stack.isEmpty() && stack.peek().length == 0) {
+                stack.pop();
+            }
+            if(stack.isEmpty()) {
+                return;
+            }
+            long[] sons = stack.pop();
+            nodeUid = sons[sons.length - 1];
+            stack.push(Arrays.copyOf(sons, sons.length - 1));
+        }
+    }
+
+    /**
+     * 按 key 从小到大取出前 n 个 UID，从最左侧的叶子开始沿兄弟节点扫描
+     */
+    public List<Long> searchFirst(int n) throws Exception {
+        byte[] leftKey = minKey();
+        long leafUid = searchLeaf(rootUid(), leftKey);
+        List<Long> uids = new ArrayList<>();
+        while (uids.size() < n){
+            Node leaf = Node.loadNode(this, leafUid);
+            Node.LeafSearchRangeRes res = leaf.leafSearchRange(leftKey, null, false);
+            leaf.release();
+            uids.addAll(res.uids);
+            if(res.siblingUid == 0) {
+                break;
+            }
+            leafUid = res.siblingUid;
+        }
+        return uids.size() > n ? uids.subList(0, n) : uids;
+    }
+
+    /**
+     * 最右侧叶子节点中的全部 UID，按 key 从小到大排列，最后一个的 key 最大
+     */
+    public List<Long> searchLastLeaf() throws Exception {
+        long nodeUid = rootUid();
+        while (true){
+            Node node = Node.loadNode(this, nodeUid);
+            boolean isLeaf = node.isLeaf();
+            long next = isLeaf ? 0 : node.lastSon();
+            node.release();
+            if(isLeaf) {
+                break;
+            }
+            nodeUid = next;
+        }
+        // 下降途中叶子可能被分裂，沿兄弟节点走到真正的最后一个叶子
+        byte[] leftKey = minKey();
+        while (true){
+            Node leaf = Node.loadNode(this, nodeUid);
+            Node.LeafSearchRangeRes res = leaf.leafSearchRange(leftKey, null, false);
+            leaf.release();
+            if(res.siblingUid == 0) {
+                return res.uids;
+            }
+            nodeUid = res.siblingUid;
+        }
+    }
+
+    /**
+     * 不大于任何 key 的查找键
+     */
+    private byte[] minKey() {
+        return isBytesKey() ? new byte[0] : Parser.long2Byte(Long.MIN_VALUE);
+    }
+
     class InsertRes {
-        long newNode, newKey;
+        long newNode;
+        byte[] newKey, newRawKey;
+        // 分裂出 newNode 的节点，可能是下降到的节点右侧的兄弟节点
+        long splitNode;
     }
 
     public void insert(long key, long uid) throws Exception {
+        byte[] k = Parser.long2Byte(key);
+        insert(k, k, uid);
+    }
+
+    /**
+     * 插入一个字节串 key，超过 KeyWidth 的 key 先把完整内容写入一个单独的 DataItem
+     * @param key
+     * @param uid
+     * @throws Exception
+     */
+    public void insert(byte[] key, long uid) throws Exception {
+        assert isBytesKey();
+        if(key.length >= Node.INF_KEY_LENGTH) {
+            throw Error.DataTooLargeException;
+        }
+        byte[] rawKey = new byte[slotSize() - 8];
+        System.arraycopy(Parser.short2Byte((short)key.length), 0, rawKey, 0, 2);
+        System.arraycopy(key, 0, rawKey, 2, Math.min(key.length, keyWidth));
+        if(key.length > keyWidth) {
+            long overflow = dm.insert(TransactionManagerImpl.SUPER_TID, key);
+            System.arraycopy(Parser.long2Byte(overflow), 0, rawKey, 2 + keyWidth, 8);
+        }
+        insert(key, rawKey, uid);
+    }
+
+    private void insert(byte[] key, byte[] rawKey, long uid) throws Exception {
         long rootUid = rootUid();
-        InsertRes res = insert(rootUid, uid, key);
+        InsertRes res = insert(rootUid, uid, key, rawKey);
         assert res != null;
         if(res.newNode != 0) {
-            updateRootUid(rootUid, res.newNode, res.newKey);
+            updateRootUid(rootUid, res.newNode, res.newRawKey);
         }
     }
 
-    private InsertRes insert(long nodeUid, long uid, long key) throws Exception {
+    private InsertRes insert(long nodeUid, long uid, byte[] key, byte[] rawKey) throws Exception {
         Node node = Node.loadNode(this, nodeUid);
         boolean isLeaf = node.isLeaf();
         node.release();
 
         InsertRes res = null;
         if(isLeaf) {
-            res = insertAndSplit(nodeUid, uid, key);
+            res = insertAndSplit(nodeUid, uid, key, rawKey, 0);
         }else{
             long next = searchNext(nodeUid, key);
-            InsertRes ir = insert(next, uid, key);
+            InsertRes ir = insert(next, uid, key, rawKey);
             if(ir.newNode != 0) {
-                res = insertAndSplit(nodeUid, ir.newNode, ir.newKey);
+                res = insertAndSplit(nodeUid, ir.newNode, ir.newKey, ir.newRawKey, ir.splitNode);
             } else {
                 res = new InsertRes();
             }
@@ -190,13 +606,14 @@ public class BPlusTree {
      * @param nodeUid
      * @param uid
      * @param key
+     * @param rawKey
      * @return
      * @throws Exception
      */
-    private InsertRes insertAndSplit(long nodeUid, long uid, long key) throws Exception {
+    private InsertRes insertAndSplit(long nodeUid, long uid, byte[] key, byte[] rawKey, long leftSon) throws Exception {
         while(true) {
             Node node = Node.loadNode(this, nodeUid);
-            Node.InsertAndSplitRes iasr = node.insertAndSplit(uid, key);
+            Node.InsertAndSplitRes iasr = node.insertAndSplit(uid, key, rawKey, leftSon);
             node.release();
             if(iasr.siblingUid != 0) {
                 nodeUid = iasr.siblingUid;
@@ -204,6 +621,8 @@ public class BPlusTree {
                 InsertRes res = new InsertRes();
                 res.newNode = iasr.newSon;
                 res.newKey = iasr.newKey;
+                res.newRawKey = iasr.newRawKey;
+                res.splitNode = nodeUid;
                 return res;
             }
         }
@@ -0,0 +1,265 @@
+package com.pjh.mydb.backend.im;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * 为批量建树准备有序的 (key, uid) 序列。
+ * 数据先缓存在内存的两个 long 数组中，超过内存预算后排序并溢出成一个有序的 run 文件，
+ * 最后对所有 run 做多路归并。数据量不超过预算时不会产生任何临时文件。
+ *
+ * run 文件格式：[Key][Uid][Key][Uid]...  --> 每项 8 + 8 字节
+ *
+ * @author Joseph Peng
+ * @date 2026/10/19 10:12
+ */
+public class KeyUidSorter implements Closeable {
+
+    // 默认内存中最多缓存的 (key, uid) 对数，约 16MB
+    public static final int DEFAULT_BUFFER_PAIRS = 1 << 20;
+
+    private final boolean descending;
+    private final int capacity;
+    private long[] keys;
+    private long[] uids;
+    private int size;
+    private long count;
+    private List<File> runs;
+
+    public KeyUidSorter(boolean descending) {
+        this(descending, DEFAULT_BUFFER_PAIRS);
+    }
+
+    /**
+     * @param descending 输出顺序是否为降序
+     * @param capacity 内存中最多缓存的 (key, uid) 对数
+     */
+    public KeyUidSorter(boolean descending, int capacity) {
+        this.descending = descending;
+        this.capacity = Math.max(capacity, 16);
+        this.keys = new long[Math.min(this.capacity, 1024)];
+        this.uids = new long[keys.length];
+        this.runs = new ArrayList<>();
+    }
+
+    public void add(long key, long uid) throws IOException {
+        if(size == keys.length) {
+            if(size == capacity) {
+                spill();
+            } else {
+                int n = Math.min(capacity, size * 2);
+                long[] k = new long[n];
+                long[] u = new long[n];
+                System.arraycopy(keys, 0, k, 0, size);
+                System.arraycopy(uids, 0, u, 0, size);
+                keys = k;
+                uids = u;
+            }
+        }
+        keys[size] = key;
+        uids[size] = uid;
+        size ++;
+        count ++;
+    }
+
+    public long count() {
+        return count;
+    }
+
+    public boolean isDescending() {
+        return descending;
+    }
+
+    /**
+     * 结束输入，返回按 key 排好序的迭代器。
+     */
+    public PairIterator sort() throws IOException {
+        if(runs.isEmpty()) {
+            quickSort(keys, uids, 0, size - 1);
+            return new MemoryIterator(keys, uids, size, descending);
+        }
+        if(size > 0) {
+            spill();
+        }
+        keys = null;
+        uids = null;
+        return new MergeIterator(runs, descending);
+    }
+
+    /**
+     * 将内存中的数据排序后按输出顺序写成一个 run
+     */
+    private void spill() throws IOException {
+        quickSort(keys, uids, 0, size - 1);
+        File f = File.createTempFile("mydb-sort", ".run");
+        f.deleteOnExit();
+        try(DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(f), 1 << 16))) {
+            for(int i = 0; i < size; i ++) {
+                int j = descending ? size - 1 - i : i;
+                out.writeLong(keys[j]);
+                out.writeLong(uids[j]);
+            }
+        }
+        runs.add(f);
+        size = 0;
+    }
+
+    @Override
+    public void close() {
+        for(File f : runs) {
+            f.delete();
+        }
+        runs.clear();
+    }
+
+    private static void quickSort(long[] keys, long[] uids, int lo, int hi) {
+        while(lo < hi) {
+            if(hi - lo < 16) {
+                for(int i = lo + 1; i <= hi; i ++) {
+                    long k = keys[i], u = uids[i];
+                    int j = i - 1;
+                    while(j >= lo && keys[j] > k) {
+                        keys[j+1] = keys[j];
+                        uids[j+1] = uids[j];
+                        j --;
+                    }
+                    keys[j+1] = k;
+                    uids[j+1] = u;
+                }
+                return;
+            }
+            long pivot = keys[(lo + hi) >>> 1];
+            int i = lo, j = hi;
+            while(i <= j) {
+                while(keys[i] < pivot) i ++;
+                while(keys[j] > pivot) j --;
+                if(i <= j) {
+                    long k = keys[i]; keys[i] = keys[j]; keys[j] = k;
+                    long u = uids[i]; uids[i] = uids[j]; uids[j] = u;
+                    i ++;
+                    j --;
+                }
+            }
+            // 先递归较短的一段，较长的一段继续循环，限制递归深度
+            if(j - lo < hi - i) {
+                quickSort(keys, uids, lo, j);
+                lo = i;
+            } else {
+                quickSort(keys, uids, i, hi);
+                hi = j;
+            }
+        }
+    }
+
+    /**
+     * 不装箱的 (key, uid) 迭代器
+     */
+    public interface PairIterator extends Closeable {
+        boolean next() throws IOException;
+        long key();
+        long uid();
+    }
+
+    private static class MemoryIterator implements PairIterator {
+        private long[] keys, uids;
+        private int size, pos;
+        private boolean descending;
+
+        MemoryIterator(long[] keys, long[] uids, int size, boolean descending) {
+            this.keys = keys;
+            this.uids = uids;
+            this.size = size;
+            this.descending = descending;
+            this.pos = -1;
+        }
+
+        @Override
+        public boolean next() {
+            pos ++;
+            return pos < size;
+        }
+
+        @Override
+        public long key() {
+            return keys[descending ? size - 1 - pos : pos];
+        }
+
+        @Override
+        public long uid() {
+            return uids[descending ? size - 1 - pos : pos];
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    private static class Run {
+        DataInputStream in;
+        long key, uid;
+
+        boolean advance() throws IOException {
+            try {
+                key = in.readLong();
+                uid = in.readLong();
+                return true;
+            } catch (EOFException e) {
+                in.close();
+                return false;
+            }
+        }
+    }
+
+    private static class MergeIterator implements PairIterator {
+        private PriorityQueue<Run> heap;
+        private List<Run> all;
+        private long key, uid;
+
+        MergeIterator(List<File> files, boolean descending) throws IOException {
+            heap = new PriorityQueue<>(Math.max(files.size(), 1), (a, b) ->
+                    descending ? Long.compare(b.key, a.key) : Long.compare(a.key, b.key));
+            all = new ArrayList<>();
+            for(File f : files) {
+                Run r = new Run();
+                r.in = new DataInputStream(new BufferedInputStream(new FileInputStream(f), 1 << 16));
+                all.add(r);
+                if(r.advance()) {
+                    heap.add(r);
+                }
+            }
+        }
+
+        @Override
+        public boolean next() throws IOException {
+            Run r = heap.poll();
+            if(r == null) {
+                return false;
+            }
+            key = r.key;
+            uid = r.uid;
+            if(r.advance()) {
+                heap.add(r);
+            }
+            return true;
+        }
+
+        @Override
+        public long key() {
+            return key;
+        }
+
+        @Override
+        public long uid() {
+            return uid;
+        }
+
+        @Override
+        public void close() throws IOException {
+            for(Run r : all) {
+                r.in.close();
+            }
+        }
+    }
+}
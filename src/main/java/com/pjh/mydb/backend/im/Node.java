@@ -2,6 +2,7 @@ package com.pjh.mydb.backend.im;
 
 import com.pjh.mydb.backend.common.SubArray;
 import com.pjh.mydb.backend.dm.dataitem.DataItem;
+import com.pjh.mydb.backend.dm.page.PageX;
 import com.pjh.mydb.backend.utils.Parser;
 import com.pjh.mydb.backend.tm.TransactionManagerImpl;
 
@@ -19,6 +20,16 @@ import java.util.List;
  * SiblingUid 是其兄弟节点存储在 DM 中的 UID。
  * 后续是穿插的子节点（SonN）和 KeyN。最后的一个 KeyN 始终为 MAX_VALUE，以此方便查找。
  *
+ * 节点的大小由所在树的阶（BalanceNumber）决定，每个节点最多容纳 2*BalanceNumber 个 key，
+ * 阶在建树时选定并保存在树的 boot 中，默认让一个节点恰好占满一页。
+ *
+ * Key 有两种格式，由所在的树决定：
+ * 1. long key：[Key] --> [long]，按有符号整数比较；
+ * 2. 字节串 key：[KeyLength][Inline][OverflowUid] --> [short][KeyWidth][long]，按无符号字节序比较。
+ *    Inline 存放 key 的前 KeyWidth 个字节，不足补 0；key 比 KeyWidth 长时，完整的 key 另存为一个 DataItem，
+ *    OverflowUid 指向它，否则为 0。只有前 KeyWidth 个字节都相同时才需要读取溢出的 key。
+ *    KeyLength 为 INF_KEY_LENGTH 时表示正无穷，用作最右侧内部节点的最后一个 key。
+ *
  * @author Joseph Peng
  * @date 2022/8/3 11:40
  */
@@ -33,10 +44,45 @@ public class Node {
     // 头部长度
     static final int NODE_HEADER_SIZE = SIBLING_OFFSET+8;
 
-    // B+树的最大阶
-    static final int BALANCE_NUMBER = 32;
-    // 头部长度11 +
-    static final int NODE_SIZE = NODE_HEADER_SIZE + (2*8)*(BALANCE_NUMBER*2+2);
+    // 旧版本固定使用的阶，boot 中没有记录阶的树按此读取
+    static final int LEGACY_BALANCE_NUMBER = 32;
+    // 最小的阶
+    static final int MIN_BALANCE_NUMBER = 2;
+    // long key 的 [Son][Key] 大小
+    static final int LONG_SLOT_SIZE = 8*2;
+    // 一个节点恰好占满一页时的阶
+    static final int MAX_BALANCE_NUMBER = maxBalanceNumber(LONG_SLOT_SIZE);
+
+    // 字节串 key 中表示正无穷的长度
+    static final int INF_KEY_LENGTH = 0xffff;
+
+    /**
+     * [Son][Key] 大小为 slotSize 时，一个节点恰好占满一页的阶。
+     * 一页最多存放 PageX.MAX_FREE_SPACE - 3(DataItem 头部) 字节的数据
+     */
+    static int maxBalanceNumber(int slotSize) {
+        return ((PageX.MAX_FREE_SPACE - 3 - NODE_HEADER_SIZE) / slotSize - 2) / 2;
+    }
+
+    /**
+     * 阶为 balanceNumber 的节点大小
+     * 头部长度11 + (son + key) * (2*balanceNumber + 2)，多出的两个位置用于插入后、分裂前的临时溢出
+     */
+    static int nodeSize(int balanceNumber, int slotSize) {
+        return NODE_HEADER_SIZE + slotSize*(balanceNumber*2+2);
+    }
+
+    static int nodeSize(int balanceNumber) {
+        return nodeSize(balanceNumber, LONG_SLOT_SIZE);
+    }
+
+    /**
+     * 批量建树时每个节点填充的 key 数，留出少量空位，避免建好后的第一次插入就触发分裂
+     */
+    static int bulkFill(int balanceNumber) {
+        // 至少留出一个空位：节点只在插入后恰好达到 2*balanceNumber 个 key 时分裂
+        return balanceNumber*2 - Math.max(1, balanceNumber/4);
+    }
 
     BPlusTree tree;
     DataItem dataItem;
@@ -44,23 +90,26 @@ public class Node {
     long uid;
 
     /**
-     * 生成一个根节点的数据
-     * 该根节点的初始两个子节点为left和right, 初始键值为key
+     * 生成一个根节点数据
+     * 该根节点的初始两个子节点为 left 和 right, 初始键值为 key
+     * @param tree
      * @param left
      * @param right
-     * @param key
+     * @param key left 的上界，即 right 中的第一个 key，为 Key 的存储格式
      * @return
      */
-    static byte[] newRootRaw(long left, long right, long key)  {
-        SubArray raw = new SubArray(new byte[NODE_SIZE], 0, NODE_SIZE);
+    static byte[] newRootRaw(BPlusTree tree, long left, long right, byte[] key)  {
+        int slotSize = tree.slotSize();
+        int nodeSize = tree.nodeSize();
+        SubArray raw = new SubArray(new byte[nodeSize], 0, nodeSize);
 
         setRawIsLeaf(raw, false);
         setRawNoKeys(raw, 2);
         setRawSibling(raw, 0);
-        setRawKthSon(raw, left, 0);
-        setRawKthKey(raw, key, 0);
-        setRawKthSon(raw, right, 1);
-        setRawKthKey(raw, Long.MAX_VALUE, 1);
+        setRawKthSon(raw, slotSize, left, 0);
+        setRawKthKey(raw, slotSize, key, 0);
+        setRawKthSon(raw, slotSize, right, 1);
+        setRawKthKey(raw, slotSize, tree.infRawKey(), 1);
 
         return raw.raw;
     }
@@ -69,8 +118,9 @@ public class Node {
      * 生成一个空的根节点数据
      * @return
      */
-    static byte[] newNilRootRaw()  {
-        SubArray raw = new SubArray(new byte[NODE_SIZE], 0, NODE_SIZE);
+    static byte[] newNilRootRaw(BPlusTree tree)  {
+        int nodeSize = tree.nodeSize();
+        SubArray raw = new SubArray(new byte[nodeSize], 0, nodeSize);
 
         setRawIsLeaf(raw, true);
         setRawNoKeys(raw, 0);
@@ -79,6 +129,32 @@ public class Node {
         return raw.raw;
     }
 
+    /**
+     * 生成一个已填好 key 的节点数据，用于 long key 的批量建树
+     * 取 sons[from, from+noKeys) 和 keys[from, from+noKeys)，keys 需升序
+     * @param nodeSize
+     * @param isLeaf
+     * @param sons
+     * @param keys
+     * @param from
+     * @param noKeys
+     * @param sibling
+     * @return
+     */
+    static byte[] newFilledRaw(int nodeSize, boolean isLeaf, long[] sons, long[] keys, int from, int noKeys, long sibling) {
+        SubArray raw = new SubArray(new byte[nodeSize], 0, nodeSize);
+
+        setRawIsLeaf(raw, isLeaf);
+        setRawNoKeys(raw, noKeys);
+        setRawSibling(raw, sibling);
+        for(int i = 0; i < noKeys; i ++) {
+            setRawKthSon(raw, LONG_SLOT_SIZE, sons[from+i], i);
+            setRawKthKey(raw, LONG_SLOT_SIZE, Parser.long2Byte(keys[from+i]), i);
+        }
+
+        return raw.raw;
+    }
+
     static void setRawIsLeaf(SubArray raw, boolean isLeaf) {
         if(isLeaf) {
             raw.raw[raw.start + IS_LEAF_OFFSET] = (byte)1;
@@ -96,7 +172,7 @@ public class Node {
     }
 
     static int getRawNoKeys(SubArray raw) {
-        return (int)Parser.parseShort(Arrays.copyOfRange(raw.raw, raw.start+NO_KEYS_OFFSET, raw.start+NO_KEYS_OFFSET+2));
+        return (int)Parser.parseShort(raw.raw, raw.start+NO_KEYS_OFFSET);
     }
 
     static void setRawSibling(SubArray raw, long sibling) {
@@ -104,40 +180,144 @@ public class Node {
     }
 
     static long getRawSibling(SubArray raw) {
-        return Parser.parseLong(Arrays.copyOfRange(raw.raw, raw.start+SIBLING_OFFSET, raw.start+SIBLING_OFFSET+8));
+        return Parser.parseLong(raw.raw, raw.start+SIBLING_OFFSET);
     }
 
-    static void setRawKthSon(SubArray raw, long uid, int kth) {
-        int offset = raw.start+NODE_HEADER_SIZE+kth*(8*2);
+    static void setRawKthSon(SubArray raw, int slotSize, long uid, int kth) {
+        int offset = raw.start+NODE_HEADER_SIZE+kth*slotSize;
         System.arraycopy(Parser.long2Byte(uid), 0, raw.raw, offset, 8);
     }
 
-    static long getRawKthSon(SubArray raw, int kth) {
-        int offset = raw.start+NODE_HEADER_SIZE+kth*(8*2);
-        return Parser.parseLong(Arrays.copyOfRange(raw.raw, offset, offset+8));
+    static long getRawKthSon(SubArray raw, int slotSize, int kth) {
+        int offset = raw.start+NODE_HEADER_SIZE+kth*slotSize;
+        return Parser.parseLong(raw.raw, offset);
     }
 
-    static void setRawKthKey(SubArray raw, long key, int kth) {
-        int offset = raw.start+NODE_HEADER_SIZE+kth*(8*2)+8;
-        System.arraycopy(Parser.long2Byte(key), 0, raw.raw, offset, 8);
+    /**
+     * 写入第 kth 个 key，key 为存储格式，长度为 slotSize - 8
+     */
+    static void setRawKthKey(SubArray raw, int slotSize, byte[] key, int kth) {
+        int offset = raw.start+NODE_HEADER_SIZE+kth*slotSize+8;
+        System.arraycopy(key, 0, raw.raw, offset, slotSize-8);
     }
 
-    static long getRawKthKey(SubArray raw, int kth) {
-        int offset = raw.start+NODE_HEADER_SIZE+kth*(8*2)+8;
-        return Parser.parseLong(Arrays.copyOfRange(raw.raw, offset, offset+8));
+    /**
+     * 读出第 kth 个 key 的存储格式
+     */
+    static byte[] getRawKthKey(SubArray raw, int slotSize, int kth) {
+        int offset = raw.start+NODE_HEADER_SIZE+kth*slotSize+8;
+        return Arrays.copyOfRange(raw.raw, offset, offset+slotSize-8);
     }
 
-    static void copyRawFromKth(SubArray from, SubArray to, int kth) {
-        int offset = from.start+NODE_HEADER_SIZE+kth*(8*2);
+    static void copyRawFromKth(SubArray from, SubArray to, int slotSize, int kth) {
+        int offset = from.start+NODE_HEADER_SIZE+kth*slotSize;
         System.arraycopy(from.raw, offset, to.raw, to.start+NODE_HEADER_SIZE, from.end-offset);
     }
 
-    static void shiftRawKth(SubArray raw, int kth) {
-        int begin = raw.start+NODE_HEADER_SIZE+(kth+1)*(8*2);
-        int end = raw.start+NODE_SIZE-1;
-        for(int i = end; i >= begin; i --) {
-            raw.raw[i] = raw.raw[i-(8*2)];
+    /**
+     * 将第 kth 个位置及之后的 [Son][Key] 整体右移一个位置
+     */
+    static void shiftRawKth(SubArray raw, int slotSize, int kth) {
+        int begin = raw.start+NODE_HEADER_SIZE+(kth+1)*slotSize;
+        int end = raw.end-1;
+        System.arraycopy(raw.raw, begin-slotSize, raw.raw, begin, end-begin+1);
+    }
+
+    /**
+     * 无符号字节序比较 a[aOff, aOff+len) 和 b[bOff, bOff+len)
+     */
+    static int compareBytes(byte[] a, int aOff, byte[] b, int bOff, int len) {
+        for(int i = 0; i < len; i ++) {
+            int x = a[aOff+i] & 0xff, y = b[bOff+i] & 0xff;
+            if(x != y) {
+                return x < y ? -1 : 1;
+            }
         }
+        return 0;
+    }
+
+    /**
+     * 比较第 kth 个 key 与 key 的大小，key 为完整的 key
+     */
+    private int compareKth(int kth, byte[] key) throws Exception {
+        int offset = raw.start+NODE_HEADER_SIZE+kth*tree.slotSize()+8;
+        if(!tree.isBytesKey()) {
+            return Long.compare(Parser.parseLong(raw.raw, offset), Parser.parseLong(key, 0));
+        }
+        int length = Parser.parseShort(raw.raw, offset) & 0xffff;
+        if(length == INF_KEY_LENGTH) {
+            return 1;
+        }
+        int keyWidth = tree.keyWidth;
+        int c = compareBytes(raw.raw, offset+2, key, 0, Math.min(Math.min(length, keyWidth), key.length));
+        if(c != 0) {
+            return c;
+        }
+        if(length <= keyWidth || key.length <= keyWidth) {
+            return Integer.compare(length, key.length);
+        }
+        // 前 KeyWidth 个字节相同，读出溢出的完整 key 继续比较
+        DataItem di = tree.dm.read(Parser.parseLong(raw.raw, offset+2+keyWidth));
+        try {
+            SubArray full = di.data();
+            c = compareBytes(full.raw, full.start+keyWidth, key, keyWidth, Math.min(length, key.length)-keyWidth);
+            return c != 0 ? c : Integer.compare(length, key.length);
+        } finally {
+            di.release();
+        }
+    }
+
+    /**
+     * 读出第 kth 个 key 的完整内容，溢出的 key 需要读取其 DataItem
+     */
+    private byte[] fullKeyOf(int kth) throws Exception {
+        int offset = raw.start+NODE_HEADER_SIZE+kth*tree.slotSize()+8;
+        if(!tree.isBytesKey()) {
+            return Arrays.copyOfRange(raw.raw, offset, offset+8);
+        }
+        int length = Parser.parseShort(raw.raw, offset) & 0xffff;
+        if(length <= tree.keyWidth) {
+            return Arrays.copyOfRange(raw.raw, offset+2, offset+2+length);
+        }
+        DataItem di = tree.dm.read(Parser.parseLong(raw.raw, offset+2+tree.keyWidth));
+        try {
+            SubArray full = di.data();
+            return Arrays.copyOfRange(full.raw, full.start, full.end);
+        } finally {
+            di.release();
+        }
+    }
+
+    /**
+     * 二分查找第一个大于等于 key 的位置，不存在则返回 noKeys
+     */
+    private int lowerBound(int noKeys, byte[] key) throws Exception {
+        int lo = 0, hi = noKeys;
+        while(lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if(compareKth(mid, key) < 0) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    /**
+     * 二分查找第一个大于 key 的位置，不存在则返回 noKeys
+     */
+    private int upperBound(int noKeys, byte[] key) throws Exception {
+        int lo = 0, hi = noKeys;
+        while(lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if(compareKth(mid, key) <= 0) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
     }
 
     /**
@@ -180,18 +360,16 @@ public class Node {
      * @param key
      * @return
      */
-    public SearchNextRes searchNext(long key){
+    public SearchNextRes searchNext(byte[] key) throws Exception {
         dataItem.rLock();
         try {
             SearchNextRes res = new SearchNextRes();
             int noKeys = getRawNoKeys(raw);
-            for(int i = 0; i < noKeys; ++i){
-                long ik = getRawKthKey(raw, i);
-                if(key < ik){
-                    res.uid = getRawKthSon(raw, i);
-                    res.siblingUid = 0;
-                    return res;
-                }
+            int kth = upperBound(noKeys, key);
+            if(kth < noKeys){
+                res.uid = getRawKthSon(raw, tree.slotSize(), kth);
+                res.siblingUid = 0;
+                return res;
             }
             res.uid = 0;
             res.siblingUid = getRawSibling(raw);
@@ -201,35 +379,93 @@ public class Node {
         }
     }
 
+    /**
+     * 与 searchNext 类似，但 key 等于分隔键时走左侧子节点。
+     * 重复的 key 可能跨越两个叶子，范围查找需要从最左侧的一个开始，再沿兄弟节点向右扫描。
+     * @param key
+     * @return
+     */
+    public SearchNextRes searchNextLeftmost(byte[] key) throws Exception {
+        dataItem.rLock();
+        try {
+            SearchNextRes res = new SearchNextRes();
+            int noKeys = getRawNoKeys(raw);
+            int kth = lowerBound(noKeys, key);
+            if(kth < noKeys){
+                res.uid = getRawKthSon(raw, tree.slotSize(), kth);
+                res.siblingUid = 0;
+                return res;
+            }
+            res.uid = 0;
+            res.siblingUid = getRawSibling(raw);
+            return res;
+        }finally {
+            dataItem.rUnLock();
+        }
+    }
+
+    /**
+     * 内部节点最右侧的子节点，即 key 最大的一侧
+     */
+    public long lastSon() {
+        dataItem.rLock();
+        try {
+            return getRawKthSon(raw, tree.slotSize(), getRawNoKeys(raw) - 1);
+        } finally {
+            dataItem.rUnLock();
+        }
+    }
+
+    /**
+     * 内部节点中可能包含不超过 rightKey 的 key 的子节点，即第 0 个到第 k 个子节点；
+     * rightInclusive 为 false 时不包含等于 rightKey 的 key，rightKey 为 null 时返回全部子节点
+     */
+    public long[] sons(byte[] rightKey, boolean rightInclusive) throws Exception {
+        dataItem.rLock();
+        try {
+            int noKeys = getRawNoKeys(raw);
+            int k = noKeys - 1;
+            if(rightKey != null) {
+                k = Math.min(k, rightInclusive ? upperBound(noKeys, rightKey) : lowerBound(noKeys, rightKey));
+            }
+            long[] sons = new long[k + 1];
+            for(int i = 0; i <= k; i ++) {
+                sons[i] = getRawKthSon(raw, tree.slotSize(), i);
+            }
+            return sons;
+        } finally {
+            dataItem.rUnLock();
+        }
+    }
+
     class LeafSearchRangeRes {
         List<Long> uids;
         long siblingUid;
+        // 节点中是否有小于 leftKey 的 key，逆序扫描时据此判断已经到达下界
+        boolean belowLeft;
     }
 
     /**
      * leafSearchRange 方法在当前节点进行范围查找，范围是 [leftKey, rightKey]，
+     * rightInclusive 为 false 时不包含 rightKey，rightKey 为 null 表示没有上界。
      * 这里约定如果 rightKey 大于等于该节点的最大的 key, 则还同时返回兄弟节点的 UID，方便继续搜索下一个节点。
      * @param leftKey
      * @param rightKey
+     * @param rightInclusive
      * @return
      */
-    public LeafSearchRangeRes leafSearchRange(long leftKey, long rightKey) {
+    public LeafSearchRangeRes leafSearchRange(byte[] leftKey, byte[] rightKey, boolean rightInclusive) throws Exception {
         dataItem.rLock();
         try {
+            int slotSize = tree.slotSize();
             int noKeys = getRawNoKeys(raw);
-            int kth = 0;
-            while (kth < noKeys){
-                long ik = getRawKthKey(raw, kth);
-                if(ik >= leftKey){
-                    break;
-                }
-                kth++;
-            }
+            int kth = lowerBound(noKeys, leftKey);
+            boolean belowLeft = kth > 0;
             List<Long> uids = new ArrayList<>();
             while(kth < noKeys) {
-                long ik = getRawKthKey(raw, kth);
-                if(ik <= rightKey) {
-                    uids.add(getRawKthSon(raw, kth));
+                int c = rightKey == null ? -1 : compareKth(kth, rightKey);
+                if(c < 0 || (c == 0 && rightInclusive)) {
+                    uids.add(getRawKthSon(raw, slotSize, kth));
                     kth ++;
                 } else {
                     break;
@@ -244,6 +480,7 @@ public class Node {
             LeafSearchRangeRes res = new LeafSearchRangeRes();
             res.uids = uids;
             res.siblingUid = siblingUid;
+            res.belowLeft = belowLeft;
             return res;
         }finally {
             dataItem.rUnLock();
@@ -251,21 +488,26 @@ public class Node {
     }
 
     class InsertAndSplitRes {
-        long siblingUid, newSon, newKey;
+        long siblingUid, newSon;
+        byte[] newKey, newRawKey;
     }
 
     /**
      * InsertAndSplit 将对应的数据插入该节点, 并尝试进行分裂
      * 如果该份数据不应该插入到此节点, 则返回一个sibling uid.
+     * @param uid
+     * @param key 完整的 key，用于比较
+     * @param rawKey key 的存储格式
+     * @param leftSon 插入内部节点时为分裂出 uid 的子节点，uid 插在它之后；插入叶子时为 0
      */
-    public InsertAndSplitRes insertAndSplit(long uid, long key) throws Exception {
+    public InsertAndSplitRes insertAndSplit(long uid, byte[] key, byte[] rawKey, long leftSon) throws Exception {
         boolean success = false;
         Exception err = null;
         InsertAndSplitRes res = new InsertAndSplitRes();
 
         dataItem.before();
         try {
-            success = insert(uid, key);
+            success = insert(uid, key, rawKey, leftSon);
             if(!success) {
                 res.siblingUid = getRawSibling(raw);
                 return res;
@@ -275,6 +517,7 @@ public class Node {
                     SplitRes r = split();
                     res.newSon = r.newSon;
                     res.newKey = r.newKey;
+                    res.newRawKey = r.newRawKey;
                     return res;
                 } catch(Exception e) {
                     err = e;
@@ -292,69 +535,97 @@ public class Node {
         }
     }
 
-    private boolean insert(long uid, long key) {
+    private boolean insert(long uid, byte[] key, byte[] rawKey, long leftSon) throws Exception {
+        int slotSize = tree.slotSize();
         int noKeys = getRawNoKeys(raw);
-        int kth = 0;
-        while(kth < noKeys) {
-            long ik = getRawKthKey(raw, kth);
-            if(ik < key) {
-                kth ++;
-            } else {
-                break;
+        int kth = lowerBound(noKeys, key);
+        if(!getRawIfLeaf(raw)) {
+            // 叶子中的 key 不一定都小于父节点中对应的分隔键（大于叶子中所有 key 的插入会转到右侧兄弟叶子），
+            // 按 key 定位可能把新节点插到错误的子节点之后，所以从 lowerBound 开始向右找到分裂的子节点本身；
+            // 分裂的子节点不在本节点中时，它属于右侧的兄弟节点
+            int k = kth;
+            while(k < noKeys && getRawKthSon(raw, slotSize, k) != leftSon) {
+                k ++;
+            }
+            if(k < noKeys) {
+                kth = k;
+            } else if(getRawSibling(raw) != 0) {
+                return false;
             }
         }
         if(kth == noKeys && getRawSibling(raw) != 0) return false;
 
         if(getRawIfLeaf(raw)) {
-            shiftRawKth(raw, kth);
-            setRawKthKey(raw, key, kth);
-            setRawKthSon(raw, uid, kth);
+            shiftRawKth(raw, slotSize, kth);
+            setRawKthKey(raw, slotSize, rawKey, kth);
+            setRawKthSon(raw, slotSize, uid, kth);
             setRawNoKeys(raw, noKeys+1);
         } else {
-            long kk = getRawKthKey(raw, kth);
-            setRawKthKey(raw, key, kth);
-            shiftRawKth(raw, kth+1);
-            setRawKthKey(raw, kk, kth+1);
-            setRawKthSon(raw, uid, kth+1);
+            byte[] kk = getRawKthKey(raw, slotSize, kth);
+            // 分裂的子节点中可能有小于前一个分隔键的 key，分隔键不能比前一个小，保持节点中的 key 有序
+            if(kth > 0 && compareKth(kth-1, key) > 0) {
+                rawKey = getRawKthKey(raw, slotSize, kth-1);
+            }
+            setRawKthKey(raw, slotSize, rawKey, kth);
+            shiftRawKth(raw, slotSize, kth+1);
+            setRawKthKey(raw, slotSize, kk, kth+1);
+            setRawKthSon(raw, slotSize, uid, kth+1);
             setRawNoKeys(raw, noKeys+1);
         }
         return true;
     }
 
     private boolean needSplit() {
-        return BALANCE_NUMBER*2 == getRawNoKeys(raw);
+        return tree.balanceNumber*2 == getRawNoKeys(raw);
     }
 
     class SplitRes {
-        long newSon, newKey;
+        long newSon;
+        byte[] newKey, newRawKey;
     }
 
     private SplitRes split() throws Exception {
-        SubArray nodeRaw = new SubArray(new byte[NODE_SIZE], 0, NODE_SIZE);
+        int balanceNumber = tree.balanceNumber;
+        int slotSize = tree.slotSize();
+        int nodeSize = tree.nodeSize();
+        SubArray nodeRaw = new SubArray(new byte[nodeSize], 0, nodeSize);
         setRawIsLeaf(nodeRaw, getRawIfLeaf(raw));
-        setRawNoKeys(nodeRaw, BALANCE_NUMBER);
+        setRawNoKeys(nodeRaw, balanceNumber);
         setRawSibling(nodeRaw, getRawSibling(raw));
-        copyRawFromKth(raw, nodeRaw, BALANCE_NUMBER);
+        copyRawFromKth(raw, nodeRaw, slotSize, balanceNumber);
         long son = tree.dm.insert(TransactionManagerImpl.SUPER_TID, nodeRaw.raw);
-        setRawNoKeys(raw, BALANCE_NUMBER);
-        setRawSibling(raw, son);
 
         SplitRes res = new SplitRes();
         res.newSon = son;
-        res.newKey = getRawKthKey(nodeRaw, 0);
+        // 叶子把新节点的第一个 key 作为分隔键交给父节点；内部节点的 key 是子节点的上界，
+        // 交给父节点的是留在本节点的最后一个子节点的上界，否则新节点之后分裂出的更小的分隔键会排在它前面，
+        // 父节点中的 key 不再有序。溢出的 key 与父节点共用同一个 DataItem
+        int sep = getRawIfLeaf(raw) ? balanceNumber : balanceNumber - 1;
+        res.newKey = fullKeyOf(sep);
+        res.newRawKey = getRawKthKey(raw, slotSize, sep);
+        setRawNoKeys(raw, balanceNumber);
+        setRawSibling(raw, son);
         return res;
     }
 
 
     @Override
     public String toString() {
+        int slotSize = tree.slotSize();
         StringBuilder sb = new StringBuilder();
         sb.append("Is leaf: ").append(getRawIfLeaf(raw)).append("\n");
         int KeyNumber = getRawNoKeys(raw);
         sb.append("KeyNumber: ").append(KeyNumber).append("\n");
         sb.append("sibling: ").append(getRawSibling(raw)).append("\n");
         for(int i = 0; i < KeyNumber; i ++) {
-            sb.append("son: ").append(getRawKthSon(raw, i)).append(", key: ").append(getRawKthKey(raw, i)).append("\n");
+            sb.append("son: ").append(getRawKthSon(raw, slotSize, i)).append(", key: ");
+            byte[] key = getRawKthKey(raw, slotSize, i);
+            if(tree.isBytesKey()) {
+                sb.append(Arrays.toString(key));
+            } else {
+                sb.append(Parser.parseLong(key));
+            }
+            sb.append("\n");
         }
         return sb.toString();
     }
@@ -2,6 +2,7 @@ package com.pjh.mydb.backend.parser;
 
 import com.pjh.mydb.common.Error;
 import com.pjh.mydb.backend.parser.statement.*;
+import com.pjh.mydb.backend.utils.Log;
 
 import java.util.ArrayList;
 import java.util.List;
@@ -12,6 +13,8 @@ import java.util.List;
  */
 public class Parser {
 
+    private static final Log LOG = Log.get("parser");
+
     public static Object Parse(byte[] statement) throws Exception {
         Tokenizer tokenizer = new Tokenizer(statement);
         String token = tokenizer.peek();
@@ -52,6 +55,21 @@ public class Parser {
                 case "show":
                     stat = parseShow(tokenizer);
                     break;
+                case "analyze":
+                    stat = parseAnalyze(tokenizer);
+                    break;
+                case "prepare":
+                    stat = parsePrepare(tokenizer);
+                    break;
+                case "execute":
+                    stat = parseExecute(tokenizer);
+                    break;
+                case "deallocate":
+                    stat = parseDeallocate(tokenizer);
+                    break;
+                case "load":
+                    stat = parseLoad(tokenizer);
+                    break;
                 default:
                     throw Error.InvalidCommandException;
             }
@@ -66,7 +84,9 @@ public class Parser {
                 statErr = new RuntimeException("Invalid statement: " + new String(errStat));
             }
         }catch (Exception e){
-            e.printStackTrace();
+            if(Log.DEBUG) {
+                LOG.debug("Tokenize failed", e);
+            }
             byte[] errStat = tokenizer.errStat();
             statErr = new RuntimeException("Invalid statement: " + new String(errStat));
         }
@@ -151,7 +171,11 @@ public class Parser {
      * @return
      * @throws Exception
      */
-    private static Create parseCreate(Tokenizer tokenizer) throws Exception {
+    private static Object parseCreate(Tokenizer tokenizer) throws Exception {
+        if("index".equals(tokenizer.peek())) {
+            tokenizer.pop();
+            return parseCreateIndex(tokenizer);
+        }
         if(!"table".equals(tokenizer.peek())) {
             throw Error.InvalidCommandException;
         }
@@ -225,9 +249,76 @@ public class Parser {
         if(!"".equals(tokenizer.peek())) {
             throw Error.InvalidCommandException;
         }
+        // 顺序扫描沿索引的叶子节点进行，表上至少要有一个索引
+        if(indexes.isEmpty()) {
+            throw Error.TableNoIndexException;
+        }
         return create;
     }
 
+    /**
+     * create index on <table name> (<field name list>) [fanout <number>]
+     * create index on students (name) fanout 128
+     * create index on students (age, name)
+     * @param tokenizer
+     * @return
+     * @throws Exception
+     */
+    private static CreateIndex parseCreateIndex(Tokenizer tokenizer) throws Exception {
+        if(!"on".equals(tokenizer.peek())) {
+            throw Error.InvalidCommandException;
+        }
+        tokenizer.pop();
+
+        CreateIndex createIndex = new CreateIndex();
+        String tableName = tokenizer.peek();
+        if(!isName(tableName)) {
+            throw Error.InvalidCommandException;
+        }
+        createIndex.tableName = tableName;
+        tokenizer.pop();
+
+        if(!"(".equals(tokenizer.peek())) {
+            throw Error.InvalidCommandException;
+        }
+        tokenizer.pop();
+
+        // 字段名之间可以用逗号或空格分隔，多个字段时建立联合索引
+        List<String> fields = new ArrayList<>();
+        while(true) {
+            String field = tokenizer.peek();
+            if(!isName(field) || fields.contains(field)) {
+                throw Error.InvalidCommandException;
+            }
+            fields.add(field);
+            tokenizer.pop();
+
+            String next = tokenizer.peek();
+            if(",".equals(next)) {
+                tokenizer.pop();
+            } else if(")".equals(next)) {
+                break;
+            }
+        }
+        createIndex.fieldName = fields.toArray(new String[fields.size()]);
+        tokenizer.pop();
+
+        if("fanout".equals(tokenizer.peek())) {
+            tokenizer.pop();
+            try {
+                createIndex.fanout = Integer.parseInt(tokenizer.peek());
+            } catch (NumberFormatException e) {
+                throw Error.InvalidCommandException;
+            }
+            tokenizer.pop();
+        }
+
+        if(!"".equals(tokenizer.peek())) {
+            throw Error.InvalidCommandException;
+        }
+        return createIndex;
+    }
+
     //  drop table students
     private static Drop parseDrop(Tokenizer tokenizer) throws Exception {
         if(!"table".equals(tokenizer.peek())) {
@@ -251,8 +342,14 @@ public class Parser {
     }
 
     /**
-     * select (*|<field name list>) from <table name> [<where statement>]
+     * select (*|<select item list>) from <table name> {[inner|left] join <table name> on <field name> = <field name>}
+     *     [<where statement>] [group by <field name list>]
+     *     [order by <field name> [asc|desc] {, <field name> [asc|desc]}] [limit <n> [offset <m>]]
+     * select item: <field name> | (count|sum|min|max|avg)(<field name>) | count(*)
      * select name from student where id > 1 and id < 4
+     * select dept, count(*), avg(age) from student group by dept
+     * select * from student order by id desc limit 20
+     * select student.name, class.name from student left join class on student.class_id = class.id
      * @param tokenizer
      * @return
      * @throws Exception
@@ -261,10 +358,13 @@ public class Parser {
         Select read = new Select();
 
         List<String> fields = new ArrayList<>();
+        List<String> aggregates = new ArrayList<>();
+        boolean hasAggregate = false;
         String asterisk = tokenizer.peek();
 
         if("*".equals(asterisk)) {
             fields.add(asterisk);
+            aggregates.add(null);
             tokenizer.pop();
         } else {
             while(true) {
@@ -272,8 +372,25 @@ public class Parser {
                 if(!isName(field)) {
                     throw Error.InvalidCommandException;
                 }
-                fields.add(field);
                 tokenizer.pop();
+                if(isAggregate(field) && "(".equals(tokenizer.peek())) {
+                    tokenizer.pop();
+                    String arg = tokenizer.peek();
+                    if(!isName(arg) && !("count".equals(field) && "*".equals(arg))) {
+                        throw Error.InvalidCommandException;
+                    }
+                    tokenizer.pop();
+                    if(!")".equals(tokenizer.peek())) {
+                        throw Error.InvalidCommandException;
+                    }
+                    tokenizer.pop();
+                    fields.add(arg);
+                    aggregates.add(field);
+                    hasAggregate = true;
+                } else {
+                    fields.add(field);
+                    aggregates.add(null);
+                }
                 if(",".equals(tokenizer.peek())) {
                     tokenizer.pop();
                 } else {
@@ -297,20 +414,161 @@ public class Parser {
         read.tableName = tableName;
         tokenizer.pop();
 
-        String tmp = tokenizer.peek();
-        if("".equals(tmp)) {
-            read.where = null;
-            return read;
+        List<Join> joins = new ArrayList<>();
+        while(isJoin(tokenizer.peek())) {
+            joins.add(parseJoin(tokenizer));
+        }
+        if(!joins.isEmpty()) {
+            read.joins = joins.toArray(new Join[joins.size()]);
         }
 
-        read.where = parseWhere(tokenizer);
+        if("where".equals(tokenizer.peek())) {
+            read.where = parseWhere(tokenizer);
+        }
+        if("group".equals(tokenizer.peek())) {
+            read.groupBy = parseGroupBy(tokenizer);
+        }
+        if("order".equals(tokenizer.peek())) {
+            parseOrderBy(tokenizer, read);
+        }
+        if("limit".equals(tokenizer.peek())) {
+            tokenizer.pop();
+            read.limit = parseCount(tokenizer);
+            if("offset".equals(tokenizer.peek())) {
+                tokenizer.pop();
+                read.offset = parseCount(tokenizer);
+            }
+        }
+        if(hasAggregate || read.groupBy != null) {
+            read.aggregates = aggregates.toArray(new String[aggregates.size()]);
+        }
 
         return read;
     }
 
+    // left join class on student.class_id = class.id
+    private static Join parseJoin(Tokenizer tokenizer) throws Exception {
+        Join join = new Join();
+        String type = tokenizer.peek();
+        if("inner".equals(type) || "left".equals(type)) {
+            join.left = "left".equals(type);
+            tokenizer.pop();
+        }
+        if(!"join".equals(tokenizer.peek())) {
+            throw Error.InvalidCommandException;
+        }
+        tokenizer.pop();
+
+        String tableName = tokenizer.peek();
+        if(!isName(tableName)) {
+            throw Error.InvalidCommandException;
+        }
+        join.tableName = tableName;
+        tokenizer.pop();
+
+        if(!"on".equals(tokenizer.peek())) {
+            throw Error.InvalidCommandException;
+        }
+        tokenizer.pop();
+        String leftField = tokenizer.peek();
+        if(!isName(leftField)) {
+            throw Error.InvalidCommandException;
+        }
+        join.leftField = leftField;
+        tokenizer.pop();
+        if(!"=".equals(tokenizer.peek())) {
+            throw Error.InvalidCommandException;
+        }
+        tokenizer.pop();
+        String rightField = tokenizer.peek();
+        if(!isName(rightField)) {
+            throw Error.InvalidCommandException;
+        }
+        join.rightField = rightField;
+        tokenizer.pop();
+        return join;
+    }
+
+    // order by age desc, id
+    private static void parseOrderBy(Tokenizer tokenizer, Select read) throws Exception {
+        tokenizer.pop();
+        if(!"by".equals(tokenizer.peek())) {
+            throw Error.InvalidCommandException;
+        }
+        tokenizer.pop();
+
+        List<String> fields = new ArrayList<>();
+        List<Boolean> descending = new ArrayList<>();
+        while(true) {
+            String field = tokenizer.peek();
+            if(!isName(field)) {
+                throw Error.InvalidCommandException;
+            }
+            fields.add(field);
+            tokenizer.pop();
+            String dir = tokenizer.peek();
+            if("asc".equals(dir) || "desc".equals(dir)) {
+                tokenizer.pop();
+            }
+            descending.add("desc".equals(dir));
+            if(",".equals(tokenizer.peek())) {
+                tokenizer.pop();
+            } else {
+                break;
+            }
+        }
+        read.orderBy = fields.toArray(new String[fields.size()]);
+        read.descending = new boolean[fields.size()];
+        for (int i = 0; i < read.descending.length; i++) {
+            read.descending[i] = descending.get(i);
+        }
+    }
+
+    // limit 和 offset 后面的非负整数
+    private static int parseCount(Tokenizer tokenizer) throws Exception {
+        String n = tokenizer.peek();
+        int count;
+        try {
+            count = Integer.parseInt(n);
+        } catch (NumberFormatException e) {
+            throw Error.InvalidCommandException;
+        }
+        if(count < 0) {
+            throw Error.InvalidCommandException;
+        }
+        tokenizer.pop();
+        return count;
+    }
+
+    // group by dept, age
+    private static String[] parseGroupBy(Tokenizer tokenizer) throws Exception {
+        tokenizer.pop();
+        if(!"by".equals(tokenizer.peek())) {
+            throw Error.InvalidCommandException;
+        }
+        tokenizer.pop();
+
+        List<String> fields = new ArrayList<>();
+        while(true) {
+            String field = tokenizer.peek();
+            if(!isName(field)) {
+                throw Error.InvalidCommandException;
+            }
+            fields.add(field);
+            tokenizer.pop();
+            if(",".equals(tokenizer.peek())) {
+                tokenizer.pop();
+            } else {
+                break;
+            }
+        }
+        return fields.toArray(new String[fields.size()]);
+    }
+
     /**
-     * insert into <table name> values <value list>
+     * insert into <table name> values (<value list> | (<value list>) {, (<value list>)})
      *  insert into student values 5 "xxx" 22
+     *  insert into student values (5, "xxx", 22), (6, "yyy", 23)
      * @param tokenizer
      * @return
      * @throws Exception
@@ -333,22 +591,76 @@ public class Parser {
         if(!"values".equals(tokenizer.peek())) {
             throw Error.InvalidCommandException;
         }
+        tokenizer.pop();
 
-        List<String> values = new ArrayList<>();
+        if(!tokenizer.isSymbol("(")) {
+            List<String> values = new ArrayList<>();
+            while(!"".equals(tokenizer.peek())) {
+                values.add(parseValue(tokenizer));
+            }
+            insert.values = new String[][]{values.toArray(new String[values.size()])};
+            return insert;
+        }
+
+        List<String[]> rows = new ArrayList<>();
         while(true) {
-            tokenizer.pop();
-            String value = tokenizer.peek();
-            if("".equals(value)) {
+            rows.add(parseTuple(tokenizer));
+            String next = tokenizer.peek();
+            if("".equals(next)) {
                 break;
-            } else {
-                values.add(value);
             }
+            if(!tokenizer.isSymbol(",")) {
+                throw Error.InvalidCommandException;
+            }
+            tokenizer.pop();
         }
-        insert.values = values.toArray(new String[values.size()]);
-
+        insert.values = rows.toArray(new String[rows.size()][]);
         return insert;
     }
 
+    // (5, "xxx", 22)，值之间的逗号可以省略
+    private static String[] parseTuple(Tokenizer tokenizer) throws Exception {
+        if(!tokenizer.isSymbol("(")) {
+            throw Error.InvalidCommandException;
+        }
+        tokenizer.pop();
+
+        List<String> values = new ArrayList<>();
+        while(!tokenizer.isSymbol(")")) {
+            if("".equals(tokenizer.peek())) {
+                throw Error.InvalidCommandException;
+            }
+            values.add(parseValue(tokenizer));
+            if(tokenizer.isSymbol(",")) {
+                tokenizer.pop();
+            }
+        }
+        tokenizer.pop();
+        return values.toArray(new String[values.size()]);
+    }
+
+    // load into student
+    private static Load parseLoad(Tokenizer tokenizer) throws Exception {
+        if(!"into".equals(tokenizer.peek())) {
+            throw Error.InvalidCommandException;
+        }
+        tokenizer.pop();
+
+        String tableName = tokenizer.peek();
+        if(!isName(tableName)) {
+            throw Error.InvalidCommandException;
+        }
+        tokenizer.pop();
+
+        if(!"".equals(tokenizer.peek())) {
+            throw Error.InvalidCommandException;
+        }
+
+        Load load = new Load();
+        load.tableName = tableName;
+        return load;
+    }
+
     /**
      * delete from <table name> <where statement>
      * delete from student where name = "Zhang Yuanjia"
@@ -380,30 +692,130 @@ public class Parser {
         if("".equals(tmp)) {
             return new Show();
         }
+        if("stats".equals(tmp)) {
+            tokenizer.pop();
+            if(!"".equals(tokenizer.peek())) {
+                throw Error.InvalidCommandException;
+            }
+            Show show = new Show();
+            show.stats = true;
+            return show;
+        }
         throw Error.InvalidCommandException;
     }
 
-    // update tableName set filedName "xxx" where fieldName = xxx
-    private static Update parseUpdate(Tokenizer tokenizer) throws Exception {
-        Update update = new Update();
-        update.tableName = tokenizer.peek();
+    // analyze tableName
+    private static Analyze parseAnalyze(Tokenizer tokenizer) throws Exception {
+        String tableName = tokenizer.peek();
+        if(!isName(tableName)) {
+            throw Error.InvalidCommandException;
+        }
         tokenizer.pop();
 
-        if(!"set".equals(tokenizer.peek())) {
+        if(!"".equals(tokenizer.peek())) {
+            throw Error.InvalidCommandException;
+        }
+
+        Analyze analyze = new Analyze();
+        analyze.tableName = tableName;
+        return analyze;
+    }
+
+    /**
+     * prepare <name> as <statement>
+     * prepare byId as select * from student where id = ?
+     * as 之后的语句原文留给执行器解析，语句中的 ? 为参数占位符
+     * @param tokenizer
+     * @return
+     * @throws Exception
+     */
+    private static Prepare parsePrepare(Tokenizer tokenizer) throws Exception {
+        String name = tokenizer.peek();
+        if(!isName(name)) {
             throw Error.InvalidCommandException;
         }
         tokenizer.pop();
-        update.fieldName = tokenizer.peek();
+
+        if(!"as".equals(tokenizer.peek())) {
+            throw Error.InvalidCommandException;
+        }
         tokenizer.pop();
 
-        if (!"=".equals(tokenizer.peek())){
+        Prepare prepare = new Prepare();
+        prepare.name = name;
+        prepare.statement = tokenizer.rest();
+        return prepare;
+    }
+
+    /**
+     * execute <name> [<value list>]
+     * execute byId 5
+     * @param tokenizer
+     * @return
+     * @throws Exception
+     */
+    private static Execute parseExecute(Tokenizer tokenizer) throws Exception {
+        String name = tokenizer.peek();
+        if(!isName(name)) {
+            throw Error.InvalidCommandException;
+        }
+        Execute execute = new Execute();
+        execute.name = name;
+
+        List<String> params = new ArrayList<>();
+        while(true) {
+            tokenizer.pop();
+            String value = tokenizer.peek();
+            if("".equals(value)) {
+                break;
+            }
+            if(tokenizer.isParam()) {
+                throw Error.InvalidCommandException;
+            }
+            params.add(value);
+        }
+        execute.params = params.toArray(new String[params.size()]);
+        return execute;
+    }
+
+    // deallocate byId
+    private static Deallocate parseDeallocate(Tokenizer tokenizer) throws Exception {
+        String name = tokenizer.peek();
+        if(!isName(name)) {
             throw Error.InvalidCommandException;
         }
         tokenizer.pop();
 
-        update.value = tokenizer.peek();
+        if(!"".equals(tokenizer.peek())) {
+            throw Error.InvalidCommandException;
+        }
+
+        Deallocate deallocate = new Deallocate();
+        deallocate.name = name;
+        return deallocate;
+    }
+
+    // update tableName set fieldName = value [(+|-|*|/) value] {, ...} [where ...]
+    private static Update parseUpdate(Tokenizer tokenizer) throws Exception {
+        Update update = new Update();
+        update.tableName = tokenizer.peek();
+        tokenizer.pop();
+
+        if(!"set".equals(tokenizer.peek())) {
+            throw Error.InvalidCommandException;
+        }
         tokenizer.pop();
 
+        List<SetExpression> sets = new ArrayList<>();
+        while (true) {
+            sets.add(parseSetExp(tokenizer));
+            if(!tokenizer.isSymbol(",")) {
+                break;
+            }
+            tokenizer.pop();
+        }
+        update.sets = sets.toArray(new SetExpression[sets.size()]);
+
         String tmp = tokenizer.peek();
         if("".equals(tmp)) {
             update.where = null;
@@ -414,6 +826,39 @@ public class Parser {
         return update;
     }
 
+    private static SetExpression parseSetExp(Tokenizer tokenizer) throws Exception {
+        SetExpression exp = new SetExpression();
+        exp.field = tokenizer.peek();
+        if(!isName(exp.field)) {
+            throw Error.InvalidCommandException;
+        }
+        tokenizer.pop();
+
+        if (!tokenizer.isSymbol("=")){
+            throw Error.InvalidCommandException;
+        }
+        tokenizer.pop();
+
+        exp.maybeField1 = isFieldRef(tokenizer);
+        exp.value1 = parseValue(tokenizer);
+        String op = tokenizer.peek();
+        if(isArithOp(op) && !tokenizer.isQuoted()) {
+            tokenizer.pop();
+            exp.op = op;
+            exp.maybeField2 = isFieldRef(tokenizer);
+            exp.value2 = parseValue(tokenizer);
+        }
+        return exp;
+    }
+
+    /**
+     * 当前 token 是否可能是字段名：未加引号且以字母开头
+     */
+    private static boolean isFieldRef(Tokenizer tokenizer) throws Exception {
+        String token = tokenizer.peek();
+        return !tokenizer.isQuoted() && !"".equals(token) && Tokenizer.isAlphaBeta(token.getBytes()[0]);
+    }
+
     /**
      * where <field name> (>|<|=) <value> [(and|or) <field name> (>|<|=) <value>]
      * where age > 10 or age < 3
@@ -434,8 +879,8 @@ public class Parser {
 
         // 只支持and和or
         String logicOp = tokenizer.peek();
-        if("".equals(logicOp)) {
-            where.logicOp = logicOp;
+        if(isWhereEnd(logicOp)) {
+            where.logicOp = "";
             return where;
         }
         if(!isLogicOp(logicOp)) {
@@ -447,7 +892,7 @@ public class Parser {
         SingleExpression exp2 = parseSingleExp(tokenizer);
         where.singleExp2 = exp2;
 
-        if(!"".equals(tokenizer.peek())) {
+        if(!isWhereEnd(tokenizer.peek())) {
             throw Error.InvalidCommandException;
         }
         return where;
@@ -472,20 +917,195 @@ public class Parser {
         exp.compareOp = op;
         tokenizer.pop();
 
-        exp.value = tokenizer.peek();
-        tokenizer.pop();
+        exp.value = parseValue(tokenizer);
         return exp;
     }
 
+    /**
+     * 语句中的一个值，参数占位符 ? 解析为 null，由 bind 按出现顺序替换为参数
+     */
+    private static String parseValue(Tokenizer tokenizer) throws Exception {
+        String value = tokenizer.isParam() ? null : tokenizer.peek();
+        tokenizer.pop();
+        return value;
+    }
+
+    /**
+     * 语句中参数占位符的个数
+     * @param stat
+     * @return
+     */
+    public static int paramCount(Object stat) {
+        int n = 0;
+        if(Select.class.isInstance(stat)) {
+            n = paramCount(((Select)stat).where);
+        } else if(Insert.class.isInstance(stat)) {
+            for (String[] values : ((Insert)stat).values) {
+                for (String value : values) {
+                    if(value == null) n ++;
+                }
+            }
+        } else if(Update.class.isInstance(stat)) {
+            Update update = (Update)stat;
+            for (SetExpression exp : update.sets) {
+                if(exp.value1 == null) n ++;
+                if(!"".equals(exp.op) && exp.value2 == null) n ++;
+            }
+            n += paramCount(update.where);
+        } else if(Delete.class.isInstance(stat)) {
+            n = paramCount(((Delete)stat).where);
+        }
+        return n;
+    }
+
+    private static int paramCount(Where where) {
+        if(where == null) {
+            return 0;
+        }
+        int n = where.singleExp1.value == null ? 1 : 0;
+        if(where.singleExp2 != null && where.singleExp2.value == null) {
+            n ++;
+        }
+        return n;
+    }
+
+    /**
+     * 把参数依次绑定到语句的占位符上。解析得到的语句会被缓存并由多个会话共用，
+     * 因此不修改 stat，而是复制出含有占位符的部分；没有占位符时直接返回 stat
+     * @param stat
+     * @param params
+     * @return
+     * @throws Exception
+     */
+    public static Object bind(Object stat, String[] params) throws Exception {
+        if(paramCount(stat) != params.length) {
+            throw Error.InvalidParamException;
+        }
+        if(params.length == 0) {
+            return stat;
+        }
+        Binder binder = new Binder(params);
+        if(Select.class.isInstance(stat)) {
+            Select src = (Select)stat;
+            Select read = new Select();
+            read.tableName = src.tableName;
+            read.joins = src.joins;
+            read.fields = src.fields;
+            read.aggregates = src.aggregates;
+            read.where = binder.bind(src.where);
+            read.groupBy = src.groupBy;
+            read.orderBy = src.orderBy;
+            read.descending = src.descending;
+            read.limit = src.limit;
+            read.offset = src.offset;
+            return read;
+        } else if(Insert.class.isInstance(stat)) {
+            Insert src = (Insert)stat;
+            Insert insert = new Insert();
+            insert.tableName = src.tableName;
+            insert.values = new String[src.values.length][];
+            for (int i = 0; i < src.values.length; i++) {
+                insert.values[i] = new String[src.values[i].length];
+                for (int j = 0; j < src.values[i].length; j++) {
+                    insert.values[i][j] = binder.bind(src.values[i][j]);
+                }
+            }
+            return insert;
+        } else if(Update.class.isInstance(stat)) {
+            Update src = (Update)stat;
+            Update update = new Update();
+            update.tableName = src.tableName;
+            update.sets = new SetExpression[src.sets.length];
+            for (int i = 0; i < src.sets.length; i++) {
+                update.sets[i] = binder.bind(src.sets[i]);
+            }
+            update.where = binder.bind(src.where);
+            return update;
+        } else {
+            Delete src = (Delete)stat;
+            Delete delete = new Delete();
+            delete.tableName = src.tableName;
+            delete.where = binder.bind(src.where);
+            return delete;
+        }
+    }
+
+    private static class Binder {
+        String[] params;
+        int next;
+
+        Binder(String[] params) {
+            this.params = params;
+        }
+
+        String bind(String value) {
+            return value != null ? value : params[next++];
+        }
+
+        Where bind(Where src) {
+            if(src == null) {
+                return null;
+            }
+            Where where = new Where();
+            where.logicOp = src.logicOp;
+            where.singleExp1 = bind(src.singleExp1);
+            if(src.singleExp2 != null) {
+                where.singleExp2 = bind(src.singleExp2);
+            }
+            return where;
+        }
+
+        SetExpression bind(SetExpression src) {
+            SetExpression exp = new SetExpression();
+            exp.field = src.field;
+            exp.value1 = bind(src.value1);
+            exp.maybeField1 = src.maybeField1;
+            exp.op = src.op;
+            if(!"".equals(src.op)) {
+                exp.value2 = bind(src.value2);
+                exp.maybeField2 = src.maybeField2;
+            }
+            return exp;
+        }
+
+        SingleExpression bind(SingleExpression src) {
+            SingleExpression exp = new SingleExpression();
+            exp.field = src.field;
+            exp.compareOp = src.compareOp;
+            exp.value = bind(src.value);
+            return exp;
+        }
+    }
+
     private static boolean isType(String tp) {
         return ("int32".equals(tp) || "int64".equals(tp) ||
                 "string".equals(tp));
     }
 
+    /**
+     * where 语句之后可以是语句结尾，或 select 的 group by、order by 和 limit
+     */
+    private static boolean isWhereEnd(String token) {
+        return "".equals(token) || "group".equals(token) || "order".equals(token) || "limit".equals(token);
+    }
+
+    private static boolean isJoin(String token) {
+        return "join".equals(token) || "inner".equals(token) || "left".equals(token);
+    }
+
+    private static boolean isAggregate(String name) {
+        return "count".equals(name) || "sum".equals(name) || "min".equals(name)
+                || "max".equals(name) || "avg".equals(name);
+    }
+
     private static boolean isLogicOp(String op) {
         return ("and".equals(op) || "or".equals(op));
     }
 
+    private static boolean isArithOp(String op) {
+        return ("+".equals(op) || "-".equals(op) || "*".equals(op) || "/".equals(op));
+    }
+
     private static boolean isCmpOp(String op) {
         return ("=".equals(op) || ">".equals(op) || "<".equals(op));
     }
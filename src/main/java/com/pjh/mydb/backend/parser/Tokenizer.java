@@ -2,6 +2,8 @@ package com.pjh.mydb.backend.parser;
 
 import com.pjh.mydb.common.Error;
 
+import java.util.Arrays;
+
 /**
  * 对语句进行逐字节解析，根据空白符或者词法规则，将语句切割成多个 token。
  * 对外提供了 peek()、pop() 方法方便取出 Token 进行解析。
@@ -14,6 +16,8 @@ public class Tokenizer {
     private int pos;
     private String currentToken;
     private boolean flushToken;
+    // 当前 token 是否被引号包裹，用来区分参数占位符 ? 和字符串 "?"
+    private boolean quoted;
     private Exception err;
 
     public Tokenizer(byte[] stat) {
@@ -46,6 +50,39 @@ public class Tokenizer {
         flushToken = true;
     }
 
+    /**
+     * 当前 token 是否为参数占位符 ?
+     */
+    public boolean isParam() throws Exception {
+        return isSymbol("?");
+    }
+
+    /**
+     * 当前 token 是否为符号 symbol，被引号包裹的同样内容是字符串而不是符号
+     */
+    public boolean isSymbol(String symbol) throws Exception {
+        return symbol.equals(peek()) && !quoted;
+    }
+
+    /**
+     * 当前 token 是否被引号包裹
+     */
+    public boolean isQuoted() throws Exception {
+        peek();
+        return quoted;
+    }
+
+    /**
+     * 取出尚未切分的剩余字节，此后 peek() 返回语句结尾
+     */
+    public byte[] rest() {
+        byte[] res = Arrays.copyOfRange(stat, pos, stat.length);
+        pos = stat.length;
+        currentToken = "";
+        flushToken = false;
+        return res;
+    }
+
     /**
      * 返回错误表达式
      * @return
@@ -94,10 +131,12 @@ public class Tokenizer {
             popByte();
         }
         byte b = peekByte();
+        quoted = false;
         if (isSymbol(b)){
             popByte();
             return new String(new byte[]{b});
         }else if (b == '"' || b == '\''){
+            quoted = true;
             return nextQuoteState();
         }else if (isAlphaBeta(b) || isDigit(b)){
             return nextTokenState();
@@ -111,7 +150,8 @@ public class Tokenizer {
         StringBuilder sb = new StringBuilder();
         while(true) {
             Byte b = peekByte();
-            if(b == null || !(isAlphaBeta(b) || isDigit(b) || b == '_')){
+            // 表名限定的字段名 table.field 作为一个 token
+            if(b == null || !(isAlphaBeta(b) || isDigit(b) || b == '_' || b == '.')){
                 if(b != null && isBlank(b)){
                     popByte();
                 }
@@ -157,7 +197,8 @@ public class Tokenizer {
 
     static boolean isSymbol(byte b) {
         return (b == '>' || b == '<' || b == '=' || b == '*' ||
-                b == ',' || b == '(' || b == ')');
+                b == ',' || b == '(' || b == ')' || b == '?' ||
+                b == '+' || b == '-' || b == '/');
     }
 
     static boolean isBlank(byte b) {
@@ -0,0 +1,9 @@
+package com.pjh.mydb.backend.parser.statement;
+
+/**
+ * @author Joseph Peng
+ * @date 2026/10/19 16:40
+ */
+public class Analyze {
+    public String tableName;
+}
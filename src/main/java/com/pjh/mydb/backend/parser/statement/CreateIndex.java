@@ -0,0 +1,14 @@
+package com.pjh.mydb.backend.parser.statement;
+
+/**
+ * @author Joseph Peng
+ * @date 2026/10/19 10:40
+ */
+public class CreateIndex {
+
+    public String tableName;
+    // 多于一个字段时为联合索引，字段顺序即 key 中的顺序
+    public String[] fieldName;
+    // 每个节点最多容纳的 key 数，0 表示使用默认值（节点占满一页）
+    public int fanout;
+}
@@ -0,0 +1,11 @@
+package com.pjh.mydb.backend.parser.statement;
+
+/**
+ * deallocate <name>
+ *
+ * @author Joseph Peng
+ * @date 2026/10/19 21:10
+ */
+public class Deallocate {
+    public String name;
+}
@@ -0,0 +1,12 @@
+package com.pjh.mydb.backend.parser.statement;
+
+/**
+ * execute <name> [<value list>]
+ *
+ * @author Joseph Peng
+ * @date 2026/10/19 21:10
+ */
+public class Execute {
+    public String name;
+    public String[] params;
+}
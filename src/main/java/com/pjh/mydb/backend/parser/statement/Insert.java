@@ -6,5 +6,6 @@ package com.pjh.mydb.backend.parser.statement;
  */
 public class Insert {
     public String tableName;
-    public String[] values;
+    // 每一行的值，多行 insert 时有多行
+    public String[][] values;
 }
@@ -0,0 +1,15 @@
+package com.pjh.mydb.backend.parser.statement;
+
+/**
+ * select 中的一个 join：[inner|left] join tableName on leftField = rightField
+ *
+ * @author Joseph Peng
+ * @date 2026/10/19 19:40
+ */
+public class Join {
+    public String tableName;
+    // left join 时左侧没有匹配的记录也输出，右侧的字段为 null
+    public boolean left;
+    public String leftField;
+    public String rightField;
+}
@@ -0,0 +1,12 @@
+package com.pjh.mydb.backend.parser.statement;
+
+/**
+ * load into <table name>
+ * 之后客户端发送的数据都是要导入的记录，直到单独一行 \.
+ *
+ * @author Joseph Peng
+ * @date 2026/10/19 21:50
+ */
+public class Load {
+    public String tableName;
+}
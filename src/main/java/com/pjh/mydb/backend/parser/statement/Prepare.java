@@ -0,0 +1,14 @@
+package com.pjh.mydb.backend.parser.statement;
+
+/**
+ * prepare <name> as <statement>
+ * statement 中的值可以写成参数占位符 ?，execute 时按出现顺序绑定
+ *
+ * @author Joseph Peng
+ * @date 2026/10/19 21:10
+ */
+public class Prepare {
+    public String name;
+    // as 之后的语句原文，由执行器解析并缓存
+    public byte[] statement;
+}
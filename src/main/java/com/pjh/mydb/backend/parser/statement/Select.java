@@ -6,6 +6,17 @@ package com.pjh.mydb.backend.parser.statement;
  */
 public class Select {
     public String tableName;
+    // 依次与 tableName 连接的表，没有 join 时为 null
+    public Join[] joins;
     public String[] fields;
+    // 与 fields 一一对应的聚合函数（count/sum/min/max/avg），普通字段为 null；没有聚合和分组时整个数组为 null
+    public String[] aggregates;
     public Where where;
+    public String[] groupBy;
+    // 排序字段，以及每个字段是否降序
+    public String[] orderBy;
+    public boolean[] descending;
+    // 最多返回的行数，-1 表示不限制
+    public int limit = -1;
+    public int offset;
 }
@@ -0,0 +1,18 @@
+package com.pjh.mydb.backend.parser.statement;
+
+/**
+ * update 中 set 的一项：field = value1 [(+|-|*|/) value2]
+ * 未加引号、以字母开头的值可以是字段名，执行时取该字段在更新前的值
+ *
+ * @author Joseph Peng
+ * @date 2026/10/19 22:40
+ */
+public class SetExpression {
+    public String field;
+    public String value1;
+    public boolean maybeField1;
+    // 没有运算时为空串，此时 value2 为 null
+    public String op = "";
+    public String value2;
+    public boolean maybeField2;
+}
@@ -5,4 +5,6 @@ package com.pjh.mydb.backend.parser.statement;
  * @date 2022/8/4 9:51
  */
 public class Show {
+    // show stats：服务器的运行统计
+    public boolean stats;
 }
@@ -7,7 +7,7 @@ package com.pjh.mydb.backend.parser.statement;
 public class Update {
 
     public String tableName;
-    public String fieldName;
-    public String value;
+    // set 中的每一项，按书写顺序
+    public SetExpression[] sets;
     public Where where;
 }
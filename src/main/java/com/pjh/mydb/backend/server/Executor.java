@@ -3,8 +3,15 @@ package com.pjh.mydb.backend.server;
 import com.pjh.mydb.backend.parser.statement.*;
 import com.pjh.mydb.common.Error;
 import com.pjh.mydb.backend.parser.Parser;
+import com.pjh.mydb.backend.stats.Stats;
 import com.pjh.mydb.backend.tbm.BeginRes;
+import com.pjh.mydb.backend.tbm.Loader;
+import com.pjh.mydb.backend.tbm.ResultSink;
 import com.pjh.mydb.backend.tbm.TableManager;
+import com.pjh.mydb.backend.utils.Log;
+
+import java.util.HashMap;
+import java.util.Map;
 
 /**
  * @author Joseph Peng
@@ -12,24 +19,107 @@ import com.pjh.mydb.backend.tbm.TableManager;
  */
 public class Executor {
 
+    private static final Log LOG = Log.get("server");
+
     private long tid;
+    // 显式开启的事务因语句出错被整个回滚，之后的语句都失败，直到客户端发送 abort，不会悄悄回到自动提交
+    private boolean aborted;
     TableManager tbm;
+    // 解析好的语句，由服务器上的所有会话共用
+    private StatementCache cache;
+    // 本会话中预编译的语句模板，模板中的值可以是参数占位符
+    private Map<String, Object> prepared;
+    // 正在进行的 load，期间收到的数据都是要导入的记录，不再当作语句解析
+    private Loader loader;
+    // load 是否使用自己开启的事务，导入结束时提交
+    private boolean loadTransaction;
+    // 当前语句的查询结果分段交给它，为 null 时结果一次返回
+    private ResultSink sink;
+    // 当前语句要求查询以行集返回结果
+    private boolean rows;
+    // 上一条语句的结果是行集
+    private boolean returnedRows;
+    // 当前语句的种类，用于分类统计耗时
+    private String kind;
 
     public Executor(TableManager tbm) {
+        this(tbm, new StatementCache(StatementCache.DEFAULT_CAPACITY));
+    }
+
+    public Executor(TableManager tbm, StatementCache cache) {
         this.tbm = tbm;
         this.tid = 0;
+        this.cache = cache;
+        this.prepared = new HashMap<>();
     }
 
     public void close() {
+        if(loader != null) {
+            loader.close();
+            loader = null;
+        }
         if(tid != 0) {
-            System.out.println("Abnormal Abort: " + tid);
+            LOG.warn("Abnormal Abort: " + tid);
             tbm.abort(tid);
         }
     }
 
     public byte[] execute(byte[] sql) throws Exception {
-        System.out.println("Execute: " + new String(sql));
-        Object stat = Parser.Parse(sql);
+        return execute(sql, false, null);
+    }
+
+    /**
+     * 执行一条语句，查询的结果较大时分段交给 sink，返回值是最后一段。
+     * rows 为 true 时查询的结果编码为行集，实际是否如此见 returnedRows
+     */
+    public byte[] execute(byte[] sql, boolean rows, ResultSink sink) throws Exception {
+        this.sink = sink;
+        this.rows = rows;
+        this.returnedRows = false;
+        this.kind = null;
+        Stats.Scope scope = Stats.begin();
+        boolean failed = true;
+        // load 期间收到的是数据，慢查询日志中不记录原文
+        byte[] text = loader == null ? sql : ("<load data, " + sql.length + " bytes>").getBytes();
+        if(Log.DEBUG) {
+            LOG.debug("Execute: " + new String(text));
+        }
+        try {
+            byte[] res = execute1(sql);
+            failed = false;
+            return res;
+        } finally {
+            this.sink = null;
+            Stats.end(scope, kind, text, failed);
+        }
+    }
+
+    /**
+     * 上一条语句的结果是否是行集。只有不带聚合的 select 会返回行集，其他语句和聚合查询的结果仍是文本
+     */
+    public boolean returnedRows() {
+        return returnedRows;
+    }
+
+    private byte[] execute1(byte[] sql) throws Exception {
+        if(loader != null) {
+            kind = "load";
+            return load(sql);
+        }
+        // 空语句直接返回空结果，客户端用它检查连接是否可用
+        if(sql.length == 0) {
+            return sql;
+        }
+        kind = "invalid";
+        Object stat = cache.get(sql);
+        kind = kind(stat);
+        if(aborted) {
+            if(!Abort.class.isInstance(stat)) {
+                throw Error.TransactionAbortedException;
+            }
+            aborted = false;
+            return "abort".getBytes();
+        }
         if(Begin.class.isInstance(stat)) {
             if(tid != 0) {
                 throw Error.NestedTransactionException;
@@ -51,11 +141,99 @@ public class Executor {
             byte[] res = tbm.abort(tid);
             tid = 0;
             return res;
+        } else if(Load.class.isInstance(stat)) {
+            loadTransaction = tid == 0;
+            if(loadTransaction) {
+                tid = tbm.begin(new Begin()).tid;
+            }
+            try {
+                loader = tbm.load(tid, (Load)stat);
+            } catch (Exception e) {
+                if(loadTransaction) {
+                    tbm.abort(tid);
+                    tid = 0;
+                }
+                throw e;
+            }
+            return "load".getBytes();
+        } else if(Prepare.class.isInstance(stat)) {
+            return prepare((Prepare)stat);
+        } else if(Execute.class.isInstance(stat)) {
+            Execute execute = (Execute)stat;
+            Object template = prepared.get(execute.name);
+            if(template == null) {
+                throw Error.PreparedNotFoundException;
+            }
+            kind = kind(template);
+            return execute2(Parser.bind(template, execute.params));
+        } else if(Deallocate.class.isInstance(stat)) {
+            String name = ((Deallocate)stat).name;
+            if(prepared.remove(name) == null) {
+                throw Error.PreparedNotFoundException;
+            }
+            return ("deallocate " + name).getBytes();
+        } else if(Show.class.isInstance(stat) && ((Show)stat).stats) {
+            return Stats.report().getBytes();
         } else {
+            if(Parser.paramCount(stat) != 0) {
+                throw Error.InvalidParamException;
+            }
             return execute2(stat);
         }
     }
 
+    /**
+     * 语句的种类，即语句类名的小写，如 select、createindex
+     */
+    private static String kind(Object stat) {
+        return stat.getClass().getSimpleName().toLowerCase();
+    }
+
+    /**
+     * 导入一段数据，遇到结束标记时合并索引，load 自己开启的事务随之提交。
+     * 导入出错时结束 load 并回滚整个事务，已经写入的记录还不在索引中，不能留给事务继续使用；
+     * 事务是客户端开启的时，会话进入 aborted 状态
+     */
+    private byte[] load(byte[] data) throws Exception {
+        long count;
+        try {
+            if(!loader.load(data)) {
+                return ("load " + loader.count()).getBytes();
+            }
+            count = loader.finish();
+        } catch (Exception e) {
+            loader.close();
+            loader = null;
+            tbm.abort(tid);
+            tid = 0;
+            aborted = !loadTransaction;
+            throw e;
+        }
+        loader.close();
+        loader = null;
+        if(loadTransaction) {
+            tbm.commit(tid);
+            tid = 0;
+        }
+        return ("load " + count).getBytes();
+    }
+
+    /**
+     * 预编译的语句只能是 select、insert、update 和 delete，模板同样从缓存中取得
+     */
+    private byte[] prepare(Prepare prepare) throws Exception {
+        if(prepared.containsKey(prepare.name)) {
+            throw Error.DuplicatedPreparedException;
+        }
+        Object template = cache.get(prepare.statement);
+        if(!Select.class.isInstance(template) && !Insert.class.isInstance(template)
+                && !Update.class.isInstance(template) && !Delete.class.isInstance(template)) {
+            throw Error.InvalidCommandException;
+        }
+        prepared.put(prepare.name, template);
+        return ("prepare " + prepare.name).getBytes();
+    }
+
     private byte[] execute2(Object stat) throws Exception {
         boolean tmpTransaction = false;
         Exception e = null;
@@ -70,18 +248,31 @@ public class Executor {
                 res = tbm.show(tid);
             } else if(Create.class.isInstance(stat)) {
                 res = tbm.create(tid, (Create)stat);
+            } else if(CreateIndex.class.isInstance(stat)) {
+                res = tbm.createIndex(tid, (CreateIndex)stat);
             } else if(Select.class.isInstance(stat)) {
-                res = tbm.read(tid, (Select)stat);
+                Select select = (Select)stat;
+                res = tbm.read(tid, select, rows, sink);
+                returnedRows = rows && select.aggregates == null;
             } else if(Insert.class.isInstance(stat)) {
                 res = tbm.insert(tid, (Insert)stat);
             } else if(Delete.class.isInstance(stat)) {
                 res = tbm.delete(tid, (Delete)stat);
             } else if(Update.class.isInstance(stat)) {
                 res = tbm.update(tid, (Update)stat);
+            } else if(Analyze.class.isInstance(stat)) {
+                res = tbm.analyze(tid, (Analyze)stat);
             }
             return res;
         } catch(Exception e1) {
             e = e1;
+            // 多行 insert 在写入部分记录后出错，这些记录还不在索引中，与 load 一样回滚整个事务；
+            // 其他语句出错时事务仍然可以继续使用
+            if(!tmpTransaction && e1 == Error.TransactionAbortedException) {
+                tbm.abort(tid);
+                tid = 0;
+                aborted = true;
+            }
             throw e;
         } finally {
             if(tmpTransaction) {
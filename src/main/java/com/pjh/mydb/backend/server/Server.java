@@ -1,123 +1,473 @@
 package com.pjh.mydb.backend.server;
 
+import com.pjh.mydb.backend.stats.Stats;
+import com.pjh.mydb.backend.tbm.ResultSink;
 import com.pjh.mydb.backend.tbm.TableManager;
+import com.pjh.mydb.backend.utils.Log;
+import com.pjh.mydb.common.Error;
 import com.pjh.mydb.transport.Encoder;
+import com.pjh.mydb.transport.FrameCodec;
 import com.pjh.mydb.transport.Package;
-import com.pjh.mydb.transport.Packager;
 import com.pjh.mydb.transport.Transporter;
 
 import java.io.IOException;
 import java.net.InetSocketAddress;
-import java.net.ServerSocket;
-import java.net.Socket;
-import java.util.concurrent.ArrayBlockingQueue;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.Executors;
+import java.util.concurrent.SynchronousQueue;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 
 /**
+ * 基于 Selector 的服务器：一个线程负责接受连接和所有连接上的读写，读到完整的语句后交给工作线程执行，
+ * 执行结果再由 Selector 线程写回。每个连接同一时间只执行一条语句，执行和写回结果期间不读取这个连接。
+ * 空闲的连接只占用一个 Connection 对象，接收缓冲区只在收到的消息不完整时才分配。
+ * 协议支持时，大的查询结果分段写回，每个连接至多有 STREAM_WINDOW 段等待写出，工作线程在客户端取走之前阻塞。
+ * 语句可能因为等待锁而长时间阻塞，工作线程按需创建、空闲一段时间后回收，
+ * 阻塞的语句不会占满线程池，使持有锁的事务的下一条语句无法执行。
+ * 运行在 JDK 21 及以上时可以改用虚拟线程执行语句，每条语句一个虚拟线程，等待日志刷盘和行锁时不占用平台线程。
+ *
  * @author Joseph Peng
  * @date 2022/8/4 21:54
  */
 public class Server {
 
+    static final Log LOG = Log.get("server");
+
+    // 工作线程空闲多久后回收
+    private static final long WORKER_KEEP_ALIVE_SECONDS = 60;
+
     private int port;
+    private boolean virtualThreads;
     TableManager tbm;
+    // 所有连接共用的语句缓存
+    StatementCache cache;
+    Selector selector;
+    ExecutorService workers;
+    // 所有连接共用的读缓冲区，只在 Selector 线程中使用
+    final ByteBuffer readBuffer = ByteBuffer.allocateDirect(1 << 16);
+    // 语句已经执行完或有查询结果的分段、等待 Selector 线程写回的连接
+    private final Queue<Connection> done = new ConcurrentLinkedQueue<>();
 
     public Server(int port, TableManager tbm) {
+        this(port, tbm, false);
+    }
+
+    /**
+     * @param virtualThreads 是否用虚拟线程执行语句，当前 JDK 不支持时仍使用线程池
+     */
+    public Server(int port, TableManager tbm, boolean virtualThreads) {
         this.port = port;
         this.tbm = tbm;
+        this.virtualThreads = virtualThreads;
+        this.cache = new StatementCache(StatementCache.DEFAULT_CAPACITY);
     }
 
     public void start() {
-        ServerSocket ss = null;
+        ServerSocketChannel ssc = null;
         try {
-            ss = new ServerSocket(port);
+            selector = Selector.open();
+            ssc = ServerSocketChannel.open();
+            ssc.bind(new InetSocketAddress(port));
+            ssc.configureBlocking(false);
+            ssc.register(selector, SelectionKey.OP_ACCEPT);
         } catch (Exception e) {
-            e.printStackTrace();
+            LOG.error("Server failed to listen to port: " + port, e);
             return;
         }
-        System.out.println("Server listen to port: " + port);
+        LOG.info("Server listen to port: " + port);
+        Stats.register();
 
-        ThreadPoolExecutor threadPool = new ThreadPoolExecutor(
-                5, 10, 1L,
-                TimeUnit.SECONDS, new ArrayBlockingQueue<>(100),
-                new ThreadPoolExecutor.CallerRunsPolicy());
+        workers = newWorkers();
         try {
             while (true){
-                Socket socket = ss.accept();
-                Runnable worker = new HandleSocket(socket, tbm);
-                threadPool.execute(worker);
+                selector.select();
+                Connection conn;
+                while ((conn = done.poll()) != null) {
+                    conn.finish();
+                }
+                Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    if(!key.isValid()) {
+                        continue;
+                    }
+                    if(key.isAcceptable()) {
+                        accept(ssc);
+                        continue;
+                    }
+                    conn = (Connection) key.attachment();
+                    if(key.isReadable()) {
+                        conn.read();
+                    }
+                    if(key.isValid() && key.isWritable()) {
+                        conn.write();
+                    }
+                }
             }
         }catch (IOException e){
-            e.printStackTrace();
+            LOG.error("Server stopped", e);
         }finally {
             try {
-                ss.close();
+                ssc.close();
+                selector.close();
             }catch (IOException e){
 
             }
+            workers.shutdown();
         }
 
     }
 
+    private ExecutorService newWorkers() {
+        if(virtualThreads) {
+            try {
+                // 通过反射调用，编译时不依赖 JDK 21
+                ExecutorService es = (ExecutorService) Executors.class
+                        .getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+                LOG.info("Execute statements on virtual threads");
+                return es;
+            } catch (ReflectiveOperationException e) {
+                LOG.warn("Virtual threads are not supported by this JDK, use thread pool");
+            }
+        }
+        return new ThreadPoolExecutor(
+                0, Integer.MAX_VALUE, WORKER_KEEP_ALIVE_SECONDS,
+                TimeUnit.SECONDS, new SynchronousQueue<>());
+    }
+
+    private void accept(ServerSocketChannel ssc) throws IOException {
+        SocketChannel ch;
+        while ((ch = ssc.accept()) != null) {
+            if(Log.DEBUG) {
+                InetSocketAddress address = (InetSocketAddress)ch.getRemoteAddress();
+                LOG.debug("Establish connection: " + address.getAddress().getHostAddress()+":"+address.getPort());
+            }
+            ch.configureBlocking(false);
+            ch.socket().setTcpNoDelay(true);
+            Connection conn = new Connection(this, ch);
+            conn.key = ch.register(selector, SelectionKey.OP_READ, conn);
+            Stats.sessionOpened();
+        }
+    }
+
+    /**
+     * 工作线程执行完一条语句或产生一段查询结果后调用，由 Selector 线程写回
+     */
+    void done(Connection conn) {
+        done.add(conn);
+        selector.wakeup();
+    }
+
 }
 
-class HandleSocket implements Runnable {
+/**
+ * 服务器上的一个连接，除了在工作线程中执行语句，其余方法都只在 Selector 线程中调用
+ */
+class Connection {
 
-    private Socket socket;
-    private TableManager tbm;
+    // 查询结果至多有这么多段等待写出
+    private static final int STREAM_WINDOW = 4;
+    // 接收缓冲区按倍数扩大时的上限，再大时只扩大到刚好放下收到的字节
+    private static final int MAX_BUFFER = 1 << 24;
+    // 工作线程连错误也无法编码时的结果，Selector 线程收到后关闭连接
+    private static final ByteBuffer[] FAILED = new ByteBuffer[0];
 
-    public HandleSocket(Socket socket, TableManager tbm) {
-        this.socket = socket;
-        this.tbm = tbm;
+    private Server server;
+    private SocketChannel ch;
+    SelectionKey key;
+    private FrameCodec codec = new FrameCodec();
+    private Encoder encoder = new Encoder();
+    private Executor executor;
+    // 已经收到、尚未处理的字节，处于读模式，没有时为 null
+    private ByteBuffer in;
+    // 待写回的数据
+    private Deque<ByteBuffer> out = new ArrayDeque<>();
+    // 是否有语句正在工作线程中执行
+    private boolean busy;
+    private volatile boolean closed;
+    // 工作线程产生的结果，通过 Server.done 交给 Selector 线程
+    private volatile ByteBuffer[] result;
+    // 工作线程产生的查询结果分段
+    private final Queue<ByteBuffer[]> chunks = new ConcurrentLinkedQueue<>();
+    // 每段在 out 中的最后一个缓冲区，写完时归还 window
+    private final Deque<ByteBuffer> chunkEnds = new ArrayDeque<>();
+    private final Semaphore window = new Semaphore(STREAM_WINDOW);
+
+    Connection(Server server, SocketChannel ch) {
+        this.server = server;
+        this.ch = ch;
     }
 
-    @Override
-    public void run() {
-        InetSocketAddress address = (InetSocketAddress)socket.getRemoteSocketAddress();
-        System.out.println("Establish connection: " + address.getAddress().getHostAddress()+":"+address.getPort());
-        Packager packager = null;
+    void read() {
+        ByteBuffer buf = server.readBuffer;
+        buf.clear();
+        int n;
         try {
-            Transporter transporter = new Transporter(socket);
-            Encoder encoder = new Encoder();
-            packager = new Packager(transporter, encoder);
-        }catch (Exception e){
-            e.printStackTrace();
-            try {
-                socket.close();
-            } catch (IOException e1) {
-                e1.printStackTrace();
+            n = ch.read(buf);
+        } catch (IOException e) {
+            close();
+            return;
+        }
+        if(n < 0) {
+            close();
+            return;
+        }
+        buf.flip();
+        if(in != null) {
+            append(buf);
+            process();
+        } else {
+            in = buf;
+            process();
+            // 共用的缓冲区中剩下的不完整消息拷贝出来
+            if(in == buf) {
+                in = null;
+                append(buf);
             }
+        }
+    }
+
+    /**
+     * 把 buf 中剩余的字节追加到 in 中，按需扩大 in。
+     * in 只随实际收到的字节扩大，不按帧头声明的长度预先分配，声明的长度超过上限时 decode 出错并关闭连接
+     */
+    private void append(ByteBuffer buf) {
+        if(!buf.hasRemaining()) {
             return;
         }
+        if(in == null) {
+            in = ByteBuffer.allocate(buf.remaining());
+            in.flip();
+        }
+        int need = in.remaining() + buf.remaining();
+        if(in.capacity() - in.remaining() < buf.remaining()) {
+            ByteBuffer bigger = ByteBuffer.allocate(Math.max(need, Math.min(in.capacity() * 2, MAX_BUFFER)));
+            bigger.put(in);
+            in = bigger;
+        } else {
+            in.compact();
+        }
+        in.put(buf);
+        in.flip();
+    }
 
-        Executor executor = new Executor(tbm);
-        while (true){
-            Package pkg = null;
-            try {
-                pkg = packager.receive();
-            }catch (Exception e){
-                e.printStackTrace();
-                break;
+    /**
+     * 没有语句正在执行、且结果都已写回时，从 in 中取出下一条完整的语句交给工作线程
+     */
+    private void process() {
+        if(busy || closed || in == null || !out.isEmpty()) {
+            return;
+        }
+        byte[] frame;
+        Package pkg;
+        try {
+            frame = codec.decode(in);
+            ByteBuffer handshake = codec.handshake();
+            if(handshake != null) {
+                out.add(handshake);
+            }
+            pkg = frame == null ? null : encoder.decode(frame, codec.version());
+        } catch (Exception e) {
+            Server.LOG.warn("Close connection on invalid data: " + e.getMessage());
+            close();
+            return;
+        }
+        if(!in.hasRemaining() && in != server.readBuffer) {
+            in = null;
+        }
+        if(pkg == null) {
+            if(!out.isEmpty()) {
+                write();
             }
-            byte[] sql = pkg.getData();
-            byte[] result = null;
-            Exception err = null;
+            return;
+        }
+        busy = true;
+        if(executor == null) {
+            executor = new Executor(server.tbm, server.cache);
+        }
+        Package req = pkg;
+        ResultSink sink = codec.version() >= Transporter.STREAM_VERSION ? rows -> stream(req.getId(), rows) : null;
+        server.workers.execute(() -> {
+            ByteBuffer[] res = null;
             try {
-                result = executor.execute(sql);
-            }catch (Exception e){
-                err = e;
-                e.printStackTrace();
+                Package resPkg = req.getBatch() != null ? executeBatch(req.getBatch()) : execute(req, sink);
+                res = codec.encode(req.getId(), encoder.flag(resPkg), encoder.body(resPkg));
+            } catch (Throwable e) {
+                // 如内存不足或压缩失败，改为返回错误，否则连接会一直处于执行中
+                Server.LOG.error("Failed to encode result", e);
+                res = encodeError(req.getId(), e);
+            } finally {
+                result = res == null ? FAILED : res;
+                server.done(this);
             }
+        });
+        updateInterest();
+    }
 
-            pkg = new Package(result, err);
-            try {
-                packager.send(pkg);
-            } catch (Exception e) {
-                e.printStackTrace();
-                break;
+    /**
+     * 把错误编码为回复，仍然失败时返回 null
+     */
+    private ByteBuffer[] encodeError(int id, Throwable e) {
+        try {
+            String msg = e.getMessage() == null ? e.toString() : e.getMessage();
+            return codec.encode(id, (byte) 1, msg.getBytes(StandardCharsets.UTF_8));
+        } catch (Throwable t) {
+            return null;
+        }
+    }
+
+    private Package execute(Package stat, ResultSink sink) {
+        byte[] res = null;
+        Exception err = null;
+        try {
+            res = executor.execute(stat.getData(), stat.isRows(), sink);
+        }catch (Exception e){
+            // 错误已经返回给客户端
+            err = e;
+            if(Log.DEBUG) {
+                Server.LOG.debug("Statement failed", e);
+            }
+        }
+        if(err == null && executor.returnedRows()) {
+            return Package.rows(res);
+        }
+        return new Package(res, err);
+    }
+
+    /**
+     * 按顺序执行一批语句，某条语句出错时记录错误并继续执行后面的语句
+     */
+    private Package executeBatch(List<Package> batch) {
+        List<Package> results = new ArrayList<>(batch.size());
+        for (Package stat : batch) {
+            results.add(execute(stat, null));
+        }
+        return new Package(results);
+    }
+
+    /**
+     * 在工作线程中调用，把查询结果的一段交给 Selector 线程写回。已经有 STREAM_WINDOW 段没有写出时阻塞
+     */
+    private void stream(int id, byte[] rows) throws Exception {
+        window.acquire();
+        if(closed) {
+            throw Error.ConnectionClosedException;
+        }
+        chunks.add(codec.encode(id, (byte) 3, rows));
+        server.done(this);
+    }
+
+    /**
+     * 在 Selector 线程中写回查询结果的分段，语句执行完时写回结果
+     */
+    void finish() {
+        // 先读 result：工作线程在设置 result 之前已经放入了所有分段
+        ByteBuffer[] res = result;
+        if(res != null) {
+            busy = false;
+            result = null;
+        }
+        if(res == FAILED && !closed) {
+            close();
+            return;
+        }
+        if(closed) {
+            if(res != null) {
+                closeExecutor();
+            }
+            return;
+        }
+        ByteBuffer[] chunk;
+        while ((chunk = chunks.poll()) != null) {
+            Collections.addAll(out, chunk);
+            chunkEnds.add(chunk[chunk.length - 1]);
+        }
+        if(res != null) {
+            Collections.addAll(out, res);
+        }
+        write();
+    }
+
+    void write() {
+        try {
+            while (!out.isEmpty()) {
+                ByteBuffer buf = out.peek();
+                ch.write(buf);
+                if(buf.hasRemaining()) {
+                    break;
+                }
+                out.poll();
+                if(chunkEnds.peek() == buf) {
+                    chunkEnds.poll();
+                    window.release();
+                }
             }
+        } catch (IOException e) {
+            close();
+            return;
+        }
+        updateInterest();
+        // 结果写完后，继续处理已经收到的下一条语句
+        if(out.isEmpty()) {
+            process();
+        }
+    }
+
+    private void updateInterest() {
+        if(closed) {
+            return;
+        }
+        int ops = 0;
+        if(!out.isEmpty()) {
+            ops |= SelectionKey.OP_WRITE;
+        } else if(!busy) {
+            ops |= SelectionKey.OP_READ;
         }
+        key.interestOps(ops);
+    }
 
+    private void close() {
+        if(closed) {
+            return;
+        }
+        closed = true;
+        Stats.sessionClosed();
+        // 唤醒等待写出分段的工作线程，让查询出错结束
+        window.release(STREAM_WINDOW);
+        key.cancel();
+        try {
+            ch.close();
+        } catch (IOException e) {
+        }
+        // 正在执行语句时，由 finish 在语句结束后关闭
+        if(!busy) {
+            closeExecutor();
+        }
+    }
+
+    private void closeExecutor() {
+        if(executor != null) {
+            Executor e = executor;
+            executor = null;
+            // 关闭时可能回滚事务，不在 Selector 线程中执行
+            server.workers.execute(e::close);
+        }
     }
 }
@@ -0,0 +1,112 @@
+package com.pjh.mydb.backend.server;
+
+import com.pjh.mydb.backend.parser.Parser;
+import com.pjh.mydb.backend.parser.statement.Execute;
+import com.pjh.mydb.backend.parser.statement.Insert;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * StatementCache 以语句原文为 key 缓存解析好的语句，按 LRU 淘汰，由服务器上的所有会话共用。
+ * 同一条语句再次执行时不再经过 Tokenizer 和 Parser；预编译语句的模板同样从这里取得。
+ * 缓存的语句会被多个会话同时执行，执行过程不修改语句，绑定参数时由 Parser.bind 复制出新的语句。
+ * execute 语句带着每次不同的参数，缓存它只会挤掉其他语句，因此不缓存。
+ * 同样不缓存长于 MAX_STATEMENT_LENGTH 的语句和多行 insert，它们通常只执行一次，解析结果又与原文一样大；
+ * 缓存中语句原文的总长度不超过 maxBytes，大量较长的语句也不会占住过多内存。
+ *
+ * @author Joseph Peng
+ * @date 2026/10/19 21:20
+ */
+public class StatementCache {
+
+    public static final int DEFAULT_CAPACITY = 1024;
+    public static final long DEFAULT_MAX_BYTES = 1 << 20;
+    // 长于这个长度的语句不缓存
+    static final int MAX_STATEMENT_LENGTH = 4 << 10;
+
+    private final Map<String, Object> cache;
+    private final int capacity;
+    private final long maxBytes;
+    // 缓存中语句原文的总长度
+    private long bytes;
+    private final Lock lock;
+
+    public StatementCache(int capacity) {
+        this(capacity, DEFAULT_MAX_BYTES);
+    }
+
+    public StatementCache(int capacity, long maxBytes) {
+        this.cache = new LinkedHashMap<>(16, 0.75f, true);
+        this.capacity = capacity;
+        this.maxBytes = maxBytes;
+        this.lock = new ReentrantLock();
+    }
+
+    /**
+     * 取得 sql 解析后的语句，缓存中没有时解析并放入缓存
+     * @param sql
+     * @return
+     * @throws Exception
+     */
+    public Object get(byte[] sql) throws Exception {
+        String key = new String(sql);
+        lock.lock();
+        try {
+            Object stat = cache.get(key);
+            if(stat != null) {
+                return stat;
+            }
+        } finally {
+            lock.unlock();
+        }
+
+        // 解析不持有锁，两个会话同时解析同一条语句时后放入的覆盖先放入的，结果相同
+        Object stat = Parser.Parse(sql);
+        if(cacheable(sql, stat)) {
+            lock.lock();
+            try {
+                if(cache.put(key, stat) == null) {
+                    bytes += key.length();
+                }
+                evict();
+            } finally {
+                lock.unlock();
+            }
+        }
+        return stat;
+    }
+
+    /**
+     * 缓存中的语句条数
+     */
+    public int size() {
+        lock.lock();
+        try {
+            return cache.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static boolean cacheable(byte[] sql, Object stat) {
+        if(sql.length > MAX_STATEMENT_LENGTH || Execute.class.isInstance(stat)) {
+            return false;
+        }
+        return !Insert.class.isInstance(stat) || ((Insert) stat).values.length == 1;
+    }
+
+    /**
+     * 按 LRU 淘汰，直到条数和总长度都不超过上限，调用方持有锁
+     */
+    private void evict() {
+        Iterator<Map.Entry<String, Object>> it = cache.entrySet().iterator();
+        while (it.hasNext() && (cache.size() > capacity || bytes > maxBytes)) {
+            bytes -= it.next().getKey().length();
+            it.remove();
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package com.pjh.mydb.backend.stats;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Histogram 以纳秒记录耗时的分布，做法与 HdrHistogram 相同：桶按 2 的幂分级，每一级再等分为 SUB 个子桶，
+ * 任何取值的相对误差都不超过 1/SUB，桶的个数固定，记录一个值只需要一次原子加，不需要加锁。
+ * 读出的分位数是所在桶的上界，各个计数分别读出，与并发的记录之间不保证一致。
+ *
+ * @author Joseph Peng
+ * @date 2026/10/20 02:40
+ */
+public class Histogram {
+
+    private static final int SUB_BITS = 4;
+    private static final int SUB = 1 << SUB_BITS;
+
+    private final AtomicLongArray counts = new AtomicLongArray((64 - SUB_BITS + 1) * SUB);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+
+    public void record(long nanos) {
+        if(nanos < 0) {
+            nanos = 0;
+        }
+        counts.incrementAndGet(index(nanos));
+        count.increment();
+        sum.add(nanos);
+        long m;
+        while (nanos > (m = max.get()) && !max.compareAndSet(m, nanos));
+    }
+
+    public long count() {
+        return count.sum();
+    }
+
+    public long max() {
+        return max.get();
+    }
+
+    public double mean() {
+        long n = count.sum();
+        return n == 0 ? 0 : (double) sum.sum() / n;
+    }
+
+    /**
+     * 第 p 百分位的值，没有记录时返回 0
+     * @param p 0 到 100
+     */
+    public long percentile(double p) {
+        long n = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            n += counts.get(i);
+        }
+        if(n == 0) {
+            return 0;
+        }
+        long target = Math.max(1, (long) Math.ceil(p / 100 * n));
+        long seen = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            seen += counts.get(i);
+            if(seen >= target) {
+                return Math.min(upper(i), max.get());
+            }
+        }
+        return max.get();
+    }
+
+    /**
+     * 小于 SUB 的值各占一个桶；其余的值按最高位分级，取最高位之后的 SUB_BITS 位作为子桶
+     */
+    private static int index(long v) {
+        if(v < SUB) {
+            return (int) v;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(v) - SUB_BITS;
+        return ((shift + 1) << SUB_BITS) + (int) ((v >>> shift) - SUB);
+    }
+
+    private static long upper(int index) {
+        if(index < SUB) {
+            return index;
+        }
+        int shift = (index >>> SUB_BITS) - 1;
+        long top = (index & (SUB - 1)) + SUB;
+        return ((top + 1) << shift) - 1;
+    }
+}
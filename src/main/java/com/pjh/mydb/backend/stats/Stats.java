@@ -0,0 +1,281 @@
+package com.pjh.mydb.backend.stats;
+
+import com.pjh.mydb.backend.utils.Log;
+
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Stats 收集服务器的运行统计，各层在发生时直接调用这里的静态方法记录，只做原子加，不加锁：
+ * 每种语句的耗时分布和出错次数、读取和返回的行数、等待行锁的时间、页面缓存的命中率、日志刷盘的耗时和当前的会话数。
+ * 统计结果通过 show stats 语句和 JMX 查看。
+ *
+ * 每条语句在执行它的线程上有一个 Scope，记录这条语句读取和返回的行数以及等待锁的时间，
+ * 语句结束时计入总数；耗时超过 slowQueryThreshold 的语句连同这些数字写入慢查询日志，便于判断慢在哪里。
+ *
+ * @author Joseph Peng
+ * @date 2026/10/20 02:40
+ */
+public class Stats implements StatsMXBean {
+
+    public static final long DEFAULT_SLOW_QUERY_MILLIS = 1000;
+    // 慢查询日志中语句原文的最大长度
+    private static final int MAX_LOGGED_SQL = 1024;
+
+    private static final Map<String, Kind> statements = new ConcurrentHashMap<>();
+    private static final LongAdder rowsScanned = new LongAdder();
+    private static final LongAdder rowsReturned = new LongAdder();
+    private static final Histogram lockWait = new Histogram();
+    private static final Histogram logFsync = new Histogram();
+    private static final LongAdder pageRequests = new LongAdder();
+    private static final LongAdder pageMisses = new LongAdder();
+    private static final AtomicInteger sessions = new AtomicInteger();
+    private static final LongAdder slowQueries = new LongAdder();
+    private static volatile long slowQueryThreshold = TimeUnit.MILLISECONDS.toNanos(DEFAULT_SLOW_QUERY_MILLIS);
+
+    private static final ThreadLocal<Scope> current = new ThreadLocal<>();
+    // 慢查询日志，可以单独设置级别
+    private static final Log SLOW = Log.get("slow");
+
+    // 一种语句的统计
+    private static class Kind {
+        Histogram latency = new Histogram();
+        LongAdder errors = new LongAdder();
+    }
+
+    /**
+     * 一条正在执行的语句，只在执行它的线程上修改
+     */
+    public static class Scope {
+        private final long start = System.nanoTime();
+        private long scanned, returned, lockWait;
+    }
+
+    private Stats() {
+    }
+
+    /**
+     * 在 JMX 中注册，同一进程中已经注册过时忽略
+     */
+    public static void register() {
+        try {
+            ObjectName name = new ObjectName("com.pjh.mydb:type=Stats");
+            if(!ManagementFactory.getPlatformMBeanServer().isRegistered(name)) {
+                ManagementFactory.getPlatformMBeanServer().registerMBean(new Stats(), name);
+            }
+        } catch (Exception e) {
+            Log.get("stats").warn("Failed to register JMX bean", e);
+        }
+    }
+
+    /**
+     * 当前线程开始执行一条语句
+     */
+    public static Scope begin() {
+        Scope scope = new Scope();
+        current.set(scope);
+        return scope;
+    }
+
+    /**
+     * 语句执行结束，计入总数，耗时超过阈值时写入慢查询日志
+     * @param kind 语句的种类，为 null 时不计入语句的耗时（如客户端检查连接的空语句）
+     * @param sql 语句原文
+     */
+    public static void end(Scope scope, String kind, byte[] sql, boolean failed) {
+        current.remove();
+        long elapsed = System.nanoTime() - scope.start;
+        rowsScanned.add(scope.scanned);
+        rowsReturned.add(scope.returned);
+        if(kind == null) {
+            return;
+        }
+        Kind k = statements.computeIfAbsent(kind, key -> new Kind());
+        k.latency.record(elapsed);
+        if(failed) {
+            k.errors.increment();
+        }
+        if(elapsed >= slowQueryThreshold) {
+            slowQueries.increment();
+            String text = new String(sql, 0, Math.min(sql.length, MAX_LOGGED_SQL), StandardCharsets.UTF_8)
+                    .replace('\n', ' ');
+            SLOW.warn(String.format("Slow query: %s %s, scanned %d, returned %d, lock wait %s%s: %s",
+                    kind, millis(elapsed), scope.scanned, scope.returned, millis(scope.lockWait),
+                    failed ? ", failed" : "", text));
+        }
+    }
+
+    /**
+     * 读取了一条记录
+     */
+    public static void rowScanned() {
+        Scope scope = current.get();
+        if(scope != null) {
+            scope.scanned ++;
+        }
+    }
+
+    /**
+     * 查询返回了 n 行
+     */
+    public static void rowsReturned(long n) {
+        Scope scope = current.get();
+        if(scope != null) {
+            scope.returned += n;
+        }
+    }
+
+    /**
+     * 等待行锁 nanos 纳秒
+     */
+    public static void lockWaited(long nanos) {
+        lockWait.record(nanos);
+        Scope scope = current.get();
+        if(scope != null) {
+            scope.lockWait += nanos;
+        }
+    }
+
+    /**
+     * 日志刷盘一次，耗时 nanos 纳秒
+     */
+    public static void logFsynced(long nanos) {
+        logFsync.record(nanos);
+    }
+
+    /**
+     * 从页面缓存中取一页
+     */
+    public static void pageRequested() {
+        pageRequests.increment();
+    }
+
+    /**
+     * 要取的页不在缓存中，需要从文件读取
+     */
+    public static void pageMissed() {
+        pageMisses.increment();
+    }
+
+    public static void sessionOpened() {
+        sessions.incrementAndGet();
+    }
+
+    public static void sessionClosed() {
+        sessions.decrementAndGet();
+    }
+
+    public static void setSlowQueryThreshold(long millis) {
+        slowQueryThreshold = TimeUnit.MILLISECONDS.toNanos(millis);
+    }
+
+    /**
+     * show stats 的结果，每项一行
+     */
+    public static String report() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("sessions ").append(sessions.get()).append("\n");
+        for (Map.Entry<String, Kind> e : new TreeMap<>(statements).entrySet()) {
+            sb.append(latencyLine(e.getKey(), e.getValue())).append("\n");
+        }
+        sb.append("rows scanned ").append(rowsScanned.sum()).append(", returned ").append(rowsReturned.sum()).append("\n");
+        long requests = pageRequests.sum(), misses = pageMisses.sum();
+        sb.append(String.format("page cache hit ratio %.4f, requests %d, misses %d\n", hitRatio(requests, misses), requests, misses));
+        sb.append(histogramLine("lock wait", lockWait)).append("\n");
+        sb.append(histogramLine("log fsync", logFsync)).append("\n");
+        sb.append("slow queries ").append(slowQueries.sum())
+                .append(", threshold ").append(TimeUnit.NANOSECONDS.toMillis(slowQueryThreshold)).append("ms\n");
+        return sb.toString();
+    }
+
+    private static String latencyLine(String kind, Kind k) {
+        return histogramLine(kind, k.latency) + ", errors " + k.errors.sum();
+    }
+
+    private static String histogramLine(String name, Histogram h) {
+        return String.format("%s count %d, mean %s, p50 %s, p99 %s, max %s", name, h.count(),
+                millis((long) h.mean()), millis(h.percentile(50)), millis(h.percentile(99)), millis(h.max()));
+    }
+
+    private static String millis(long nanos) {
+        return String.format("%.3fms", nanos / 1e6);
+    }
+
+    private static double hitRatio(long requests, long misses) {
+        return requests == 0 ? 1 : 1 - (double) misses / requests;
+    }
+
+    @Override
+    public int getActiveSessions() {
+        return sessions.get();
+    }
+
+    @Override
+    public long getRowsScanned() {
+        return rowsScanned.sum();
+    }
+
+    @Override
+    public long getRowsReturned() {
+        return rowsReturned.sum();
+    }
+
+    @Override
+    public double getPageCacheHitRatio() {
+        return hitRatio(pageRequests.sum(), pageMisses.sum());
+    }
+
+    @Override
+    public long getLockWaitCount() {
+        return lockWait.count();
+    }
+
+    @Override
+    public double getLockWaitP99Millis() {
+        return lockWait.percentile(99) / 1e6;
+    }
+
+    @Override
+    public long getLogFsyncCount() {
+        return logFsync.count();
+    }
+
+    @Override
+    public double getLogFsyncP99Millis() {
+        return logFsync.percentile(99) / 1e6;
+    }
+
+    @Override
+    public long getSlowQueryCount() {
+        return slowQueries.sum();
+    }
+
+    @Override
+    public long getSlowQueryThresholdMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(slowQueryThreshold);
+    }
+
+    @Override
+    public void setSlowQueryThresholdMillis(long millis) {
+        setSlowQueryThreshold(millis);
+    }
+
+    @Override
+    public String[] getStatementLatencies() {
+        return new TreeMap<>(statements).entrySet().stream()
+                .map(e -> latencyLine(e.getKey(), e.getValue()))
+                .toArray(String[]::new);
+    }
+
+    @Override
+    public String getReport() {
+        return Stats.report();
+    }
+}
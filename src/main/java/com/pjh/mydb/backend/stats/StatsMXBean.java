@@ -0,0 +1,42 @@
+package com.pjh.mydb.backend.stats;
+
+/**
+ * 通过 JMX 暴露的服务器统计信息，ObjectName 为 com.pjh.mydb:type=Stats，耗时的单位都是毫秒
+ *
+ * @author Joseph Peng
+ * @date 2026/10/20 02:40
+ */
+public interface StatsMXBean {
+
+    int getActiveSessions();
+
+    long getRowsScanned();
+
+    long getRowsReturned();
+
+    double getPageCacheHitRatio();
+
+    long getLockWaitCount();
+
+    double getLockWaitP99Millis();
+
+    long getLogFsyncCount();
+
+    double getLogFsyncP99Millis();
+
+    long getSlowQueryCount();
+
+    long getSlowQueryThresholdMillis();
+
+    void setSlowQueryThresholdMillis(long millis);
+
+    /**
+     * 每种语句一行，包括执行次数、出错次数和耗时的分位数
+     */
+    String[] getStatementLatencies();
+
+    /**
+     * 与 show stats 的结果相同
+     */
+    String getReport();
+}
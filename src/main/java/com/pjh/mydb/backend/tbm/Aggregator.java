@@ -0,0 +1,283 @@
+package com.pjh.mydb.backend.tbm;
+
+import com.pjh.mydb.common.Error;
+import com.pjh.mydb.backend.parser.statement.Select;
+import com.pjh.mydb.backend.stats.Stats;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * Aggregator 对满足条件的记录做哈希分组聚合，支持 count/sum/min/max/avg 和 group by。
+ * 分组的 key 由分组字段在记录中的原始字节拼成，查找时复用同一块缓冲区，只有出现新分组时才复制；
+ * 每个分组的累加器是 long 数组，string 的 min/max 只在值变化时复制一次字节，逐行聚合不需要把记录解析成对象。
+ * 没有 group by 时按批聚合，数值字段的 sum/min/max 在列向量上用紧凑的循环完成；有 group by 时逐行找到分组。
+ * 结果按分组第一次出现的顺序输出，每个分组一行，格式与 select 相同；
+ * order by 只能使用 group by 中的字段，limit 和 offset 作用于输出的分组。
+ *
+ * @author Joseph Peng
+ * @date 2026/10/19 18:10
+ */
+class Aggregator {
+
+    private RowLayout layout;
+    // 每个输出项的聚合函数，普通字段为 null
+    private String[] functions;
+    // 每个输出项的字段在记录中的序号，count(*) 为 -1
+    private int[] columns;
+    private int[] groupColumns;
+    private Map<ByteBuffer, Group> groups = new LinkedHashMap<>();
+    private byte[] keyBuf = new byte[64];
+    private OrderBy order;
+    private int offset, limit;
+
+    private class Group {
+        // 分组中的第一条记录，用于输出分组字段
+        byte[] first;
+        long[] counts = new long[functions.length];
+        // sum 的累加值，以及数值字段的 min/max
+        long[] nums = new long[functions.length];
+        // string 字段的 min/max
+        byte[][] strs = new byte[functions.length][];
+    }
+
+    /**
+     * 检查 select 中的聚合是否合法：
+     * 普通字段必须出现在 group by 中，sum/avg 只能用于整数字段
+     */
+    static Aggregator compile(Table tb, Select read) throws Exception {
+        Aggregator agg = new Aggregator();
+        agg.layout = tb.layout;
+        agg.functions = read.aggregates;
+        agg.columns = new int[read.fields.length];
+        String[] groupBy = read.groupBy == null ? new String[0] : read.groupBy;
+        agg.groupColumns = new int[groupBy.length];
+        for (int i = 0; i < groupBy.length; i++) {
+            agg.groupColumns[i] = columnOf(tb, groupBy[i]);
+        }
+        agg.order = OrderBy.compile(tb, read);
+        if (agg.order != null) {
+            for (String name : agg.order.fieldNames()) {
+                if (!Arrays.asList(groupBy).contains(name)) {
+                    throw Error.InvalidAggregateException;
+                }
+            }
+        }
+        agg.offset = read.offset;
+        agg.limit = read.limit;
+        for (int i = 0; i < read.fields.length; i++) {
+            String fn = read.aggregates[i];
+            if ("*".equals(read.fields[i])) {
+                if (!"count".equals(fn)) {
+                    throw Error.InvalidAggregateException;
+                }
+                agg.columns[i] = -1;
+                continue;
+            }
+            agg.columns[i] = columnOf(tb, read.fields[i]);
+            if (fn == null) {
+                if (!Arrays.asList(groupBy).contains(read.fields[i])) {
+                    throw Error.InvalidAggregateException;
+                }
+            } else if (("sum".equals(fn) || "avg".equals(fn)) && "string".equals(tb.layout.type(agg.columns[i]))) {
+                throw Error.InvalidAggregateException;
+            }
+        }
+        return agg;
+    }
+
+    private static int columnOf(Table tb, String name) throws Exception {
+        Field f = tb.fieldOf(name);
+        if (f == null) {
+            throw Error.FieldNotFoundException;
+        }
+        return tb.fields.indexOf(f);
+    }
+
+    void add(RowBatch batch) {
+        if (batch.isEmpty()) {
+            return;
+        }
+        if (groupColumns.length > 0) {
+            for (int k = 0; k < batch.selSize; k++) {
+                add(batch.rows[batch.sel[k]]);
+            }
+            return;
+        }
+        Group g = group(batch.rows[batch.sel[0]]);
+        int[] sel = batch.sel;
+        int n = batch.selSize;
+        for (int i = 0; i < functions.length; i++) {
+            String fn = functions[i];
+            int col = columns[i];
+            if (fn == null) {
+                continue;
+            }
+            if (!"count".equals(fn) && "string".equals(layout.type(col))) {
+                for (int k = 0; k < n; k++) {
+                    addValue(g, i, batch.rows[sel[k]]);
+                }
+                continue;
+            }
+            long c = g.counts[i];
+            g.counts[i] += n;
+            if ("count".equals(fn)) {
+                continue;
+            }
+            long[] v = batch.longs(col);
+            long acc = g.nums[i];
+            switch (fn) {
+                case "sum":
+                case "avg":
+                    for (int k = 0; k < n; k++) {
+                        acc += v[sel[k]];
+                    }
+                    break;
+                case "min":
+                    if (c == 0) {
+                        acc = Long.MAX_VALUE;
+                    }
+                    for (int k = 0; k < n; k++) {
+                        acc = Math.min(acc, v[sel[k]]);
+                    }
+                    break;
+                case "max":
+                    if (c == 0) {
+                        acc = Long.MIN_VALUE;
+                    }
+                    for (int k = 0; k < n; k++) {
+                        acc = Math.max(acc, v[sel[k]]);
+                    }
+                    break;
+            }
+            g.nums[i] = acc;
+        }
+    }
+
+    void add(byte[] raw) {
+        Group g = group(raw);
+        for (int i = 0; i < functions.length; i++) {
+            String fn = functions[i];
+            if (fn == null) {
+                continue;
+            }
+            int col = columns[i];
+            if (col >= 0 && !"count".equals(fn) && "string".equals(layout.type(col))) {
+                addValue(g, i, raw);
+                continue;
+            }
+            long n = g.counts[i]++;
+            if ("count".equals(fn)) {
+                continue;
+            }
+            long v = layout.numberAt(raw, col);
+            switch (fn) {
+                case "sum":
+                case "avg":
+                    g.nums[i] += v;
+                    break;
+                case "min":
+                    g.nums[i] = n == 0 ? v : Math.min(g.nums[i], v);
+                    break;
+                case "max":
+                    g.nums[i] = n == 0 ? v : Math.max(g.nums[i], v);
+                    break;
+            }
+        }
+    }
+
+    /**
+     * string 字段的 min/max
+     */
+    private void addValue(Group g, int i, byte[] raw) {
+        int col = columns[i];
+        g.counts[i]++;
+        int c = g.strs[i] == null ? 0 : layout.compareString(raw, col, g.strs[i]);
+        if (g.strs[i] == null || ("min".equals(functions[i]) ? c < 0 : c > 0)) {
+            int start = layout.start(raw, col);
+            g.strs[i] = Arrays.copyOfRange(raw, start, start + layout.length(raw, col));
+        }
+    }
+
+    /**
+     * 找到记录所在的分组，不存在则新建
+     */
+    private Group group(byte[] raw) {
+        int len = 0;
+        for (int col : groupColumns) {
+            boolean isString = "string".equals(layout.type(col));
+            int start = layout.start(raw, col);
+            int width = isString ? layout.length(raw, col) : RowLayout.width(layout.type(col));
+            // string 前面加上长度，避免相邻字段拼接后混淆
+            int need = len + width + (isString ? 2 : 0);
+            if (need > keyBuf.length) {
+                keyBuf = Arrays.copyOf(keyBuf, Math.max(need, keyBuf.length * 2));
+            }
+            if (isString) {
+                keyBuf[len++] = (byte) (width >>> 8);
+                keyBuf[len++] = (byte) width;
+            }
+            System.arraycopy(raw, start, keyBuf, len, width);
+            len += width;
+        }
+        Group g = groups.get(ByteBuffer.wrap(keyBuf, 0, len));
+        if (g == null) {
+            g = new Group();
+            g.first = raw;
+            groups.put(ByteBuffer.wrap(Arrays.copyOf(keyBuf, len)), g);
+        }
+        return g;
+    }
+
+    String result() {
+        // 没有 group by 时，即使没有任何记录也输出一行
+        if (groups.isEmpty() && groupColumns.length == 0) {
+            groups.put(ByteBuffer.allocate(0), new Group());
+        }
+        List<Group> list = new ArrayList<>(groups.values());
+        if (order != null) {
+            Map<Group, byte[]> keys = new HashMap<>();
+            for (Group g : list) {
+                keys.put(g, order.key(g.first));
+            }
+            list.sort((a, b) -> Index.compare(keys.get(a), keys.get(b)));
+        }
+        int from = Math.min(offset, list.size());
+        int to = limit < 0 ? list.size() : (int) Math.min(list.size(), (long) from + limit);
+        Stats.rowsReturned(to - from);
+        StringBuilder sb = new StringBuilder();
+        for (Group g : list.subList(from, to)) {
+            sb.append("[");
+            for (int i = 0; i < functions.length; i++) {
+                if (i > 0) {
+                    sb.append(", ");
+                }
+                appendResult(sb, g, i);
+            }
+            sb.append("]\n");
+        }
+        return sb.toString();
+    }
+
+    private void appendResult(StringBuilder sb, Group g, int i) {
+        String fn = functions[i];
+        if (fn == null) {
+            layout.appendValue(sb, g.first, columns[i]);
+            return;
+        }
+        if ("count".equals(fn)) {
+            sb.append(g.counts[i]);
+            return;
+        }
+        if (g.counts[i] == 0) {
+            sb.append("null");
+        } else if ("avg".equals(fn)) {
+            sb.append((double) g.nums[i] / g.counts[i]);
+        } else if (g.strs[i] != null) {
+            sb.append(new String(g.strs[i], StandardCharsets.UTF_8));
+        } else {
+            sb.append(g.nums[i]);
+        }
+    }
+}
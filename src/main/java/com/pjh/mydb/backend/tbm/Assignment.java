@@ -0,0 +1,148 @@
+package com.pjh.mydb.backend.tbm;
+
+import com.pjh.mydb.backend.parser.statement.SetExpression;
+import com.pjh.mydb.common.Error;
+
+/**
+ * Assignment 是编译后的 update set 列表，由更新前的记录计算出新记录。
+ * 每一项为 field = 操作数 [运算符 操作数]，操作数是原记录中的字段或常量，所有的项都基于更新前的值计算。
+ * 整数字段支持加减乘除，string 字段只支持 + 拼接；常量在编译时转换为被赋值字段的类型。
+ *
+ * @author Joseph Peng
+ * @date 2026/10/19 22:40
+ */
+class Assignment {
+
+    private Item[] items;
+    // 被 set 的字段，下标为字段在记录中的序号
+    private boolean[] touched;
+
+    private static class Item {
+        int column;
+        String type;
+        Operand left, right;
+        char op;
+    }
+
+    private static class Operand {
+        // 原记录中的字段序号，为 -1 时是常量
+        int field = -1;
+        Object value;
+    }
+
+    static Assignment compile(Table tb, SetExpression[] sets) throws Exception {
+        Assignment a = new Assignment();
+        a.items = new Item[sets.length];
+        a.touched = new boolean[tb.fields.size()];
+        for (int i = 0; i < sets.length; i++) {
+            SetExpression exp = sets[i];
+            Field fd = tb.fieldOf(exp.field);
+            if(fd == null) {
+                throw Error.FieldNotFoundException;
+            }
+            Item item = new Item();
+            item.column = tb.fields.indexOf(fd);
+            if(a.touched[item.column]) {
+                throw Error.InvalidValuesException;
+            }
+            a.touched[item.column] = true;
+            item.type = fd.fieldType;
+            item.left = compileOperand(tb, fd, exp.value1, exp.maybeField1);
+            if(!"".equals(exp.op)) {
+                item.op = exp.op.charAt(0);
+                if("string".equals(item.type) && item.op != '+') {
+                    throw Error.InvalidValuesException;
+                }
+                item.right = compileOperand(tb, fd, exp.value2, exp.maybeField2);
+            }
+            a.items[i] = item;
+        }
+        return a;
+    }
+
+    /**
+     * 与表中字段同名的操作数是字段，否则按被赋值字段的类型解析为常量
+     */
+    private static Operand compileOperand(Table tb, Field target, String value, boolean maybeField) throws Exception {
+        Operand o = new Operand();
+        Field fd = maybeField ? tb.fieldOf(value) : null;
+        if(fd != null) {
+            if("string".equals(fd.fieldType) && !"string".equals(target.fieldType)) {
+                throw Error.InvalidValuesException;
+            }
+            o.field = tb.fields.indexOf(fd);
+        } else {
+            o.value = target.string2Value(value);
+        }
+        return o;
+    }
+
+    boolean touches(int column) {
+        return touched[column];
+    }
+
+    /**
+     * 由更新前的记录计算新记录，不修改 old
+     */
+    Object[] apply(Object[] old) throws Exception {
+        Object[] row = old.clone();
+        for (Item item : items) {
+            Object v1 = valueOf(item.left, old);
+            if(item.right == null) {
+                row[item.column] = convert(v1, item.type);
+                continue;
+            }
+            Object v2 = valueOf(item.right, old);
+            if("string".equals(item.type)) {
+                row[item.column] = String.valueOf(v1) + v2;
+                continue;
+            }
+            long n = calculate(((Number) v1).longValue(), item.op, ((Number) v2).longValue());
+            row[item.column] = convert(n, item.type);
+        }
+        return row;
+    }
+
+    private static Object valueOf(Operand o, Object[] old) {
+        return o.field >= 0 ? old[o.field] : o.value;
+    }
+
+    private static long calculate(long a, char op, long b) throws Exception {
+        if(op == '/' && b == 0) {
+            throw Error.DivisionByZeroException;
+        }
+        try {
+            switch (op) {
+                case '+':
+                    return Math.addExact(a, b);
+                case '-':
+                    return Math.subtractExact(a, b);
+                case '*':
+                    return Math.multiplyExact(a, b);
+                default:
+                    return a / b;
+            }
+        } catch (ArithmeticException e) {
+            // 溢出
+            throw Error.InvalidValuesException;
+        }
+    }
+
+    /**
+     * 把计算结果转换为字段的类型，int32 放不下时报错
+     */
+    private static Object convert(Object v, String type) throws Exception {
+        switch (type) {
+            case "int32":
+                long n = ((Number) v).longValue();
+                if(n < Integer.MIN_VALUE || n > Integer.MAX_VALUE) {
+                    throw Error.InvalidValuesException;
+                }
+                return (int) n;
+            case "int64":
+                return ((Number) v).longValue();
+            default:
+                return String.valueOf(v);
+        }
+    }
+}
@@ -0,0 +1,102 @@
+package com.pjh.mydb.backend.tbm;
+
+import com.pjh.mydb.common.Error;
+import com.pjh.mydb.backend.utils.Parser;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * 新建的表使用的记录格式：
+ * [NullBitmap][FixedSection][VarEnd1]...[VarEndK][VarData]
+ * NullBitmap   每个字段一位，共 (N+7)/8 字节，目前还没有 NULL 值，全部为 0
+ * FixedSection 按字段顺序存放 int32 和 int64 字段，分别占 4 和 8 字节
+ * VarEnd       每个 string 字段一个 2 字节的无符号数，为该字段的数据在记录中的结束位置
+ * VarData      按字段顺序存放各 string 字段的 UTF-8 字节
+ * 定长字段的偏移和变长字段的序号在建表时算好，任意字段都可以直接定位，不需要跳过前面的字段。
+ *
+ * @author Joseph Peng
+ * @date 2026/10/19 17:30
+ */
+class CompactRowLayout extends RowLayout {
+
+    // 一条记录不会超过一页，结束位置用 2 字节表示
+    private static final int MAX_ROW_SIZE = 0xffff;
+
+    // 定长字段的偏移，或 string 字段是第几个变长字段
+    private final int[] positions;
+    private final int varCount;
+    private final int varEndStart;
+    private final int varDataStart;
+
+    CompactRowLayout(List<Field> fields) {
+        super(fields);
+        positions = new int[types.length];
+        int pos = (types.length + 7) / 8;
+        int k = 0;
+        for (int i = 0; i < types.length; i++) {
+            if ("string".equals(types[i])) {
+                positions[i] = k++;
+            } else {
+                positions[i] = pos;
+                pos += width(types[i]);
+            }
+        }
+        varCount = k;
+        varEndStart = pos;
+        varDataStart = pos + 2 * k;
+    }
+
+    @Override
+    byte format() {
+        return COMPACT;
+    }
+
+    private int varEnd(byte[] raw, int k) {
+        return Parser.parseShort(raw, varEndStart + 2 * k) & 0xffff;
+    }
+
+    @Override
+    int start(byte[] raw, int field) {
+        if (!"string".equals(types[field])) {
+            return positions[field];
+        }
+        int k = positions[field];
+        return k == 0 ? varDataStart : varEnd(raw, k - 1);
+    }
+
+    @Override
+    int length(byte[] raw, int field) {
+        int k = positions[field];
+        return varEnd(raw, k) - start(raw, field);
+    }
+
+    @Override
+    byte[] encode(Object[] row) throws Exception {
+        byte[][] strs = new byte[varCount][];
+        int size = varDataStart;
+        for (int i = 0; i < types.length; i++) {
+            if ("string".equals(types[i])) {
+                strs[positions[i]] = ((String) row[i]).getBytes(StandardCharsets.UTF_8);
+                size += strs[positions[i]].length;
+            }
+        }
+        if (size > MAX_ROW_SIZE) {
+            throw Error.DataTooLargeException;
+        }
+        byte[] raw = new byte[size];
+        for (int i = 0; i < types.length; i++) {
+            if (!"string".equals(types[i])) {
+                putNumber(raw, positions[i], types[i], row[i]);
+            }
+        }
+        int end = varDataStart;
+        for (int k = 0; k < varCount; k++) {
+            System.arraycopy(strs[k], 0, raw, end, strs[k].length);
+            end += strs[k].length;
+            raw[varEndStart + 2 * k] = (byte) (end >>> 8);
+            raw[varEndStart + 2 * k + 1] = (byte) end;
+        }
+        return raw;
+    }
+}
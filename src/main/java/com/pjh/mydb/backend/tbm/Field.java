@@ -2,13 +2,19 @@ package com.pjh.mydb.backend.tbm;
 
 import com.google.common.primitives.Bytes;
 import com.pjh.mydb.common.Error;
+import com.pjh.mydb.backend.common.SubArray;
+import com.pjh.mydb.backend.dm.DataManager;
+import com.pjh.mydb.backend.dm.dataitem.DataItem;
 import com.pjh.mydb.backend.im.BPlusTree;
+import com.pjh.mydb.backend.im.KeyUidSorter;
 import com.pjh.mydb.backend.parser.statement.SingleExpression;
 import com.pjh.mydb.backend.tm.TransactionManagerImpl;
 import com.pjh.mydb.backend.utils.Panic;
 import com.pjh.mydb.backend.utils.ParseStringRes;
 import com.pjh.mydb.backend.utils.Parser;
 
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
 import java.util.List;
 
@@ -18,6 +24,8 @@ import java.util.List;
  * [FieldName][TypeName][IndexUid]  --> string, string, long
  * 如果这个field有索引，那 IndexUID 指向了索引二叉树的根，
  * 如果field无索引，IndexUid为0
+ * string 字段的索引使用保序的字节串 key（见 value2Key），支持范围查询；
+ * 旧版本建立的 string 索引以字符串的哈希值为 key，只能用于等值查询，且可能冲突
  * <p>
  * string类型的存储方式为 [StringLength][StringData]
  * TypeName 为字段的类型，限定为 int32、int64 和 string 类型。
@@ -27,11 +35,14 @@ import java.util.List;
  */
 public class Field {
 
+    // string 字段在索引 key 中内联的字节数
+    static final int STRING_KEY_WIDTH = 16;
+
     long uid;
     private Table tb;
     String fieldName;
     String fieldType;
-    private long index;
+    private volatile long index;
     private BPlusTree bt;
 
     /**
@@ -50,6 +61,10 @@ public class Field {
         }
 
         assert raw != null;
+        return parseField(tb, uid, raw);
+    }
+
+    static Field parseField(Table tb, long uid, byte[] raw) {
         return new Field(uid, tb).parseSelf(raw);
     }
 
@@ -90,7 +105,9 @@ public class Field {
         typeCheck(fieldType);
         Field f = new Field(tb, fieldName, fieldType, 0);
         if (indexed) {
-            long index = BPlusTree.create(((TableManagerImpl) tb.tbm).dm);
+            long index = "string".equals(fieldType)
+                    ? BPlusTree.create(((TableManagerImpl) tb.tbm).dm, BPlusTree.maxBalanceNumber(STRING_KEY_WIDTH), STRING_KEY_WIDTH)
+                    : BPlusTree.create(((TableManagerImpl) tb.tbm).dm);
             BPlusTree bt = BPlusTree.load(index, ((TableManagerImpl) tb.tbm).dm);
             f.index = index;
             f.bt = bt;
@@ -112,86 +129,98 @@ public class Field {
         }
     }
 
+    /**
+     * 为已持久化的字段挂上索引。
+     * IndexUid 位于字段二进制格式的最后 8 个字节，这里直接在 DM 层原地改写，
+     * 与 B+ 树更新根节点一样以超级事务落日志，不随当前事务回滚。
+     * @param index 新建 B+ 树的 bootUid
+     * @throws Exception
+     */
+    void attachIndex(long index) throws Exception {
+        DataManager dm = ((TableManagerImpl) tb.tbm).dm;
+        DataItem di = dm.read(uid);
+        di.before();
+        try {
+            SubArray sa = di.data();
+            System.arraycopy(Parser.long2Byte(index), 0, sa.raw, sa.end - 8, 8);
+        } finally {
+            di.after(TransactionManagerImpl.SUPER_TID);
+            di.release();
+        }
+        this.bt = BPlusTree.load(index, dm);
+        this.index = index;
+    }
+
     public boolean isIndexed() {
         return index != 0;
     }
 
+    /**
+     * 索引的 key 是否为 string 的哈希值，哈希值可能冲突，查到的记录需要再检查
+     */
+    public boolean isHashKey() {
+        return "string".equals(fieldType) && !isBytesKey();
+    }
+
+    public boolean isBytesKey() {
+        return bt.isBytesKey();
+    }
+
     public void insert(Object key, long uid) throws Exception {
+        if (isBytesKey()) {
+            bt.insert(value2Key(key), uid);
+            return;
+        }
         long uKey = value2Uid(key);
         bt.insert(uKey, uid);
     }
 
-    public Object string2Value(String str) {
-        switch (fieldType) {
-            case "int32":
-                return Integer.parseInt(str);
-            case "int64":
-                return Long.parseLong(str);
-            case "string":
-                return str;
-        }
-        return null;
+    /**
+     * 直接插入已经转换好的索引 key，用于批量导入后按顺序合并索引
+     */
+    void insertKey(long key, long uid) throws Exception {
+        bt.insert(key, uid);
     }
 
-    public byte[] value2Raw(Object v) {
-        byte[] raw = null;
-        switch (fieldType) {
-            case "int32":
-                raw = Parser.int2Byte((int) v);
-                break;
-            case "int64":
-                raw = Parser.long2Byte((long) v);
-                break;
-            case "string":
-                raw = Parser.string2Byte((String) v);
-                break;
-        }
-        return raw;
+    void insertKey(byte[] key, long uid) throws Exception {
+        bt.insert(key, uid);
     }
 
-    class ParseValueRes {
-        Object v;
-        int shift;
+    /**
+     * 索引中是否还没有任何 key
+     */
+    boolean isIndexEmpty() throws Exception {
+        return bt.searchFirst(1).isEmpty();
     }
 
-    public ParseValueRes parserValue(byte[] raw) {
-        ParseValueRes res = new ParseValueRes();
-        switch(fieldType) {
-            case "int32":
-                res.v = Parser.parseInt(Arrays.copyOf(raw, 4));
-                res.shift = 4;
-                break;
-            case "int64":
-                res.v = Parser.parseLong(Arrays.copyOf(raw, 8));
-                res.shift = 8;
-                break;
-            case "string":
-                ParseStringRes r = Parser.parseString(raw);
-                res.v = r.str;
-                res.shift = r.next;
-                break;
-        }
-        return res;
+    /**
+     * 用 sorter 中的 (key, uid) 以原有的阶自底向上建一棵新树，替换掉空的索引。
+     * 调用者需持有表的索引写锁，保证替换期间没有其他插入。
+     * @param sorter 降序的排序器
+     * @throws Exception
+     */
+    void rebuildIndex(KeyUidSorter sorter) throws Exception {
+        BPlusTree old = bt;
+        DataManager dm = ((TableManagerImpl) tb.tbm).dm;
+        attachIndex(BPlusTree.bulkLoad(dm, sorter, BPlusTree.balanceOfFanout(old.fanout())));
+        old.close();
     }
 
-    public String printValue(Object v) {
-        String str = null;
-        switch(fieldType) {
+    public Object string2Value(String str) {
+        switch (fieldType) {
             case "int32":
-                str = String.valueOf((int)v);
-                break;
+                return Integer.parseInt(str);
             case "int64":
-                str = String.valueOf((long)v);
-                break;
+                return Long.parseLong(str);
             case "string":
-                str = (String)v;
-                break;
+                return str;
         }
-        return str;
+        return null;
     }
 
     /**
      * 条件范围内所有的 UID,[left, right]
+     * 字节串 key 的索引给出的是 [leftKey, rightKey)
      * @param exp
      * @return
      * @throws Exception
@@ -199,12 +228,32 @@ public class Field {
     public FieldCalRes calExp(SingleExpression exp) throws Exception {
         Object v = null;
         FieldCalRes res = new FieldCalRes();
+        if (isBytesKey()) {
+            byte[] key = value2Key(string2Value(exp.value));
+            switch (exp.compareOp) {
+                case "<":
+                    res.rightKey = key;
+                    break;
+                case "=":
+                    // 编码不会是其它编码的前缀，以 key 开头的只有 key 本身
+                    res.leftKey = key;
+                    res.rightKey = Index.successor(key);
+                    break;
+                case ">":
+                    res.leftKey = Index.successor(key);
+                    break;
+            }
+            return res;
+        }
         switch (exp.compareOp) {
             case "<":
-                res.left = 0;
+                res.left = Long.MIN_VALUE;
                 v = string2Value(exp.value);
                 res.right = value2Uid(v);
-                if (res.right > 0) {
+                if (res.right == Long.MIN_VALUE) {
+                    // 没有更小的值，区间为空
+                    res.left = Long.MAX_VALUE;
+                } else {
                     res.right--;
                 }
                 break;
@@ -216,7 +265,13 @@ public class Field {
             case ">":
                 res.right = Long.MAX_VALUE;
                 v = string2Value(exp.value);
-                res.left = value2Uid(v) + 1;
+                res.left = value2Uid(v);
+                if (res.left == Long.MAX_VALUE) {
+                    // 没有更大的值，区间为空
+                    res.right = Long.MIN_VALUE;
+                } else {
+                    res.left++;
+                }
                 break;
         }
         return res;
@@ -226,6 +281,100 @@ public class Field {
         return bt.searchRange(left, right);
     }
 
+    /**
+     * 字节串 key 的索引上范围 [left, right) 内所有的 UID，null 表示没有对应的边界
+     */
+    public List<Long> search(byte[] left, byte[] right) throws Exception {
+        return bt.searchRange(left, right);
+    }
+
+    /**
+     * 按索引顺序扫描范围 [left, right] 内的 UID，可以随时停止
+     */
+    void scan(long left, long right, boolean descending, BPlusTree.UidVisitor visitor) throws Exception {
+        bt.scan(left, right, descending, visitor);
+    }
+
+    /**
+     * 按索引顺序扫描字节串 key 的范围 [left, right)，null 表示没有对应的边界
+     */
+    void scan(byte[] left, byte[] right, boolean descending, BPlusTree.UidVisitor visitor) throws Exception {
+        bt.scan(left, right, descending, visitor);
+    }
+
+    /**
+     * 按索引顺序扫描字段值等于 v 的 UID；string 的哈希索引可能有冲突，读出记录后需要再检查
+     */
+    void scanEqual(Object v, BPlusTree.UidVisitor visitor) throws Exception {
+        if (isBytesKey()) {
+            byte[] key = value2Key(v);
+            bt.scan(key, Index.successor(key), false, visitor);
+            return;
+        }
+        long key = value2Uid(v);
+        bt.scan(key, key, false, visitor);
+    }
+
+    /**
+     * 按 key 从小到大的前 n 个 UID
+     */
+    List<Long> searchFirst(int n) throws Exception {
+        return bt.searchFirst(n);
+    }
+
+    /**
+     * key 最大的叶子节点中的 UID，按 key 从小到大排列
+     */
+    List<Long> searchLast() throws Exception {
+        return bt.searchLastLeaf();
+    }
+
+    /**
+     * 将值编码为保序的字节串，按无符号字节序比较的结果与值的大小关系一致，用于 string 索引和联合索引的 key
+     * int32/int64：大端序，符号位取反；
+     * string：UTF-8 字节，其中 0x00 转义为 0x00 0xFF，以 0x00 0x01 结尾，保证一个值的编码不会是另一个值的编码的前缀
+     * @param v
+     * @return
+     */
+    public byte[] value2Key(Object v) {
+        byte[] key = null;
+        switch (fieldType) {
+            case "int32":
+                key = Parser.int2Byte((int) v ^ Integer.MIN_VALUE);
+                break;
+            case "int64":
+                key = Parser.long2Byte((long) v ^ Long.MIN_VALUE);
+                break;
+            case "string":
+                byte[] str = ((String) v).getBytes(StandardCharsets.UTF_8);
+                ByteArrayOutputStream out = new ByteArrayOutputStream(str.length + 2);
+                for (byte b : str) {
+                    out.write(b);
+                    if (b == 0) {
+                        out.write(0xff);
+                    }
+                }
+                out.write(0);
+                out.write(1);
+                key = out.toByteArray();
+                break;
+        }
+        return key;
+    }
+
+    /**
+     * 该字段的 key 在索引节点中预留的内联字节数，string 超出的部分溢出存放
+     */
+    int keyWidth() {
+        switch (fieldType) {
+            case "int32":
+                return 4;
+            case "int64":
+                return 8;
+        }
+        return STRING_KEY_WIDTH;
+    }
+
     public long value2Uid(Object key) {
         long uid = 0;
         switch (fieldType) {
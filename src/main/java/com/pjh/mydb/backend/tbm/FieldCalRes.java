@@ -7,4 +7,7 @@ package com.pjh.mydb.backend.tbm;
 public class FieldCalRes {
     public long left;
     public long right;
+    // 字节串 key 的索引使用的区间 [leftKey, rightKey)，null 表示没有对应的边界
+    public byte[] leftKey;
+    public byte[] rightKey;
 }
@@ -0,0 +1,250 @@
+package com.pjh.mydb.backend.tbm;
+
+import com.google.common.primitives.Bytes;
+import com.pjh.mydb.backend.im.BPlusTree;
+import com.pjh.mydb.backend.parser.statement.SingleExpression;
+import com.pjh.mydb.backend.tm.TransactionManagerImpl;
+import com.pjh.mydb.backend.utils.Panic;
+import com.pjh.mydb.backend.utils.ParseStringRes;
+import com.pjh.mydb.backend.utils.Parser;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Index 表示建立在多个字段上的联合索引
+ * 二进制格式与 Field 相同，和字段一起记录在表的字段列表中：
+ * [IndexName][TypeName][IndexUid]  --> string, string, long
+ * IndexName 为以逗号分隔的字段名，TypeName 固定为 index，IndexUid 指向索引 B+ 树的 boot。
+ *
+ * 索引的 key 是各字段保序编码（见 Field.value2Key）的拼接，按字节序比较。
+ * 因此前若干个字段上的等值条件，加上下一个字段上的范围条件，对应 B+ 树上的一段连续区间。
+ *
+ * @author Joseph Peng
+ * @date 2026/10/19 14:20
+ */
+public class Index {
+
+    static final String INDEX_TYPE = "index";
+
+    long uid;
+    private Table tb;
+    List<Field> columns;
+    // 各字段在记录中的序号
+    private int[] positions;
+    private long index;
+    private BPlusTree bt;
+
+    private Index(Table tb) {
+        this.tb = tb;
+    }
+
+    /**
+     * 判断表的字段列表中的一条记录是否为联合索引
+     */
+    static boolean isIndexRaw(byte[] raw) {
+        ParseStringRes res = Parser.parseString(raw);
+        res = Parser.parseString(Arrays.copyOfRange(raw, res.next, raw.length));
+        return INDEX_TYPE.equals(res.str);
+    }
+
+    static Index parseIndex(Table tb, long uid, byte[] raw) {
+        Index idx = new Index(tb);
+        idx.uid = uid;
+        int position = 0;
+        ParseStringRes res = Parser.parseString(raw);
+        String names = res.str;
+        position += res.next;
+        res = Parser.parseString(Arrays.copyOfRange(raw, position, raw.length));
+        position += res.next;
+        idx.index = Parser.parseLong(Arrays.copyOfRange(raw, position, position + 8));
+
+        idx.columns = new ArrayList<>();
+        for (String name : names.split(",")) {
+            idx.columns.add(tb.fieldOf(name));
+        }
+        idx.initPositions();
+        try {
+            idx.bt = BPlusTree.load(idx.index, ((TableManagerImpl) tb.tbm).dm);
+        } catch (Exception e) {
+            Panic.panic(e);
+        }
+        return idx;
+    }
+
+    /**
+     * 创建一个空的联合索引，并以超级事务写入其记录，与补建单字段索引一样不随当前事务回滚
+     * @param tb
+     * @param columns
+     * @param fanout 每个节点最多容纳的 key 数，0 表示节点占满一页
+     * @return
+     * @throws Exception
+     */
+    static Index createIndex(Table tb, List<Field> columns, int fanout) throws Exception {
+        int keyWidth = 0;
+        for (Field f : columns) {
+            keyWidth += f.keyWidth();
+        }
+        keyWidth = Math.min(keyWidth, BPlusTree.MAX_KEY_WIDTH);
+        int balanceNumber = fanout == 0 ? BPlusTree.maxBalanceNumber(keyWidth) : BPlusTree.balanceOfFanout(fanout, keyWidth);
+
+        Index idx = new Index(tb);
+        idx.columns = columns;
+        idx.initPositions();
+        idx.index = BPlusTree.create(((TableManagerImpl) tb.tbm).dm, balanceNumber, keyWidth);
+        idx.bt = BPlusTree.load(idx.index, ((TableManagerImpl) tb.tbm).dm);
+
+        byte[] nameRaw = Parser.string2Byte(idx.columnNames());
+        byte[] typeRaw = Parser.string2Byte(INDEX_TYPE);
+        byte[] indexRaw = Parser.long2Byte(idx.index);
+        idx.uid = ((TableManagerImpl) tb.tbm).vm.insert(TransactionManagerImpl.SUPER_TID, Bytes.concat(nameRaw, typeRaw, indexRaw));
+        return idx;
+    }
+
+    private void initPositions() {
+        positions = new int[columns.size()];
+        for (int i = 0; i < positions.length; i++) {
+            positions[i] = tb.fields.indexOf(columns.get(i));
+        }
+    }
+
+    /**
+     * 字段名以逗号拼接
+     */
+    String columnNames() {
+        StringBuilder sb = new StringBuilder();
+        for (Field f : columns) {
+            if (sb.length() > 0) {
+                sb.append(",");
+            }
+            sb.append(f.fieldName);
+        }
+        return sb.toString();
+    }
+
+    public byte[] key(Object[] row) {
+        byte[][] parts = new byte[columns.size()][];
+        for (int i = 0; i < parts.length; i++) {
+            parts[i] = columns.get(i).value2Key(row[positions[i]]);
+        }
+        return Bytes.concat(parts);
+    }
+
+    public void insert(Object[] row, long uid) throws Exception {
+        bt.insert(key(row), uid);
+    }
+
+    void insertKey(byte[] key, long uid) throws Exception {
+        bt.insert(key, uid);
+    }
+
+    /**
+     * 范围 [left, right) 内所有的 UID，null 表示没有对应的边界
+     */
+    public List<Long> search(byte[] left, byte[] right) throws Exception {
+        return bt.searchRange(left, right);
+    }
+
+    /**
+     * 按 key 的顺序扫描整个索引
+     */
+    void scan(BPlusTree.UidVisitor visitor) throws Exception {
+        bt.scan(null, null, false, visitor);
+    }
+
+    class IndexCalRes {
+        byte[] left, right;
+        // 被这段区间精确覆盖的条件
+        List<SingleExpression> covered;
+        // 区间为空，不需要查找
+        boolean empty;
+    }
+
+    /**
+     * 根据一组 and 连接的条件计算索引上的查找区间：
+     * 从第一个字段开始，有等值条件的字段依次拼成 key 的前缀，遇到第一个没有等值条件的字段时，
+     * 用该字段上的范围条件收窄区间后停止。第一个字段上没有任何条件时该索引不可用，返回 null。
+     * @param exps
+     * @return
+     */
+    IndexCalRes calExps(List<SingleExpression> exps) {
+        IndexCalRes res = new IndexCalRes();
+        res.covered = new ArrayList<>();
+        byte[] prefix = new byte[0];
+        byte[] lo = null, hi = null;
+        for (Field f : columns) {
+            SingleExpression eq = null;
+            List<SingleExpression> ranges = new ArrayList<>();
+            for (SingleExpression exp : exps) {
+                if (f != tb.fieldOf(exp.field)) continue;
+                if ("=".equals(exp.compareOp) && eq == null) {
+                    eq = exp;
+                } else if (!"=".equals(exp.compareOp)) {
+                    ranges.add(exp);
+                }
+            }
+            if (eq != null) {
+                prefix = Bytes.concat(prefix, f.value2Key(f.string2Value(eq.value)));
+                res.covered.add(eq);
+                continue;
+            }
+            for (SingleExpression exp : ranges) {
+                byte[] k = f.value2Key(f.string2Value(exp.value));
+                if ("<".equals(exp.compareOp)) {
+                    if (hi == null || compare(k, hi) < 0) hi = k;
+                } else {
+                    // 大于 k 即大于等于所有以 k 开头的 key 的后继
+                    byte[] next = successor(k);
+                    if (next == null) {
+                        res.empty = true;
+                    } else if (lo == null || compare(next, lo) > 0) {
+                        lo = next;
+                    }
+                }
+                res.covered.add(exp);
+            }
+            break;
+        }
+        if (res.covered.isEmpty()) {
+            return null;
+        }
+        res.left = lo == null ? prefix : Bytes.concat(prefix, lo);
+        res.right = hi == null ? successor(prefix) : Bytes.concat(prefix, hi);
+        if (res.right != null && compare(res.left, res.right) >= 0) {
+            res.empty = true;
+        }
+        return res;
+    }
+
+    /**
+     * 以 prefix 开头的所有 key 的上界（不含），即 prefix 的后继；prefix 为空或全为 0xFF 时没有上界，返回 null
+     */
+    static byte[] successor(byte[] prefix) {
+        for (int i = prefix.length - 1; i >= 0; i--) {
+            if (prefix[i] != (byte) 0xff) {
+                byte[] next = Arrays.copyOf(prefix, i + 1);
+                next[i]++;
+                return next;
+            }
+        }
+        return null;
+    }
+
+    static int compare(byte[] a, byte[] b) {
+        for (int i = 0; i < Math.min(a.length, b.length); i++) {
+            if (a[i] != b[i]) {
+                return Integer.compare(a[i] & 0xff, b[i] & 0xff);
+            }
+        }
+        return Integer.compare(a.length, b.length);
+    }
+
+    @Override
+    public String toString() {
+        return new StringBuilder("(")
+                .append(columnNames())
+                .append(", Index)")
+                .toString();
+    }
+}
@@ -0,0 +1,706 @@
+package com.pjh.mydb.backend.tbm;
+
+import com.pjh.mydb.common.Error;
+import com.pjh.mydb.backend.parser.statement.Join;
+import com.pjh.mydb.backend.parser.statement.Select;
+import com.pjh.mydb.backend.parser.statement.SingleExpression;
+import com.pjh.mydb.backend.parser.statement.Where;
+import com.pjh.mydb.backend.utils.Parser;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.*;
+
+/**
+ * Joiner 执行带 join 的 select。各表按 from 和 join 的顺序组成一条流水线：
+ * 读出第一张表的记录，依次经过每个 join，连接后的一行是各表的记录组成的 byte[][]，
+ * left join 没有匹配时对应的位置为 null。
+ * 被连接的表在连接字段上有索引时，对外侧的每一行在索引上查找等值的记录（索引嵌套循环连接）；
+ * 否则先读出被连接的表，按连接键建立哈希表（哈希连接），占用超过内存预算后把两侧的记录按连接键分区写入临时文件，
+ * 外侧的输入结束后再逐个分区连接。
+ * where 中只涉及一张表的条件，在这张表是第一张表或以 inner join 连接时下推到读取这张表时检查，
+ * 第一张表上的条件可以用上索引；其余的条件在连接之后检查。
+ *
+ * @author Joseph Peng
+ * @date 2026/10/19 19:40
+ */
+class Joiner {
+
+    // 哈希连接默认在内存中最多缓存的记录字节数
+    static final long DEFAULT_BUDGET = 16 << 20;
+    // 超过预算后分区的个数
+    static final int PARTITIONS = 16;
+    // 每条记录除了记录本身之外的估计开销
+    private static final int ENTRY_OVERHEAD = 48;
+
+    private TableManagerImpl tbm;
+    private Table[] tables;
+    private Select read;
+    private long budget = DEFAULT_BUDGET;
+    private long tid;
+
+    // 第 i 个 join 中外侧的连接字段和第 i 张表中的连接字段
+    private Column[] outerKeys, innerKeys;
+    // 下推到每张表的条件，没有时为 null
+    private Where[] pushed;
+    // 连接之后检查的条件，每个条件只涉及一张表；postOr 为 true 时满足其一即可，否则需要全部满足
+    private List<Column> postColumns = new ArrayList<>();
+    private List<Predicate> postFilters = new ArrayList<>();
+    private boolean postOr;
+    private Column[] projection;
+    private Column[] order;
+
+    /**
+     * 字段所在的表和它在该表记录中的序号
+     */
+    private static class Column {
+        int table;
+        int field;
+
+        Column(int table, int field) {
+            this.table = table;
+            this.field = field;
+        }
+    }
+
+    /**
+     * 在 from 和 join 中列出的表上解析字段，检查连接条件，拆分 where
+     */
+    static Joiner compile(TableManagerImpl tbm, Table[] tables, Select read) throws Exception {
+        if(read.aggregates != null) {
+            throw Error.InvalidJoinException;
+        }
+        Joiner j = new Joiner();
+        j.tbm = tbm;
+        j.tables = tables;
+        j.read = read;
+        for (int i = 0; i < tables.length; i++) {
+            for (int k = 0; k < i; k++) {
+                // 没有表的别名，同一张表出现两次时无法区分字段
+                if(tables[k] == tables[i]) {
+                    throw Error.InvalidJoinException;
+                }
+            }
+        }
+
+        j.outerKeys = new Column[tables.length];
+        j.innerKeys = new Column[tables.length];
+        for (int i = 1; i < tables.length; i++) {
+            Join join = read.joins[i-1];
+            Column a = j.resolve(join.leftField, i + 1);
+            Column b = j.resolve(join.rightField, i + 1);
+            if(a.table == i && b.table < i) {
+                j.innerKeys[i] = a;
+                j.outerKeys[i] = b;
+            } else if(b.table == i && a.table < i) {
+                j.innerKeys[i] = b;
+                j.outerKeys[i] = a;
+            } else {
+                throw Error.InvalidJoinException;
+            }
+            if("string".equals(j.type(a)) != "string".equals(j.type(b))) {
+                throw Error.InvalidJoinException;
+            }
+        }
+
+        j.splitWhere(read.where);
+
+        if(read.fields.length == 1 && "*".equals(read.fields[0])) {
+            List<Column> columns = new ArrayList<>();
+            for (int t = 0; t < tables.length; t++) {
+                for (int f = 0; f < tables[t].fields.size(); f++) {
+                    columns.add(new Column(t, f));
+                }
+            }
+            j.projection = columns.toArray(new Column[columns.size()]);
+        } else {
+            j.projection = new Column[read.fields.length];
+            for (int i = 0; i < read.fields.length; i++) {
+                j.projection[i] = j.resolve(read.fields[i], tables.length);
+            }
+        }
+
+        if(read.orderBy != null) {
+            j.order = new Column[read.orderBy.length];
+            for (int i = 0; i < read.orderBy.length; i++) {
+                j.order[i] = j.resolve(read.orderBy[i], tables.length);
+            }
+        }
+        return j;
+    }
+
+    /**
+     * 在前 count 张表中查找字段，没有用表名限定、又有多张表含有同名字段时报错
+     */
+    private Column resolve(String name, int count) throws Exception {
+        Column found = null;
+        for (int t = 0; t < count; t++) {
+            Field f = tables[t].fieldOf(name);
+            if(f == null) {
+                continue;
+            }
+            if(found != null) {
+                throw Error.AmbiguousFieldException;
+            }
+            found = new Column(t, tables[t].fields.indexOf(f));
+        }
+        if(found == null) {
+            throw Error.FieldNotFoundException;
+        }
+        return found;
+    }
+
+    private String type(Column c) {
+        return tables[c.table].layout.type(c.field);
+    }
+
+    private Field fieldOf(Column c) {
+        return tables[c.table].fields.get(c.field);
+    }
+
+    /**
+     * 把 where 拆成只涉及一张表的条件，能下推的放入 pushed，其余的在连接之后检查；
+     * 涉及两张表的 or 只能在连接之后检查
+     */
+    private void splitWhere(Where where) throws Exception {
+        pushed = new Where[tables.length];
+        if(where == null) {
+            return;
+        }
+        Column c1 = resolve(where.singleExp1.field, tables.length);
+        SingleExpression e1 = local(where.singleExp1, c1);
+        if("".equals(where.logicOp)) {
+            addCondition(c1.table, whereOf(e1, "", null));
+            return;
+        }
+        Column c2 = resolve(where.singleExp2.field, tables.length);
+        SingleExpression e2 = local(where.singleExp2, c2);
+        if(c1.table == c2.table) {
+            addCondition(c1.table, whereOf(e1, where.logicOp, e2));
+        } else if("and".equals(where.logicOp)) {
+            addCondition(c1.table, whereOf(e1, "", null));
+            addCondition(c2.table, whereOf(e2, "", null));
+        } else {
+            postOr = true;
+            addPost(c1.table, whereOf(e1, "", null));
+            addPost(c2.table, whereOf(e2, "", null));
+        }
+    }
+
+    private void addCondition(int table, Where where) {
+        if(table == 0 || !read.joins[table-1].left) {
+            pushed[table] = where;
+        } else {
+            // left join 的右侧在连接之前过滤会把不满足条件的行变成 null，而不是去掉
+            addPost(table, where);
+        }
+    }
+
+    private void addPost(int table, Where where) {
+        postColumns.add(new Column(table, 0));
+        postFilters.add(Predicate.compile(tables[table], where));
+    }
+
+    private SingleExpression local(SingleExpression exp, Column c) {
+        SingleExpression e = new SingleExpression();
+        e.field = fieldOf(c).fieldName;
+        e.compareOp = exp.compareOp;
+        e.value = exp.value;
+        return e;
+    }
+
+    private static Where whereOf(SingleExpression e1, String logicOp, SingleExpression e2) {
+        Where w = new Where();
+        w.singleExp1 = e1;
+        w.logicOp = logicOp;
+        w.singleExp2 = e2;
+        return w;
+    }
+
+    /**
+     * 连接之后的条件，涉及的表在这一行中为 null 时视为不满足
+     */
+    private boolean matchPost(byte[][] row) {
+        for (int i = 0; i < postFilters.size(); i++) {
+            byte[] raw = row[postColumns.get(i).table];
+            boolean ok = raw != null && postFilters.get(i).match(raw);
+            if(ok == postOr) {
+                return ok;
+            }
+        }
+        return !postOr;
+    }
+
+    /**
+     * 依次处理连接后的一行，返回 false 时停止
+     */
+    private interface Sink {
+        boolean visit(byte[][] row) throws Exception;
+    }
+
+    /**
+     * @param rows 为 true 时结果编码为行集，见 ResultBuffer
+     * @param out 不为 null 时结果分段交给 out，返回值只是最后一段
+     */
+    byte[] read(long tid, boolean rows, ResultSink out) throws Exception {
+        this.tid = tid;
+        JoinWriter writer = new JoinWriter(read.offset, read.limit, rows, out);
+        JoinStage[] stages = new JoinStage[tables.length];
+        RowSorter sorter = null;
+        try {
+            Sink sink;
+            OrderBy.TopN top = null;
+            if(order == null) {
+                sink = writer::add;
+            } else if(read.limit >= 0) {
+                OrderBy.TopN t = top = new OrderBy.TopN(read.offset + read.limit);
+                sink = row -> {
+                    t.add(orderKey(row), pack(row));
+                    return true;
+                };
+            } else {
+                RowSorter s = sorter = new RowSorter();
+                sink = row -> {
+                    s.add(orderKey(row), pack(row));
+                    return true;
+                };
+            }
+            Sink next = sink;
+            if(!postFilters.isEmpty()) {
+                next = row -> !matchPost(row) || sink.visit(row);
+            }
+            for (int i = tables.length - 1; i > 0; i--) {
+                Field fd = fieldOf(innerKeys[i]);
+                if(fd.isIndexed()) {
+                    stages[i] = new IndexJoin(i, next);
+                } else {
+                    stages[i] = new HashJoin(i, next);
+                }
+                next = stages[i];
+            }
+            for (int i = 1; i < tables.length; i++) {
+                stages[i].open();
+            }
+
+            Sink first = next;
+            tables[0].forEachRow(tid, pushed[0], raw -> {
+                byte[][] row = new byte[tables.length][];
+                row[0] = raw;
+                return first.visit(row);
+            });
+            for (int i = 1; i < tables.length; i++) {
+                stages[i].finish();
+            }
+
+            if(top != null) {
+                for (byte[] raw : top.sorted()) {
+                    writer.add(unpack(raw));
+                }
+            } else if(sorter != null) {
+                try (RowSorter.RowIterator it = sorter.sort()) {
+                    byte[] raw;
+                    while((raw = it.next()) != null && writer.add(unpack(raw))) {
+                    }
+                }
+            }
+        } finally {
+            for (JoinStage stage : stages) {
+                if(stage != null) {
+                    stage.close();
+                }
+            }
+            if(sorter != null) {
+                sorter.close();
+            }
+        }
+        return writer.buffer.remaining();
+    }
+
+    /**
+     * 排序键：每个字段先是一个标记字节，null 为 0，排在所有值之前，否则为 1 后接字段值的保序编码；降序的字段按位取反
+     */
+    private byte[] orderKey(byte[][] row) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (int i = 0; i < order.length; i++) {
+            byte[] raw = row[order[i].table];
+            byte[] part;
+            if(raw == null) {
+                part = new byte[]{0};
+            } else {
+                byte[] key = fieldOf(order[i]).value2Key(tables[order[i].table].layout.valueAt(raw, order[i].field));
+                part = new byte[key.length + 1];
+                part[0] = 1;
+                System.arraycopy(key, 0, part, 1, key.length);
+            }
+            for (byte b : part) {
+                out.write(read.descending[i] ? ~b : b);
+            }
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * 连接键：整数统一为 8 字节，int32 和 int64 之间也可以连接；string 为 UTF-8 字节
+     */
+    private byte[] joinKey(Column c, byte[] raw) {
+        RowLayout layout = tables[c.table].layout;
+        if("string".equals(layout.type(c.field))) {
+            int start = layout.start(raw, c.field);
+            return Arrays.copyOfRange(raw, start, start + layout.length(raw, c.field));
+        }
+        return Parser.long2Byte(layout.numberAt(raw, c.field));
+    }
+
+    /**
+     * 连接后的一行编码为 [Length][Raw]...，Length 为 -1 表示 null，用于排序和写入分区文件
+     */
+    private static byte[] pack(byte[][] row) {
+        int size = 0;
+        for (byte[] raw : row) {
+            size += 4 + (raw == null ? 0 : raw.length);
+        }
+        ByteBuffer buf = ByteBuffer.allocate(size);
+        for (byte[] raw : row) {
+            if(raw == null) {
+                buf.putInt(-1);
+            } else {
+                buf.putInt(raw.length).put(raw);
+            }
+        }
+        return buf.array();
+    }
+
+    private byte[][] unpack(byte[] packed) {
+        ByteBuffer buf = ByteBuffer.wrap(packed);
+        byte[][] row = new byte[tables.length][];
+        for (int i = 0; i < row.length; i++) {
+            int n = buf.getInt();
+            if(n >= 0) {
+                row[i] = new byte[n];
+                buf.get(row[i]);
+            }
+        }
+        return row;
+    }
+
+    /**
+     * 一个 join，把外侧的一行与第 table 张表中连接键相等的记录连接后交给 next
+     */
+    private abstract class JoinStage implements Sink {
+        final int table;
+        final Column outer, inner;
+        final boolean left;
+        final Sink next;
+        // 下游已经不再接收
+        boolean stopped;
+
+        JoinStage(int table, Sink next) {
+            this.table = table;
+            this.outer = outerKeys[table];
+            this.inner = innerKeys[table];
+            this.left = read.joins[table-1].left;
+            this.next = next;
+        }
+
+        /**
+         * 读取外侧的行之前调用
+         */
+        void open() throws Exception {
+        }
+
+        /**
+         * 外侧的行全部处理完之后调用
+         */
+        void finish() throws Exception {
+        }
+
+        void close() {
+        }
+
+        boolean emit(byte[][] row, byte[] raw) throws Exception {
+            byte[][] out = Arrays.copyOf(row, row.length);
+            out[table] = raw;
+            if(!next.visit(out)) {
+                stopped = true;
+                return false;
+            }
+            return true;
+        }
+
+        /**
+         * 外侧的行没有匹配，left join 输出右侧为 null 的一行，inner join 丢弃
+         */
+        boolean emitUnmatched(byte[][] row) throws Exception {
+            return !left || emit(row, null);
+        }
+    }
+
+    /**
+     * 索引嵌套循环连接：对外侧的每一行，在被连接的表的连接字段的索引上查找等值的记录
+     */
+    private class IndexJoin extends JoinStage {
+        private final Field field;
+        private final Predicate filter;
+
+        IndexJoin(int table, Sink next) {
+            super(table, next);
+            this.field = fieldOf(inner);
+            this.filter = pushed[table] == null ? null : Predicate.compile(tables[table], pushed[table]);
+        }
+
+        @Override
+        public boolean visit(byte[][] row) throws Exception {
+            byte[] outerRaw = row[outer.table];
+            Object v = outerRaw == null ? null : innerValue(outerRaw);
+            if(v == null) {
+                return emitUnmatched(row);
+            }
+            byte[] key = field.isHashKey() ? joinKey(outer, outerRaw) : null;
+            boolean[] matched = {false};
+            field.scanEqual(v, uid -> {
+                byte[] raw = tbm.vm.read(tid, uid);
+                if(raw == null) {
+                    return true;
+                }
+                if(key != null && !Arrays.equals(key, joinKey(inner, raw))) {
+                    return true;
+                }
+                if(filter != null && !filter.match(raw)) {
+                    return true;
+                }
+                matched[0] = true;
+                return emit(row, raw);
+            });
+            if(stopped) {
+                return false;
+            }
+            return matched[0] || emitUnmatched(row);
+        }
+
+        /**
+         * 外侧的连接字段的值转换为被连接的字段的类型，超出 int32 范围的值不可能匹配，返回 null
+         */
+        private Object innerValue(byte[] outerRaw) {
+            Object v = tables[outer.table].layout.valueAt(outerRaw, outer.field);
+            switch (field.fieldType) {
+                case "int32":
+                    long x = ((Number) v).longValue();
+                    return x == (int) x ? (Object) (int) x : null;
+                case "int64":
+                    return ((Number) v).longValue();
+            }
+            return v;
+        }
+    }
+
+    /**
+     * 哈希连接：先读出被连接的表建立哈希表，再用外侧的行探测。
+     * 哈希表超过内存预算后，已有的和之后读到的记录按连接键分区写入临时文件，探测的行也写入对应分区，
+     * 外侧的行全部到达后，逐个分区读入被连接的表的记录建立哈希表，再读出该分区的外侧行探测
+     *
+     * 分区文件格式：被连接的表 [RawLength][Raw]...，外侧的行 见 pack
+     */
+    private class HashJoin extends JoinStage {
+        private Map<ByteBuffer, List<byte[]>> hash = new HashMap<>();
+        private long bytes;
+        private File[] buildFiles, probeFiles;
+        private DataOutputStream[] buildOut, probeOut;
+
+        HashJoin(int table, Sink next) {
+            super(table, next);
+        }
+
+        @Override
+        void open() throws Exception {
+            tables[table].forEachRow(tid, pushed[table], raw -> {
+                addBuild(raw);
+                return true;
+            });
+        }
+
+        private void addBuild(byte[] raw) throws IOException {
+            byte[] key = joinKey(inner, raw);
+            if(buildOut != null) {
+                writeRaw(buildOut[partition(key)], raw);
+                return;
+            }
+            hash.computeIfAbsent(ByteBuffer.wrap(key), k -> new ArrayList<>()).add(raw);
+            bytes += key.length + raw.length + ENTRY_OVERHEAD;
+            if(bytes > budget) {
+                spill();
+            }
+        }
+
+        private void spill() throws IOException {
+            buildFiles = new File[PARTITIONS];
+            probeFiles = new File[PARTITIONS];
+            buildOut = new DataOutputStream[PARTITIONS];
+            probeOut = new DataOutputStream[PARTITIONS];
+            for (int p = 0; p < PARTITIONS; p++) {
+                buildFiles[p] = File.createTempFile("mydb-join", ".build");
+                buildFiles[p].deleteOnExit();
+                buildOut[p] = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(buildFiles[p]), 1 << 16));
+                probeFiles[p] = File.createTempFile("mydb-join", ".probe");
+                probeFiles[p].deleteOnExit();
+                probeOut[p] = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(probeFiles[p]), 1 << 16));
+            }
+            for (Map.Entry<ByteBuffer, List<byte[]>> e : hash.entrySet()) {
+                DataOutputStream out = buildOut[partition(e.getKey().array())];
+                for (byte[] raw : e.getValue()) {
+                    writeRaw(out, raw);
+                }
+            }
+            hash = new HashMap<>();
+            bytes = 0;
+        }
+
+        /**
+         * 分区号取连接键的哈希值打散后的高位，与 HashMap 使用的低位无关，分区内的键仍能均匀分布
+         */
+        private int partition(byte[] key) {
+            return (Arrays.hashCode(key) * 0x9E3779B9) >>> 28;
+        }
+
+        @Override
+        public boolean visit(byte[][] row) throws Exception {
+            byte[] outerRaw = row[outer.table];
+            if(outerRaw == null) {
+                return emitUnmatched(row);
+            }
+            byte[] key = joinKey(outer, outerRaw);
+            if(probeOut != null) {
+                byte[] packed = pack(row);
+                probeOut[partition(key)].writeInt(packed.length);
+                probeOut[partition(key)].write(packed);
+                return true;
+            }
+            return probe(key, row);
+        }
+
+        private boolean probe(byte[] key, byte[][] row) throws Exception {
+            List<byte[]> matches = hash.get(ByteBuffer.wrap(key));
+            if(matches == null) {
+                return emitUnmatched(row);
+            }
+            for (byte[] raw : matches) {
+                if(!emit(row, raw)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        void finish() throws Exception {
+            if(buildOut == null) {
+                return;
+            }
+            for (int p = 0; p < PARTITIONS; p++) {
+                buildOut[p].close();
+                probeOut[p].close();
+            }
+            for (int p = 0; p < PARTITIONS && !stopped; p++) {
+                hash = new HashMap<>();
+                try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(buildFiles[p]), 1 << 16))) {
+                    byte[] raw;
+                    while((raw = readRaw(in)) != null) {
+                        hash.computeIfAbsent(ByteBuffer.wrap(joinKey(inner, raw)), k -> new ArrayList<>()).add(raw);
+                    }
+                }
+                try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(probeFiles[p]), 1 << 16))) {
+                    byte[] packed;
+                    while((packed = readRaw(in)) != null) {
+                        byte[][] row = unpack(packed);
+                        if(!probe(joinKey(outer, row[outer.table]), row)) {
+                            break;
+                        }
+                    }
+                }
+            }
+            hash = null;
+        }
+
+        @Override
+        void close() {
+            if(buildOut == null) {
+                return;
+            }
+            for (int p = 0; p < PARTITIONS; p++) {
+                try {
+                    buildOut[p].close();
+                    probeOut[p].close();
+                } catch (IOException ignored) {
+                }
+                buildFiles[p].delete();
+                probeFiles[p].delete();
+            }
+        }
+    }
+
+    private static void writeRaw(DataOutputStream out, byte[] raw) throws IOException {
+        out.writeInt(raw.length);
+        out.write(raw);
+    }
+
+    /**
+     * 读出一条 [Length][Data]，文件结束时返回 null
+     */
+    private static byte[] readRaw(DataInputStream in) throws IOException {
+        int n;
+        try {
+            n = in.readInt();
+        } catch (EOFException e) {
+            return null;
+        }
+        byte[] raw = new byte[n];
+        in.readFully(raw);
+        return raw;
+    }
+
+    /**
+     * 按 offset 和 limit 把连接后的行写入结果，写满 limit 后返回 false，以便提前结束
+     */
+    private class JoinWriter {
+        private int skip;
+        // 还能写入的行数，-1 表示不限制
+        private int remaining;
+        private final ResultBuffer buffer;
+
+        JoinWriter(int offset, int limit, boolean rows, ResultSink sink) {
+            this.skip = offset;
+            this.remaining = limit;
+            String[] names = new String[projection.length];
+            String[] types = new String[projection.length];
+            // 列名与 select 中写的相同，可能带有表名
+            boolean all = "*".equals(read.fields[0]);
+            for (int i = 0; i < projection.length; i++) {
+                names[i] = all ? fieldOf(projection[i]).fieldName : read.fields[i];
+                types[i] = type(projection[i]);
+            }
+            this.buffer = new ResultBuffer(names, types, rows, sink);
+        }
+
+        boolean add(byte[][] row) throws Exception {
+            if(remaining == 0) {
+                return false;
+            }
+            if(skip > 0) {
+                skip --;
+                return true;
+            }
+            for (Column c : projection) {
+                byte[] raw = row[c.table];
+                if(raw == null) {
+                    buffer.nullValue();
+                } else {
+                    buffer.value(tables[c.table].layout, raw, c.field);
+                }
+            }
+            buffer.endRow();
+            if(remaining > 0) {
+                remaining --;
+            }
+            return remaining != 0;
+        }
+    }
+}
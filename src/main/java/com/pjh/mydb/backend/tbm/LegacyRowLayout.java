@@ -0,0 +1,93 @@
+package com.pjh.mydb.backend.tbm;
+
+import com.pjh.mydb.backend.utils.Parser;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * 旧版本的记录格式，字段依次排列：
+ * int32 占 4 字节，int64 占 8 字节，string 为 [StringLength][StringData]。
+ * 第一个 string 字段及其之前的字段偏移是固定的，预先算好；之后的字段从最后一个固定偏移开始，依次跳过中间的 string 定位。
+ *
+ * @author Joseph Peng
+ * @date 2026/10/19 17:30
+ */
+class LegacyRowLayout extends RowLayout {
+
+    // 字段的固定偏移，前面有 string 字段时为 -1
+    private final int[] fixedOffsets;
+
+    LegacyRowLayout(List<Field> fields) {
+        super(fields);
+        fixedOffsets = new int[types.length];
+        int pos = 0;
+        for (int i = 0; i < types.length; i++) {
+            fixedOffsets[i] = pos;
+            if (pos >= 0) {
+                pos = "string".equals(types[i]) ? -1 : pos + width(types[i]);
+            }
+        }
+    }
+
+    @Override
+    byte format() {
+        return LEGACY;
+    }
+
+    /**
+     * 第 field 个字段在记录中的起始位置，string 为 StringLength 的位置
+     */
+    private int offsetOf(byte[] raw, int field) {
+        if (fixedOffsets[field] >= 0) {
+            return fixedOffsets[field];
+        }
+        int i = field;
+        while (fixedOffsets[i] < 0) {
+            i--;
+        }
+        int pos = fixedOffsets[i];
+        for (; i < field; i++) {
+            pos += "string".equals(types[i]) ? 4 + Parser.parseInt(raw, pos) : width(types[i]);
+        }
+        return pos;
+    }
+
+    @Override
+    int start(byte[] raw, int field) {
+        int pos = offsetOf(raw, field);
+        return "string".equals(types[field]) ? pos + 4 : pos;
+    }
+
+    @Override
+    int length(byte[] raw, int field) {
+        return Parser.parseInt(raw, offsetOf(raw, field));
+    }
+
+    @Override
+    byte[] encode(Object[] row) {
+        byte[][] strs = new byte[types.length][];
+        int size = 0;
+        for (int i = 0; i < types.length; i++) {
+            if ("string".equals(types[i])) {
+                strs[i] = ((String) row[i]).getBytes(StandardCharsets.UTF_8);
+                size += 4 + strs[i].length;
+            } else {
+                size += width(types[i]);
+            }
+        }
+        byte[] raw = new byte[size];
+        int pos = 0;
+        for (int i = 0; i < types.length; i++) {
+            if ("string".equals(types[i])) {
+                putNumber(raw, pos, "int32", strs[i].length);
+                System.arraycopy(strs[i], 0, raw, pos + 4, strs[i].length);
+                pos += 4 + strs[i].length;
+            } else {
+                putNumber(raw, pos, types[i], row[i]);
+                pos += width(types[i]);
+            }
+        }
+        return raw;
+    }
+}
@@ -0,0 +1,255 @@
+package com.pjh.mydb.backend.tbm;
+
+import com.google.common.primitives.Bytes;
+import com.pjh.mydb.backend.im.KeyUidSorter;
+import com.pjh.mydb.backend.utils.Parser;
+import com.pjh.mydb.common.Error;
+
+import java.io.Closeable;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Loader 把一批记录导入一张表，用于多行 insert 和 load 语句。
+ * 记录攒够 BATCH_ROWS 条后一起交给 VM 插入，DM 会尽量填满每一页，每页的插入日志只写入和刷盘一次。
+ * 索引不随每条记录维护，而是把每个索引的 (key, uid) 交给外部排序，finish 时按 key 的顺序合并进索引：
+ * long key 的单字段索引还是空的时自底向上重建，其余按顺序逐个插入。
+ * finish 之前记录已经写入但还不在索引中，它们属于尚未提交的事务，其他事务本来就看不到。
+ * 导入期间表上不能补建索引，否则新索引会漏掉这些记录。
+ *
+ * load 的数据是文本，每行一条记录，字段之间以制表符分隔；值中的制表符、换行和反斜杠写作 \t、\n 和 \\，
+ * 单独一行 \. 表示数据结束。
+ *
+ * @author Joseph Peng
+ * @date 2026/10/19 21:50
+ */
+public class Loader implements Closeable {
+
+    static final int BATCH_ROWS = 1024;
+    private static final byte[] END = "\\.".getBytes();
+
+    private final Table tb;
+    private final long tid;
+    private final List<Object[]> rows = new ArrayList<>();
+    private long count;
+    // 已经有记录交给 VM 写入，出错时这些记录无法单独撤销
+    private boolean written;
+    private boolean closed;
+    // 与 tb.fields 一一对应，long key 的单字段索引放入 longKeys，字节串 key 的放入 bytesKeys，没有索引时都为 null
+    private final KeyUidSorter[] longKeys;
+    private final RowSorter[] bytesKeys;
+    // 与 tb.indexes 一一对应的联合索引 key
+    private final RowSorter[] indexKeys;
+
+    Loader(Table tb, long tid) {
+        this.tb = tb;
+        this.tid = tid;
+        this.longKeys = new KeyUidSorter[tb.fields.size()];
+        this.bytesKeys = new RowSorter[tb.fields.size()];
+        for (int i = 0; i < longKeys.length; i++) {
+            Field fd = tb.fields.get(i);
+            if(!fd.isIndexed()) continue;
+            if(fd.isBytesKey()) {
+                bytesKeys[i] = new RowSorter();
+            } else {
+                longKeys[i] = new KeyUidSorter(true);
+            }
+        }
+        this.indexKeys = new RowSorter[tb.indexes.size()];
+        for (int i = 0; i < indexKeys.length; i++) {
+            indexKeys[i] = new RowSorter();
+        }
+    }
+
+    /**
+     * 加入一条已经转换好的记录
+     */
+    void add(Object[] row) throws Exception {
+        rows.add(row);
+        if(rows.size() >= BATCH_ROWS) {
+            flush();
+        }
+    }
+
+    /**
+     * 解析并加入一段 load 数据，其中只包含完整的行
+     * @param data
+     * @return 是否遇到了结束标记 \.
+     * @throws Exception
+     */
+    public boolean load(byte[] data) throws Exception {
+        // 先解析完这一段中所有的行，有格式错误时整段都不写入
+        List<Object[]> parsed = new ArrayList<>();
+        boolean end = false;
+        int start = 0;
+        while(start < data.length) {
+            int eol = start;
+            while(eol < data.length && data[eol] != '\n') eol ++;
+            int stop = eol > start && data[eol-1] == '\r' ? eol-1 : eol;
+            if(stop - start == END.length && Arrays.equals(Arrays.copyOfRange(data, start, stop), END)) {
+                end = true;
+                if(eol + 1 < data.length) {
+                    throw Error.InvalidValuesException;
+                }
+                break;
+            }
+            if(stop > start) {
+                parsed.add(tb.string2Row(splitLine(data, start, stop)));
+            }
+            start = eol + 1;
+        }
+        for (Object[] row : parsed) {
+            add(row);
+        }
+        return end;
+    }
+
+    private String[] splitLine(byte[] data, int start, int stop) throws Exception {
+        List<String> values = new ArrayList<>();
+        byte[] buf = new byte[stop - start];
+        int n = 0;
+        for (int i = start; i < stop; i++) {
+            byte b = data[i];
+            if(b == '\t') {
+                values.add(new String(buf, 0, n, StandardCharsets.UTF_8));
+                n = 0;
+                continue;
+            }
+            if(b == '\\') {
+                if(++i == stop) {
+                    throw Error.InvalidValuesException;
+                }
+                switch (data[i]) {
+                    case 't': b = '\t'; break;
+                    case 'n': b = '\n'; break;
+                    case '\\': b = '\\'; break;
+                    default:
+                        throw Error.InvalidValuesException;
+                }
+            }
+            buf[n++] = b;
+        }
+        values.add(new String(buf, 0, n, StandardCharsets.UTF_8));
+        return values.toArray(new String[values.size()]);
+    }
+
+    /**
+     * 已经导入的记录数
+     */
+    public long count() {
+        return count + rows.size();
+    }
+
+    /**
+     * 是否已经有记录写入，之后出错只能回滚整个事务
+     */
+    boolean written() {
+        return written;
+    }
+
+    private void flush() throws Exception {
+        if(rows.isEmpty()) {
+            return;
+        }
+        List<byte[]> raws = new ArrayList<>(rows.size());
+        for (Object[] row : rows) {
+            raws.add(tb.layout.encode(row));
+        }
+        written = true;
+        long[] uids = ((TableManagerImpl)tb.tbm).vm.insert(tid, raws);
+        for (int r = 0; r < uids.length; r++) {
+            Object[] row = rows.get(r);
+            tb.stats.addEntry();
+            for (int i = 0; i < longKeys.length; i++) {
+                Field fd = tb.fields.get(i);
+                if(longKeys[i] != null) {
+                    longKeys[i].add(fd.value2Uid(row[i]), uids[r]);
+                } else if(bytesKeys[i] != null) {
+                    byte[] key = fd.value2Key(row[i]);
+                    bytesKeys[i].add(key, Bytes.concat(key, Parser.long2Byte(uids[r])));
+                }
+            }
+            for (int i = 0; i < indexKeys.length; i++) {
+                byte[] key = tb.indexes.get(i).key(row);
+                indexKeys[i].add(key, Bytes.concat(key, Parser.long2Byte(uids[r])));
+            }
+        }
+        count += uids.length;
+        rows.clear();
+    }
+
+    /**
+     * 写入剩余的记录，并把所有 key 按顺序合并进索引
+     * @return 导入的记录数
+     * @throws Exception
+     */
+    public long finish() throws Exception {
+        flush();
+        boolean[] merged = new boolean[longKeys.length];
+        tb.indexLock.writeLock().lock();
+        try {
+            for (int i = 0; i < longKeys.length; i++) {
+                if(longKeys[i] != null && longKeys[i].count() > 0 && tb.fields.get(i).isIndexEmpty()) {
+                    tb.fields.get(i).rebuildIndex(longKeys[i]);
+                    merged[i] = true;
+                }
+            }
+        } finally {
+            tb.indexLock.writeLock().unlock();
+        }
+
+        tb.indexLock.readLock().lock();
+        try {
+            for (int i = 0; i < longKeys.length; i++) {
+                Field fd = tb.fields.get(i);
+                if(longKeys[i] != null && !merged[i]) {
+                    try (KeyUidSorter.PairIterator it = longKeys[i].sort()) {
+                        while(it.next()) {
+                            fd.insertKey(it.key(), it.uid());
+                        }
+                    }
+                } else if(bytesKeys[i] != null) {
+                    try (RowSorter.RowIterator it = bytesKeys[i].sort()) {
+                        byte[] e;
+                        while((e = it.next()) != null) {
+                            fd.insertKey(Arrays.copyOf(e, e.length - 8), Parser.parseLong(Arrays.copyOfRange(e, e.length - 8, e.length)));
+                        }
+                    }
+                }
+            }
+            for (int i = 0; i < indexKeys.length; i++) {
+                Index index = tb.indexes.get(i);
+                try (RowSorter.RowIterator it = indexKeys[i].sort()) {
+                    byte[] e;
+                    while((e = it.next()) != null) {
+                        index.insertKey(Arrays.copyOf(e, e.length - 8), Parser.parseLong(Arrays.copyOfRange(e, e.length - 8, e.length)));
+                    }
+                }
+            }
+        } finally {
+            tb.indexLock.readLock().unlock();
+        }
+        return count;
+    }
+
+    /**
+     * 删除排序用的临时文件，结束导入
+     */
+    @Override
+    public void close() {
+        if(closed) {
+            return;
+        }
+        closed = true;
+        for (int i = 0; i < longKeys.length; i++) {
+            if(longKeys[i] != null) longKeys[i].close();
+            if(bytesKeys[i] != null) bytesKeys[i].close();
+        }
+        for (RowSorter sorter : indexKeys) {
+            sorter.close();
+        }
+        tb.endLoad();
+    }
+}
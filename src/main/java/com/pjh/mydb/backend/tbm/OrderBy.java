@@ -0,0 +1,130 @@
+package com.pjh.mydb.backend.tbm;
+
+import com.pjh.mydb.common.Error;
+import com.pjh.mydb.backend.parser.statement.Select;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * OrderBy 是编译后的 order by，为每条记录生成排序键：
+ * 各排序字段的保序编码（见 Field.value2Key）依次拼接，降序的字段把编码按位取反。
+ * 每个字段的编码都不是其他值的编码的前缀，所以拼接后按无符号字节序比较的结果就是按字段依次比较的结果。
+ *
+ * @author Joseph Peng
+ * @date 2026/10/19 18:50
+ */
+class OrderBy {
+
+    private RowLayout layout;
+    private Field[] fields;
+    private int[] columns;
+    private boolean[] descending;
+
+    /**
+     * select 没有 order by 时返回 null
+     */
+    static OrderBy compile(Table tb, Select read) throws Exception {
+        if (read.orderBy == null) {
+            return null;
+        }
+        OrderBy order = new OrderBy();
+        order.layout = tb.layout;
+        order.descending = read.descending;
+        order.fields = new Field[read.orderBy.length];
+        order.columns = new int[read.orderBy.length];
+        for (int i = 0; i < read.orderBy.length; i++) {
+            Field f = tb.fieldOf(read.orderBy[i]);
+            if (f == null) {
+                throw Error.FieldNotFoundException;
+            }
+            order.fields[i] = f;
+            order.columns[i] = tb.fields.indexOf(f);
+        }
+        return order;
+    }
+
+    String[] fieldNames() {
+        String[] names = new String[fields.length];
+        for (int i = 0; i < fields.length; i++) {
+            names[i] = fields[i].fieldName;
+        }
+        return names;
+    }
+
+    /**
+     * 只按一个字段排序、且该字段的索引保序时，可以直接按索引顺序读取，返回该字段，否则返回 null
+     */
+    Field indexField() {
+        if (fields.length != 1 || !fields[0].isIndexed() || fields[0].isHashKey()) {
+            return null;
+        }
+        return fields[0];
+    }
+
+    boolean isDescending() {
+        return descending[0];
+    }
+
+    byte[] key(byte[] raw) {
+        byte[][] parts = new byte[fields.length][];
+        int size = 0;
+        for (int i = 0; i < fields.length; i++) {
+            parts[i] = fields[i].value2Key(layout.valueAt(raw, columns[i]));
+            size += parts[i].length;
+        }
+        byte[] key = new byte[size];
+        int pos = 0;
+        for (int i = 0; i < parts.length; i++) {
+            for (byte b : parts[i]) {
+                key[pos++] = descending[i] ? (byte) ~b : b;
+            }
+        }
+        return key;
+    }
+
+    TopN topN(int n) {
+        return new TopN(n);
+    }
+
+    /**
+     * 只保留排序键最小的前 n 条记录的堆，堆顶是已保留的记录中排在最后的一条，
+     * 新记录排在堆顶之前时替换堆顶，内存中最多 n 条记录
+     */
+    static class TopN {
+        private final int n;
+        private final PriorityQueue<byte[][]> heap;
+
+        TopN(int n) {
+            this.n = n;
+            this.heap = new PriorityQueue<>(Math.max(1, Math.min(n, 1024)), (a, b) -> Index.compare(b[0], a[0]));
+        }
+
+        void add(byte[] key, byte[] raw) {
+            if (n == 0) {
+                return;
+            }
+            if (heap.size() == n) {
+                if (Index.compare(key, heap.peek()[0]) >= 0) {
+                    return;
+                }
+                heap.poll();
+            }
+            heap.add(new byte[][]{key, raw});
+        }
+
+        /**
+         * 按排序顺序返回保留的记录
+         */
+        List<byte[]> sorted() {
+            List<byte[]> rows = new ArrayList<>(heap.size());
+            while (!heap.isEmpty()) {
+                rows.add(heap.poll()[1]);
+            }
+            Collections.reverse(rows);
+            return rows;
+        }
+    }
+}
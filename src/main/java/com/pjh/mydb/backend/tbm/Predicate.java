@@ -0,0 +1,169 @@
+package com.pjh.mydb.backend.tbm;
+
+import com.pjh.mydb.backend.parser.statement.SingleExpression;
+import com.pjh.mydb.backend.parser.statement.Where;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Predicate 是编译后的 where 条件，直接在记录的二进制格式上求值，不需要把每一行解析成 Map。
+ * 编译时把条件中的常量转换为与记录相同的表示：整数为 long，string 为 UTF-8 字节；
+ * 求值时由 RowLayout 定位到被比较的字段。
+ * 批量执行时 filter 对一批记录求值：数值字段先解码成列向量，比较在一个紧凑的循环中完成，再缩短选择向量。
+ *
+ * @author Joseph Peng
+ * @date 2026/10/19 16:05
+ */
+class Predicate {
+
+    private RowLayout layout;
+    private CompiledExp exp1, exp2;
+    private String logicOp;
+    // 批量求值时每行是否满足条件，复用以免每批分配
+    private boolean[] m1, m2;
+
+    private static class CompiledExp {
+        // 字段在记录中的序号
+        int field;
+        String compareOp;
+        long num;
+        byte[] str;
+    }
+
+    static Predicate compile(Table tb, Where where) {
+        Predicate p = new Predicate();
+        p.layout = tb.layout;
+        p.logicOp = where.logicOp;
+        p.exp1 = compileExp(tb, where.singleExp1);
+        if ("and".equals(where.logicOp) || "or".equals(where.logicOp)) {
+            p.exp2 = compileExp(tb, where.singleExp2);
+        }
+        return p;
+    }
+
+    private static CompiledExp compileExp(Table tb, SingleExpression exp) {
+        CompiledExp ce = new CompiledExp();
+        Field fd = tb.fieldOf(exp.field);
+        ce.field = tb.fields.indexOf(fd);
+        ce.compareOp = exp.compareOp;
+        Object v = fd.string2Value(exp.value);
+        switch (fd.fieldType) {
+            case "int32":
+                ce.num = (int) v;
+                break;
+            case "int64":
+                ce.num = (long) v;
+                break;
+            case "string":
+                ce.str = ((String) v).getBytes(StandardCharsets.UTF_8);
+                break;
+        }
+        return ce;
+    }
+
+    boolean match(byte[] raw) {
+        boolean r = matchExp(raw, exp1);
+        switch (logicOp) {
+            case "and":
+                return r && matchExp(raw, exp2);
+            case "or":
+                return r || matchExp(raw, exp2);
+        }
+        return r;
+    }
+
+    /**
+     * 在一批记录上求值，只保留满足条件的行
+     */
+    void filter(RowBatch batch) {
+        switch (logicOp) {
+            case "and":
+                filterExp(batch, exp1);
+                filterExp(batch, exp2);
+                return;
+            case "or":
+                ensureBuffers();
+                matchExp(batch, exp1, m1);
+                matchExp(batch, exp2, m2);
+                int n = 0;
+                for (int k = 0; k < batch.selSize; k++) {
+                    if (m1[k] || m2[k]) {
+                        batch.sel[n++] = batch.sel[k];
+                    }
+                }
+                batch.selSize = n;
+                return;
+        }
+        filterExp(batch, exp1);
+    }
+
+    private void filterExp(RowBatch batch, CompiledExp exp) {
+        ensureBuffers();
+        matchExp(batch, exp, m1);
+        int n = 0;
+        for (int k = 0; k < batch.selSize; k++) {
+            if (m1[k]) {
+                batch.sel[n++] = batch.sel[k];
+            }
+        }
+        batch.selSize = n;
+    }
+
+    private void ensureBuffers() {
+        if (m1 == null) {
+            m1 = new boolean[RowBatch.CAPACITY];
+            m2 = new boolean[RowBatch.CAPACITY];
+        }
+    }
+
+    /**
+     * m[k] 为选择向量中第 k 行是否满足 exp
+     */
+    private void matchExp(RowBatch batch, CompiledExp exp, boolean[] m) {
+        int[] sel = batch.sel;
+        int n = batch.selSize;
+        if ("string".equals(layout.type(exp.field))) {
+            for (int k = 0; k < n; k++) {
+                m[k] = matchExp(batch.rows[sel[k]], exp);
+            }
+            return;
+        }
+        long[] col = batch.longs(exp.field);
+        long v = exp.num;
+        switch (exp.compareOp) {
+            case "<":
+                for (int k = 0; k < n; k++) {
+                    m[k] = col[sel[k]] < v;
+                }
+                break;
+            case "=":
+                for (int k = 0; k < n; k++) {
+                    m[k] = col[sel[k]] == v;
+                }
+                break;
+            case ">":
+                for (int k = 0; k < n; k++) {
+                    m[k] = col[sel[k]] > v;
+                }
+                break;
+        }
+    }
+
+    private boolean matchExp(byte[] raw, CompiledExp exp) {
+        int c;
+        if ("string".equals(layout.type(exp.field))) {
+            c = layout.compareString(raw, exp.field, exp.str);
+        } else {
+            c = Long.compare(layout.numberAt(raw, exp.field), exp.num);
+        }
+        switch (exp.compareOp) {
+            case "<":
+                return c < 0;
+            case "=":
+                return c == 0;
+            case ">":
+                return c > 0;
+        }
+        return false;
+    }
+}
@@ -0,0 +1,152 @@
+package com.pjh.mydb.backend.tbm;
+
+import com.pjh.mydb.backend.stats.Stats;
+import com.pjh.mydb.backend.utils.Parser;
+
+import java.util.Arrays;
+
+/**
+ * ResultBuffer 按行收集查询的结果，攒到 ResultSink.CHUNK 时交给 sink。结果有两种编码：
+ * 文本 每行为 [v1, v2, ...]，以换行符结尾；
+ * 行集 客户端要求类型化的结果时使用，值直接从记录中复制，服务器不需要格式化，客户端也不需要解析：
+ *      [ColumnCount]{[ColumnName][ColumnType]}[Row1]...[RowN]
+ *      ColumnCount 为 4 字节，ColumnName 和 ColumnType 为 [StringLength][StringData]，ColumnType 为 int32、int64 或 string；
+ *      Row 为 [NullBitmap][Value1]...[ValueM]，NullBitmap 每列一位，共 (M+7)/8 字节，第 i 列为 NULL 时
+ *      第 i/8 个字节的第 i%8 位（从低位起）为 1，该列没有 Value；int32 和 int64 为 4 和 8 字节，string 为 [StringLength][StringData]。
+ * 交给 sink 的每一段都只包含完整的行，行集的头部在第一段中。
+ *
+ * @author Joseph Peng
+ * @date 2026/10/20 00:30
+ */
+class ResultBuffer {
+
+    private final ResultSink sink;
+    private final String[] types;
+    private StringBuilder sb;
+    private byte[] buf;
+    private int size;
+    // 当前行中下一个值是第几列
+    private int column;
+    // 当前行的 NullBitmap 在 buf 中的位置
+    private int bitmap;
+    // 已经结束的行数
+    private long count;
+
+    /**
+     * @param names 各列的名称
+     * @param types 各列的类型
+     * @param rows 是否编码为行集
+     * @param sink 为 null 时结果一次返回
+     */
+    ResultBuffer(String[] names, String[] types, boolean rows, ResultSink sink) {
+        this.types = types;
+        this.sink = sink;
+        if(!rows) {
+            sb = new StringBuilder();
+            return;
+        }
+        buf = new byte[256];
+        put(Parser.int2Byte(names.length));
+        for (int i = 0; i < names.length; i++) {
+            put(Parser.string2Byte(names[i]));
+            put(Parser.string2Byte(types[i]));
+        }
+    }
+
+    /**
+     * 追加第 field 个字段的值作为当前行的下一列，类型必须与这一列相同
+     */
+    void value(RowLayout layout, byte[] raw, int field) {
+        if(sb != null) {
+            sb.append(column == 0 ? "[" : ", ");
+            layout.appendValue(sb, raw, field);
+        } else {
+            begin();
+            int start = layout.start(raw, field);
+            if("string".equals(types[column])) {
+                int length = layout.length(raw, field);
+                ensure(4);
+                buf[size++] = (byte) (length >>> 24);
+                buf[size++] = (byte) (length >>> 16);
+                buf[size++] = (byte) (length >>> 8);
+                buf[size++] = (byte) length;
+                put(raw, start, length);
+            } else {
+                put(raw, start, RowLayout.width(types[column]));
+            }
+        }
+        column ++;
+    }
+
+    /**
+     * 当前行的下一列为 NULL
+     */
+    void nullValue() {
+        if(sb != null) {
+            sb.append(column == 0 ? "[" : ", ").append("null");
+        } else {
+            begin();
+            buf[bitmap + column / 8] |= 1 << (column % 8);
+        }
+        column ++;
+    }
+
+    /**
+     * 结束当前行，攒够一段时交给 sink
+     */
+    void endRow() throws Exception {
+        if(sb != null) {
+            sb.append(column == 0 ? "[]\n" : "]\n");
+        } else {
+            begin();
+        }
+        column = 0;
+        count ++;
+        if(sink == null) {
+            return;
+        }
+        if(sb != null && sb.length() >= ResultSink.CHUNK) {
+            sink.write(sb.toString().getBytes());
+            sb.setLength(0);
+        } else if(buf != null && size >= ResultSink.CHUNK) {
+            sink.write(Arrays.copyOf(buf, size));
+            size = 0;
+        }
+    }
+
+    /**
+     * 还没有交给 sink 的结果，在结果的最后调用
+     */
+    byte[] remaining() {
+        Stats.rowsReturned(count);
+        return sb != null ? sb.toString().getBytes() : Arrays.copyOf(buf, size);
+    }
+
+    // 每行的第一列之前留出 NullBitmap
+    private void begin() {
+        if(column > 0) {
+            return;
+        }
+        int n = (types.length + 7) / 8;
+        ensure(n);
+        bitmap = size;
+        Arrays.fill(buf, size, size + n, (byte) 0);
+        size += n;
+    }
+
+    private void put(byte[] src) {
+        put(src, 0, src.length);
+    }
+
+    private void put(byte[] src, int off, int len) {
+        ensure(len);
+        System.arraycopy(src, off, buf, size, len);
+        size += len;
+    }
+
+    private void ensure(int n) {
+        if(size + n > buf.length) {
+            buf = Arrays.copyOf(buf, Math.max(size + n, buf.length * 2));
+        }
+    }
+}
@@ -0,0 +1,19 @@
+package com.pjh.mydb.backend.tbm;
+
+/**
+ * ResultSink 接收查询结果中已经生成的一段完整的行。查询的结果攒到 CHUNK 个字符（行集为字节）时交给它，
+ * 剩下的部分仍作为 read 的返回值，这样无论结果有多大，服务器上同时只保留一段。
+ *
+ * @author Joseph Peng
+ * @date 2026/10/19 23:40
+ */
+public interface ResultSink {
+
+    // 结果攒到这么多个字符或字节时交给 ResultSink
+    int CHUNK = 1 << 16;
+
+    /**
+     * 可能阻塞，直到客户端取走足够多之前的数据
+     */
+    void write(byte[] rows) throws Exception;
+}
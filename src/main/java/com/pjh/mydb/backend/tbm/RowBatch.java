@@ -0,0 +1,78 @@
+package com.pjh.mydb.backend.tbm;
+
+import java.util.Arrays;
+
+/**
+ * RowBatch 是批量执行时在扫描、过滤、投影和聚合之间传递的一批记录。
+ * rows 保存记录的原始字节，sel 是选择向量，即仍然有效的行在 rows 中的下标；过滤只缩短选择向量，不移动记录。
+ * 数值字段按需解码成 long 列向量，同一批记录上多处用到同一个字段时只解码一次。
+ * 批的大小从 MIN_CAPACITY 开始，每批翻倍直到 CAPACITY，带 limit 的查询在第一批就写满时不会多读很多记录。
+ *
+ * @author Joseph Peng
+ * @date 2026/10/19 20:30
+ */
+class RowBatch {
+
+    static final int CAPACITY = 1024;
+    static final int MIN_CAPACITY = 64;
+
+    private final RowLayout layout;
+    final byte[][] rows = new byte[CAPACITY][];
+    int size;
+    final int[] sel = new int[CAPACITY];
+    int selSize;
+    // 当前这一批最多的行数
+    private int capacity = MIN_CAPACITY;
+    // 每个字段的 long 列向量，及其在这一批中是否已经解码
+    private final long[][] longs;
+    private final boolean[] decoded;
+
+    RowBatch(RowLayout layout) {
+        this.layout = layout;
+        this.longs = new long[layout.fieldCount()][];
+        this.decoded = new boolean[layout.fieldCount()];
+    }
+
+    /**
+     * 加入一条记录，返回这一批是否已满
+     */
+    boolean add(byte[] raw) {
+        rows[size] = raw;
+        sel[selSize++] = size;
+        size ++;
+        return size >= capacity;
+    }
+
+    boolean isEmpty() {
+        return selSize == 0;
+    }
+
+    /**
+     * 清空这一批，准备装入下一批
+     */
+    void reset() {
+        Arrays.fill(rows, 0, size, null);
+        size = 0;
+        selSize = 0;
+        Arrays.fill(decoded, false);
+        capacity = Math.min(CAPACITY, capacity * 2);
+    }
+
+    /**
+     * 数值字段的列向量，下标与 rows 相同，只有选择向量中的行是有效的
+     */
+    long[] longs(int field) {
+        long[] v = longs[field];
+        if(v == null) {
+            v = longs[field] = new long[CAPACITY];
+        }
+        if(!decoded[field]) {
+            for (int k = 0; k < selSize; k++) {
+                int i = sel[k];
+                v[i] = layout.numberAt(rows[i], field);
+            }
+            decoded[field] = true;
+        }
+        return v;
+    }
+}
@@ -0,0 +1,124 @@
+package com.pjh.mydb.backend.tbm;
+
+import com.pjh.mydb.backend.utils.Parser;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * RowLayout 是一张表的记录格式，负责记录的编码，以及按字段直接从二进制记录中读取值。
+ * 一行在内存中表示为按字段顺序排列的 Object[]，int32 为 Integer，int64 为 Long，string 为 String。
+ * 有两种格式，由表记录中的 RowFormat 区分：
+ * LEGACY  字段依次排列，见 LegacyRowLayout，旧版本建立的表使用这种格式；
+ * COMPACT 定长字段和变长字段分开存放，任意字段都可以直接定位，见 CompactRowLayout。
+ *
+ * @author Joseph Peng
+ * @date 2026/10/19 17:30
+ */
+abstract class RowLayout {
+
+    static final byte LEGACY = 0;
+    static final byte COMPACT = 1;
+
+    final String[] types;
+
+    RowLayout(List<Field> fields) {
+        types = new String[fields.size()];
+        for (int i = 0; i < types.length; i++) {
+            types[i] = fields.get(i).fieldType;
+        }
+    }
+
+    static RowLayout create(List<Field> fields, byte format) {
+        return format == COMPACT ? new CompactRowLayout(fields) : new LegacyRowLayout(fields);
+    }
+
+    abstract byte format();
+
+    /**
+     * 第 field 个字段的数据在记录中的起始位置，string 为 UTF-8 字节的起始位置
+     */
+    abstract int start(byte[] raw, int field);
+
+    /**
+     * 第 field 个 string 字段的 UTF-8 字节数
+     */
+    abstract int length(byte[] raw, int field);
+
+    /**
+     * 把一行编码为记录，先算出总长度，只分配一次
+     */
+    abstract byte[] encode(Object[] row) throws Exception;
+
+    String type(int field) {
+        return types[field];
+    }
+
+    int fieldCount() {
+        return types.length;
+    }
+
+    long numberAt(byte[] raw, int field) {
+        int pos = start(raw, field);
+        return "int32".equals(types[field]) ? Parser.parseInt(raw, pos) : Parser.parseLong(raw, pos);
+    }
+
+    /**
+     * 按无符号字节序比较 string 字段的值与 str
+     */
+    int compareString(byte[] raw, int field, byte[] str) {
+        int pos = start(raw, field);
+        return Arrays.compareUnsigned(raw, pos, pos + length(raw, field), str, 0, str.length);
+    }
+
+    Object valueAt(byte[] raw, int field) {
+        switch (types[field]) {
+            case "int32":
+                return Parser.parseInt(raw, start(raw, field));
+            case "int64":
+                return Parser.parseLong(raw, start(raw, field));
+            default:
+                return new String(raw, start(raw, field), length(raw, field), StandardCharsets.UTF_8);
+        }
+    }
+
+    Object[] decode(byte[] raw) {
+        Object[] row = new Object[types.length];
+        for (int i = 0; i < row.length; i++) {
+            row[i] = valueAt(raw, i);
+        }
+        return row;
+    }
+
+    /**
+     * 把第 field 个字段的值以文本形式追加到 sb
+     */
+    void appendValue(StringBuilder sb, byte[] raw, int field) {
+        if ("string".equals(types[field])) {
+            sb.append(new String(raw, start(raw, field), length(raw, field), StandardCharsets.UTF_8));
+        } else {
+            sb.append(numberAt(raw, field));
+        }
+    }
+
+    static int width(String type) {
+        return "int32".equals(type) ? 4 : 8;
+    }
+
+    static void putNumber(byte[] raw, int pos, String type, Object v) {
+        if ("int32".equals(type)) {
+            int x = (int) v;
+            raw[pos] = (byte) (x >>> 24);
+            raw[pos + 1] = (byte) (x >>> 16);
+            raw[pos + 2] = (byte) (x >>> 8);
+            raw[pos + 3] = (byte) x;
+        } else {
+            long x = (long) v;
+            for (int i = 7; i >= 0; i--) {
+                raw[pos + i] = (byte) x;
+                x >>>= 8;
+            }
+        }
+    }
+}
@@ -0,0 +1,168 @@
+package com.pjh.mydb.backend.tbm;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * 按排序键对查询结果中的记录排序，用于没有 limit、又不能按索引顺序读取的 order by。
+ * 与 KeyUidSorter 相同，记录先缓存在内存中，占用超过预算后排序并溢出成一个有序的 run 文件，
+ * 最后对所有 run 做多路归并；结果不超过预算时不会产生任何临时文件。
+ * 排序键是保序编码，按无符号字节序比较即可，见 OrderBy。
+ *
+ * run 文件格式：[KeyLength][Key][RawLength][Raw]...  --> KeyLength 和 RawLength 各 4 字节
+ *
+ * @author Joseph Peng
+ * @date 2026/10/19 18:50
+ */
+class RowSorter implements Closeable {
+
+    // 默认内存中最多缓存的排序键和记录的字节数
+    static final long DEFAULT_BUDGET = 16 << 20;
+    // 每项除了排序键和记录本身之外的估计开销
+    private static final int ENTRY_OVERHEAD = 48;
+
+    private final long budget;
+    private List<byte[][]> buffer = new ArrayList<>();
+    private long bytes;
+    private List<File> runs = new ArrayList<>();
+
+    RowSorter() {
+        this(DEFAULT_BUDGET);
+    }
+
+    RowSorter(long budget) {
+        this.budget = budget;
+    }
+
+    void add(byte[] key, byte[] raw) throws IOException {
+        buffer.add(new byte[][]{key, raw});
+        bytes += key.length + raw.length + ENTRY_OVERHEAD;
+        if(bytes >= budget) {
+            spill();
+        }
+    }
+
+    /**
+     * 结束输入，返回按排序键排好序的记录
+     */
+    RowIterator sort() throws IOException {
+        if(runs.isEmpty()) {
+            buffer.sort((a, b) -> Index.compare(a[0], b[0]));
+            return new MemoryIterator(buffer);
+        }
+        if(!buffer.isEmpty()) {
+            spill();
+        }
+        return new MergeIterator(runs);
+    }
+
+    private void spill() throws IOException {
+        buffer.sort((a, b) -> Index.compare(a[0], b[0]));
+        File f = File.createTempFile("mydb-order", ".run");
+        f.deleteOnExit();
+        try(DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(f), 1 << 16))) {
+            for(byte[][] e : buffer) {
+                out.writeInt(e[0].length);
+                out.write(e[0]);
+                out.writeInt(e[1].length);
+                out.write(e[1]);
+            }
+        }
+        runs.add(f);
+        buffer = new ArrayList<>();
+        bytes = 0;
+    }
+
+    @Override
+    public void close() {
+        for(File f : runs) {
+            f.delete();
+        }
+        runs.clear();
+    }
+
+    /**
+     * 按顺序返回记录，结束时返回 null
+     */
+    interface RowIterator extends Closeable {
+        byte[] next() throws IOException;
+    }
+
+    private static class MemoryIterator implements RowIterator {
+        private List<byte[][]> rows;
+        private int pos;
+
+        MemoryIterator(List<byte[][]> rows) {
+            this.rows = rows;
+        }
+
+        @Override
+        public byte[] next() {
+            return pos < rows.size() ? rows.get(pos++)[1] : null;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    private static class Run {
+        DataInputStream in;
+        byte[] key, raw;
+
+        boolean advance() throws IOException {
+            int n;
+            try {
+                n = in.readInt();
+            } catch (EOFException e) {
+                in.close();
+                return false;
+            }
+            key = new byte[n];
+            in.readFully(key);
+            raw = new byte[in.readInt()];
+            in.readFully(raw);
+            return true;
+        }
+    }
+
+    private static class MergeIterator implements RowIterator {
+        private PriorityQueue<Run> heap;
+        private List<Run> all;
+
+        MergeIterator(List<File> files) throws IOException {
+            heap = new PriorityQueue<>(files.size(), (a, b) -> Index.compare(a.key, b.key));
+            all = new ArrayList<>();
+            for(File f : files) {
+                Run r = new Run();
+                r.in = new DataInputStream(new BufferedInputStream(new FileInputStream(f), 1 << 16));
+                all.add(r);
+                if(r.advance()) {
+                    heap.add(r);
+                }
+            }
+        }
+
+        @Override
+        public byte[] next() throws IOException {
+            Run r = heap.poll();
+            if(r == null) {
+                return null;
+            }
+            byte[] raw = r.raw;
+            if(r.advance()) {
+                heap.add(r);
+            }
+            return raw;
+        }
+
+        @Override
+        public void close() throws IOException {
+            for(Run r : all) {
+                r.in.close();
+            }
+        }
+    }
+}
@@ -2,19 +2,32 @@ package com.pjh.mydb.backend.tbm;
 
 import com.google.common.primitives.Bytes;
 import com.pjh.mydb.common.Error;
+import com.pjh.mydb.backend.common.SubArray;
+import com.pjh.mydb.backend.dm.DataManager;
+import com.pjh.mydb.backend.dm.dataitem.DataItem;
+import com.pjh.mydb.backend.im.BPlusTree;
+import com.pjh.mydb.backend.im.KeyUidSorter;
 import com.pjh.mydb.backend.parser.statement.*;
 import com.pjh.mydb.backend.tm.TransactionManagerImpl;
+import com.pjh.mydb.backend.utils.Log;
 import com.pjh.mydb.backend.utils.Panic;
 import com.pjh.mydb.backend.utils.ParseStringRes;
 import com.pjh.mydb.backend.utils.Parser;
+import com.pjh.mydb.backend.vm.ReadRes;
+import com.pjh.mydb.backend.vm.VersionManager;
 
 import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
  *  Table 维护了表结构
  *  二进制结构如下：
- *  [TableName][NextTable]
- *  [Field1Uid][Field2Uid]...[FieldNUid]
+ *  [TableName][NextTable][RowFormat]
+ *  [Field1Uid][Field2Uid]...[FieldNUid][Index1Uid]...[IndexMUid]
+ *  字段之后是联合索引的记录，二者格式相同，由记录中的类型区分，见 Index
+ *  RowFormat 占 1 字节，为表中记录的格式，见 RowLayout；旧版本的表记录没有这个字节，uid 列表的长度是 8 的倍数，据此区分
  *
  * @author Joseph Peng
  * @date 2022/8/4 12:47
@@ -26,6 +39,16 @@ public class Table {
     byte status;
     long nextUid;
     List<Field> fields = new ArrayList<>();
+    List<Index> indexes = new ArrayList<>();
+    /**
+     * 插入和更新在维护索引期间持读锁，补建索引时持写锁，
+     * 保证建索引扫描期间插入的行不会在新索引中漏掉
+     */
+    ReadWriteLock indexLock = new ReentrantReadWriteLock();
+    // 正在进行的批量导入数，导入的记录在结束前不在索引中，这期间不能补建索引
+    private AtomicInteger loading = new AtomicInteger();
+    TableStats stats = new TableStats();
+    RowLayout layout;
 
     public Table(TableManager tbm, long uid) {
         this.tbm = tbm;
@@ -51,6 +74,10 @@ public class Table {
     }
 
     public static Table createTable(TableManagerImpl tbm, long nextUid, long tid, Create create) throws Exception{
+        // 索引列表中的名字都不是字段时，表上没有索引
+        if(Collections.disjoint(Arrays.asList(create.fieldName), Arrays.asList(create.index))) {
+            throw Error.TableNoIndexException;
+        }
         Table tb = new Table(tbm, create.tableName, nextUid);
         for(int i = 0; i < create.fieldName.length; i ++) {
             String fieldName = create.fieldName[i];
@@ -64,6 +91,7 @@ public class Table {
             }
             tb.fields.add(Field.createField(tb, tid, fieldName, fieldType, indexed));
         }
+        tb.layout = RowLayout.create(tb.fields, RowLayout.COMPACT);
         return tb.persistSelf(tid);
     }
 
@@ -74,224 +102,951 @@ public class Table {
         position += res.next;
         nextUid = Parser.parseLong(Arrays.copyOfRange(raw, position, position+8));
         position += 8;
+        byte format = RowLayout.LEGACY;
+        if((raw.length - position) % 8 == 1) {
+            format = raw[position];
+            position ++;
+        }
 
         while(position < raw.length) {
             long uid = Parser.parseLong(Arrays.copyOfRange(raw, position, position+8));
             position += 8;
-            fields.add(Field.loadField(this, uid));
+            byte[] fieldRaw = null;
+            try {
+                fieldRaw = ((TableManagerImpl)tbm).vm.read(TransactionManagerImpl.SUPER_TID, uid);
+            } catch (Exception e) {
+                Panic.panic(e);
+            }
+            assert fieldRaw != null;
+            if(Index.isIndexRaw(fieldRaw)) {
+                indexes.add(Index.parseIndex(this, uid, fieldRaw));
+            } else {
+                fields.add(Field.parseField(this, uid, fieldRaw));
+            }
         }
+        layout = RowLayout.create(fields, format);
         return this;
     }
 
     private Table persistSelf(long xid) throws Exception {
         byte[] nameRaw = Parser.string2Byte(name);
         byte[] nextRaw = Parser.long2Byte(nextUid);
+        if(layout.format() != RowLayout.LEGACY) {
+            nextRaw = Bytes.concat(nextRaw, new byte[]{layout.format()});
+        }
         byte[] fieldRaw = new byte[0];
         for(Field field : fields) {
             fieldRaw = Bytes.concat(fieldRaw, Parser.long2Byte(field.uid));
         }
+        for(Index index : indexes) {
+            fieldRaw = Bytes.concat(fieldRaw, Parser.long2Byte(index.uid));
+        }
         uid = ((TableManagerImpl)tbm).vm.insert(xid, Bytes.concat(nameRaw, nextRaw, fieldRaw));
         return this;
     }
 
-    public String read(long tid, Select read) throws Exception {
-        List<Long> uids = parseWhere(read.where);
-        StringBuilder sb = new StringBuilder();
-        for (Long uid : uids) {
-            byte[] raw = ((TableManagerImpl)tbm).vm.read(tid, uid);
-            if(raw == null) continue;
-            Map<String, Object> entry = parseEntry(raw);
-            sb.append(printEntry(entry)).append("\n");
+    /**
+     * 改写表记录中的 NextTable，用于表记录被重写后修复链表。
+     * NextTable 之后是 RowFormat 和 8 字节的字段 uid 列表，这里从记录末尾定位，在 DM 层原地改写，不随当前事务回滚。
+     * @param nextUid
+     * @throws Exception
+     */
+    void updateNextUid(long nextUid) throws Exception {
+        DataItem di = ((TableManagerImpl)tbm).dm.read(uid);
+        di.before();
+        try {
+            SubArray sa = di.data();
+            int offset = sa.end - 8*(fields.size() + indexes.size()) - 8;
+            if(layout.format() != RowLayout.LEGACY) {
+                offset --;
+            }
+            System.arraycopy(Parser.long2Byte(nextUid), 0, sa.raw, offset, 8);
+        } finally {
+            di.after(TransactionManagerImpl.SUPER_TID);
+            di.release();
         }
-        return sb.toString();
+        this.nextUid = nextUid;
     }
 
-    public void insert(long tid, Insert insert) throws Exception {
-        Map<String, Object> entry = string2Entry(insert.values);
-        // 字段1+字段2+....   每一个字段都是byte数组格式
-        byte[] raw = entry2Raw(entry);
-        long uid = ((TableManagerImpl)tbm).vm.insert(tid, raw);
+    /**
+     * 按名字查找字段，名字可以用表名限定，如 student.id，限定的不是本表时返回 null
+     */
+    Field fieldOf(String fieldName) {
+        int dot = fieldName.indexOf('.');
+        if(dot >= 0) {
+            if(!name.equals(fieldName.substring(0, dot))) {
+                return null;
+            }
+            fieldName = fieldName.substring(dot + 1);
+        }
         for (Field field : fields) {
-            if(field.isIndexed()) {
-                field.insert(entry.get(field.fieldName), uid);
+            if(field.fieldName.equals(fieldName)) {
+                return field;
             }
         }
+        return null;
     }
 
-    public int update(long tid, Update update) throws Exception {
-        List<Long> uids = parseWhere(update.where);
-        Field fd = null;
-        for (Field f : fields) {
-            if(f.fieldName.equals(update.fieldName)) {
-                fd = f;
-                break;
+    /**
+     * 读取满足条件的记录，只解码 select 中列出的字段，直接写入结果。
+     * 没有 order by 时按批读取和过滤，见 forEachBatch。
+     * 有 order by 时优先按索引顺序读取，见 scanInOrder；否则有 limit 时用堆只保留前 offset + limit 条，
+     * 没有 limit 时对全部结果做外部排序，见 RowSorter。
+     * @param tid
+     * @param read
+     * @param rows 为 true 时结果编码为行集，见 ResultBuffer；聚合查询的结果总是文本
+     * @param sink 不为 null 时结果分段交给 sink，返回值只是最后一段
+     * @return
+     * @throws Exception
+     */
+    public byte[] read(long tid, Select read, boolean rows, ResultSink sink) throws Exception {
+        if(read.aggregates != null) {
+            return aggregate(tid, read).getBytes();
+        }
+        RowWriter writer = new RowWriter(projection(read.fields), read.offset, read.limit, rows, sink);
+        OrderBy order = OrderBy.compile(this, read);
+        if(order == null) {
+            forEachBatch(tid, read.where, writer::add);
+        } else if(!scanInOrder(tid, read.where, order, writer)) {
+            if(read.limit >= 0) {
+                OrderBy.TopN top = order.topN(read.offset + read.limit);
+                forEachRow(tid, read.where, raw -> {
+                    top.add(order.key(raw), raw);
+                    return true;
+                });
+                for (byte[] raw : top.sorted()) {
+                    writer.add(raw);
+                }
+            } else {
+                try (RowSorter sorter = new RowSorter()) {
+                    forEachRow(tid, read.where, raw -> {
+                        sorter.add(order.key(raw), raw);
+                        return true;
+                    });
+                    try (RowSorter.RowIterator it = sorter.sort()) {
+                        byte[] raw;
+                        while((raw = it.next()) != null && writer.add(raw)) {
+                        }
+                    }
+                }
             }
         }
+        return writer.buffer.remaining();
+    }
+
+    /**
+     * 依次处理满足条件的一条记录，返回 false 时停止
+     */
+    interface RowVisitor {
+        boolean visit(byte[] raw) throws Exception;
+    }
+
+    /**
+     * 依次处理一批记录，只有选择向量中的行满足条件，返回 false 时停止
+     */
+    interface BatchVisitor {
+        boolean visit(RowBatch batch) throws Exception;
+    }
+
+    /**
+     * 把满足 where 条件、且对当前事务可见的记录逐条交给 visitor
+     */
+    void forEachRow(long tid, Where where, RowVisitor visitor) throws Exception {
+        forEachBatch(tid, where, batch -> {
+            for (int k = 0; k < batch.selSize; k++) {
+                if(!visitor.visit(batch.rows[batch.sel[k]])) {
+                    return false;
+                }
+            }
+            return true;
+        });
+    }
+
+    /**
+     * 把对当前事务可见的记录攒成一批，整批检查 where 条件后交给 visitor。
+     * 没有 where 时沿索引顺序扫描，不需要先取出全表的 UID
+     */
+    void forEachBatch(long tid, Where where, BatchVisitor visitor) throws Exception {
+        RowBatch batch = new RowBatch(layout);
+        Predicate filter = null;
+        boolean[] more = {true};
+        if(where == null) {
+            scanAll(uid -> {
+                byte[] raw = ((TableManagerImpl)tbm).vm.read(tid, uid);
+                if(raw != null && batch.add(raw)) {
+                    more[0] = flush(batch, null, visitor);
+                }
+                return more[0];
+            });
+        } else {
+            WhereRes res = parseWhere(where);
+            filter = res.exact ? null : Predicate.compile(this, where);
+            for (Long uid : res.uids) {
+                byte[] raw = ((TableManagerImpl)tbm).vm.read(tid, uid);
+                if(raw != null && batch.add(raw) && !(more[0] = flush(batch, filter, visitor))) {
+                    break;
+                }
+            }
+        }
+        if(more[0]) {
+            flush(batch, filter, visitor);
+        }
+    }
+
+    private static boolean flush(RowBatch batch, Predicate filter, BatchVisitor visitor) throws Exception {
+        if(filter != null && !batch.isEmpty()) {
+            filter.filter(batch);
+        }
+        boolean more = batch.isEmpty() || visitor.visit(batch);
+        batch.reset();
+        return more;
+    }
+
+    /**
+     * order by 只有一个字段、且该字段有保序的索引时，按索引顺序读取记录，写满 limit 后立即停止，不需要排序。
+     * where 只涉及这个字段时直接在索引上限定范围；涉及其他字段时，只有 where 本来就要顺序扫描全表才这样做，
+     * 读出记录后再检查条件，否则返回 false，由调用方按 where 查找后再排序
+     */
+    private boolean scanInOrder(long tid, Where where, OrderBy order, RowWriter writer) throws Exception {
+        Field fd = order.indexField();
         if(fd == null) {
-            throw Error.FieldNotFoundException;
+            return false;
         }
-        Object value = fd.string2Value(update.value);
-        int count = 0;
-        for(Long uid : uids){
+        List<SingleExpression> exps = new ArrayList<>();
+        Predicate filter = null;
+        if(where != null) {
+            if(!"or".equals(where.logicOp) && fd == fieldOf(where.singleExp1.field)
+                    && ("".equals(where.logicOp) || fd == fieldOf(where.singleExp2.field))) {
+                exps.add(where.singleExp1);
+                if("and".equals(where.logicOp)) {
+                    exps.add(where.singleExp2);
+                }
+            } else if(plansScan(where)) {
+                filter = Predicate.compile(this, where);
+            } else {
+                return false;
+            }
+        }
+        Predicate f = filter;
+        scanField(fd, exps, order.isDescending(), uid -> {
             byte[] raw = ((TableManagerImpl)tbm).vm.read(tid, uid);
-            if(raw == null) continue;
-            ((TableManagerImpl)tbm).vm.delete(tid, uid);
-            Map<String, Object> entry = parseEntry(raw);
-            entry.put(fd.fieldName, value);
-            raw = entry2Raw(entry);
-            long uuid = ((TableManagerImpl)tbm).vm.insert(tid, raw);
+            if(raw == null || (f != null && !f.match(raw))) {
+                return true;
+            }
+            return writer.add(raw);
+        });
+        return true;
+    }
+
+    /**
+     * 按 offset 和 limit 把记录写入结果，写满 limit 后返回 false，以便提前结束扫描
+     */
+    private class RowWriter {
+        private final int[] columns;
+        private int skip;
+        // 还能写入的行数，-1 表示不限制
+        private int remaining;
+        private final ResultBuffer buffer;
+
+        RowWriter(int[] columns, int offset, int limit, boolean rows, ResultSink sink) {
+            this.columns = columns;
+            this.skip = offset;
+            this.remaining = limit;
+            String[] names = new String[columns.length];
+            String[] types = new String[columns.length];
+            for (int i = 0; i < columns.length; i++) {
+                names[i] = fields.get(columns[i]).fieldName;
+                types[i] = layout.type(columns[i]);
+            }
+            this.buffer = new ResultBuffer(names, types, rows, sink);
+        }
+
+        boolean add(RowBatch batch) throws Exception {
+            for (int k = 0; k < batch.selSize; k++) {
+                if(!add(batch.rows[batch.sel[k]])) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        boolean add(byte[] raw) throws Exception {
+            if(remaining == 0) {
+                return false;
+            }
+            if(skip > 0) {
+                skip --;
+                return true;
+            }
+            for (int column : columns) {
+                buffer.value(layout, raw, column);
+            }
+            buffer.endRow();
+            if(remaining > 0) {
+                remaining --;
+            }
+            return remaining != 0;
+        }
+    }
+
+    /**
+     * 带聚合函数或 group by 的查询，满足条件的记录按批交给 Aggregator
+     */
+    private String aggregate(long tid, Select read) throws Exception {
+        Aggregator agg = Aggregator.compile(this, read);
+        if(read.where == null && read.groupBy == null && read.limit < 0 && read.offset == 0) {
+            String res = extremesFromIndex(tid, read);
+            if(res != null) {
+                return res;
+            }
+        }
+        forEachBatch(tid, read.where, batch -> {
+            agg.add(batch);
+            return true;
+        });
+        return agg.result();
+    }
+
+    // 从索引一端最多检查这么多个索引项，都不可见时退回全表聚合
+    private static final int EXTREME_CANDIDATES = 64;
 
-            count ++;
+    /**
+     * 只有 min/max、且字段上有保序的索引时，直接从 B+ 树最左侧或最右侧的叶子取值，不扫描全表。
+     * 索引中还保存着已删除或未提交的版本，按顺序找到第一个对当前事务可见的记录即为结果。
+     * 无法这样计算时返回 null
+     */
+    private String extremesFromIndex(long tid, Select read) throws Exception {
+        StringBuilder sb = new StringBuilder("[");
+        for (int i = 0; i < read.fields.length; i++) {
+            boolean isMin = "min".equals(read.aggregates[i]);
+            if(!isMin && !"max".equals(read.aggregates[i])) {
+                return null;
+            }
+            Field fd = fieldOf(read.fields[i]);
+            if(!fd.isIndexed() || fd.isHashKey()) {
+                return null;
+            }
+            List<Long> uids = isMin ? fd.searchFirst(EXTREME_CANDIDATES) : fd.searchLast();
+            byte[] found = null;
+            for (int k = 0; k < uids.size() && k < EXTREME_CANDIDATES && found == null; k++) {
+                long uid = uids.get(isMin ? k : uids.size() - 1 - k);
+                found = ((TableManagerImpl)tbm).vm.read(tid, uid);
+            }
+            if(found == null) {
+                return null;
+            }
+            if(i > 0) {
+                sb.append(", ");
+            }
+            layout.appendValue(sb, found, fields.indexOf(fd));
+        }
+        return sb.append("]\n").toString();
+    }
+
+    /**
+     * select 中列出的字段在记录中的序号，* 表示全部字段
+     */
+    private int[] projection(String[] names) throws Exception {
+        if(names.length == 1 && "*".equals(names[0])) {
+            int[] columns = new int[fields.size()];
+            for (int i = 0; i < columns.length; i++) {
+                columns[i] = i;
+            }
+            return columns;
+        }
+        int[] columns = new int[names.length];
+        for (int i = 0; i < names.length; i++) {
+            Field f = fieldOf(names[i]);
+            if(f == null) {
+                throw Error.FieldNotFoundException;
+            }
+            columns[i] = fields.indexOf(f);
+        }
+        return columns;
+    }
 
-            for (Field field : fields) {
-                if(field.isIndexed()) {
-                    field.insert(entry.get(field.fieldName), uuid);
+    /**
+     * 插入一行或多行记录。多行时先检查完所有的值，再由 Loader 批量写入记录、最后合并索引
+     * @param tid
+     * @param insert
+     * @throws Exception
+     */
+    public void insert(long tid, Insert insert) throws Exception {
+        if(insert.values.length > 1) {
+            List<Object[]> rows = new ArrayList<>();
+            for (String[] values : insert.values) {
+                rows.add(string2Row(values));
+            }
+            try (Loader loader = load(tid)) {
+                try {
+                    for (Object[] row : rows) {
+                        loader.add(row);
+                    }
+                    loader.finish();
+                } catch (Exception e) {
+                    if(!loader.written()) {
+                        throw e;
+                    }
+                    // 已经写入的记录还不在索引中，语句无法单独撤销，由调用者回滚整个事务
+                    Log.get("tbm").warn("Multi-row insert into " + name + " failed after writing rows, aborting transaction " + tid, e);
+                    throw Error.TransactionAbortedException;
                 }
             }
+            return;
+        }
+        Object[] row = string2Row(insert.values[0]);
+        byte[] raw = layout.encode(row);
+        indexLock.readLock().lock();
+        try {
+            long uid = ((TableManagerImpl)tbm).vm.insert(tid, raw);
+            stats.addEntry();
+            insertIndexes(row, uid);
+        } finally {
+            indexLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * 更新满足条件的记录：由 set 列表计算出新记录，写入新版本并删除旧版本。
+     * 没有修改任何索引的 key 时做 HOT 更新：新版本链接在旧版本之后、尽量放在同一页中，不插入任何索引，
+     * 查找时从索引指向的版本沿版本链读到它；否则新版本插入所有的索引。
+     * @param tid
+     * @param update
+     * @return 更新的行数
+     * @throws Exception
+     */
+    public int update(long tid, Update update) throws Exception {
+        WhereRes res = parseWhere(update.where);
+        Assignment assignment = Assignment.compile(this, update.sets);
+        Predicate filter = res.exact ? null : Predicate.compile(this, update.where);
+        VersionManager vm = ((TableManagerImpl)tbm).vm;
+        int count = 0;
+        indexLock.readLock().lock();
+        try {
+            for(Long uid : res.uids){
+                while (true) {
+                    ReadRes r = vm.readVersion(tid, uid);
+                    if(r == null || (filter != null && !filter.match(r.data))) break;
+                    Object[] old = layout.decode(r.data);
+                    Object[] row = assignment.apply(old);
+                    boolean hot = r.chained && !changesIndexKey(assignment, old, row);
+                    long uuid = vm.update(tid, r.uid, layout.encode(row), hot);
+                    // 读到的版本在更新前已被其他事务更新并提交，重新沿版本链读取
+                    if(uuid == 0) continue;
+                    count ++;
+                    if(!hot) {
+                        stats.addEntry();
+                        insertIndexes(row, uuid);
+                    }
+                    break;
+                }
+            }
+        } finally {
+            indexLock.readLock().unlock();
         }
         return count;
     }
 
+    /**
+     * 新记录是否改变了某个索引的 key
+     */
+    private boolean changesIndexKey(Assignment assignment, Object[] old, Object[] row) {
+        for (int i = 0; i < fields.size(); i++) {
+            if(fields.get(i).isIndexed() && assignment.touches(i) && !old[i].equals(row[i])) {
+                return true;
+            }
+        }
+        for (Index index : indexes) {
+            for (int i = 0; i < fields.size(); i++) {
+                if(assignment.touches(i) && index.columns.contains(fields.get(i)) && !old[i].equals(row[i])) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 开始向表中批量导入记录，导入结束后需要关闭返回的 Loader
+     */
+    Loader load(long tid) {
+        indexLock.readLock().lock();
+        try {
+            loading.incrementAndGet();
+            return new Loader(this, tid);
+        } finally {
+            indexLock.readLock().unlock();
+        }
+    }
+
+    void endLoad() {
+        loading.decrementAndGet();
+    }
+
+    /**
+     * 补建索引前取得写锁，有批量导入正在进行时不能建索引
+     */
+    private void lockForIndexBuild() throws Exception {
+        indexLock.writeLock().lock();
+        if(loading.get() > 0) {
+            indexLock.writeLock().unlock();
+            throw Error.DatabaseBusyException;
+        }
+    }
+
+    private void insertIndexes(Object[] row, long uid) throws Exception {
+        for (int i = 0; i < fields.size(); i++) {
+            if(fields.get(i).isIndexed()) {
+                fields.get(i).insert(row[i], uid);
+            }
+        }
+        for (Index index : indexes) {
+            index.insert(row, uid);
+        }
+    }
+
+    /**
+     * 为已有字段补建索引：
+     * 1. 全表扫描取得表中所有版本的 UID，包括其它事务尚未提交的版本，可见性仍由读取时判断；
+     * 2. 单字段索引解析出 key 交给外部排序，再以指定的扇出自底向上批量建树，最后把索引挂到字段上；
+     *    string 字段的 key 是变长字节串，逐条插入到新建的树中；
+     * 3. 多个字段时建立联合索引，逐条插入 key，再写入一条包含该索引的新表记录，
+     *    表的 uid 随之改变，由 TBM 修复表链表中指向旧记录的指针。
+     * @param tid
+     * @param createIndex
+     * @throws Exception
+     */
+    public void createIndex(long tid, CreateIndex createIndex) throws Exception {
+        List<Field> columns = new ArrayList<>();
+        for (String fieldName : createIndex.fieldName) {
+            Field f = fieldOf(fieldName);
+            if(f == null) {
+                throw Error.FieldNotFoundException;
+            }
+            columns.add(f);
+        }
+        if(columns.size() > 1) {
+            createCompositeIndex(columns, createIndex.fanout);
+            return;
+        }
+
+        Field fd = columns.get(0);
+        if(fd.isIndexed()) {
+            throw Error.DuplicatedIndexException;
+        }
+        if("string".equals(fd.fieldType)) {
+            createStringIndex(fd, createIndex.fanout);
+            return;
+        }
+        int balanceNumber = createIndex.fanout == 0 ? BPlusTree.DEFAULT_BALANCE_NUMBER : BPlusTree.balanceOfFanout(createIndex.fanout);
+        int column = fields.indexOf(fd);
+
+        lockForIndexBuild();
+        try (KeyUidSorter sorter = new KeyUidSorter(true)) {
+            for (Long uid : versionsToIndex(new int[]{column})) {
+                byte[] raw = ((TableManagerImpl)tbm).vm.readAnyVersion(uid);
+                if(raw == null) continue;
+                sorter.add(fd.value2Uid(layout.valueAt(raw, column)), uid);
+            }
+            fd.attachIndex(BPlusTree.bulkLoad(((TableManagerImpl)tbm).dm, sorter, balanceNumber));
+        } finally {
+            indexLock.writeLock().unlock();
+        }
+    }
+
+    private void createStringIndex(Field fd, int fanout) throws Exception {
+        DataManager dm = ((TableManagerImpl)tbm).dm;
+        int balanceNumber = fanout == 0 ? BPlusTree.maxBalanceNumber(Field.STRING_KEY_WIDTH) : BPlusTree.balanceOfFanout(fanout, Field.STRING_KEY_WIDTH);
+        int column = fields.indexOf(fd);
+        lockForIndexBuild();
+        try {
+            long index = BPlusTree.create(dm, balanceNumber, Field.STRING_KEY_WIDTH);
+            BPlusTree bt = BPlusTree.load(index, dm);
+            for (Long uid : versionsToIndex(new int[]{column})) {
+                byte[] raw = ((TableManagerImpl)tbm).vm.readAnyVersion(uid);
+                if(raw == null) continue;
+                bt.insert(fd.value2Key(layout.valueAt(raw, column)), uid);
+            }
+            fd.attachIndex(index);
+        } finally {
+            indexLock.writeLock().unlock();
+        }
+    }
+
+    private void createCompositeIndex(List<Field> columns, int fanout) throws Exception {
+        for (Index index : indexes) {
+            if(index.columns.equals(columns)) {
+                throw Error.DuplicatedIndexException;
+            }
+        }
+        lockForIndexBuild();
+        try {
+            Index index = Index.createIndex(this, columns, fanout);
+            int[] positions = new int[columns.size()];
+            for (int i = 0; i < positions.length; i++) {
+                positions[i] = fields.indexOf(columns.get(i));
+            }
+            for (Long uid : versionsToIndex(positions)) {
+                byte[] raw = ((TableManagerImpl)tbm).vm.readAnyVersion(uid);
+                if(raw == null) continue;
+                index.insert(layout.decode(raw), uid);
+            }
+            indexes.add(index);
+            persistSelf(TransactionManagerImpl.SUPER_TID);
+        } finally {
+            indexLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * 补建索引时需要插入新索引的版本。HOT 更新的版本不在索引中，只能从索引指向的版本沿版本链找到，
+     * 而链上新索引字段的值可能不同：在值改变处断开版本链，把改变后的版本作为新的链头插入已有的索引，
+     * 这样每段链上新索引的 key 都相同，只需要把各段的链头插入新索引。调用方持有 indexLock 的写锁
+     * @param columns 新索引的字段在记录中的序号
+     * @return
+     * @throws Exception
+     */
+    private List<Long> versionsToIndex(int[] columns) throws Exception {
+        VersionManager vm = ((TableManagerImpl)tbm).vm;
+        List<Long> heads = allUids();
+        List<Long> uids = new ArrayList<>(heads.size());
+        for (Long head : heads) {
+            byte[] raw = vm.readAnyVersion(head);
+            if(raw == null) continue;
+            uids.add(head);
+            long uid = head, next;
+            while ((next = vm.nextVersion(uid)) != 0) {
+                byte[] nextRaw = vm.readAnyVersion(next);
+                if(nextRaw == null) break;
+                if(!sameValues(raw, nextRaw, columns)) {
+                    // 先插入索引再断开，并发的查找最多同时从两处读到这个版本，而不会读不到
+                    insertIndexes(layout.decode(nextRaw), next);
+                    stats.addEntry();
+                    vm.cutVersionChain(uid);
+                    uids.add(next);
+                }
+                uid = next;
+                raw = nextRaw;
+            }
+        }
+        return uids;
+    }
+
+    private boolean sameValues(byte[] raw1, byte[] raw2, int[] columns) {
+        for (int column : columns) {
+            if(!layout.valueAt(raw1, column).equals(layout.valueAt(raw2, column))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 扫描全表，重新收集对当前事务可见的记录的统计信息
+     * @param tid
+     * @return 可见的行数
+     * @throws Exception
+     */
+    public long analyze(long tid) throws Exception {
+        List<Long> uids = allUids();
+        TableStats.Collector collector = stats.collector(fields);
+        for (Long uid : uids) {
+            byte[] raw = ((TableManagerImpl)tbm).vm.read(tid, uid);
+            if(raw == null) continue;
+            collector.add(layout.decode(raw));
+        }
+        collector.finish(uids.size());
+        return collector.rows;
+    }
+
     public int delete(long xid, Delete delete) throws Exception {
-        List<Long> uids = parseWhere(delete.where);
+        WhereRes res = parseWhere(delete.where);
+        Predicate filter = res.exact ? null : Predicate.compile(this, delete.where);
         int count = 0;
-        for (Long uid : uids) {
+        for (Long uid : res.uids) {
+            if(filter != null) {
+                byte[] raw = ((TableManagerImpl)tbm).vm.read(xid, uid);
+                if(raw == null || !filter.match(raw)) continue;
+            }
             if(((TableManagerImpl)tbm).vm.delete(xid, uid)) {
                 count ++;
             }
         }
         return count;
     }
-
-    private Map<String, Object> string2Entry(String[] values) throws Exception {
+    Object[] string2Row(String[] values) throws Exception {
         if(values.length != fields.size()) {
             throw Error.InvalidValuesException;
         }
-        Map<String, Object> entry = new HashMap<>();
-        for (int i = 0; i < fields.size(); i++) {
-            Field f = fields.get(i);
-            Object v = f.string2Value(values[i]);
-            entry.put(f.fieldName, v);
+        Object[] row = new Object[fields.size()];
+        for (int i = 0; i < row.length; i++) {
+            row[i] = fields.get(i).string2Value(values[i]);
         }
-        return entry;
+        return row;
     }
 
-    private String printEntry(Map<String, Object> entry) {
-        StringBuilder sb = new StringBuilder("[");
-        for (int i = 0; i < fields.size(); i++) {
-            Field field = fields.get(i);
-            sb.append(field.printValue(entry.get(field.fieldName)));
-            if(i == fields.size()-1) {
-                sb.append("]");
-            } else {
-                sb.append(", ");
-            }
-        }
-        return sb.toString();
+    /**
+     * 顺序扫描：沿第一个索引的叶子节点依次取得表中所有记录的 UID。
+     * 每条记录都插入了表上的所有索引，任何一个索引的叶子节点都覆盖全表；
+     * 建表时 Parser 和 createTable 拒绝没有索引的表，所以总能找到一个索引
+     */
+    private List<Long> allUids() throws Exception {
+        List<Long> uids = new ArrayList<>();
+        scanAll(uid -> uids.add(uid));
+        return uids;
     }
 
-    private Map<String, Object> parseEntry(byte[] raw) {
-        int pos = 0;
-        Map<String, Object> entry = new HashMap<>();
+    private void scanAll(BPlusTree.UidVisitor visitor) throws Exception {
         for (Field field : fields) {
-            Field.ParseValueRes r = field.parserValue(Arrays.copyOfRange(raw, pos, raw.length));
-            entry.put(field.fieldName, r.v);
-            pos += r.shift;
+            if(field.isIndexed()) {
+                scanField(field, new ArrayList<>(), false, visitor);
+                return;
+            }
+        }
+        if(!indexes.isEmpty()) {
+            indexes.get(0).scan(visitor);
+            return;
         }
-        return entry;
+        throw Error.TableNoIndexException;
     }
 
-    private byte[] entry2Raw(Map<String, Object> entry) {
-        byte[] raw = new byte[0];
-        for (Field field : fields) {
-            raw = Bytes.concat(raw, field.value2Raw(entry.get(field.fieldName)));
-        }
-        return raw;
+    class WhereRes {
+        List<Long> uids;
+        // uids 是否精确满足 where 条件，否则读出记录后还需要再检查一遍
+        boolean exact;
+    }
+
+    /**
+     * 一组 and 连接的条件的访问路径，字段和索引都为空时表示顺序扫描
+     */
+    class AccessPath {
+        double cost;
+        // 单字段索引，以及在它上面查找的条件
+        Field field;
+        List<SingleExpression> fieldExps;
+        // 索引交集时的第二个单字段索引
+        Field field2;
+        List<SingleExpression> field2Exps;
+        // 联合索引
+        Index index;
+        Index.IndexCalRes indexRes;
+        boolean exact;
     }
 
     /**
-     * 对where语句进行解析, 返回field, 该where对应区间内的uuid
+     * 对where语句进行解析, 返回该where对应的候选uid
      * @param where
      * @return
      * @throws Exception
      */
-    private List<Long> parseWhere(Where where) throws Exception {
-        long l0=0, r0=0, l1=0, r1=0;
-        boolean single = false;
-        Field fd = null;
+    private WhereRes parseWhere(Where where) throws Exception {
+        WhereRes res = new WhereRes();
         if(where == null) { // 全表查询
-            for (Field field : fields) {
-                if(field.isIndexed()) {
-                    fd = field;
-                    break;
-                }
-            }
-            l0 = 0;
-            r0 = Long.MAX_VALUE;
-            single = true;
-        }else { // 按条件查询
-            for (Field field : fields) {
-                if (field.fieldName.equals(where.singleExp1.field)) { // 第一个条件
-                    if(!field.isIndexed()) {
-                        throw Error.FieldNotIndexedException;
-                    }
-                    fd = field;
-                    break;
+            res.uids = allUids();
+            res.exact = true;
+            return res;
+        }
+        // 按条件查询
+        switch(where.logicOp) {
+            case "": // 只有一个条件
+                return search(planAnd(Arrays.asList(where.singleExp1)));
+            case "and":
+                return search(planAnd(Arrays.asList(where.singleExp1, where.singleExp2)));
+            case "or":
+                AccessPath p0 = planAnd(Arrays.asList(where.singleExp1));
+                AccessPath p1 = planAnd(Arrays.asList(where.singleExp2));
+                // 两次查找的代价之和不低于顺序扫描时，直接扫描
+                if(p0.cost + p1.cost >= stats.scanCost()) {
+                    return search(scanPath());
                 }
-            }
-            if(fd == null) {
+                WhereRes r0 = search(p0);
+                WhereRes r1 = search(p1);
+                // 两个条件可能同时满足，去掉重复的 uid
+                Set<Long> uids = new LinkedHashSet<>(r0.uids);
+                uids.addAll(r1.uids);
+                res.uids = new ArrayList<>(uids);
+                res.exact = r0.exact && r1.exact;
+                return res;
+            default:
+                throw Error.InvalidLogOpException;
+        }
+    }
+
+    /**
+     * 为一组 and 连接的条件选择代价最低的访问路径：
+     * 单字段索引可以用上该字段上的所有条件，联合索引可以用上前缀字段的等值条件和下一个字段的范围条件，
+     * 两个条件分别落在两个单字段索引上时还可以取两次查找结果的交集。
+     * 各路径的行数由统计信息估算，代价相同时优先单字段索引。没有用上的条件在读出记录后再检查。
+     * 没有可用的索引，或者索引的代价不低于顺序扫描时，顺序扫描全表，所有条件都在读出记录后检查。
+     * @param exps
+     * @return
+     * @throws Exception
+     */
+    private AccessPath planAnd(List<SingleExpression> exps) throws Exception {
+        for (SingleExpression exp : exps) {
+            if(fieldOf(exp.field) == null) {
                 throw Error.FieldNotFoundException;
             }
+        }
 
-            CalWhereRes res = calWhere(fd, where);
-            l0 = res.l0; r0 = res.r0;
-            l1 = res.l1; r1 = res.r1;
-            single = res.single;
+        AccessPath best = null;
+        for (Field field : fields) {
+            List<SingleExpression> covered = coveredBy(field, exps);
+            if(covered.isEmpty()) continue;
+            AccessPath p = new AccessPath();
+            p.field = field;
+            p.fieldExps = covered;
+            p.cost = stats.indexCost(stats.estimateRows(this, covered));
+            // 旧的 string 字段索引 key 是哈希值，可能冲突，需要再检查
+            p.exact = covered.size() == exps.size() && !field.isHashKey();
+            if(best == null || p.cost < best.cost) best = p;
+        }
+        for (Index idx : indexes) {
+            Index.IndexCalRes r = idx.calExps(exps);
+            if(r == null) continue;
+            AccessPath p = new AccessPath();
+            p.index = idx;
+            p.indexRes = r;
+            p.cost = r.empty ? 0 : stats.indexCost(stats.estimateRows(this, r.covered));
+            p.exact = r.covered.size() == exps.size();
+            if(best == null || p.cost < best.cost) best = p;
+        }
+        if(exps.size() == 2 && fieldOf(exps.get(0).field) != fieldOf(exps.get(1).field)) {
+            AccessPath p = planIntersect(exps);
+            if(p != null && (best == null || p.cost < best.cost)) best = p;
         }
 
-        List<Long> uids = fd.search(l0, r0);
-        if(!single) {
-            List<Long> tmp = fd.search(l1, r1);
-            uids.addAll(tmp);
+        AccessPath scan = scanPath();
+        if(best == null || scan.cost < best.cost) {
+            return scan;
         }
-        return uids;
+        return best;
     }
 
-    class CalWhereRes {
-        long l0, r0, l1, r1;
-        boolean single;
+    /**
+     * 两个条件分别在两个字段的索引上查找，取结果的交集
+     */
+    private AccessPath planIntersect(List<SingleExpression> exps) {
+        List<SingleExpression> e0 = Arrays.asList(exps.get(0));
+        List<SingleExpression> e1 = Arrays.asList(exps.get(1));
+        Field f0 = fieldOf(exps.get(0).field), f1 = fieldOf(exps.get(1).field);
+        if(coveredBy(f0, e0).isEmpty() || coveredBy(f1, e1).isEmpty()) {
+            return null;
+        }
+        AccessPath p = new AccessPath();
+        p.field = f0;
+        p.fieldExps = e0;
+        p.field2 = f1;
+        p.field2Exps = e1;
+        p.cost = stats.intersectCost(stats.estimateRows(this, e0), stats.estimateRows(this, e1), stats.estimateRows(this, exps));
+        p.exact = !f0.isHashKey() && !f1.isHashKey();
+        return p;
+    }
+
+    private AccessPath scanPath() {
+        AccessPath p = new AccessPath();
+        p.cost = stats.scanCost();
+        return p;
     }
 
-    private CalWhereRes calWhere(Field fd, Where where) throws Exception {
-        CalWhereRes res = new CalWhereRes();
+    /**
+     * where 的访问路径是否为顺序扫描全表，与 parseWhere 的选择一致
+     */
+    private boolean plansScan(Where where) throws Exception {
         switch(where.logicOp) {
-            case "": // 只有一个条件
-                res.single = true;
-                FieldCalRes r = fd.calExp(where.singleExp1);
-                res.l0 = r.left; res.r0 = r.right;
-                break;
-            case "or":
-                res.single = false;
-                r = fd.calExp(where.singleExp1);
-                res.l0 = r.left; res.r0 = r.right;
-                r = fd.calExp(where.singleExp2);
-                res.l1 = r.left; res.r1 = r.right;
-                break;
+            case "":
+                return isScan(planAnd(Arrays.asList(where.singleExp1)));
             case "and":
-                res.single = true;
-                r = fd.calExp(where.singleExp1);
-                res.l0 = r.left; res.r0 = r.right;
-                r = fd.calExp(where.singleExp2);
-                res.l1 = r.left; res.r1 = r.right;
-                if(res.l1 > res.l0) res.l0 = res.l1;
-                if(res.r1 < res.r0) res.r0 = res.r1;
-                break;
+                return isScan(planAnd(Arrays.asList(where.singleExp1, where.singleExp2)));
+            case "or":
+                AccessPath p0 = planAnd(Arrays.asList(where.singleExp1));
+                AccessPath p1 = planAnd(Arrays.asList(where.singleExp2));
+                return p0.cost + p1.cost >= stats.scanCost();
             default:
                 throw Error.InvalidLogOpException;
         }
+    }
+
+    private static boolean isScan(AccessPath p) {
+        return p.field == null && p.index == null;
+    }
+
+    /**
+     * exps 中可以在 field 的索引上查找的条件，哈希值不保序，只能用于等值条件。
+     * 条件中的字段名可以用表名限定，按解析出的字段比较
+     */
+    private List<SingleExpression> coveredBy(Field field, List<SingleExpression> exps) {
+        List<SingleExpression> covered = new ArrayList<>();
+        if(!field.isIndexed()) {
+            return covered;
+        }
+        for (SingleExpression exp : exps) {
+            if(field == fieldOf(exp.field) && (!field.isHashKey() || "=".equals(exp.compareOp))) {
+                covered.add(exp);
+            }
+        }
+        return covered;
+    }
+
+    private WhereRes search(AccessPath p) throws Exception {
+        WhereRes res = new WhereRes();
+        res.exact = p.exact;
+        if(p.index != null) {
+            res.uids = p.indexRes.empty ? new ArrayList<>() : p.index.search(p.indexRes.left, p.indexRes.right);
+        } else if(p.field2 != null) {
+            Set<Long> uids2 = new HashSet<>(searchField(p.field2, p.field2Exps));
+            res.uids = new ArrayList<>();
+            for (Long uid : searchField(p.field, p.fieldExps)) {
+                if(uids2.contains(uid)) {
+                    res.uids.add(uid);
+                }
+            }
+        } else if(p.field != null) {
+            res.uids = searchField(p.field, p.fieldExps);
+        } else {
+            res.uids = allUids();
+        }
         return res;
     }
 
+    /**
+     * 在字段的索引上查找同时满足 exps 中所有条件的 UID
+     */
+    private List<Long> searchField(Field fd, List<SingleExpression> exps) throws Exception {
+        List<Long> uids = new ArrayList<>();
+        scanField(fd, exps, false, uid -> uids.add(uid));
+        return uids;
+    }
+
+    /**
+     * 按索引顺序扫描字段上同时满足 exps 中所有条件的 UID，exps 为空时扫描整个索引
+     */
+    private void scanField(Field fd, List<SingleExpression> exps, boolean descending, BPlusTree.UidVisitor visitor) throws Exception {
+        if(fd.isBytesKey()) {
+            byte[] left = null, right = null;
+            for (SingleExpression exp : exps) {
+                FieldCalRes r = fd.calExp(exp);
+                if(r.leftKey != null && (left == null || Index.compare(r.leftKey, left) > 0)) left = r.leftKey;
+                if(r.rightKey != null && (right == null || Index.compare(r.rightKey, right) < 0)) right = r.rightKey;
+            }
+            if(left != null && right != null && Index.compare(left, right) >= 0) {
+                return;
+            }
+            fd.scan(left, right, descending, visitor);
+            return;
+        }
+        long left = Long.MIN_VALUE, right = Long.MAX_VALUE;
+        for (SingleExpression exp : exps) {
+            FieldCalRes r = fd.calExp(exp);
+            if(r.left > left) left = r.left;
+            if(r.right < right) right = r.right;
+        }
+        if(left > right) {
+            return;
+        }
+        fd.scan(left, right, descending, visitor);
+    }
+
     @Override
     public String toString() {
         StringBuilder sb = new StringBuilder("{");
@@ -299,11 +1054,14 @@ public class Table {
         for(Field field : fields) {
             sb.append(field.toString());
             if(field == fields.get(fields.size()-1)) {
-                sb.append("}");
-            } else {
-                sb.append(", ");
+                break;
             }
+            sb.append(", ");
+        }
+        for(Index index : indexes) {
+            sb.append(", ").append(index.toString());
         }
+        sb.append("}");
         return sb.toString();
     }
 
@@ -13,12 +13,16 @@ public interface TableManager {
 
     byte[] show(long tid);
     byte[] create(long tid, Create create) throws Exception;
+    byte[] createIndex(long tid, CreateIndex createIndex) throws Exception;
 
     byte[] insert(long tid, Insert insert) throws Exception;
-    byte[] read(long tid, Select select) throws Exception;
+    Loader load(long tid, Load load) throws Exception;
+    byte[] read(long tid, Select select, boolean rows, ResultSink sink) throws Exception;
     byte[] update(long tid, Update update) throws Exception;
     byte[] delete(long tid, Delete delete) throws Exception;
 
+    byte[] analyze(long tid, Analyze analyze) throws Exception;
+
     public static TableManager create(String path, VersionManager vm, DataManager dm) {
         Booter booter = Booter.create(path);
         booter.update(Parser.long2Byte(0));
@@ -123,6 +123,47 @@ public class TableManagerImpl implements TableManager{
         }
     }
 
+    /**
+     * 为已有表的字段补建索引，持有 TBM 的锁，与其它 DDL 互斥
+     */
+    @Override
+    public byte[] createIndex(long tid, CreateIndex createIndex) throws Exception {
+        lock.lock();
+        try {
+            Table table = tableCache.get(createIndex.tableName);
+            if(table == null) {
+                throw Error.TableNotFoundException;
+            }
+            long oldUid = table.uid;
+            table.createIndex(tid, createIndex);
+            if(table.uid != oldUid) {
+                relinkTable(oldUid, table.uid);
+            }
+            return ("create index on " + createIndex.tableName + " (" + String.join(", ", createIndex.fieldName) + ")").getBytes();
+        }finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 表记录被重写后，把链表中指向旧记录的指针改为指向新记录
+     * @param oldUid
+     * @param newUid
+     * @throws Exception
+     */
+    private void relinkTable(long oldUid, long newUid) throws Exception {
+        if(firstTableUid() == oldUid) {
+            updateFirstTableUid(newUid);
+            return;
+        }
+        for(Table tb : tableCache.values()) {
+            if(tb.nextUid == oldUid) {
+                tb.updateNextUid(newUid);
+                return;
+            }
+        }
+    }
+
     @Override
     public byte[] insert(long tid, Insert insert) throws Exception {
         lock.lock();
@@ -136,14 +177,47 @@ public class TableManagerImpl implements TableManager{
     }
 
     @Override
-    public byte[] read(long tid, Select read) throws Exception {
+    public Loader load(long tid, Load load) throws Exception {
+        lock.lock();
+        Table table = tableCache.get(load.tableName);
+        lock.unlock();
+        if (table == null){
+            throw Error.TableNotFoundException;
+        }
+        return table.load(tid);
+    }
+
+    @Override
+    public byte[] read(long tid, Select read, boolean rows, ResultSink sink) throws Exception {
+        if(read.joins != null) {
+            return join(tid, read, rows, sink);
+        }
         lock.lock();
         Table table = tableCache.get(read.tableName);
         lock.unlock();
         if(table == null) {
             throw Error.TableNotFoundException;
         }
-        return table.read(tid, read).getBytes();
+        return table.read(tid, read, rows, sink);
+    }
+
+    private byte[] join(long tid, Select read, boolean rows, ResultSink sink) throws Exception {
+        Table[] tables = new Table[read.joins.length + 1];
+        lock.lock();
+        try {
+            tables[0] = tableCache.get(read.tableName);
+            for (int i = 0; i < read.joins.length; i++) {
+                tables[i + 1] = tableCache.get(read.joins[i].tableName);
+            }
+        } finally {
+            lock.unlock();
+        }
+        for (Table table : tables) {
+            if(table == null) {
+                throw Error.TableNotFoundException;
+            }
+        }
+        return Joiner.compile(this, tables, read).read(tid, rows, sink);
     }
 
     @Override
@@ -169,4 +243,19 @@ public class TableManagerImpl implements TableManager{
         int count = table.delete(tid, delete);
         return ("delete " + count).getBytes();
     }
+
+    /**
+     * 重新收集表的统计信息，供选择访问路径时估算代价
+     */
+    @Override
+    public byte[] analyze(long tid, Analyze analyze) throws Exception {
+        lock.lock();
+        Table table = tableCache.get(analyze.tableName);
+        lock.unlock();
+        if(table == null) {
+            throw Error.TableNotFoundException;
+        }
+        long rows = table.analyze(tid);
+        return ("analyze " + analyze.tableName + " " + rows + " rows").getBytes();
+    }
 }
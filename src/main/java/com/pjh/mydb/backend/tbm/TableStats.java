@@ -0,0 +1,212 @@
+package com.pjh.mydb.backend.tbm;
+
+import com.pjh.mydb.backend.parser.statement.SingleExpression;
+
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * TableStats 保存一张表的统计信息，用于估算各访问路径的代价。
+ * 索引项数（包括记录的旧版本）在插入和更新时增量累加；
+ * 每个字段的不同值个数和等深直方图由 analyze 扫描全表后重建，只保存在内存中，重新打开数据库后需要重新 analyze。
+ * 没有统计信息的字段，等值条件和范围条件使用固定的默认选择率。
+ *
+ * 代价以读取一条记录为单位：
+ * 索引范围扫描 = 下降到叶子 + 命中的索引项数 * (取索引项 + 读记录)
+ * 顺序扫描     = 全部索引项数 * (取索引项 + 读记录)
+ * 索引交集     = 两次下降 + 两边命中的索引项数 * 取索引项 + 交集的行数 * 读记录
+ *
+ * @author Joseph Peng
+ * @date 2026/10/19 16:45
+ */
+public class TableStats {
+
+    static final double ROW_COST = 1.0;
+    static final double ENTRY_COST = 0.05;
+    static final double LOOKUP_COST = 3.0;
+
+    static final double DEFAULT_EQ_SELECTIVITY = 0.1;
+    static final double DEFAULT_RANGE_SELECTIVITY = 1.0 / 3;
+    // 没有 analyze 过时假设表中至少有这么多行
+    static final long DEFAULT_ROWS = 1000;
+
+    // analyze 时每张表最多抽样的行数
+    static final int SAMPLE_SIZE = 10000;
+    static final int BUCKETS = 32;
+
+    private final AtomicLong entries = new AtomicLong();
+    private volatile boolean analyzed;
+    private volatile Map<String, FieldStats> fieldStats = new HashMap<>();
+
+    static class FieldStats {
+        double distinct;
+        // 等深直方图的边界，bounds[0] 为最小值，bounds[BUCKETS] 为最大值，相邻边界之间的值大约一样多
+        byte[][] bounds;
+
+        static FieldStats build(List<byte[]> keys, long rows) {
+            keys.sort(Index::compare);
+            int n = keys.size();
+            int d = 0, f1 = 0;
+            for (int i = 0; i < n; i++) {
+                if (i > 0 && Index.compare(keys.get(i - 1), keys.get(i)) == 0) continue;
+                d++;
+                if (i == n - 1 || Index.compare(keys.get(i), keys.get(i + 1)) != 0) {
+                    f1++;
+                }
+            }
+            FieldStats fs = new FieldStats();
+            if (n == rows) {
+                fs.distinct = d;
+            } else {
+                // 根据样本中的不同值个数和只出现一次的值的个数估算全表的不同值个数（Haas-Stokes Duj1）
+                fs.distinct = (double) n * d / (n - f1 + (double) f1 * n / rows);
+            }
+            fs.bounds = new byte[BUCKETS + 1][];
+            for (int i = 0; i <= BUCKETS; i++) {
+                fs.bounds[i] = keys.get((int) ((long) i * (n - 1) / BUCKETS));
+            }
+            return fs;
+        }
+
+        /**
+         * 小于 key 的值所占的比例
+         */
+        double fractionBelow(byte[] key) {
+            if (Index.compare(key, bounds[0]) <= 0) {
+                return 0;
+            }
+            if (Index.compare(key, bounds[BUCKETS]) > 0) {
+                return 1;
+            }
+            int i = 0;
+            while (Index.compare(bounds[i + 1], key) < 0) {
+                i++;
+            }
+            // key 落在第 i 个桶内，假设位于桶的中间
+            return (i + 0.5) / BUCKETS;
+        }
+
+        double equalFraction(byte[] key) {
+            if (Index.compare(key, bounds[0]) < 0 || Index.compare(key, bounds[BUCKETS]) > 0) {
+                return 0;
+            }
+            return 1 / Math.max(distinct, 1);
+        }
+    }
+
+    /**
+     * analyze 时逐行收集字段值，行数超过 SAMPLE_SIZE 后按蓄水池抽样保留一部分
+     */
+    class Collector {
+        private final List<Field> fields;
+        private final List<Object[]> sample = new ArrayList<>();
+        private final Random random = new Random();
+        long rows;
+
+        Collector(List<Field> fields) {
+            this.fields = fields;
+        }
+
+        void add(Object[] row) {
+            rows++;
+            if (sample.size() < SAMPLE_SIZE) {
+                sample.add(row);
+                return;
+            }
+            long j = (long) (random.nextDouble() * rows);
+            if (j < SAMPLE_SIZE) {
+                sample.set((int) j, row);
+            }
+        }
+
+        /**
+         * 用收集到的样本替换原有的统计信息
+         * @param entryCount 索引中的索引项数
+         */
+        void finish(long entryCount) {
+            Map<String, FieldStats> stats = new HashMap<>();
+            if (!sample.isEmpty()) {
+                for (int i = 0; i < fields.size(); i++) {
+                    Field f = fields.get(i);
+                    List<byte[]> keys = new ArrayList<>(sample.size());
+                    for (Object[] row : sample) {
+                        keys.add(f.value2Key(row[i]));
+                    }
+                    stats.put(f.fieldName, FieldStats.build(keys, rows));
+                }
+            }
+            entries.set(entryCount);
+            fieldStats = stats;
+            analyzed = true;
+        }
+    }
+
+    Collector collector(List<Field> fields) {
+        return new Collector(fields);
+    }
+
+    void addEntry() {
+        entries.incrementAndGet();
+    }
+
+    /**
+     * 顺序扫描需要读取的索引项数
+     */
+    long entries() {
+        long n = entries.get();
+        return analyzed ? n : Math.max(n, DEFAULT_ROWS);
+    }
+
+    /**
+     * 估算满足一组 and 连接的条件的行数，不同字段上的条件视为相互独立
+     */
+    double estimateRows(Table tb, List<SingleExpression> exps) {
+        Map<Field, List<SingleExpression>> byField = new HashMap<>();
+        for (SingleExpression exp : exps) {
+            byField.computeIfAbsent(tb.fieldOf(exp.field), k -> new ArrayList<>()).add(exp);
+        }
+        double selectivity = 1;
+        for (Map.Entry<Field, List<SingleExpression>> e : byField.entrySet()) {
+            selectivity *= selectivity(e.getKey(), e.getValue());
+        }
+        return entries() * selectivity;
+    }
+
+    private double selectivity(Field fd, List<SingleExpression> exps) {
+        FieldStats fs = fieldStats.get(fd.fieldName);
+        if (fs == null) {
+            double s = 1;
+            for (SingleExpression exp : exps) {
+                s *= "=".equals(exp.compareOp) ? DEFAULT_EQ_SELECTIVITY : DEFAULT_RANGE_SELECTIVITY;
+            }
+            return s;
+        }
+        double lower = 0, upper = 1;
+        for (SingleExpression exp : exps) {
+            byte[] key = fd.value2Key(fd.string2Value(exp.value));
+            switch (exp.compareOp) {
+                case "=":
+                    return fs.equalFraction(key);
+                case "<":
+                    upper = Math.min(upper, fs.fractionBelow(key));
+                    break;
+                case ">":
+                    lower = Math.max(lower, fs.fractionBelow(key) + fs.equalFraction(key));
+                    break;
+            }
+        }
+        return Math.max(0, upper - lower);
+    }
+
+    double scanCost() {
+        return entries() * (ENTRY_COST + ROW_COST);
+    }
+
+    double indexCost(double rows) {
+        return LOOKUP_COST + rows * (ENTRY_COST + ROW_COST);
+    }
+
+    double intersectCost(double rows1, double rows2, double rows) {
+        return 2 * LOOKUP_COST + (rows1 + rows2) * ENTRY_COST + rows * ROW_COST;
+    }
+}
@@ -107,8 +107,8 @@ public class TransactionManagerImpl implements TransactionManager{
         temp[0] = status;
         ByteBuffer buf = ByteBuffer.wrap(temp);
         try{
-            fc.position(offset);
-            fc.write(buf);
+            // 多个线程同时读写 tid 文件，使用指定位置的读写，不改变共享的 position
+            fc.write(buf, offset);
         }catch (IOException e){
             Panic.panic(e);
         }
@@ -142,8 +142,7 @@ public class TransactionManagerImpl implements TransactionManager{
         tidCounter++;
         ByteBuffer buf = ByteBuffer.wrap(Parser.long2Byte(tidCounter));
         try {
-            fc.position(0);
-            fc.write(buf);
+            fc.write(buf, 0);
         }catch (IOException e){
             Panic.panic(e);
         }
@@ -176,8 +175,7 @@ public class TransactionManagerImpl implements TransactionManager{
         long offset = getTidPosition(tid);
         ByteBuffer buf = ByteBuffer.wrap(new byte[TID_FIELD_SIZE]);
         try {
-            fc.position(offset);
-            fc.read(buf);
+            fc.read(buf, offset);
         } catch (IOException e) {
             Panic.panic(e);
         }
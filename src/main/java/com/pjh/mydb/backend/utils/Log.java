@@ -0,0 +1,280 @@
+package com.pjh.mydb.backend.utils;
+
+import java.io.PrintStream;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Log 是后端各模块共用的异步分级日志。调用方只把日志放入一个定长的环形缓冲区，由后台线程格式化后写到标准输出，
+ * 执行语句的线程不会在 PrintStream 的锁上排队，也不等待输出。缓冲区满时新的日志直接丢弃并计数，
+ * 后台线程随后输出一条丢弃了多少条的警告，日志再多也不会拖慢或阻塞服务器。
+ *
+ * 每个子系统（server、dm、vm 等）通过 get 取得自己的 Log，级别可以分别设置：
+ * 默认级别来自系统属性 mydb.log（默认 info），子系统的级别来自 mydb.log.<子系统>，也可以用 configure 一次设置，
+ * 格式为 "warn,server=info,dm=debug"。
+ * 调试日志写在 if(Log.DEBUG) 中，DEBUG 是编译期常量 false，这些代码在编译时就被去掉，热路径上没有任何开销；
+ * 需要调试时改为 true 重新编译，再把相应子系统的级别设为 debug。
+ *
+ * @author Joseph Peng
+ * @date 2026/10/20 03:20
+ */
+public class Log {
+
+    public enum Level { DEBUG, INFO, WARN, ERROR, OFF }
+
+    // 为 false 时 if(Log.DEBUG) 中的调试日志在编译时被去掉
+    public static final boolean DEBUG = false;
+
+    // 环形缓冲区的容量，必须是 2 的幂
+    private static final int CAPACITY = 1 << 13;
+    // 缓冲区为空时后台线程每隔这么久检查一次
+    private static final long IDLE_NANOS = TimeUnit.MILLISECONDS.toNanos(5);
+    private static final DateTimeFormatter TIME = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss.SSS")
+            .withZone(ZoneId.systemDefault());
+
+    private static final Map<String, Log> logs = new ConcurrentHashMap<>();
+    private static volatile Level defaultLevel = parse(System.getProperty("mydb.log"), Level.INFO);
+    private static final Ring ring = new Ring(CAPACITY);
+    private static final AtomicLong dropped = new AtomicLong();
+    // 同一时间只有一个线程取出并输出日志：后台线程，或者调用 flush 的线程
+    private static final Lock drainLock = new ReentrantLock();
+    private static long reportedDropped;
+
+    static {
+        Thread writer = new Thread(Log::run, "mydb-log");
+        writer.setDaemon(true);
+        writer.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(Log::flush, "mydb-log-flush"));
+    }
+
+    private final String subsystem;
+    // 为 null 时使用默认级别
+    private volatile Level level;
+
+    private Log(String subsystem) {
+        this.subsystem = subsystem;
+        this.level = parse(System.getProperty("mydb.log." + subsystem), null);
+    }
+
+    /**
+     * 子系统的日志
+     */
+    public static Log get(String subsystem) {
+        return logs.computeIfAbsent(subsystem, Log::new);
+    }
+
+    /**
+     * 按 "warn,server=info,dm=debug" 的格式设置级别，不带子系统的一项是默认级别
+     */
+    public static void configure(String spec) {
+        for (String item : spec.split(",")) {
+            item = item.trim();
+            if(item.isEmpty()) {
+                continue;
+            }
+            int eq = item.indexOf('=');
+            if(eq < 0) {
+                defaultLevel = Level.valueOf(item.toUpperCase());
+            } else {
+                get(item.substring(0, eq).trim()).level = Level.valueOf(item.substring(eq + 1).trim().toUpperCase());
+            }
+        }
+    }
+
+    /**
+     * 因为缓冲区满而丢弃的日志条数
+     */
+    public static long dropped() {
+        return dropped.get();
+    }
+
+    /**
+     * 在调用线程中输出缓冲区中所有的日志，进程退出之前调用
+     */
+    public static void flush() {
+        drainLock.lock();
+        try {
+            drain();
+        } finally {
+            drainLock.unlock();
+        }
+    }
+
+    public boolean isEnabled(Level l) {
+        Level min = level;
+        return l.compareTo(min == null ? defaultLevel : min) >= 0;
+    }
+
+    public void debug(String msg) {
+        log(Level.DEBUG, msg, null);
+    }
+
+    public void debug(String msg, Throwable t) {
+        log(Level.DEBUG, msg, t);
+    }
+
+    public void info(String msg) {
+        log(Level.INFO, msg, null);
+    }
+
+    public void warn(String msg) {
+        log(Level.WARN, msg, null);
+    }
+
+    public void warn(String msg, Throwable t) {
+        log(Level.WARN, msg, t);
+    }
+
+    public void error(String msg, Throwable t) {
+        log(Level.ERROR, msg, t);
+    }
+
+    private void log(Level l, String msg, Throwable t) {
+        if(!isEnabled(l)) {
+            return;
+        }
+        Entry e = new Entry(System.currentTimeMillis(), l, subsystem, Thread.currentThread().getName(), msg, t);
+        if(!ring.offer(e)) {
+            dropped.incrementAndGet();
+        }
+    }
+
+    private static void run() {
+        while (true) {
+            boolean wrote;
+            drainLock.lock();
+            try {
+                wrote = drain();
+            } finally {
+                drainLock.unlock();
+            }
+            if(wrote) {
+                continue;
+            }
+            if(ring.isEmpty()) {
+                LockSupport.parkNanos(IDLE_NANOS);
+            } else {
+                // 生产者已经占住槽位、还没有写入
+                Thread.yield();
+            }
+        }
+    }
+
+    /**
+     * 输出缓冲区中的日志，调用方持有 drainLock。返回是否输出了日志
+     */
+    private static boolean drain() {
+        PrintStream out = System.out;
+        boolean wrote = false;
+        Entry e;
+        while ((e = ring.poll()) != null) {
+            write(out, e);
+            wrote = true;
+        }
+        long d = dropped.get();
+        if(d != reportedDropped) {
+            write(out, new Entry(System.currentTimeMillis(), Level.WARN, "log", Thread.currentThread().getName(),
+                    (d - reportedDropped) + " log messages dropped, buffer full", null));
+            reportedDropped = d;
+            wrote = true;
+        }
+        if(wrote) {
+            out.flush();
+        }
+        return wrote;
+    }
+
+    private static void write(PrintStream out, Entry e) {
+        StringBuilder sb = new StringBuilder(64 + e.msg.length());
+        sb.append(TIME.format(Instant.ofEpochMilli(e.time))).append(' ')
+                .append(e.level).append(' ')
+                .append(e.subsystem).append(" [").append(e.thread).append("] ")
+                .append(e.msg);
+        out.println(sb);
+        if(e.t != null) {
+            e.t.printStackTrace(out);
+        }
+    }
+
+    private static Level parse(String s, Level def) {
+        if(s == null || s.isEmpty()) {
+            return def;
+        }
+        try {
+            return Level.valueOf(s.trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            return def;
+        }
+    }
+
+    private static class Entry {
+        final long time;
+        final Level level;
+        final String subsystem, thread, msg;
+        final Throwable t;
+
+        Entry(long time, Level level, String subsystem, String thread, String msg, Throwable t) {
+            this.time = time;
+            this.level = level;
+            this.subsystem = subsystem;
+            this.thread = thread;
+            this.msg = msg;
+            this.t = t;
+        }
+    }
+
+    /**
+     * 多个生产者、一个消费者的定长环形缓冲区，放入时不加锁，满时放入失败。
+     * 生产者用 CAS 占住 tail 处的槽位后写入，消费者遇到还没写入的槽位时等下一轮再取
+     */
+    private static class Ring {
+        private final AtomicReferenceArray<Entry> slots;
+        private final int mask;
+        private final AtomicLong tail = new AtomicLong();
+        // 只由消费者修改
+        private volatile long head;
+
+        Ring(int capacity) {
+            slots = new AtomicReferenceArray<>(capacity);
+            mask = capacity - 1;
+        }
+
+        boolean offer(Entry e) {
+            while (true) {
+                long t = tail.get();
+                if(t - head >= slots.length()) {
+                    return false;
+                }
+                if(tail.compareAndSet(t, t + 1)) {
+                    slots.set((int) (t & mask), e);
+                    return true;
+                }
+            }
+        }
+
+        boolean isEmpty() {
+            return tail.get() == head;
+        }
+
+        Entry poll() {
+            long h = head;
+            int i = (int) (h & mask);
+            Entry e = slots.get(i);
+            if(e == null) {
+                return null;
+            }
+            slots.set(i, null);
+            head = h + 1;
+            return e;
+        }
+    }
+}
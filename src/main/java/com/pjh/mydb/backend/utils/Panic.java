@@ -7,7 +7,9 @@ package com.pjh.mydb.backend.utils;
 public class Panic {
 
     public static void panic(Exception e){
-        e.printStackTrace();
+        Log.get("panic").error("Panic", e);
+        // 日志是异步输出的，退出前先写完
+        Log.flush();
         System.exit(1);
     }
 }
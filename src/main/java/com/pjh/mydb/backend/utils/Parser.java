@@ -3,6 +3,7 @@ package com.pjh.mydb.backend.utils;
 import com.google.common.primitives.Bytes;
 
 import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
 
 /**
@@ -21,6 +22,25 @@ public class Parser {
         return byteBuffer.getShort();
     }
 
+    /**
+     * 直接从 buf 的 offset 处解析，避免先拷贝出子数组
+     */
+    public static long parseLong(byte[] buf, int offset){
+        return ((long)(buf[offset] & 0xff) << 56) | ((long)(buf[offset+1] & 0xff) << 48)
+                | ((long)(buf[offset+2] & 0xff) << 40) | ((long)(buf[offset+3] & 0xff) << 32)
+                | ((long)(buf[offset+4] & 0xff) << 24) | ((long)(buf[offset+5] & 0xff) << 16)
+                | ((long)(buf[offset+6] & 0xff) << 8) | (long)(buf[offset+7] & 0xff);
+    }
+
+    public static short parseShort(byte[] buf, int offset){
+        return (short)(((buf[offset] & 0xff) << 8) | (buf[offset+1] & 0xff));
+    }
+
+    public static int parseInt(byte[] buf, int offset){
+        return ((buf[offset] & 0xff) << 24) | ((buf[offset+1] & 0xff) << 16)
+                | ((buf[offset+2] & 0xff) << 8) | (buf[offset+3] & 0xff);
+    }
+
     public static byte[] long2Byte(long value){
         return ByteBuffer.allocate(Long.SIZE / Byte.SIZE).putLong(value).array();
     }
@@ -46,13 +66,16 @@ public class Parser {
      */
     public static ParseStringRes parseString(byte[] raw) {
         int length = parseInt(Arrays.copyOf(raw, 4));
-        String str = new String(Arrays.copyOfRange(raw, 4, 4+length));
+        String str = new String(raw, 4, length, StandardCharsets.UTF_8);
         return new ParseStringRes(str, length+4);
     }
 
+    /**
+     * [StringLength][StringData]，StringLength 为 UTF-8 编码后的字节数
+     */
     public static byte[] string2Byte(String str) {
-        byte[] l = int2Byte(str.length());
-        return Bytes.concat(l, str.getBytes());
+        byte[] data = str.getBytes(StandardCharsets.UTF_8);
+        return Bytes.concat(int2Byte(data.length), data);
     }
 
     public static long str2Uid(String key) {
@@ -16,6 +16,12 @@ import java.util.Arrays;
  *
  *  ValidFlag|Size| Data  Data为[XMIN] [XMAX] [data]
  *
+ *  新写入的 entry 在 XMAX 之后多一个 [NEXT]，并把 XMIN 的最高位置 1 作为标记：
+ *  [XMIN|CHAINED] [XMAX] [NEXT] [data]
+ *  NEXT 是 HOT 更新产生的下一个版本的 UID，为 0 时没有后继版本。
+ *  HOT 更新不修改任何索引字段，新版本不进入索引，只能从索引指向的旧版本沿 NEXT 找到；
+ *  没有标记的旧格式 entry 没有 NEXT，更新时总是同时维护索引。
+ *
  * @author Joseph Peng
  * @date 2022/8/2 15:23
  */
@@ -23,7 +29,10 @@ public class Entry {
 
     private static final int OF_XMIN = 0;
     private static final int OF_XMAX = OF_XMIN + 8;
+    private static final int OF_NEXT = OF_XMAX + 8;
     private static final int OF_DATA = OF_XMAX + 8;
+    private static final int OF_CHAINED_DATA = OF_NEXT + 8;
+    private static final long CHAINED = 1L << 63;
 
     private long uid;
     private DataItem dataItem;
@@ -31,6 +40,10 @@ public class Entry {
 
     public static Entry loadEntry(VersionManager vm, long uid) throws Exception{
         DataItem di = ((VersionManagerImpl)vm).dm.read(uid);
+        if(di == null) {
+            // DataItem 已无效（例如被撤销的插入）
+            return null;
+        }
         return newEntry(vm, di, uid);
     }
 
@@ -57,9 +70,10 @@ public class Entry {
      * @return
      */
     public static byte[] wrapEntryRaw(long tid, byte[] data) {
-        byte[] xmin = Parser.long2Byte(tid);
+        byte[] xmin = Parser.long2Byte(tid | CHAINED);
         byte[] xmax = new byte[8];
-        return Bytes.concat(xmin, xmax, data);
+        byte[] next = new byte[8];
+        return Bytes.concat(xmin, xmax, next, data);
     }
 
     /**
@@ -71,8 +85,9 @@ public class Entry {
         dataItem.rLock();
         try {
             SubArray sa = dataItem.data();
-            byte[] data = new byte[sa.end - sa.start - OF_DATA];
-            System.arraycopy(sa.raw, sa.start + OF_DATA, data, 0, data.length);
+            int ofData = isChained(sa) ? OF_CHAINED_DATA : OF_DATA;
+            byte[] data = new byte[sa.end - sa.start - ofData];
+            System.arraycopy(sa.raw, sa.start + ofData, data, 0, data.length);
             return data;
         }finally {
             dataItem.rUnLock();
@@ -83,7 +98,7 @@ public class Entry {
         dataItem.rLock();
         try {
             SubArray sa = dataItem.data();
-            return Parser.parseLong(Arrays.copyOfRange(sa.raw, sa.start + OF_XMIN, sa.start + OF_XMAX));
+            return Parser.parseLong(Arrays.copyOfRange(sa.raw, sa.start + OF_XMIN, sa.start + OF_XMAX)) & ~CHAINED;
         }finally {
             dataItem.rUnLock();
         }
@@ -115,6 +130,71 @@ public class Entry {
         }
     }
 
+    /**
+     * 是否有 NEXT，旧格式的 entry 不能链接后继版本
+     * @return
+     */
+    public boolean isChained() {
+        dataItem.rLock();
+        try {
+            return isChained(dataItem.data());
+        } finally {
+            dataItem.rUnLock();
+        }
+    }
+
+    private static boolean isChained(SubArray sa) {
+        return (sa.raw[sa.start + OF_XMIN] & 0x80) != 0;
+    }
+
+    /**
+     * HOT 更新产生的下一个版本的 UID，没有时返回 0
+     * @return
+     */
+    public long getNext() {
+        dataItem.rLock();
+        try {
+            SubArray sa = dataItem.data();
+            if(!isChained(sa)) {
+                return 0;
+            }
+            return Parser.parseLong(sa.raw, sa.start+OF_NEXT);
+        } finally {
+            dataItem.rUnLock();
+        }
+    }
+
+    /**
+     * 链接下一个版本，与 setXmax 一样先 before 再 after，修改会落日志
+     * @param next
+     * @param tid
+     */
+    public void setNext(long next, long tid) {
+        dataItem.before();
+        try {
+            SubArray sa = dataItem.data();
+            System.arraycopy(Parser.long2Byte(next), 0, sa.raw, sa.start+OF_NEXT, 8);
+        }finally {
+            dataItem.after(tid);
+        }
+    }
+
+    /**
+     * HOT 更新时删除这个版本并链接新版本，两处修改只落一条日志
+     * @param tid
+     * @param next
+     */
+    public void setXmaxAndNext(long tid, long next) {
+        dataItem.before();
+        try {
+            SubArray sa = dataItem.data();
+            System.arraycopy(Parser.long2Byte(tid), 0, sa.raw, sa.start+OF_XMAX, 8);
+            System.arraycopy(Parser.long2Byte(next), 0, sa.raw, sa.start+OF_NEXT, 8);
+        }finally {
+            dataItem.after(tid);
+        }
+    }
+
     public long getUid() {
         return uid;
     }
@@ -3,6 +3,7 @@ package com.pjh.mydb.backend.vm;
 import com.pjh.mydb.common.Error;
 
 import java.util.*;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
@@ -16,7 +17,7 @@ public class LockTable {
     private Map<Long, List<Long>> t2u;  // 某个TID已经获得的资源的UID列表
     private Map<Long, Long> u2t;        // UID被某个TID持有
     private Map<Long, List<Long>> wait; // 正在等待UID的TID列表
-    private Map<Long, Lock> waitLock;   // 正在等待资源的TID的锁
+    private Map<Long, CountDownLatch> waitLock;   // 正在等待资源的TID的锁
     private Map<Long, Long> waitU;      // TID正在等待的UID
     private Lock lock;
 
@@ -34,10 +35,10 @@ public class LockTable {
      * 如果检测到死锁，就撤销这条边，不允许添加，并撤销该事务。
      *
      *
-     * 不需要等待则返回null，否则返回锁对象
+     * 不需要等待则返回null，否则返回锁对象，在获得资源时打开
      * 会造成死锁则抛出异常
      */
-    public Lock add(long tid, long uid) throws Exception{
+    public CountDownLatch add(long tid, long uid) throws Exception{
         lock.lock();
         try {
             // 如果需要添加的资源已经在当前事务持有的资源的集合中了
@@ -63,16 +64,15 @@ public class LockTable {
                 throw Error.DeadlockException;
             }
             /**
-             * 如果需要等待的话，会返回一个上了锁的 Lock 对象。调用方在获取到该对象时，需要尝试获取该对象的锁，
-             * 由此实现阻塞线程的目的
-             * Lock l = lt.add(xid, uid);
+             * 如果需要等待的话，会返回一个尚未打开的 CountDownLatch，调用方在其上等待，由此实现阻塞线程的目的
+             * CountDownLatch l = lt.add(xid, uid);
              * if(l != null) {
-             *     l.lock();   // 阻塞在这一步
-             *     l.unlock();
+             *     l.await();   // 阻塞在这一步
              * }
+             * 不使用 ReentrantLock：它属于加锁的线程，等待的线程再次 lock() 不会阻塞，而由其他线程 unlock() 会抛出异常。
+             * 服务器在工作线程池中执行语句，同一事务的语句不一定在同一个线程中执行
              */
-            Lock l = new ReentrantLock();
-            l.lock();
+            CountDownLatch l = new CountDownLatch(1);
             waitLock.put(tid, l);
             return l;
         }finally {
@@ -117,9 +117,11 @@ public class LockTable {
                 continue;
             }else {
                 u2t.put(uid, tid);
-                Lock lo = waitLock.remove(tid);
+                // 资源交给等待的事务后也要记入它持有的资源，否则它结束时不会释放这个资源，之后等待的事务永远无法被唤醒
+                putIntoList(t2u, tid, uid);
+                CountDownLatch lo = waitLock.remove(tid);
                 waitU.remove(tid);
-                lo.unlock();
+                lo.countDown();
                 break;
             }
         }
@@ -0,0 +1,15 @@
+package com.pjh.mydb.backend.vm;
+
+/**
+ * 沿版本链读到的可见版本
+ *
+ * @author Joseph Peng
+ * @date 2026/10/19 22:40
+ */
+public class ReadRes {
+    // 可见版本的 UID，不一定是开始查找的 UID
+    public long uid;
+    public byte[] data;
+    // 该版本能否链接 HOT 更新的新版本
+    public boolean chained;
+}
@@ -3,14 +3,22 @@ package com.pjh.mydb.backend.vm;
 import com.pjh.mydb.backend.dm.DataManager;
 import com.pjh.mydb.backend.tm.TransactionManager;
 
+import java.util.List;
+
 /**
  * VM 层通过 VersionManager 接口，向上层提供功能
  */
 public interface VersionManager {
 
     byte[] read(long tid, long uid) throws Exception;
+    byte[] readAnyVersion(long uid) throws Exception;
     long insert(long tid, byte[] data) throws Exception;
+    long[] insert(long tid, List<byte[]> data) throws Exception;
     boolean delete(long tid, long uid) throws Exception;
+    ReadRes readVersion(long tid, long uid) throws Exception;
+    long update(long tid, long uid, byte[] data, boolean hot) throws Exception;
+    long nextVersion(long uid) throws Exception;
+    void cutVersionChain(long uid) throws Exception;
 
     long begin(int level);
     void commit(long tid) throws Exception;
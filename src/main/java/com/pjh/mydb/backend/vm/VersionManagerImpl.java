@@ -3,12 +3,17 @@ package com.pjh.mydb.backend.vm;
 import com.pjh.mydb.common.Error;
 import com.pjh.mydb.backend.common.AbstractCache;
 import com.pjh.mydb.backend.dm.DataManager;
+import com.pjh.mydb.backend.stats.Stats;
 import com.pjh.mydb.backend.tm.TransactionManager;
 import com.pjh.mydb.backend.tm.TransactionManagerImpl;
+import com.pjh.mydb.backend.utils.Log;
 import com.pjh.mydb.backend.utils.Panic;
 
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
@@ -53,8 +58,21 @@ public class VersionManagerImpl extends AbstractCache<Entry> implements VersionM
         entry.remove();
     }
 
+    /**
+     * 读取 uid 处对当前事务可见的版本，不可见时沿 HOT 版本链继续查找
+     */
     @Override
     public byte[] read(long tid, long uid) throws Exception {
+        ReadRes res = readVersion(tid, uid);
+        return res == null ? null : res.data;
+    }
+
+    /**
+     * 与 read 相同，同时返回可见版本的 UID，更新时据此删除这个版本
+     */
+    @Override
+    public ReadRes readVersion(long tid, long uid) throws Exception {
+        Stats.rowScanned();
         lock.lock();
         Transaction t = activeTransaction.get(tid);
         lock.unlock();
@@ -63,6 +81,55 @@ public class VersionManagerImpl extends AbstractCache<Entry> implements VersionM
             throw t.err;
         }
 
+        Entry entry = visibleEntry(t, uid);
+        if(entry == null) {
+            return null;
+        }
+        try {
+            ReadRes res = new ReadRes();
+            res.uid = entry.getUid();
+            res.data = entry.data();
+            res.chained = entry.isChained();
+            return res;
+        }finally {
+            entry.release();
+        }
+    }
+
+    /**
+     * 从 uid 开始沿 HOT 版本链查找对事务 t 可见的版本，返回的 entry 需要由调用方释放，没有时返回 null。
+     * 链上的版本依次由前一个版本的删除者创建，至多有一个对 t 可见
+     */
+    private Entry visibleEntry(Transaction t, long uid) throws Exception {
+        while (uid != 0) {
+            Entry entry = null;
+            try {
+                entry = super.get(uid);
+            }catch (Exception e){
+                if(e == Error.NullEntryException) {
+                    return null;
+                } else {
+                    throw e;
+                }
+            }
+            if(Visibility.isVisible(tm, t, entry)) {
+                return entry;
+            }
+            uid = entry.getNext();
+            entry.release();
+        }
+        return null;
+    }
+
+    /**
+     * 不做可见性判断，直接读出 uid 处版本的数据。
+     * 用于补建索引等需要遍历所有版本的场景，已被撤销（无效）的数据返回 null。
+     * @param uid
+     * @return
+     * @throws Exception
+     */
+    @Override
+    public byte[] readAnyVersion(long uid) throws Exception {
         Entry entry = null;
         try {
             entry = super.get(uid);
@@ -75,11 +142,7 @@ public class VersionManagerImpl extends AbstractCache<Entry> implements VersionM
         }
 
         try {
-            if (Visibility.isVisible(tm, t, entry)){
-                return entry.data();
-            }else {
-                return null;
-            }
+            return entry.data();
         }finally {
             entry.release();
         }
@@ -99,6 +162,29 @@ public class VersionManagerImpl extends AbstractCache<Entry> implements VersionM
         return dm.insert(tid, raw);
     }
 
+    /**
+     * 批量插入同一事务的多条记录，返回的 UID 与 data 一一对应
+     */
+    @Override
+    public long[] insert(long tid, List<byte[]> data) throws Exception {
+        lock.lock();
+        Transaction t = activeTransaction.get(tid);
+        lock.unlock();
+
+        if(t.err != null) {
+            throw t.err;
+        }
+
+        List<byte[]> raws = new ArrayList<>(data.size());
+        for (byte[] d : data) {
+            raws.add(Entry.wrapEntryRaw(tid, d));
+        }
+        return dm.insert(tid, raws);
+    }
+
+    /**
+     * 删除 uid 开始的版本链上对当前事务可见的版本
+     */
     @Override
     public boolean delete(long tid, long uid) throws Exception {
         lock.lock();
@@ -109,56 +195,135 @@ public class VersionManagerImpl extends AbstractCache<Entry> implements VersionM
             throw t.err;
         }
 
+        Entry entry = visibleEntry(t, uid);
+        while (entry != null) {
+            long next;
+            try {
+                if(lockVersion(tid, t, entry)) {
+                    entry.setXmax(tid);
+                    return true;
+                }
+                // 等待期间这个版本已被其他事务删除并提交，如果是更新，沿版本链找到新的可见版本
+                next = entry.getNext();
+            }finally {
+                entry.release();
+            }
+            entry = visibleEntry(t, next);
+        }
+        return false;
+    }
+
+    /**
+     * 把 uid 处的版本更新为 data：插入新版本后删除旧版本。
+     * hot 为 true 时新版本不会进入索引，把它链接在旧版本之后，并尽量放在旧版本所在的页中，
+     * 此时旧版本必须能链接后继版本（ReadRes.chained）。
+     * @return 新版本的 UID；uid 处的版本已不可见（等待期间被其他事务删除或更新并提交）时返回 0，调用方需要重新读取
+     */
+    @Override
+    public long update(long tid, long uid, byte[] data, boolean hot) throws Exception {
+        lock.lock();
+        Transaction t = activeTransaction.get(tid);
+        lock.unlock();
+
+        if(t.err != null) {
+            throw t.err;
+        }
+
         Entry entry = null;
         try {
             entry = super.get(uid);
         }catch (Exception e){
             if(e == Error.NullEntryException) {
-                return false;
+                return 0;
             } else {
                 throw e;
             }
         }
 
         try {
-            if(!Visibility.isVisible(tm, t, entry)) {
-                return false;
+            if(!Visibility.isVisible(tm, t, entry) || !lockVersion(tid, t, entry)) {
+                return 0;
             }
-            Lock l = null;
-            try {
-                l = lt.add(tid, uid);
-            }catch (Exception e){
-                t.err = Error.ConcurrentUpdateException;
-                internAbort(tid, true);
-                t.autoAborted = true;
-                throw t.err;
+            long next = dm.insert(tid, Entry.wrapEntryRaw(tid, data), hot ? uid : 0);
+            if(hot) {
+                entry.setXmaxAndNext(tid, next);
+            } else {
+                entry.setXmax(tid);
             }
+            return next;
+        }finally {
+            entry.release();
+        }
+    }
 
-            if(l != null) {
-                /**
-                 * l.lock()和l.unlock()应该是因为通过add()方法返回的xid的锁是锁定状态的，
-                 * 此时是xid对应的事务在等待资源，然后等到xid等待的资源获取到之后，这个锁会unlock()。
-                 * 所以在xid对应的事务还没获取到资源之前执行l.lock()会一直阻塞直到该事务获取到资源才能执行l.lock()。
-                 * 这里l.lock()只是判断事务有没有获取到资源，获取到之后成功执行，然后就需要unlock()了
-                 */
-                l.lock();
-                l.unlock();
-            }
+    /**
+     * 删除对事务 t 可见的版本 entry 之前加锁，其他事务正在修改这个版本时等待它结束。
+     * 返回 true 时可以删除；等待期间这个版本已被其他事务删除并提交（读已提交）时返回 false
+     */
+    private boolean lockVersion(long tid, Transaction t, Entry entry) throws Exception {
+        CountDownLatch l = null;
+        try {
+            l = lt.add(tid, entry.getUid());
+        }catch (Exception e){
+            t.err = Error.ConcurrentUpdateException;
+            internAbort(tid, true);
+            t.autoAborted = true;
+            throw t.err;
+        }
 
-            if(entry.getXmax() == tid) {
-                return false;
-            }
+        if(l != null) {
+            // 阻塞直到持有资源的事务结束、资源交给当前事务
+            long start = System.nanoTime();
+            l.await();
+            Stats.lockWaited(System.nanoTime() - start);
+        }
 
-            if(Visibility.isVersionSkip(tm, t, entry)) {
-                t.err = Error.ConcurrentUpdateException;
-                internAbort(tid, true);
-                t.autoAborted = true;
-                throw t.err;
+        if(entry.getXmax() == tid) {
+            return false;
+        }
+
+        if(Visibility.isVersionSkip(tm, t, entry)) {
+            t.err = Error.ConcurrentUpdateException;
+            internAbort(tid, true);
+            t.autoAborted = true;
+            throw t.err;
+        }
+
+        return Visibility.isVisible(tm, t, entry);
+    }
+
+    /**
+     * 不做可见性判断，返回 uid 处版本链接的下一个版本，没有时返回 0
+     */
+    @Override
+    public long nextVersion(long uid) throws Exception {
+        Entry entry = null;
+        try {
+            entry = super.get(uid);
+        }catch (Exception e){
+            if(e == Error.NullEntryException) {
+                return 0;
+            } else {
+                throw e;
             }
+        }
 
-            entry.setXmax(tid);
+        try {
+            return entry.getNext();
+        }finally {
+            entry.release();
+        }
+    }
 
-            return true;
+    /**
+     * 断开 uid 处版本与下一个版本的链接，之后下一个版本需要由索引直接指向。
+     * 以超级事务的身份修改，不会被撤销
+     */
+    @Override
+    public void cutVersionChain(long uid) throws Exception {
+        Entry entry = super.get(uid);
+        try {
+            entry.setNext(0, TransactionManagerImpl.SUPER_TID);
         }finally {
             entry.release();
         }
@@ -197,15 +362,16 @@ public class VersionManagerImpl extends AbstractCache<Entry> implements VersionM
                 throw t.err;
             }
         }catch (NullPointerException e){
-            System.out.println(tid);
-            System.out.println(activeTransaction.keySet());
+            Log.get("vm").error("Commit unknown transaction " + tid + ", active " + activeTransaction.keySet(), e);
             Panic.panic(e);
         }
+        // 先标记为已提交再释放锁：被唤醒的事务看到的删除者必须已经提交，否则会把已删除的旧版本当作可见的再更新一次；
+        // 同样先提交再移出活跃事务，此后开始的事务不会在提交之前认为它已经结束
+        tm.commit(tid);
         lock.lock();
         activeTransaction.remove(tid);
         lock.unlock();
         lt.remove(tid);
-        tm.commit(tid);
     }
 
     @Override
@@ -1,28 +1,370 @@
 package com.pjh.mydb.client;
 
+import com.pjh.mydb.common.Error;
+import com.pjh.mydb.transport.Encoder;
 import com.pjh.mydb.transport.Package;
 import com.pjh.mydb.transport.Packager;
+import com.pjh.mydb.transport.Transporter;
+
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
 
 /**
  * @author Joseph Peng
  * @date 2022/8/4 21:53
  */
 public class Client {
+    // load 时每次发送的数据量
+    private static final int LOAD_CHUNK = 1 << 16;
+    // track 对 load 期间发送的数据返回的值
+    private static final String DATA = "\\.";
+
     private RoundTripper rt;
+    // 会话状态：执行过 begin，预编译的语句，正在 load。归还给 ClientPool 时据此重置会话
+    private volatile boolean begun;
+    private final Set<String> prepared = ConcurrentHashMap.newKeySet();
+    private volatile boolean loading;
 
     public Client(Packager packager) {
         this.rt = new RoundTripper(packager);
     }
 
+    /**
+     * 连接到 host:port 上的服务器，使用二进制协议
+     */
+    public static Client connect(String host, int port) throws Exception {
+        return connect(host, port, false);
+    }
+
+    /**
+     * 连接到 host:port 上的服务器，compress 为 true 时要求压缩较大的帧，适合带宽有限、结果较大的连接
+     */
+    public static Client connect(String host, int port, boolean compress) throws Exception {
+        Socket socket = new Socket(host, port);
+        try {
+            return new Client(new Packager(Transporter.connect(socket, compress), new Encoder()));
+        } catch (Exception e) {
+            socket.close();
+            throw e;
+        }
+    }
+
     public byte[] execute(byte[] stat) throws Exception {
+        String word = track(stat);
         Package pkg = new Package(stat, null);
         Package resPkg = rt.roundTrip(pkg);
+        tracked(word, stat, resPkg);
         if(resPkg.getErr() != null) {
             throw resPkg.getErr();
         }
         return resPkg.getData();
     }
 
+    /**
+     * 执行查询，通过返回的 Cursor 逐行读取结果，结果很大时不需要全部放在内存中。
+     * 服务器支持时结果以类型化的行集返回，客户端直接读出各列的值，不需要解析文本
+     */
+    public Cursor query(byte[] stat) throws Exception {
+        track(stat);
+        boolean rows = rt.version() >= Transporter.ROWS_VERSION;
+        return new Cursor(rt.query(rows ? Package.rows(stat) : new Package(stat, null)), rows);
+    }
+
+    /**
+     * 发送语句后立即返回，不等待执行结果。可以连续发送多条语句，服务器按发送的顺序依次执行
+     */
+    public CompletableFuture<byte[]> executeAsync(byte[] stat) throws Exception {
+        String word = track(stat);
+        return rt.send(new Package(stat, null)).thenApply(res -> {
+            tracked(word, stat, res);
+            return unwrap(res);
+        });
+    }
+
+    /**
+     * 在一次往返中按顺序执行一批语句，某条语句出错时后面的语句仍会执行。
+     * 返回与 stats 一一对应的结果，出错的语句 getErr() 不为 null
+     */
+    public List<Package> executeBatch(List<byte[]> stats) throws Exception {
+        if(!batchSupported()) {
+            return get(executeBatchAsync(stats));
+        }
+        List<String> words = new ArrayList<>(stats.size());
+        return batchResults(stats, words, rt.roundTrip(batchOf(stats, words)));
+    }
+
+    /**
+     * executeBatch 的异步版本
+     */
+    public CompletableFuture<List<Package>> executeBatchAsync(List<byte[]> stats) throws Exception {
+        if(batchSupported()) {
+            List<String> words = new ArrayList<>(stats.size());
+            return rt.send(batchOf(stats, words)).thenApply(res -> batchResults(stats, words, res));
+        }
+        // 服务器不支持批量消息，把语句逐条流水线发送
+        List<CompletableFuture<Package>> futures = new ArrayList<>(stats.size());
+        for (byte[] stat : stats) {
+            String word = track(stat);
+            futures.add(rt.send(new Package(stat, null)).thenApply(res -> {
+                tracked(word, stat, res);
+                return res;
+            }));
+        }
+        return CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).thenApply(v -> {
+            List<Package> results = new ArrayList<>(futures.size());
+            for (CompletableFuture<Package> f : futures) {
+                results.add(f.join());
+            }
+            return results;
+        });
+    }
+
+    private boolean batchSupported() {
+        return rt.version() >= Transporter.REQUEST_ID_VERSION;
+    }
+
+    /**
+     * 把 stats 打包为一条批量消息，每条语句 track 的结果依次放入 words
+     */
+    private Package batchOf(List<byte[]> stats, List<String> words) {
+        List<Package> batch = new ArrayList<>(stats.size());
+        for (byte[] stat : stats) {
+            words.add(track(stat));
+            batch.add(new Package(stat, null));
+        }
+        return new Package(batch);
+    }
+
+    private List<Package> batchResults(List<byte[]> stats, List<String> words, Package resPkg) {
+        if(resPkg.getBatch() == null) {
+            // 整批都没有执行，例如消息无法解析
+            throw new CompletionException(resPkg.getErr() != null ? resPkg.getErr() : Error.InvalidPkgDataException);
+        }
+        List<Package> results = resPkg.getBatch();
+        for (int i = 0; i < results.size() && i < stats.size(); i++) {
+            tracked(words.get(i), stats.get(i), results.get(i));
+        }
+        return results;
+    }
+
+    private static byte[] unwrap(Package resPkg) {
+        if(resPkg.getErr() != null) {
+            throw new CompletionException(resPkg.getErr());
+        }
+        return resPkg.getData();
+    }
+
+    private static <T> T get(CompletableFuture<T> f) throws Exception {
+        try {
+            return f.get();
+        } catch (ExecutionException e) {
+            throw (Exception) e.getCause();
+        }
+    }
+
+    /**
+     * 在服务器上预编译 sql，sql 中的值可以写成参数占位符 ?，之后用 execute(name, params) 执行
+     */
+    public byte[] prepare(String name, String sql) throws Exception {
+        return execute(("prepare " + name + " as " + sql).getBytes());
+    }
+
+    /**
+     * 按出现顺序绑定参数，执行预编译的语句
+     */
+    public byte[] execute(String name, String... params) throws Exception {
+        StringBuilder sb = new StringBuilder("execute ").append(name);
+        for (String param : params) {
+            // 参数一律加上引号，取值中没有出现的那种
+            char quote = param.indexOf('"') < 0 ? '"' : '\'';
+            if(param.indexOf(quote) >= 0) {
+                throw Error.InvalidValuesException;
+            }
+            sb.append(' ').append(quote).append(param).append(quote);
+        }
+        return execute(sb.toString().getBytes());
+    }
+
+    /**
+     * 把 rows 导入表 tableName。每行的值以制表符分隔，攒够 LOAD_CHUNK 个字符发送一次，最后发送结束标记 \.
+     * @return 服务器返回的导入行数
+     */
+    public byte[] load(String tableName, Iterable<String[]> rows) throws Exception {
+        execute(("load into " + tableName).getBytes());
+        try {
+            StringBuilder sb = new StringBuilder();
+            for (String[] row : rows) {
+                for (int i = 0; i < row.length; i++) {
+                    if(i > 0) {
+                        sb.append('\t');
+                    }
+                    escape(sb, row[i]);
+                }
+                sb.append('\n');
+                if(sb.length() >= LOAD_CHUNK) {
+                    execute(sb.toString().getBytes());
+                    sb.setLength(0);
+                }
+            }
+            sb.append("\\.");
+            return execute(sb.toString().getBytes());
+        } finally {
+            if(loading) {
+                // 数据没有发送完就出错（如读取 rows 时抛出异常），服务器仍在导入，之后的语句都会被当作数据，只能关闭连接
+                loading = false;
+                rt.abandon(Error.ConnectionClosedException);
+            }
+        }
+    }
+
+    private static void escape(StringBuilder sb, String value) {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '\t': sb.append("\\t"); break;
+                case '\n': sb.append("\\n"); break;
+                case '\\': sb.append("\\\\"); break;
+                default: sb.append(c);
+            }
+        }
+    }
+
+    /**
+     * 发送语句之前记录会改变会话状态的语句，只检查开头的关键字，返回小写的关键字；load 期间发送的是数据，返回 DATA。
+     * begin、prepare 和 deallocate 在发送时记录，失败时多记的状态在 reset 中清理也不会出错；
+     * commit、abort 和 load 的效果要等 tracked 看到执行结果再记录
+     */
+    private String track(byte[] stat) {
+        if(loading) {
+            return DATA;
+        }
+        int start = skipSpaces(stat, 0);
+        int end = wordEnd(stat, start);
+        if(end - start > 10) {
+            return "";
+        }
+        String word = new String(stat, start, end - start, StandardCharsets.UTF_8).toLowerCase();
+        switch (word) {
+            case "begin":
+                begun = true;
+                break;
+            case "prepare":
+            case "deallocate":
+                int from = skipSpaces(stat, end);
+                String name = new String(stat, from, wordEnd(stat, from) - from, StandardCharsets.UTF_8);
+                if("prepare".equals(word)) {
+                    prepared.add(name);
+                } else {
+                    prepared.remove(name);
+                }
+                break;
+        }
+        return word;
+    }
+
+    /**
+     * 收到语句的回复后记录它对会话状态的影响，word 是 track 的返回值
+     */
+    private void tracked(String word, byte[] stat, Package res) {
+        boolean ok = res.getErr() == null;
+        switch (word) {
+            case "commit":
+            case "abort":
+                if(ok) {
+                    begun = false;
+                }
+                break;
+            case "load":
+                // 服务器确认之后才进入导入模式，表不存在等错误时不进入
+                if(ok) {
+                    loading = true;
+                }
+                break;
+            case DATA:
+                // 数据出错时服务器结束导入、回滚事务，遇到结束标记时结束导入
+                if(!ok || endsLoad(stat)) {
+                    loading = false;
+                }
+                break;
+        }
+    }
+
+    /**
+     * 一段导入数据是否以结束标记 \. 这一行结束
+     */
+    private static boolean endsLoad(byte[] data) {
+        int end = data.length;
+        while (end > 0 && (data[end - 1] == '\n' || data[end - 1] == '\r')) {
+            end --;
+        }
+        return end >= 2 && data[end - 2] == '\\' && data[end - 1] == '.' && (end == 2 || data[end - 3] == '\n');
+    }
+
+    private static int skipSpaces(byte[] stat, int i) {
+        while (i < stat.length && Character.isWhitespace(stat[i])) {
+            i ++;
+        }
+        return i;
+    }
+
+    private static int wordEnd(byte[] stat, int i) {
+        while (i < stat.length && !Character.isWhitespace(stat[i])) {
+            i ++;
+        }
+        return i;
+    }
+
+    /**
+     * 向服务器发送空语句，收到回复即说明连接可用
+     */
+    boolean ping() {
+        try {
+            rt.roundTrip(new Package(new byte[0], null));
+            return true;
+        } catch (Exception e) {
+            return !rt.isBroken();
+        }
+    }
+
+    /**
+     * 连接不能再交给下一个使用者：已经出错、还有没收到的回复（包括没有读完的 Cursor），或者 load 没有结束
+     */
+    boolean isDirty() {
+        return rt.isBroken() || rt.hasPending() || loading;
+    }
+
+    /**
+     * 回滚可能没有结束的事务，释放预编译的语句，在一次往返中完成。返回连接是否仍然可用
+     */
+    boolean reset() {
+        List<byte[]> stats = new ArrayList<>();
+        if(begun) {
+            // 事务已经结束时服务器返回错误，忽略即可
+            stats.add("abort".getBytes());
+        }
+        for (String name : prepared) {
+            stats.add(("deallocate " + name).getBytes());
+        }
+        if(stats.isEmpty()) {
+            return true;
+        }
+        try {
+            executeBatch(stats);
+        } catch (Exception e) {
+            return false;
+        }
+        begun = false;
+        prepared.clear();
+        return !rt.isBroken();
+    }
+
     public void close() {
         try {
             rt.close();
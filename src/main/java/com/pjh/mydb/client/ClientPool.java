@@ -0,0 +1,280 @@
+package com.pjh.mydb.client;
+
+import com.pjh.mydb.common.Error;
+
+import java.io.Closeable;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * ClientPool 是线程安全的连接池，复用到同一服务器的连接，请求不需要等待建立连接和握手。
+ * borrow 借出一个 Client，用完后必须 release；只执行一条语句时可以直接调用 execute。
+ *
+ * 后台线程保持至少 minIdle 个空闲连接，借出使空闲连接少于 minIdle 时立即补充，
+ * 超过 minIdle 的空闲连接空闲 IDLE_TIMEOUT 后关闭；归还时空闲连接已有 maxIdle 个则直接关闭。
+ * 连接总数不超过 maxTotal，都已借出时 borrow 至多等待 maxWait 毫秒。
+ * 空闲超过 VALIDATE_AFTER 的连接借出前先发送空语句检查是否可用，不可用时关闭并换一个。
+ *
+ * 服务器上每个连接是一个会话，归还时回滚借用者可能没有结束的事务、释放它预编译的语句，
+ * 下一个借用者得到的会话与新建的连接相同；连接出错、还有没读完的结果或 load 没有结束时不再复用。
+ *
+ * @author Joseph Peng
+ * @date 2026/10/20 01:20
+ */
+public class ClientPool implements Closeable {
+
+    public static final int DEFAULT_MIN_IDLE = 2;
+    public static final int DEFAULT_MAX_IDLE = 8;
+    public static final int DEFAULT_MAX_TOTAL = 32;
+    public static final long DEFAULT_MAX_WAIT = 5000;
+    // 空闲超过这么久的连接借出前先检查
+    private static final long VALIDATE_AFTER = 5000;
+    // 超过 minIdle 的空闲连接空闲这么久后关闭
+    private static final long IDLE_TIMEOUT = 60000;
+    // 后台线程检查空闲连接的间隔
+    private static final long MAINTAIN_INTERVAL = 1000;
+
+    private final String host;
+    private final int port;
+    private final int minIdle, maxIdle, maxTotal;
+    private final long maxWait;
+
+    private final Lock lock = new ReentrantLock();
+    private final Condition available = lock.newCondition();
+    // 空闲的连接，最近归还的在前面，借出时优先使用
+    private final Deque<Idle> idle = new ArrayDeque<>();
+    // 已经建立和正在建立的连接数
+    private int total;
+    private boolean closed;
+    private final ScheduledExecutorService maintainer;
+
+    private static class Idle {
+        Client client;
+        long since;
+
+        Idle(Client client, long since) {
+            this.client = client;
+            this.since = since;
+        }
+    }
+
+    public ClientPool(String host, int port) throws Exception {
+        this(host, port, DEFAULT_MIN_IDLE, DEFAULT_MAX_IDLE, DEFAULT_MAX_TOTAL, DEFAULT_MAX_WAIT);
+    }
+
+    public ClientPool(String host, int port, int minIdle, int maxIdle, int maxTotal, long maxWait) throws Exception {
+        if(minIdle < 0 || minIdle > maxIdle || maxIdle > maxTotal || maxTotal <= 0 || maxWait < 0) {
+            throw Error.InvalidPoolConfigException;
+        }
+        this.host = host;
+        this.port = port;
+        this.minIdle = minIdle;
+        this.maxIdle = maxIdle;
+        this.maxTotal = maxTotal;
+        this.maxWait = maxWait;
+        this.maintainer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "mydb-client-pool");
+            t.setDaemon(true);
+            return t;
+        });
+        maintainer.execute(this::fill);
+        maintainer.scheduleWithFixedDelay(this::maintain, MAINTAIN_INTERVAL, MAINTAIN_INTERVAL, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 借出一个连接，没有空闲的连接时新建，连接数已满时等待其他线程归还
+     */
+    public Client borrow() throws Exception {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(maxWait);
+        while (true) {
+            Idle i;
+            lock.lock();
+            try {
+                while (true) {
+                    if(closed) {
+                        throw Error.PoolClosedException;
+                    }
+                    i = idle.pollFirst();
+                    if(i != null || total < maxTotal) {
+                        break;
+                    }
+                    long left = deadline - System.nanoTime();
+                    if(left <= 0) {
+                        throw Error.PoolTimeoutException;
+                    }
+                    available.awaitNanos(left);
+                }
+                if(i == null) {
+                    total ++;
+                }
+                if(idle.size() < minIdle) {
+                    maintainer.execute(this::fill);
+                }
+            } finally {
+                lock.unlock();
+            }
+            if(i == null) {
+                try {
+                    return Client.connect(host, port);
+                } catch (Exception e) {
+                    discard(null);
+                    throw e;
+                }
+            }
+            if(System.currentTimeMillis() - i.since < VALIDATE_AFTER || i.client.ping()) {
+                return i.client;
+            }
+            discard(i.client);
+        }
+    }
+
+    /**
+     * 归还借出的连接，先重置会话；连接不能复用时关闭
+     */
+    public void release(Client client) {
+        if(client.isDirty() || !client.reset()) {
+            discard(client);
+            return;
+        }
+        lock.lock();
+        try {
+            if(!closed && idle.size() < maxIdle) {
+                idle.addFirst(new Idle(client, System.currentTimeMillis()));
+                available.signal();
+                return;
+            }
+            total --;
+            available.signal();
+        } finally {
+            lock.unlock();
+        }
+        client.close();
+    }
+
+    /**
+     * 借出一个连接执行一条语句后立即归还
+     */
+    public byte[] execute(byte[] stat) throws Exception {
+        Client client = borrow();
+        try {
+            return client.execute(stat);
+        } finally {
+            release(client);
+        }
+    }
+
+    /**
+     * 空闲的连接数
+     */
+    public int idleCount() {
+        lock.lock();
+        try {
+            return idle.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 已经建立的连接数，包括借出的和空闲的
+     */
+    public int totalCount() {
+        lock.lock();
+        try {
+            return total;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void discard(Client client) {
+        lock.lock();
+        try {
+            total --;
+            available.signal();
+        } finally {
+            lock.unlock();
+        }
+        if(client != null) {
+            client.close();
+        }
+    }
+
+    /**
+     * 在后台线程中补足 minIdle 个空闲连接，无法连接时等到下一次检查再试
+     */
+    private void fill() {
+        while (true) {
+            lock.lock();
+            try {
+                if(closed || idle.size() >= minIdle || total >= maxTotal) {
+                    return;
+                }
+                total ++;
+            } finally {
+                lock.unlock();
+            }
+            Client client;
+            try {
+                client = Client.connect(host, port);
+            } catch (Exception e) {
+                discard(null);
+                return;
+            }
+            release(client);
+        }
+    }
+
+    /**
+     * 关闭空闲太久的多余连接，再补足 minIdle 个空闲连接
+     */
+    private void maintain() {
+        List<Client> expired = new ArrayList<>();
+        long now = System.currentTimeMillis();
+        lock.lock();
+        try {
+            while (idle.size() > minIdle && now - idle.peekLast().since >= IDLE_TIMEOUT) {
+                expired.add(idle.pollLast().client);
+                total --;
+            }
+        } finally {
+            lock.unlock();
+        }
+        for (Client client : expired) {
+            client.close();
+        }
+        fill();
+    }
+
+    /**
+     * 关闭所有空闲的连接，借出的连接在归还时关闭
+     */
+    @Override
+    public void close() {
+        List<Client> clients = new ArrayList<>();
+        lock.lock();
+        try {
+            closed = true;
+            for (Idle i : idle) {
+                clients.add(i.client);
+            }
+            total -= idle.size();
+            idle.clear();
+            available.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        maintainer.shutdownNow();
+        for (Client client : clients) {
+            client.close();
+        }
+    }
+}
@@ -0,0 +1,262 @@
+package com.pjh.mydb.client;
+
+import com.pjh.mydb.common.Error;
+import com.pjh.mydb.transport.Package;
+
+import java.io.Closeable;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Cursor 逐段读取一个查询的结果。除了正在读的一段，客户端至多缓存几段，缓存满时不再读取连接，
+ * 服务器写不出去，也就暂停执行查询，因此两端的内存都不随结果的大小增长。
+ * 用完后必须 close：未读完的结果会被读出并丢弃，之后才能读到同一连接上其他请求的回复。
+ *
+ * 结果是行集时（格式见 tbm.ResultBuffer），next 只定位当前行中各列的位置，getInt、getLong 和 getString
+ * 直接从收到的字节中读出值，不需要解析文本。结果是文本时（服务器不支持行集，或者是聚合查询和其他语句），
+ * columns 返回 null，每一行只有一列，是这一行的文本。
+ *
+ * @author Joseph Peng
+ * @date 2026/10/19 23:50
+ */
+public class Cursor implements Closeable {
+
+    private static final byte INT32 = 0, INT64 = 1, STRING = 2;
+
+    private final RoundTripper.Chunks chunks;
+    // 请求的是行集
+    private final boolean rows;
+    // 行集的列名和类型，结果是文本时为 null
+    private String[] names, types;
+    private byte[] kinds;
+    // 当前一段行集
+    private ByteBuffer buf;
+    // 当前行各列的值在 buf 中的位置，NULL 为 -1
+    private int[] offsets;
+    // 当前一段文本中的行，及当前行
+    private String[] lines = new String[0];
+    private int pos;
+    private String line;
+    // 已经取出第一段
+    private boolean started;
+    // 最后一段已经取出
+    private boolean done;
+
+    Cursor(RoundTripper.Chunks chunks, boolean rows) {
+        this.chunks = chunks;
+        this.rows = rows;
+    }
+
+    /**
+     * 各列的名称，结果是文本时返回 null
+     */
+    public String[] columns() throws Exception {
+        start();
+        return names;
+    }
+
+    /**
+     * 各列的类型，为 int32、int64 或 string，结果是文本时返回 null
+     */
+    public String[] types() throws Exception {
+        start();
+        return types;
+    }
+
+    /**
+     * 移到下一行，结果读完后返回 false
+     */
+    public boolean next() throws Exception {
+        start();
+        while (true) {
+            if(buf != null && buf.hasRemaining()) {
+                locate();
+                return true;
+            }
+            if(pos < lines.length) {
+                line = lines[pos++];
+                return true;
+            }
+            if(done) {
+                return false;
+            }
+            nextChunk();
+        }
+    }
+
+    public boolean isNull(int i) {
+        return names != null && offsets[i] < 0;
+    }
+
+    /**
+     * int32 列的值，NULL 时返回 0
+     */
+    public int getInt(int i) throws Exception {
+        if(kind(i) != INT32) {
+            throw Error.ColumnTypeMismatchException;
+        }
+        return offsets[i] < 0 ? 0 : buf.getInt(offsets[i]);
+    }
+
+    /**
+     * int32 或 int64 列的值，NULL 时返回 0
+     */
+    public long getLong(int i) throws Exception {
+        byte kind = kind(i);
+        if(kind == STRING) {
+            throw Error.ColumnTypeMismatchException;
+        }
+        if(offsets[i] < 0) {
+            return 0;
+        }
+        return kind == INT32 ? buf.getInt(offsets[i]) : buf.getLong(offsets[i]);
+    }
+
+    /**
+     * 第 i 列的值的文本，NULL 时返回 null；结果是文本时只有第 0 列，是整行的文本
+     */
+    public String getString(int i) throws Exception {
+        if(names == null) {
+            if(i != 0) {
+                throw new IndexOutOfBoundsException();
+            }
+            return line;
+        }
+        Object v = getObject(i);
+        return v == null ? null : v.toString();
+    }
+
+    /**
+     * 第 i 列的值，int32 为 Integer，int64 为 Long，string 为 String，NULL 为 null
+     */
+    public Object getObject(int i) throws Exception {
+        if(names == null) {
+            return getString(i);
+        }
+        if(offsets[i] < 0) {
+            return null;
+        }
+        switch (kinds[i]) {
+            case INT32:
+                return buf.getInt(offsets[i]);
+            case INT64:
+                return buf.getLong(offsets[i]);
+            default:
+                int length = buf.getInt(offsets[i]);
+                return new String(buf.array(), buf.arrayOffset() + offsets[i] + 4, length, StandardCharsets.UTF_8);
+        }
+    }
+
+    /**
+     * 取出至多 n 行，每行的值见 getObject，结果读完后返回空列表
+     */
+    public List<Object[]> fetch(int n) throws Exception {
+        List<Object[]> res = new ArrayList<>();
+        while (res.size() < n && next()) {
+            Object[] row = new Object[names == null ? 1 : names.length];
+            for (int i = 0; i < row.length; i++) {
+                row[i] = getObject(i);
+            }
+            res.add(row);
+        }
+        return res;
+    }
+
+    private byte kind(int i) {
+        if(names == null) {
+            return STRING;
+        }
+        return kinds[i];
+    }
+
+    private void start() throws Exception {
+        if(!started) {
+            started = true;
+            nextChunk();
+        }
+    }
+
+    private void nextChunk() throws Exception {
+        Package chunk = chunks.next();
+        done = !chunk.isPartial();
+        buf = null;
+        lines = new String[0];
+        pos = 0;
+        if(chunk.getErr() != null) {
+            throw chunk.getErr();
+        }
+        if(rows && (chunk.isRows() || chunk.isPartial())) {
+            buf = ByteBuffer.wrap(chunk.getData());
+            if(names == null) {
+                readHeader();
+            }
+            return;
+        }
+        String data = new String(chunk.getData());
+        if(!data.isEmpty()) {
+            lines = data.split("\n");
+        }
+    }
+
+    /**
+     * [ColumnCount]{[ColumnName][ColumnType]}
+     */
+    private void readHeader() throws Exception {
+        int n = buf.getInt();
+        names = new String[n];
+        types = new String[n];
+        kinds = new byte[n];
+        offsets = new int[n];
+        for (int i = 0; i < n; i++) {
+            names[i] = readString();
+            types[i] = readString();
+            switch (types[i]) {
+                case "int32": kinds[i] = INT32; break;
+                case "int64": kinds[i] = INT64; break;
+                case "string": kinds[i] = STRING; break;
+                default: throw Error.InvalidPkgDataException;
+            }
+        }
+    }
+
+    private String readString() {
+        int length = buf.getInt();
+        String s = new String(buf.array(), buf.arrayOffset() + buf.position(), length, StandardCharsets.UTF_8);
+        buf.position(buf.position() + length);
+        return s;
+    }
+
+    /**
+     * [NullBitmap][Value1]...[ValueM]，记下各列的位置，移到下一行的开头
+     */
+    private void locate() {
+        int bitmap = buf.position();
+        int p = bitmap + (kinds.length + 7) / 8;
+        for (int i = 0; i < kinds.length; i++) {
+            if((buf.get(bitmap + i / 8) >> (i % 8) & 1) != 0) {
+                offsets[i] = -1;
+                continue;
+            }
+            offsets[i] = p;
+            switch (kinds[i]) {
+                case INT32: p += 4; break;
+                case INT64: p += 8; break;
+                default: p += 4 + buf.getInt(p);
+            }
+        }
+        buf.position(p);
+    }
+
+    @Override
+    public void close() {
+        while (!done) {
+            try {
+                nextChunk();
+            } catch (Exception e) {
+                // 查询出错或连接断开，结果已经结束
+            }
+        }
+    }
+}
@@ -1,27 +1,265 @@
 package com.pjh.mydb.client;
 
+import com.pjh.mydb.common.Error;
 import com.pjh.mydb.transport.Packager;
 import com.pjh.mydb.transport.Package;
+import com.pjh.mydb.transport.Transporter;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Queue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
+ * RoundTripper 在一个连接上发送请求并取回回复。服务器按顺序执行同一连接上的请求，
+ * 所以请求可以连续发送（流水线），回复按发送的顺序依次对应到等待中的请求上，协议支持时再用请求编号校验。
+ *
+ * 同步的 roundTrip 由调用线程自己读取回复；第一次调用 send 后启动一个后台线程负责读取，之后所有回复都由它完成。
+ *
+ * 查询结果可能分成多段返回。roundTrip 和 send 把各段拼接成完整的结果；query 返回 Chunks，由调用方逐段取出，
+ * 已经到达、尚未取出的分段至多 MAX_CHUNKS 段，超过时停止读取连接，服务器随之停止发送。
+ *
  * @author Joseph Peng
  * @date 2022/8/4 21:54
  */
 public class RoundTripper {
 
     private Packager packager;
+    // 保证请求进入 pending 的顺序与发送的顺序相同
+    private final Lock sendLock = new ReentrantLock();
+    private final Lock receiveLock = new ReentrantLock();
+    // 已发送、尚未收到回复的请求
+    private final Queue<Pending> pending = new ConcurrentLinkedQueue<>();
+    // 上一个请求的编号
+    private int lastId;
+    private volatile Thread reader;
+    // 连接出错后，之后的请求都以这个错误结束
+    private volatile Exception broken;
+
+    // query 的结果中已经到达、尚未取出的分段数上限
+    private static final int MAX_CHUNKS = 4;
+
+    private static class Pending {
+        int id;
+        CompletableFuture<Package> future = new CompletableFuture<>();
+        // 拼接已经到达的分段
+        ByteArrayOutputStream parts;
+        // query 的分段，最后一个是结束的回复
+        BlockingQueue<Package> chunks;
+    }
+
+    /**
+     * 一个查询的结果分段
+     */
+    interface Chunks {
+        /**
+         * 取出下一段，isPartial() 为 false 时是最后一段，出错时 getErr() 不为 null
+         */
+        Package next() throws Exception;
+    }
 
     public RoundTripper(Packager packager) {
         this.packager = packager;
     }
 
     public Package roundTrip(Package pkg) throws Exception {
-        packager.send(pkg);
-        return packager.receive();
+        CompletableFuture<Package> future = enqueue(pkg, new Pending());
+        while (!future.isDone() && reader == null) {
+            receiveLock.lock();
+            try {
+                if(!future.isDone() && reader == null) {
+                    receiveOne();
+                }
+            } finally {
+                receiveLock.unlock();
+            }
+        }
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            throw (Exception) e.getCause();
+        }
+    }
+
+    /**
+     * 发送请求，不等待回复
+     */
+    public CompletableFuture<Package> send(Package pkg) throws Exception {
+        if(reader == null) {
+            startReader();
+        }
+        return enqueue(pkg, new Pending());
+    }
+
+    /**
+     * 发送查询，结果由调用方逐段取出。调用方必须取完所有分段，否则之后的回复无法读取
+     */
+    Chunks query(Package pkg) throws Exception {
+        Pending p = new Pending();
+        p.chunks = new LinkedBlockingQueue<>(MAX_CHUNKS);
+        enqueue(pkg, p);
+        return () -> {
+            while (true) {
+                Package chunk = p.chunks.poll();
+                if(chunk != null) {
+                    return chunk;
+                }
+                if(reader != null) {
+                    return p.chunks.take();
+                }
+                receiveLock.lock();
+                try {
+                    if(p.chunks.isEmpty() && reader == null) {
+                        receiveOne();
+                    }
+                } finally {
+                    receiveLock.unlock();
+                }
+            }
+        };
+    }
+
+    private CompletableFuture<Package> enqueue(Package pkg, Pending p) throws Exception {
+        sendLock.lock();
+        try {
+            if(broken != null) {
+                throw broken;
+            }
+            if(++lastId == 0) {
+                lastId = 1;
+            }
+            p.id = lastId;
+            pkg.setId(lastId);
+            pending.add(p);
+            try {
+                packager.send(pkg);
+            } catch (Exception e) {
+                fail(e);
+                throw e;
+            }
+        } finally {
+            sendLock.unlock();
+        }
+        return p.future;
+    }
+
+    private void startReader() {
+        sendLock.lock();
+        try {
+            if(reader != null) {
+                return;
+            }
+            Thread t = new Thread(() -> {
+                while (broken == null) {
+                    receiveLock.lock();
+                    try {
+                        receiveOne();
+                    } catch (Exception e) {
+                        // receiveOne 已经让所有等待中的请求失败
+                    } finally {
+                        receiveLock.unlock();
+                    }
+                }
+            }, "mydb-client-reader");
+            t.setDaemon(true);
+            // 已经在读取回复的同步调用读完当前这条回复后，改为等待后台线程
+            reader = t;
+            t.start();
+        } finally {
+            sendLock.unlock();
+        }
+    }
+
+    /**
+     * 读取一条回复，交给最早发送的请求
+     */
+    private void receiveOne() throws Exception {
+        Package res;
+        try {
+            res = packager.receive();
+        } catch (Exception e) {
+            fail(e);
+            throw e;
+        }
+        Pending p = pending.peek();
+        if(p == null || packager.version() >= Transporter.REQUEST_ID_VERSION && res.getId() != p.id) {
+            fail(Error.InvalidPkgDataException);
+            throw Error.InvalidPkgDataException;
+        }
+        if(p.chunks != null) {
+            // 队列满时阻塞，不再读取连接
+            p.chunks.put(res);
+        } else if(res.isPartial()) {
+            if(p.parts == null) {
+                p.parts = new ByteArrayOutputStream();
+            }
+            p.parts.write(res.getData());
+        } else if(p.parts != null && res.getErr() == null) {
+            p.parts.write(res.getData());
+            res = res.isRows() ? Package.rows(p.parts.toByteArray()) : new Package(p.parts.toByteArray(), null);
+        }
+        if(!res.isPartial()) {
+            pending.poll();
+            p.future.complete(res);
+        }
+    }
+
+    /**
+     * 连接出错，让所有等待中的请求失败
+     */
+    private void fail(Exception e) {
+        if(broken == null) {
+            broken = e;
+        }
+        Pending p;
+        while ((p = pending.poll()) != null) {
+            p.future.completeExceptionally(e);
+            if(p.chunks != null) {
+                p.chunks.clear();
+                p.chunks.offer(new Package(null, e));
+            }
+        }
+    }
+
+    /**
+     * 连接是否已经出错
+     */
+    boolean isBroken() {
+        return broken != null;
+    }
+
+    /**
+     * 是否还有已发送、尚未收到回复的请求，包括没有读完的 Cursor
+     */
+    boolean hasPending() {
+        return !pending.isEmpty();
+    }
+
+    /**
+     * 连接使用的协议版本
+     */
+    public int version() {
+        return packager.version();
     }
 
     public void close() throws Exception {
         packager.close();
     }
 
+    /**
+     * 连接处于无法恢复的状态时关闭它，之后的请求都以 cause 失败
+     */
+    void abandon(Exception cause) {
+        fail(cause);
+        try {
+            packager.close();
+        } catch (Exception e) {
+        }
+    }
+
 }
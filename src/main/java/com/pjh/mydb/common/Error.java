@@ -26,9 +26,13 @@ public class Error {
     public static final Exception ConcurrentUpdateException = new RuntimeException("Concurrent update issue!");
     public static final Exception NullEntryException = new RuntimeException("Null entry!");
 
+    // im
+    public static final Exception InvalidFanoutException = new RuntimeException("Invalid index fanout!");
+
     // parser
     public static final Exception InvalidCommandException = new RuntimeException("Invalid command!");
     public static final Exception TableNoIndexException = new RuntimeException("Table has no index!");
+    public static final Exception InvalidParamException = new RuntimeException("Invalid parameters!");
 
     // tbm
     public static final Exception InvalidFieldException = new RuntimeException("Invalid field type!");
@@ -36,15 +40,31 @@ public class Error {
     public static final Exception FieldNotIndexedException = new RuntimeException("Field not indexed!");
     public static final Exception InvalidLogOpException = new RuntimeException("Invalid logic operation!");
     public static final Exception InvalidValuesException = new RuntimeException("Invalid values!");
+    public static final Exception DivisionByZeroException = new RuntimeException("Division by zero!");
     public static final Exception DuplicatedTableException = new RuntimeException("Duplicated table!");
     public static final Exception TableNotFoundException = new RuntimeException("Table not found!");
+    public static final Exception DuplicatedIndexException = new RuntimeException("Field already indexed!");
+    public static final Exception InvalidAggregateException = new RuntimeException("Invalid aggregate!");
+    public static final Exception AmbiguousFieldException = new RuntimeException("Ambiguous field!");
+    public static final Exception InvalidJoinException = new RuntimeException("Invalid join!");
 
     // transport
     public static final Exception InvalidPkgDataException = new RuntimeException("Invalid package data!");
+    public static final Exception FrameTooLargeException = new RuntimeException("Frame too large!");
 
     // server
     public static final Exception NestedTransactionException = new RuntimeException("Nested transaction not supported!");
     public static final Exception NoTransactionException = new RuntimeException("Not in transaction!");
+    public static final Exception TransactionAbortedException = new RuntimeException("Transaction aborted!");
+    public static final Exception PreparedNotFoundException = new RuntimeException("Prepared statement not found!");
+    public static final Exception DuplicatedPreparedException = new RuntimeException("Duplicated prepared statement!");
+    public static final Exception ConnectionClosedException = new RuntimeException("Connection closed!");
+
+    // client
+    public static final Exception ColumnTypeMismatchException = new RuntimeException("Column type mismatch!");
+    public static final Exception PoolClosedException = new RuntimeException("Client pool closed!");
+    public static final Exception PoolTimeoutException = new RuntimeException("Timeout waiting for connection!");
+    public static final Exception InvalidPoolConfigException = new RuntimeException("Invalid pool config!");
 
     // launcher
     public static final Exception InvalidMemException = new RuntimeException("Invalid memory!");
@@ -0,0 +1,158 @@
+package com.pjh.mydb.transport;
+
+import com.pjh.mydb.common.Error;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compression 压缩和解压二进制协议中一帧的 data，使用 JDK 自带的 DEFLATE。
+ * 压缩后的 data 为 [RawLength][Deflated]，RawLength 为 4 字节，是压缩前的长度。
+ * 只压缩不短于 THRESHOLD 的 data，压缩后没有变短、或者压缩比超过 MAX_RATIO 时按原样发送。
+ * 解压时不轻信对方声明的 RawLength：它不能超过单帧的最大长度和压缩后长度的 MAX_RATIO 倍，
+ * 输出缓冲区随着实际解压出的字节扩大，少量数据声明很大的长度也不会让接收方预先分配大块内存。
+ * Deflater 和 Inflater 持有本地内存，创建的代价较高，用完后放回共享的池中复用，
+ * 不随连接的个数增长，也不依赖执行线程（虚拟线程没有可以复用的线程局部变量）；
+ * 池中的每个 Deflater 带着自己的输出缓冲区，压缩一帧只需要分配压缩后大小的数组。
+ *
+ * @author Joseph Peng
+ * @date 2026/10/20 02:10
+ */
+class Compression {
+
+    // 短于这个长度的 data 不压缩
+    static final int THRESHOLD = 1 << 10;
+    // 解压后的长度至多是压缩后长度的这么多倍，压缩比更高的 data 按原样发送
+    static final int MAX_RATIO = 256;
+    // 池中最多保留的 Deflater 和 Inflater 个数，多出的用完后释放
+    private static final int POOL_SIZE = 16;
+    // Deflater 输出缓冲区的初始长度和保留的最大长度，超过时用完即丢弃
+    private static final int INITIAL_BUFFER = 1 << 12;
+    private static final int MAX_BUFFER = 1 << 20;
+
+    private static final Queue<Compressor> compressors = new ConcurrentLinkedQueue<>();
+    private static final Queue<Inflater> inflaters = new ConcurrentLinkedQueue<>();
+
+    private static class Compressor {
+        final Deflater deflater = new Deflater(Deflater.BEST_SPEED, true);
+        byte[] buf = new byte[INITIAL_BUFFER];
+    }
+
+    /**
+     * 压缩 data，返回 [RawLength][Deflated]；太短、压缩后没有变短或压缩比过高时返回 null
+     */
+    static ByteBuffer compress(byte[] data) {
+        if(data.length < THRESHOLD) {
+            return null;
+        }
+        Compressor c = compressors.poll();
+        if(c == null) {
+            c = new Compressor();
+        }
+        Deflater deflater = c.deflater;
+        try {
+            deflater.setInput(data);
+            deflater.finish();
+            byte[] buf = c.buf;
+            int n = 4;
+            while (!deflater.finished()) {
+                if(n == buf.length) {
+                    // 输出不能超过原来的长度，否则不压缩
+                    if(buf.length >= data.length) {
+                        return null;
+                    }
+                    buf = Arrays.copyOf(buf, Math.min(data.length, buf.length * 2));
+                    if(buf.length <= MAX_BUFFER) {
+                        c.buf = buf;
+                    }
+                }
+                n += deflater.deflate(buf, n, buf.length - n);
+            }
+            if(n >= data.length || (long) (n - 4) * MAX_RATIO < data.length) {
+                return null;
+            }
+            byte[] out = Arrays.copyOf(buf, n);
+            ByteBuffer.wrap(out).putInt(data.length);
+            return ByteBuffer.wrap(out);
+        } finally {
+            deflater.reset();
+            if(compressors.size() < POOL_SIZE) {
+                compressors.offer(c);
+            } else {
+                deflater.end();
+            }
+        }
+    }
+
+    /**
+     * 解压 buf 中从 offset 开始、长度为 length 的 [RawLength][Deflated]
+     */
+    static byte[] decompress(byte[] buf, int offset, int length) throws Exception {
+        return decompress(buf, offset, length, 0);
+    }
+
+    /**
+     * 解压 [RawLength][Deflated]，解压出的数据放在返回的数组中 reserve 之后，前 reserve 个字节留给调用方
+     */
+    private static byte[] decompress(byte[] buf, int offset, int length, int reserve) throws Exception {
+        if(length < 4) {
+            throw Error.InvalidPkgDataException;
+        }
+        int raw = ByteBuffer.wrap(buf, offset, 4).getInt();
+        if(raw < 0 || (long) raw > (long) (length - 4) * MAX_RATIO) {
+            throw Error.InvalidPkgDataException;
+        }
+        if(raw > Transporter.maxFrame()) {
+            throw Error.FrameTooLargeException;
+        }
+        Inflater inflater = inflaters.poll();
+        if(inflater == null) {
+            inflater = new Inflater(true);
+        }
+        try {
+            inflater.setInput(buf, offset + 4, length - 4);
+            // 先按压缩后长度的几倍分配，之后随着解压出的字节扩大，不超过声明的长度
+            byte[] out = new byte[reserve + (int) Math.min(raw, Math.max(INITIAL_BUFFER, 4L * length))];
+            int n = reserve, end = reserve + raw;
+            while (n < end) {
+                if(n == out.length) {
+                    out = Arrays.copyOf(out, (int) Math.min(end, 2L * out.length));
+                }
+                int k = inflater.inflate(out, n, out.length - n);
+                if(k == 0 && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary())) {
+                    throw Error.InvalidPkgDataException;
+                }
+                n += k;
+            }
+            return out;
+        } catch (DataFormatException e) {
+            throw Error.InvalidPkgDataException;
+        } finally {
+            inflater.reset();
+            if(inflaters.size() < POOL_SIZE) {
+                inflaters.offer(inflater);
+            } else {
+                inflater.end();
+            }
+        }
+    }
+
+    /**
+     * 把收到的压缩帧 [Id][Flag][RawLength][Deflated] 还原为 [Id][Flag][data]，Flag 去掉 COMPRESSED 位；
+     * 不是压缩帧时原样返回
+     */
+    static byte[] inflateFrame(byte[] frame) throws Exception {
+        if(frame.length < 5 || (frame[4] & Transporter.COMPRESSED) == 0) {
+            return frame;
+        }
+        byte[] res = decompress(frame, 5, frame.length - 5, 5);
+        System.arraycopy(frame, 0, res, 0, 4);
+        res[4] = (byte) (frame[4] & ~Transporter.COMPRESSED);
+        return res;
+    }
+}
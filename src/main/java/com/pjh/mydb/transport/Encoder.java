@@ -3,39 +3,145 @@ package com.pjh.mydb.transport;
 import com.google.common.primitives.Bytes;
 import com.pjh.mydb.common.Error;
 
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 
 /**
  * 加解码
+ *
+ * 批量消息的 data 为 [Count]{[Flag][Length][data]}，Count 和 Length 为 4 字节，每一项的 Flag 为 0、1 或 4。
  * @author Joseph Peng
  * @date 2022/8/4 18:51
  */
 public class Encoder {
 
     public byte[] encode(Package pkg){
+        return Bytes.concat(new byte[]{flag(pkg)}, body(pkg));
+    }
+
+    /**
+     * 编码后的 Flag，二进制协议下 Flag 和 data 分别写出，不需要拼接
+     */
+    public byte flag(Package pkg) {
+        if(pkg.getBatch() != null) {
+            return (byte)2;
+        }
+        if(pkg.isPartial()) {
+            return (byte)3;
+        }
+        if(pkg.getErr() != null) {
+            return (byte)1;
+        }
+        return pkg.isRows() ? (byte)4 : (byte)0;
+    }
+
+    /**
+     * 编码后 Flag 之后的 data
+     */
+    public byte[] body(Package pkg) {
+        if(pkg.getBatch() != null) {
+            return batchBody(pkg.getBatch());
+        }
         if(pkg.getErr() != null){
             Exception err = pkg.getErr();
             String msg = "Intern server error!";
             if (err.getMessage() != null){
                 msg = err.getMessage();
             }
-            return Bytes.concat(new byte[]{1}, msg.getBytes());
+            return msg.getBytes();
         }else{
-            return Bytes.concat(new byte[]{0}, pkg.getData());
+            return pkg.getData();
+        }
+    }
+
+    private byte[] batchBody(List<Package> batch) {
+        byte[][] bodies = new byte[batch.size()][];
+        int size = 4;
+        for (int i = 0; i < bodies.length; i++) {
+            bodies[i] = body(batch.get(i));
+            size += 5 + bodies[i].length;
+        }
+        ByteBuffer buf = ByteBuffer.allocate(size);
+        buf.putInt(bodies.length);
+        for (int i = 0; i < bodies.length; i++) {
+            buf.put(flag(batch.get(i))).putInt(bodies[i].length).put(bodies[i]);
         }
+        return buf.array();
     }
 
     public Package decode(byte[] data) throws Exception {
-        if(data.length < 1) {
+        return decode(data, 0);
+    }
+
+    /**
+     * 解码协议版本 version 下收到的一条消息，版本 2 起消息以 4 字节的请求编号开头
+     */
+    public Package decode(byte[] data, int version) throws Exception {
+        if(version < Transporter.REQUEST_ID_VERSION) {
+            return decodeAt(data, 0);
+        }
+        if(data.length < 4) {
             throw Error.InvalidPkgDataException;
         }
+        Package pkg = decodeAt(data, 4);
+        pkg.id = ByteBuffer.wrap(data).getInt();
+        return pkg;
+    }
 
-        if (data[0] == 0){
-            return new Package(Arrays.copyOfRange(data, 1, data.length), null);
-        }else if (data[0] == 1){
-            return new Package(null, new RuntimeException(new String(Arrays.copyOfRange(data, 1, data.length))));
+    private Package decodeAt(byte[] data, int offset) throws Exception {
+        if(data.length < offset + 1) {
+            throw Error.InvalidPkgDataException;
+        }
+
+        if (data[offset] == 0){
+            return new Package(Arrays.copyOfRange(data, offset + 1, data.length), null);
+        }else if (data[offset] == 1){
+            return new Package(null, new RuntimeException(new String(Arrays.copyOfRange(data, offset + 1, data.length))));
+        }else if (data[offset] == 2){
+            return new Package(decodeBatch(ByteBuffer.wrap(data, offset + 1, data.length - offset - 1)));
+        }else if (data[offset] == 3){
+            return Package.partial(Arrays.copyOfRange(data, offset + 1, data.length));
+        }else if (data[offset] == 4){
+            return Package.rows(Arrays.copyOfRange(data, offset + 1, data.length));
         }else {
             throw Error.InvalidPkgDataException;
         }
     }
+
+    private List<Package> decodeBatch(ByteBuffer buf) throws Exception {
+        try {
+            int count = buf.getInt();
+            if(count < 0 || count > buf.remaining() / 5) {
+                throw Error.InvalidPkgDataException;
+            }
+            List<Package> batch = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                byte flag = buf.get();
+                int length = buf.getInt();
+                if(length < 0 || length > buf.remaining()) {
+                    throw Error.InvalidPkgDataException;
+                }
+                byte[] data = new byte[length];
+                buf.get(data);
+                if(flag == 0) {
+                    batch.add(new Package(data, null));
+                } else if(flag == 1) {
+                    batch.add(new Package(null, new RuntimeException(new String(data))));
+                } else if(flag == 4) {
+                    batch.add(Package.rows(data));
+                } else {
+                    throw Error.InvalidPkgDataException;
+                }
+            }
+            if(buf.hasRemaining()) {
+                throw Error.InvalidPkgDataException;
+            }
+            return batch;
+        } catch (BufferUnderflowException e) {
+            throw Error.InvalidPkgDataException;
+        }
+    }
 }
@@ -0,0 +1,160 @@
+package com.pjh.mydb.transport;
+
+import com.pjh.mydb.common.Error;
+import org.apache.commons.codec.binary.Hex;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * FrameCodec 是服务端一个连接上的非阻塞编解码器，协议与 Transporter 相同。
+ * 读到的字节不一定是完整的消息，decode 只在缓冲区中有一条完整的消息时取出它，否则不移动缓冲区的位置；
+ * 第一条消息之前先按第一个字节协商协议，二进制协议的握手回复由 handshake() 取出。
+ *
+ * @author Joseph Peng
+ * @date 2026/10/19 23:10
+ */
+public class FrameCodec {
+
+    // 尚未协商协议
+    private static final int UNKNOWN = -1;
+
+    private int version = UNKNOWN;
+    // 连接协商了压缩
+    private boolean compress;
+    private ByteBuffer handshake;
+    // 十六进制文本协议下，当前行已经检查过、不含换行符的字节数
+    private int scanned;
+
+    /**
+     * 协商得到的协议版本，尚未协商时为 -1
+     */
+    public int version() {
+        return version;
+    }
+
+    /**
+     * 连接是否协商了压缩
+     */
+    public boolean compressed() {
+        return compress;
+    }
+
+    /**
+     * 从 buf 中取出一条完整消息编码后的 [Flag][data]（版本 2 起为 [Id][Flag][data]），数据不完整时返回 null
+     * @param buf 处于读模式的缓冲区
+     * @return
+     * @throws Exception
+     */
+    public byte[] decode(ByteBuffer buf) throws Exception {
+        if(version == UNKNOWN && !negotiate(buf)) {
+            return null;
+        }
+        return version == Transporter.HEX ? decodeLine(buf) : decodeFrame(buf);
+    }
+
+    /**
+     * 二进制协议下需要回复给客户端的握手，只返回一次，没有时返回 null
+     */
+    public ByteBuffer handshake() {
+        ByteBuffer res = handshake;
+        handshake = null;
+        return res;
+    }
+
+    /**
+     * 把编号为 id 的 [flag][data] 编码为待发送的缓冲区，二进制协议下 data 不会被拷贝；
+     * 连接协商了压缩时，较大的 data 压缩后发送
+     */
+    public ByteBuffer[] encode(int id, byte flag, byte[] data) {
+        if(version == Transporter.HEX) {
+            byte[] buf = new byte[data.length + 1];
+            buf[0] = flag;
+            System.arraycopy(data, 0, buf, 1, data.length);
+            String line = Hex.encodeHexString(buf, true) + "\n";
+            return new ByteBuffer[]{ByteBuffer.wrap(line.getBytes(StandardCharsets.US_ASCII))};
+        }
+        ByteBuffer deflated = compress ? Compression.compress(data) : null;
+        if(deflated != null) {
+            ByteBuffer head = ByteBuffer.allocate(9);
+            head.putInt(deflated.remaining() + 5).putInt(id).put((byte) (flag | Transporter.COMPRESSED)).flip();
+            return new ByteBuffer[]{head, deflated};
+        }
+        ByteBuffer head;
+        if(version >= Transporter.REQUEST_ID_VERSION) {
+            head = ByteBuffer.allocate(9);
+            head.putInt(data.length + 5).putInt(id);
+        } else {
+            head = ByteBuffer.allocate(5);
+            head.putInt(data.length + 1);
+        }
+        head.put(flag).flip();
+        return new ByteBuffer[]{head, ByteBuffer.wrap(data)};
+    }
+
+    private boolean negotiate(ByteBuffer buf) throws Exception {
+        if(!buf.hasRemaining()) {
+            return false;
+        }
+        if(buf.get(buf.position()) != Transporter.MAGIC[0]) {
+            version = Transporter.HEX;
+            return true;
+        }
+        if(buf.remaining() < Transporter.MAGIC.length + 1) {
+            return false;
+        }
+        for (byte b : Transporter.MAGIC) {
+            if(buf.get() != b) {
+                throw Error.InvalidPkgDataException;
+            }
+        }
+        int request = buf.get() & 0xFF;
+        version = Math.min(request & ~Transporter.COMPRESSED, Transporter.VERSION);
+        if(version < 1) {
+            throw Error.InvalidPkgDataException;
+        }
+        compress = (request & Transporter.COMPRESSED) != 0 && version >= Transporter.COMPRESS_VERSION;
+        handshake = ByteBuffer.allocate(Transporter.MAGIC.length + 1);
+        handshake.put(Transporter.MAGIC).put((byte) (compress ? version | Transporter.COMPRESSED : version)).flip();
+        return true;
+    }
+
+    private byte[] decodeFrame(ByteBuffer buf) throws Exception {
+        if(buf.remaining() < 4) {
+            return null;
+        }
+        int length = buf.getInt(buf.position());
+        if(length < 0) {
+            throw Error.InvalidPkgDataException;
+        }
+        if(length > Transporter.maxFrame()) {
+            throw Error.FrameTooLargeException;
+        }
+        if(buf.remaining() < 4 + length) {
+            return null;
+        }
+        buf.position(buf.position() + 4);
+        byte[] data = new byte[length];
+        buf.get(data);
+        return compress ? Compression.inflateFrame(data) : data;
+    }
+
+    private byte[] decodeLine(ByteBuffer buf) throws Exception {
+        int start = buf.position();
+        for (int i = start + scanned; i < buf.limit(); i++) {
+            if(buf.get(i) != '\n') continue;
+            int end = i > start && buf.get(i - 1) == '\r' ? i - 1 : i;
+            byte[] line = new byte[end - start];
+            buf.get(line);
+            buf.position(i + 1);
+            scanned = 0;
+            return Hex.decodeHex(new String(line, StandardCharsets.US_ASCII));
+        }
+        scanned = buf.remaining();
+        // 一行是一帧的十六进制编码，没有换行符的行不能无限增长
+        if(scanned > 2L * Transporter.maxFrame() + 2) {
+            throw Error.FrameTooLargeException;
+        }
+        return null;
+    }
+}
@@ -1,12 +1,20 @@
 package com.pjh.mydb.transport;
 
+import java.util.List;
+
 /**
  * 每个 Package 在发送前，由 Encoder 编码为字节数组，在对方收到后同样会由 Encoder 解码成 Package 对象。
  * 编码和解码的规则如下：
  *
  * [Flag][data]
  * 若 flag 为 0，表示发送的是数据，那么 data 即为这份数据本身；
- * 如果 flag 为 1，表示发送的是错误，data 是 Exception.getMessage() 的错误提示信息。
+ * 如果 flag 为 1，表示发送的是错误，data 是 Exception.getMessage() 的错误提示信息；
+ * 如果 flag 为 2，表示发送的是一批 Package，请求中每个是一条语句，回复中每个是对应语句的结果或错误；
+ * 如果 flag 为 3，表示 data 是查询结果中的一段，同一请求的回复还没有结束，之后还有 flag 为 3 的分段，最后是 flag 为 0、1 或 4 的回复；
+ * 如果 flag 为 4，请求中表示要求以类型化的行集返回结果，回复中表示 data 是行集，格式见 tbm.ResultBuffer。
+ * 聚合查询和其他语句仍返回 flag 为 0 的文本，因此分段的回复只要是对 flag 为 4 的请求，就都是行集的一部分。
+ *
+ * 二进制协议版本 2 起，每条消息带有请求编号 id，回复的编号与请求相同。
  * @author Joseph Peng
  * @date 2022/8/4 18:49
  */
@@ -14,12 +22,20 @@ public class Package {
 
     byte[] data;
     Exception err;
+    List<Package> batch;
+    boolean partial;
+    boolean rows;
+    int id;
 
     public Package(byte[] data, Exception err) {
         this.data = data;
         this.err = err;
     }
 
+    public Package(List<Package> batch) {
+        this.batch = batch;
+    }
+
     public byte[] getData() {
         return data;
     }
@@ -27,4 +43,48 @@ public class Package {
     public Exception getErr() {
         return err;
     }
+
+    /**
+     * 查询结果中的一段，之后还有同一请求的回复
+     */
+    public static Package partial(byte[] data) {
+        Package pkg = new Package(data, null);
+        pkg.partial = true;
+        return pkg;
+    }
+
+    public boolean isPartial() {
+        return partial;
+    }
+
+    /**
+     * 请求中为要求返回行集的查询，回复中为行集
+     */
+    public static Package rows(byte[] data) {
+        Package pkg = new Package(data, null);
+        pkg.rows = true;
+        return pkg;
+    }
+
+    public boolean isRows() {
+        return rows;
+    }
+
+    /**
+     * 一批 Package，不是批量消息时为 null
+     */
+    public List<Package> getBatch() {
+        return batch;
+    }
+
+    /**
+     * 请求编号，协议不支持时为 0
+     */
+    public int getId() {
+        return id;
+    }
+
+    public void setId(int id) {
+        this.id = id;
+    }
 }
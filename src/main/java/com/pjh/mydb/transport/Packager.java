@@ -17,13 +17,19 @@ public class Packager {
     }
 
     public void send(Package pkg) throws Exception {
-        byte[] data = encoder.encode(pkg);
-        transporter.send(data);
+        transporter.send(pkg.id, encoder.flag(pkg), encoder.body(pkg));
     }
 
     public Package receive() throws Exception{
         byte[] data = transporter.receive();
-        return encoder.decode(data);
+        return encoder.decode(data, transporter.version());
+    }
+
+    /**
+     * 协商得到的协议版本
+     */
+    public int version() {
+        return transporter.version();
     }
 
     public void close() throws IOException {
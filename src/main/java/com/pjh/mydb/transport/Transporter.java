@@ -1,51 +1,263 @@
 package com.pjh.mydb.transport;
 
+import com.pjh.mydb.common.Error;
 import org.apache.commons.codec.DecoderException;
 import org.apache.commons.codec.binary.Hex;
 
 import java.io.*;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 
 /**
- * 将编码之后的数据写入输出流发送出去
+ * 将编码之后的数据写入输出流发送出去，支持两种协议，在每个连接建立时协商：
  *
- * 为了避免特殊字符造成问题，这里会将数据转成十六进制字符串（Hex String），并为信息末尾加上换行符。
+ * 二进制协议：客户端连接后先发送握手 [MAGIC][Version]，服务端回复同样格式的握手，Version 为双方都支持的最高版本。
+ * 之后每条消息为一帧 [Length][Flag][data]，Length 为 4 字节，是 Flag 和 data 的总长度，数据按原样传输。
+ * 版本 2 的帧为 [Length][Id][Flag][data]，Id 为 4 字节的请求编号，回复带上请求的编号。
+ * 服务器按顺序执行同一连接上的请求，客户端可以连续发送多个请求之后再依次读取回复。
+ * 版本 3 起，查询结果较大时分成多帧返回，除最后一帧外 Flag 为 3。
+ * 版本 4 起，Flag 为 4 的查询要求以类型化的行集返回结果，回复的 Flag 也为 4。
+ * 版本 5 起，客户端可以在握手的 Version 上加上 COMPRESSED 位要求压缩，服务端同意时回复的 Version 也带有这一位。
+ * 压缩的连接上，data 不短于 Compression.THRESHOLD 的帧可以压缩发送，Flag 带有 COMPRESSED 位，
+ * data 为 [RawLength][Deflated]（见 Compression），Id 不压缩；其余的帧按原样发送，两种帧可以混合出现。
+ *
+ * 十六进制文本协议：旧版本的客户端使用。为了避免特殊字符造成问题，这里会将数据转成十六进制字符串（Hex String），
+ * 并为信息末尾加上换行符。MAGIC 的第一个字节不是十六进制字符，服务端（见 FrameCodec）据此区分两种协议。
+ * Transporter 只建立客户端的连接，服务端的握手和收发由 FrameCodec 完成。
  *
  * @author Joseph Peng
  * @date 2022/8/4 21:43
  */
 public class Transporter {
 
+    // 二进制协议的版本，0 表示十六进制文本协议
+    public static final int HEX = 0;
+    public static final int VERSION = 5;
+    // 从这个版本开始，帧中带有请求编号
+    public static final int REQUEST_ID_VERSION = 2;
+    // 从这个版本开始，查询结果可以分段返回
+    public static final int STREAM_VERSION = 3;
+    // 从这个版本开始，查询可以要求以类型化的行集返回结果
+    public static final int ROWS_VERSION = 4;
+    // 从这个版本开始，连接可以协商压缩
+    public static final int COMPRESS_VERSION = 5;
+    // 握手的 Version 和帧的 Flag 上表示压缩的位
+    static final int COMPRESSED = 0x80;
+    static final byte[] MAGIC = {(byte) 0xFF, 'L', 'D', 'B'};
+    // 单帧默认的最大长度
+    public static final int DEFAULT_MAX_FRAME = 64 << 20;
+    // 单帧的最大长度，对方声明的长度超过时关闭连接，可以用系统属性 mydb.maxFrame 或 setMaxFrame 设置
+    private static volatile int maxFrame = Integer.getInteger("mydb.maxFrame", DEFAULT_MAX_FRAME);
+    // 读取一帧时接收缓冲区的初始大小，之后随着实际读到的字节扩大
+    private static final int READ_CHUNK = 1 << 16;
+
     private Socket socket;
-    private BufferedReader reader;
-    private BufferedWriter writer;
+    private DataInputStream in;
+    private DataOutputStream out;
+    private int version;
+    // 连接协商了压缩
+    private boolean compress;
 
+    /**
+     * 使用十六进制文本协议，不需要握手
+     */
     public Transporter(Socket socket) throws IOException {
+        this(socket, HEX);
+    }
+
+    private Transporter(Socket socket, int version) throws IOException {
         this.socket = socket;
-        this.reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-        this.writer = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream()));
+        this.version = version;
+        socket.setTcpNoDelay(true);
+        this.in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 1 << 16));
+        this.out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 1 << 16));
+    }
+
+    /**
+     * 客户端：发送握手，使用二进制协议
+     * @param socket
+     * @return
+     * @throws Exception
+     */
+    public static Transporter connect(Socket socket) throws Exception {
+        return connect(socket, false);
+    }
+
+    /**
+     * 客户端：发送握手，使用二进制协议，compress 为 true 时要求压缩，服务端不支持时不压缩
+     */
+    public static Transporter connect(Socket socket, boolean compress) throws Exception {
+        Transporter t = new Transporter(socket, VERSION);
+        t.out.write(MAGIC);
+        t.out.writeByte(compress ? VERSION | COMPRESSED : VERSION);
+        t.out.flush();
+        byte[] magic = new byte[MAGIC.length];
+        t.in.readFully(magic);
+        int reply = t.in.readUnsignedByte();
+        int version = reply & ~COMPRESSED;
+        boolean compressed = (reply & COMPRESSED) != 0;
+        if(!Arrays.equals(magic, MAGIC) || version < 1 || version > VERSION
+                || compressed && (!compress || version < COMPRESS_VERSION)) {
+            t.close();
+            throw Error.InvalidPkgDataException;
+        }
+        t.version = version;
+        t.compress = compressed;
+        return t;
+    }
+
+    /**
+     * 单帧的最大长度
+     */
+    public static int maxFrame() {
+        return maxFrame;
+    }
+
+    /**
+     * 设置单帧的最大长度，对所有之后收到的帧生效
+     */
+    public static void setMaxFrame(int bytes) {
+        if(bytes <= 0) {
+            throw new IllegalArgumentException("max frame: " + bytes);
+        }
+        maxFrame = bytes;
+    }
+
+    /**
+     * 协商得到的协议版本，HEX 表示十六进制文本协议
+     */
+    public int version() {
+        return version;
+    }
+
+    /**
+     * 连接是否协商了压缩
+     */
+    public boolean compressed() {
+        return compress;
     }
 
     public void send(byte[] data) throws Exception {
-        String raw = hexEncode(data);
-        writer.write(raw);
-        writer.flush();
+        if(version == HEX) {
+            out.write(hexEncode(data).getBytes(StandardCharsets.US_ASCII));
+        } else {
+            out.writeInt(data.length);
+            out.write(data);
+        }
+        out.flush();
+    }
+
+    /**
+     * 发送 [flag][data]，二进制协议下直接写出，不需要先拼接成一个数组
+     */
+    public void send(byte flag, byte[] data) throws Exception {
+        send(0, flag, data);
+    }
+
+    /**
+     * 发送编号为 id 的 [flag][data]，协议版本不支持请求编号时忽略 id
+     */
+    public void send(int id, byte flag, byte[] data) throws Exception {
+        if(version == HEX) {
+            byte[] buf = new byte[data.length + 1];
+            buf[0] = flag;
+            System.arraycopy(data, 0, buf, 1, data.length);
+            send(buf);
+            return;
+        }
+        ByteBuffer deflated = compress ? Compression.compress(data) : null;
+        if(deflated != null) {
+            out.writeInt(deflated.remaining() + 5);
+            out.writeInt(id);
+            out.writeByte(flag | COMPRESSED);
+            out.write(deflated.array(), 0, deflated.remaining());
+            out.flush();
+            return;
+        }
+        if(version >= REQUEST_ID_VERSION) {
+            out.writeInt(data.length + 5);
+            out.writeInt(id);
+        } else {
+            out.writeInt(data.length + 1);
+        }
+        out.writeByte(flag);
+        out.write(data);
+        out.flush();
     }
 
     public byte[] receive() throws Exception {
-        String line = reader.readLine();
-        if(line == null) {
+        if(version == HEX) {
+            String line = readLine();
+            if(line == null) {
+                close();
+                throw new EOFException();
+            }
+            return hexDecode(line);
+        }
+        int length;
+        try {
+            length = in.readInt();
+        } catch (EOFException e) {
             close();
+            throw e;
         }
-        return hexDecode(line);
+        if(length < 0 || length > maxFrame) {
+            close();
+            throw length < 0 ? Error.InvalidPkgDataException : Error.FrameTooLargeException;
+        }
+        byte[] data = readFrame(length);
+        return compress ? Compression.inflateFrame(data) : data;
+    }
+
+    /**
+     * 读出长度为 length 的帧。缓冲区随着实际读到的字节扩大，不按对方声明的长度一次分配
+     */
+    private byte[] readFrame(int length) throws IOException {
+        byte[] data = new byte[Math.min(length, READ_CHUNK)];
+        int n = 0;
+        while (n < length) {
+            if(n == data.length) {
+                data = Arrays.copyOf(data, (int) Math.min(length, 2L * data.length));
+            }
+            int k = in.read(data, n, data.length - n);
+            if(k < 0) {
+                close();
+                throw new EOFException();
+            }
+            n += k;
+        }
+        return data;
     }
 
     public void close() throws IOException {
-        writer.close();
-        reader.close();
+        out.close();
+        in.close();
         socket.close();
     }
 
+    /**
+     * 读出一行，不含换行符，连接关闭时返回 null
+     */
+    private String readLine() throws Exception {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int b;
+        while ((b = in.read()) != '\n') {
+            if(line.size() > 2L * maxFrame + 2) {
+                close();
+                throw Error.FrameTooLargeException;
+            }
+            if(b == -1) {
+                return line.size() == 0 ? null : line.toString("US-ASCII");
+            }
+            if(b != '\r') {
+                line.write(b);
+            }
+        }
+        return line.toString("US-ASCII");
+    }
+
     private String hexEncode(byte[] buf) {
         return Hex.encodeHexString(buf, true)+"\n";
     }
@@ -0,0 +1,155 @@
+package com.pjh;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.pjh.mydb.backend.dm.DataManager;
+import com.pjh.mydb.backend.im.BPlusTree;
+import com.pjh.mydb.backend.im.KeyUidSorter;
+import com.pjh.mydb.backend.tm.TransactionManager;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.*;
+
+
+public class BPlusTreeTest {
+    static Random random = new Random(2022);
+
+    @Test
+    public void testBulkLoad() throws Exception {
+        checkBulkLoad(BPlusTree.DEFAULT_BALANCE_NUMBER);
+    }
+
+    @Test
+    public void testSmallFanout() throws Exception {
+        // 扇出很小时树很高，插入时会频繁分裂
+        checkBulkLoad(BPlusTree.balanceOfFanout(4));
+    }
+
+    private void checkBulkLoad(int balanceNumber) throws Exception {
+        File dir = Files.createTempDirectory("bplus_test").toFile();
+        String path = new File(dir, "bplus_test").getPath();
+        TransactionManager tm = TransactionManager.create(path);
+        DataManager dm = DataManager.create(path, 1 << 24, tm);
+
+        int n = 20000;
+        TreeMap<Long, List<Long>> expected = new TreeMap<>();
+        // 缓存设置得很小，强制溢出多个 run 文件
+        KeyUidSorter sorter = new KeyUidSorter(true, 1000);
+        for(int i = 0; i < n; i ++) {
+            long key = random.nextInt(n / 4) - n / 8;
+            long uid = i + 1;
+            sorter.add(key, uid);
+            expected.computeIfAbsent(key, k -> new ArrayList<>()).add(uid);
+        }
+        BPlusTree tree = BPlusTree.load(BPlusTree.bulkLoad(dm, sorter, balanceNumber), dm);
+        assertEquals(balanceNumber * 2, tree.fanout());
+        sorter.close();
+
+        // 建好之后的树仍然可以正常插入
+        for(int i = 0; i < n / 2; i ++) {
+            long key = random.nextInt(n / 4) - n / 8;
+            long uid = n + i + 1;
+            tree.insert(key, uid);
+            expected.computeIfAbsent(key, k -> new ArrayList<>()).add(uid);
+        }
+
+        assertEquals(n + n / 2, tree.searchRange(Long.MIN_VALUE, Long.MAX_VALUE).size());
+        for(int i = 0; i < 200; i ++) {
+            long left = random.nextInt(n / 4) - n / 8;
+            long right = left + random.nextInt(20);
+            List<Long> want = new ArrayList<>();
+            for(List<Long> uids : expected.subMap(left, true, right, true).values()) {
+                want.addAll(uids);
+            }
+            List<Long> got = tree.searchRange(left, right);
+            Collections.sort(want);
+            Collections.sort(got);
+            assertEquals(want, got);
+        }
+
+        // 有序扫描：逆序扫描的结果与范围查找相同，key 不增，可以提前停止
+        Map<Long, Long> keyOf = new HashMap<>();
+        for(Map.Entry<Long, List<Long>> e : expected.entrySet()) {
+            for(long uid : e.getValue()) {
+                keyOf.put(uid, e.getKey());
+            }
+        }
+        for(int i = 0; i < 50; i ++) {
+            long left = random.nextInt(n / 4) - n / 8;
+            long right = i == 0 ? Long.MAX_VALUE : left + random.nextInt(n / 8);
+            List<Long> got = new ArrayList<>();
+            tree.scan(left, right, true, uid -> got.add(uid));
+            for(int j = 1; j < got.size(); j ++) {
+                assertTrue(keyOf.get(got.get(j - 1)) >= keyOf.get(got.get(j)));
+            }
+            List<Long> want = tree.searchRange(left, right);
+            Collections.sort(want);
+            Collections.sort(got);
+            assertEquals(want, got);
+        }
+        List<Long> top = new ArrayList<>();
+        tree.scan(Long.MIN_VALUE, Long.MAX_VALUE, true, uid -> top.add(uid) && top.size() < 20);
+        assertEquals(20, top.size());
+        assertEquals(expected.lastKey(), keyOf.get(top.get(0)));
+
+        // 两端的叶子：最小的 key 在最前，最大的 key 在最后
+        assertTrue(expected.firstEntry().getValue().contains(tree.searchFirst(1).get(0)));
+        assertEquals(10, tree.searchFirst(10).size());
+        List<Long> last = tree.searchLastLeaf();
+        assertTrue(expected.lastEntry().getValue().contains(last.get(last.size() - 1)));
+    }
+
+    @Test
+    public void testBytesKey() throws Exception {
+        File dir = Files.createTempDirectory("bplus_test").toFile();
+        String path = new File(dir, "bplus_test").getPath();
+        TransactionManager tm = TransactionManager.create(path);
+        DataManager dm = DataManager.create(path, 1 << 24, tm);
+
+        // 内联 6 个字节，较长的 key 需要溢出；前缀只有少数几种，迫使比较读取溢出的 key
+        BPlusTree tree = BPlusTree.load(BPlusTree.create(dm, BPlusTree.balanceOfFanout(8, 6), 6), dm);
+        Comparator<byte[]> cmp = (a, b) -> {
+            for(int i = 0; i < Math.min(a.length, b.length); i ++) {
+                int c = Integer.compare(a[i] & 0xff, b[i] & 0xff);
+                if(c != 0) return c;
+            }
+            return Integer.compare(a.length, b.length);
+        };
+        TreeMap<byte[], List<Long>> expected = new TreeMap<>(cmp);
+        int n = 3000;
+        for(int i = 0; i < n; i ++) {
+            byte[] key = randomKey();
+            long uid = i + 1;
+            tree.insert(key, uid);
+            expected.computeIfAbsent(key, k -> new ArrayList<>()).add(uid);
+        }
+
+        assertEquals(n, tree.searchRange(null, null).size());
+        for(int i = 0; i < 200; i ++) {
+            byte[] left = randomKey(), right = randomKey();
+            if(cmp.compare(left, right) > 0) {
+                byte[] t = left; left = right; right = t;
+            }
+            List<Long> want = new ArrayList<>();
+            for(List<Long> uids : expected.subMap(left, true, right, false).values()) {
+                want.addAll(uids);
+            }
+            List<Long> got = tree.searchRange(left, right);
+            Collections.sort(want);
+            Collections.sort(got);
+            assertEquals(want, got);
+        }
+    }
+
+    private static byte[] randomKey() {
+        byte[] prefix = {(byte)random.nextInt(3), (byte)0xff, 0, 7, 7};
+        byte[] key = new byte[random.nextInt(12)];
+        for(int i = 0; i < key.length; i ++) {
+            key[i] = i < prefix.length ? prefix[i] : (byte)random.nextInt(4);
+        }
+        return key;
+    }
+}
@@ -0,0 +1,120 @@
+package com.pjh.mydb;
+
+import com.pjh.mydb.backend.dm.DataManager;
+import com.pjh.mydb.backend.server.Executor;
+import com.pjh.mydb.backend.server.Server;
+import com.pjh.mydb.backend.stats.Stats;
+import com.pjh.mydb.backend.tbm.TableManager;
+import com.pjh.mydb.backend.tm.TransactionManager;
+import com.pjh.mydb.backend.vm.VersionManager;
+import com.pjh.mydb.backend.vm.VersionManagerImpl;
+
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.*;
+
+/**
+ * 测试用的数据库：在临时目录中新建，run 和 error 在默认会话中执行语句，需要时在随机端口上启动服务器
+ *
+ * @author Joseph Peng
+ * @date 2026/10/20 04:00
+ */
+public class TestDB {
+
+    public final String path;
+    public final VersionManager vm;
+    public final TableManager tbm;
+    // run 和 error 使用的会话
+    private final Executor exe;
+
+    private TestDB(String path, VersionManager vm, TableManager tbm) {
+        this.path = path;
+        this.vm = vm;
+        this.tbm = tbm;
+        this.exe = new Executor(tbm);
+    }
+
+    public static TestDB create() throws Exception {
+        String path = Files.createTempDirectory("mydb").resolve("db").toString();
+        TransactionManager tm = TransactionManager.create(path);
+        DataManager dm = DataManager.create(path, 64L << 20, tm);
+        VersionManager vm = new VersionManagerImpl(tm, dm);
+        return new TestDB(path, vm, TableManager.create(path, vm, dm));
+    }
+
+    /**
+     * 新的会话，与默认会话各自开始事务
+     */
+    public Executor session() {
+        return new Executor(tbm);
+    }
+
+    /**
+     * 在默认会话中执行语句，返回文本形式的结果
+     */
+    public String run(String sql) throws Exception {
+        return run(exe, sql);
+    }
+
+    public static String run(Executor exe, String sql) throws Exception {
+        return new String(exe.execute(sql.getBytes()));
+    }
+
+    /**
+     * 在默认会话中执行应当失败的语句，返回抛出的异常
+     */
+    public Exception error(String sql) {
+        return error(exe, sql);
+    }
+
+    public static Exception error(Executor exe, String sql) {
+        try {
+            exe.execute(sql.getBytes());
+        } catch (Exception e) {
+            return e;
+        }
+        fail("executed: " + sql);
+        return null;
+    }
+
+    /**
+     * 在默认会话中执行语句，返回读取的记录数
+     */
+    public long scanned(String sql) throws Exception {
+        long before = rowsScanned();
+        run(sql);
+        return rowsScanned() - before;
+    }
+
+    private static long rowsScanned() {
+        Matcher m = Pattern.compile("rows scanned (\\d+)").matcher(Stats.report());
+        assertTrue(m.find());
+        return Long.parseLong(m.group(1));
+    }
+
+    /**
+     * 在后台线程中启动服务器，返回监听的端口
+     */
+    public int startServer() throws Exception {
+        int port;
+        try (ServerSocket s = new ServerSocket(0)) {
+            port = s.getLocalPort();
+        }
+        Thread t = new Thread(new Server(port, tbm)::start, "test-server-" + port);
+        t.setDaemon(true);
+        t.start();
+        for (int i = 0; i < 100; i++) {
+            try {
+                new Socket("127.0.0.1", port).close();
+                return port;
+            } catch (Exception e) {
+                Thread.sleep(20);
+            }
+        }
+        throw new IllegalStateException("Server did not start on port " + port);
+    }
+}
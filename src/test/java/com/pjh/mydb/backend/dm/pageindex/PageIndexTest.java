@@ -0,0 +1,43 @@
+package com.pjh.mydb.backend.dm.pageindex;
+
+import com.pjh.mydb.backend.dm.pageCache.PageCache;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class PageIndexTest {
+
+    @Test
+    public void testTake() {
+        PageIndex pIndex = new PageIndex();
+        for (int pageNo = 1; pageNo <= 1000; pageNo++) {
+            pIndex.add(pageNo, pageNo * 8);
+        }
+        PageInfo pi = pIndex.take(500, 100);
+        assertEquals(500, pi.pageNo);
+        assertEquals(4000, pi.freeSpace);
+        // 已经取出的页面不在索引中
+        assertNull(pIndex.take(500, 100));
+        assertNull(pIndex.take(2000, 100));
+        // 空闲空间不足时页面留在索引中
+        assertNull(pIndex.take(10, 100));
+        assertEquals(10, pIndex.take(10, 80).pageNo);
+
+        pIndex.add(500, 4000);
+        assertEquals(500, pIndex.take(500, 4000).pageNo);
+    }
+
+    @Test
+    public void testSelectAfterTake() {
+        PageIndex pIndex = new PageIndex();
+        pIndex.add(1, PageCache.PAGE_SIZE - 100);
+        pIndex.add(2, PageCache.PAGE_SIZE - 100);
+        assertEquals(1, pIndex.take(1, 10).pageNo);
+        assertEquals(2, pIndex.select(10).pageNo);
+        assertNull(pIndex.select(10));
+        // select 取出的页面也不能再按页号取出
+        pIndex.add(2, PageCache.PAGE_SIZE - 100);
+        assertEquals(2, pIndex.select(10).pageNo);
+        assertNull(pIndex.take(2, 10));
+    }
+}
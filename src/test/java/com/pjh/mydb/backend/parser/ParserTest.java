@@ -0,0 +1,104 @@
+package com.pjh.mydb.backend.parser;
+
+import com.pjh.mydb.backend.parser.statement.Create;
+import com.pjh.mydb.backend.parser.statement.Insert;
+import com.pjh.mydb.backend.parser.statement.Select;
+import com.pjh.mydb.backend.parser.statement.Update;
+import com.pjh.mydb.common.Error;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class ParserTest {
+
+    private static Exception parseError(String sql) {
+        try {
+            Parser.Parse(sql.getBytes());
+        } catch (Exception e) {
+            return e;
+        }
+        fail("parsed: " + sql);
+        return null;
+    }
+
+    @Test
+    public void testCreateTable() throws Exception {
+        Create create = (Create) Parser.Parse("create table t id int64, name string (index id name)".getBytes());
+        assertEquals("t", create.tableName);
+        assertArrayEquals(new String[]{"id", "name"}, create.fieldName);
+        assertArrayEquals(new String[]{"int64", "string"}, create.fieldType);
+        assertArrayEquals(new String[]{"id", "name"}, create.index);
+    }
+
+    @Test
+    public void testCreateTableWithoutIndex() {
+        assertSame(Error.TableNoIndexException, parseError("create table t id int64 (index)"));
+        assertSame(Error.TableNoIndexException, parseError("create table t id int64"));
+    }
+
+    @Test
+    public void testParamCount() throws Exception {
+        assertEquals(2, Parser.paramCount(Parser.Parse("select * from t where id > ? and id < ?".getBytes())));
+        assertEquals(2, Parser.paramCount(Parser.Parse("insert into t values ? \"a\" ?".getBytes())));
+        assertEquals(2, Parser.paramCount(Parser.Parse("update t set name = ? where id = ?".getBytes())));
+        assertEquals(1, Parser.paramCount(Parser.Parse("delete from t where id = ?".getBytes())));
+        // 加引号的 "?" 是字符串
+        assertEquals(0, Parser.paramCount(Parser.Parse("select * from t where name = \"?\"".getBytes())));
+    }
+
+    @Test
+    public void testBindCopiesTemplate() throws Exception {
+        Select template = (Select) Parser.Parse("select id from t where id > ? and name = ? order by id limit 5".getBytes());
+        Select a = (Select) Parser.bind(template, new String[]{"1", "x"});
+        Select b = (Select) Parser.bind(template, new String[]{"2", "y"});
+        assertEquals("1", a.where.singleExp1.value);
+        assertEquals("x", a.where.singleExp2.value);
+        assertEquals("2", b.where.singleExp1.value);
+        assertEquals(5, b.limit);
+        assertArrayEquals(new String[]{"id"}, b.orderBy);
+        // 模板中的占位符没有被替换
+        assertNull(template.where.singleExp1.value);
+        assertNull(template.where.singleExp2.value);
+    }
+
+    @Test
+    public void testBindInsertTuples() throws Exception {
+        Object template = Parser.Parse("insert into t values (?, \"a\"), (3, ?)".getBytes());
+        assertEquals(2, Parser.paramCount(template));
+        Insert insert = (Insert) Parser.bind(template, new String[]{"1", "b"});
+        assertArrayEquals(new String[]{"1", "a"}, insert.values[0]);
+        assertArrayEquals(new String[]{"3", "b"}, insert.values[1]);
+    }
+
+    @Test
+    public void testBindSetExpression() throws Exception {
+        assertEquals(3, Parser.paramCount(Parser.Parse("update t set v = v + ?, name = ? where id = ?".getBytes())));
+        Update update = (Update) Parser.bind(Parser.Parse("update t set v = v * ? where id = ?".getBytes()), new String[]{"2", "7"});
+        assertEquals("v", update.sets[0].value1);
+        assertEquals("2", update.sets[0].value2);
+        assertEquals("7", update.where.singleExp1.value);
+    }
+
+    @Test
+    public void testBindWithoutParams() throws Exception {
+        Object stat = Parser.Parse("select * from t where id = 1".getBytes());
+        assertSame(stat, Parser.bind(stat, new String[0]));
+    }
+
+    @Test
+    public void testBindWrongParamCount() throws Exception {
+        Object stat = Parser.Parse("delete from t where id = ?".getBytes());
+        try {
+            Parser.bind(stat, new String[]{"1", "2"});
+            fail();
+        } catch (Exception e) {
+            assertSame(Error.InvalidParamException, e);
+        }
+        try {
+            Parser.bind(stat, new String[0]);
+            fail();
+        } catch (Exception e) {
+            assertSame(Error.InvalidParamException, e);
+        }
+    }
+}
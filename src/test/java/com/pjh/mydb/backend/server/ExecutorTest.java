@@ -0,0 +1,155 @@
+package com.pjh.mydb.backend.server;
+
+import com.pjh.mydb.TestDB;
+import com.pjh.mydb.common.Error;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class ExecutorTest {
+
+    private TestDB db;
+
+    @Before
+    public void setUp() throws Exception {
+        db = TestDB.create();
+    }
+
+    @Test
+    public void testMultiRowInsert() throws Exception {
+        db.run("create table t id int64, name string (index id)");
+        db.run("insert into t values (1, \"a\"), (2, \"b\"), (3, \"c\")");
+        assertEquals("[2, b]\n", db.run("select * from t where id = 2"));
+        assertEquals("[3]\n", db.run("select count(*) from t"));
+    }
+
+    @Test
+    public void testMultiRowInsertFailureAbortsTransaction() throws Exception {
+        db.run("create table t id int64, name string (index id)");
+        db.run("begin");
+        db.run("insert into t values 0 \"before\"");
+        // 第一批 1024 条记录写入 DM 之后，最后一条记录太大、写入失败
+        StringBuilder sql = new StringBuilder("insert into t values ");
+        int rows = 1100;
+        for (int i = 1; i <= rows; i++) {
+            sql.append("(").append(i).append(", \"r").append(i).append("\"), ");
+        }
+        char[] big = new char[16 << 10];
+        Arrays.fill(big, 'x');
+        sql.append("(").append(rows + 1).append(", \"").append(big).append("\")");
+        assertSame(Error.TransactionAbortedException, db.error(sql.toString()));
+
+        // 事务已经回滚，之后的语句都失败，直到客户端发送 abort，不会悄悄回到自动提交
+        assertSame(Error.TransactionAbortedException, db.error("insert into t values 5000 \"after\""));
+        assertSame(Error.TransactionAbortedException, db.error("select * from t"));
+        assertSame(Error.TransactionAbortedException, db.error("commit"));
+        assertEquals("abort", db.run("abort"));
+        // 已经写入但不在索引中的记录和事务中之前的记录都没有提交
+        assertEquals("[0]\n", db.run("select count(*) from t"));
+        assertEquals("", db.run("select * from t where id = 0"));
+        db.run("insert into t values (1, \"a\"), (2, \"b\")");
+        assertEquals("[2]\n", db.run("select count(*) from t"));
+        assertSame(Error.NoTransactionException, db.error("abort"));
+    }
+
+    @Test
+    public void testMultiRowInsertInvalidValuesKeepsTransaction() throws Exception {
+        db.run("create table t id int64, v int32 (index id)");
+        db.run("begin");
+        db.run("insert into t values 1 1");
+        // 所有的值在写入之前转换，转换失败时没有写入任何记录，事务可以继续使用
+        assertNotSame(Error.TransactionAbortedException, db.error("insert into t values (2, 2), (3, \"bad\")"));
+        db.run("insert into t values 4 4");
+        assertEquals("commit", db.run("commit"));
+        assertEquals("[1, 1]\n[4, 4]\n", db.run("select * from t"));
+    }
+
+    @Test
+    public void testFailedStatementKeepsTransaction() throws Exception {
+        db.run("create table t id int64 (index id)");
+        db.run("begin");
+        db.run("insert into t values 1");
+        db.error("insert into t values \"x\"");
+        db.run("commit");
+        assertEquals("[1]\n", db.run("select * from t"));
+    }
+
+    @Test
+    public void testConcurrentIncrementsNotLost() throws Exception {
+        db.run("create table t id int64, v int64 (index id)");
+        db.run("insert into t values (0, 0), (1, 0)");
+        int threads = 8, rounds = 50;
+        AtomicInteger updated = new AtomicInteger();
+        List<Thread> workers = new ArrayList<>();
+        List<Throwable> errors = new CopyOnWriteArrayList<>();
+        for (int i = 0; i < threads; i++) {
+            Thread t = new Thread(() -> {
+                Executor session = db.session();
+                try {
+                    for (int k = 0; k < rounds; k++) {
+                        String res = TestDB.run(session, "update t set v = v + 1 where id = " + (k % 2));
+                        updated.addAndGet(Integer.parseInt(res.substring("update ".length())));
+                    }
+                } catch (Throwable e) {
+                    errors.add(e);
+                }
+            });
+            workers.add(t);
+            t.start();
+        }
+        for (Thread t : workers) {
+            t.join();
+        }
+        assertTrue(errors.toString(), errors.isEmpty());
+        assertEquals(threads * rounds, updated.get());
+        assertEquals("[" + threads * rounds + "]\n", db.run("select sum(v) from t"));
+    }
+
+    @Test
+    public void testPreparedStatements() throws Exception {
+        db.run("create table t id int64, name string (index id)");
+        assertEquals("prepare add", db.run("prepare add as insert into t values ? ?"));
+        assertEquals("prepare byId", db.run("prepare byId as select name from t where id = ?"));
+        db.run("execute add 1 \"a\"");
+        db.run("execute add 2 \"?\"");
+        assertEquals("[a]\n", db.run("execute byId 1"));
+        assertEquals("[?]\n", db.run("execute byId 2"));
+        assertEquals("", db.run("execute byId 3"));
+        db.run("prepare move as update t set id = ? where id = ?");
+        db.run("execute move 11 1");
+        assertEquals("[a]\n", db.run("execute byId 11"));
+
+        assertSame(Error.InvalidParamException, db.error("execute byId"));
+        assertSame(Error.InvalidParamException, db.error("select * from t where id = ?"));
+        assertSame(Error.DuplicatedPreparedException, db.error("prepare byId as select * from t"));
+        assertSame(Error.InvalidCommandException, db.error("prepare b as begin"));
+        assertEquals("deallocate byId", db.run("deallocate byId"));
+        assertSame(Error.PreparedNotFoundException, db.error("execute byId 1"));
+        assertSame(Error.PreparedNotFoundException, db.error("deallocate byId"));
+    }
+
+    @Test
+    public void testPreparedStatementsPerSession() throws Exception {
+        StatementCache cache = new StatementCache(StatementCache.DEFAULT_CAPACITY);
+        Executor a = new Executor(db.tbm, cache), b = new Executor(db.tbm, cache);
+        TestDB.run(a, "create table t id int64, name string (index id)");
+        TestDB.run(a, "insert into t values 1 \"a\"");
+        TestDB.run(a, "insert into t values 2 \"b\"");
+        // 同一条语句的模板来自共用的缓存，各会话绑定的参数互不影响
+        TestDB.run(a, "prepare q as select name from t where id = ?");
+        TestDB.run(b, "prepare q as select name from t where id = ?");
+        assertEquals("[a]\n", TestDB.run(a, "execute q 1"));
+        assertEquals("[b]\n", TestDB.run(b, "execute q 2"));
+        assertEquals("[a]\n", TestDB.run(a, "execute q 1"));
+        TestDB.run(a, "deallocate q");
+        assertSame(Error.PreparedNotFoundException, TestDB.error(a, "execute q 1"));
+        assertEquals("[b]\n", TestDB.run(b, "execute q 2"));
+    }
+}
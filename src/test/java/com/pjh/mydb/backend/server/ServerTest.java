@@ -0,0 +1,199 @@
+package com.pjh.mydb.backend.server;
+
+import com.pjh.mydb.TestDB;
+import com.pjh.mydb.transport.Transporter;
+import org.apache.commons.codec.binary.Hex;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.InputStreamReader;
+import java.net.Socket;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class ServerTest {
+
+    private static final byte[] MAGIC = {(byte) 0xFF, 'L', 'D', 'B'};
+
+    private static int port;
+
+    @BeforeClass
+    public static void setUp() throws Exception {
+        port = TestDB.create().startServer();
+    }
+
+    /**
+     * 建立连接并完成握手
+     */
+    private static Socket connect() throws Exception {
+        return connect(Transporter.VERSION, Transporter.VERSION);
+    }
+
+    /**
+     * 以 version 握手，检查服务器回复的版本
+     */
+    private static Socket connect(int version, int expected) throws Exception {
+        Socket s = new Socket("127.0.0.1", port);
+        s.setSoTimeout(10000);
+        DataOutputStream out = new DataOutputStream(s.getOutputStream());
+        out.write(MAGIC);
+        out.writeByte(version);
+        out.flush();
+        byte[] reply = new byte[MAGIC.length + 1];
+        new DataInputStream(s.getInputStream()).readFully(reply);
+        assertArrayEquals(MAGIC, Arrays.copyOf(reply, MAGIC.length));
+        assertEquals(expected, reply[MAGIC.length]);
+        return s;
+    }
+
+    @Test
+    public void testVersionOneFrames() throws Exception {
+        try (Socket s = connect(1, 1)) {
+            DataInputStream in = new DataInputStream(s.getInputStream());
+            DataOutputStream out = new DataOutputStream(s.getOutputStream());
+            // 版本 1 的帧没有请求编号
+            byte[] sql = "show".getBytes();
+            out.writeInt(sql.length + 1);
+            out.writeByte(0);
+            out.write(sql);
+            out.flush();
+            int length = in.readInt();
+            assertEquals(0, in.readByte());
+            in.readFully(new byte[length - 1]);
+
+            byte[] bad = "nosuch".getBytes();
+            out.writeInt(bad.length + 1);
+            out.writeByte(0);
+            out.write(bad);
+            out.flush();
+            length = in.readInt();
+            assertEquals(1, in.readByte());
+            byte[] msg = new byte[length - 1];
+            in.readFully(msg);
+            assertTrue(new String(msg).startsWith("Invalid"));
+        }
+    }
+
+    @Test
+    public void testNewerClientGetsServerVersion() throws Exception {
+        connect(Transporter.VERSION + 3, Transporter.VERSION).close();
+    }
+
+    @Test
+    public void testHexProtocol() throws Exception {
+        try (Socket s = new Socket("127.0.0.1", port)) {
+            s.setSoTimeout(10000);
+            // 第一个字节不是 MAGIC，按十六进制文本协议处理，不需要握手
+            s.getOutputStream().write(("00" + Hex.encodeHexString("nosuch".getBytes()) + "\n").getBytes());
+            BufferedReader reader = new BufferedReader(new InputStreamReader(s.getInputStream()));
+            byte[] reply = Hex.decodeHex(reader.readLine().toCharArray());
+            assertEquals(1, reply[0]);
+            assertTrue(new String(reply, 1, reply.length - 1).startsWith("Invalid"));
+        }
+    }
+
+    @Test
+    public void testBadMagicClosesConnection() throws Exception {
+        try (Socket s = new Socket("127.0.0.1", port)) {
+            s.setSoTimeout(10000);
+            s.getOutputStream().write(new byte[]{(byte) 0xFF, 'X', 'Y', 'Z', 5});
+            assertEquals(-1, s.getInputStream().read());
+        }
+    }
+
+    @Test
+    public void testOversizedFrameClosesConnection() throws Exception {
+        try (Socket s = connect()) {
+            DataOutputStream out = new DataOutputStream(s.getOutputStream());
+            out.writeInt(Transporter.maxFrame() + 1);
+            out.flush();
+            assertEquals(-1, s.getInputStream().read());
+        }
+    }
+
+    @Test
+    public void testFrameArrivingInPieces() throws Exception {
+        try (Socket s = connect()) {
+            DataInputStream in = new DataInputStream(s.getInputStream());
+            DataOutputStream out = new DataOutputStream(s.getOutputStream());
+            byte[] data = new byte[300 << 10];
+            Arrays.fill(data, (byte) 'x');
+            out.writeInt(data.length + 5);
+            out.writeInt(42);
+            out.writeByte(0);
+            for (int off = 0; off < data.length; off += 50 << 10) {
+                out.write(data, off, Math.min(50 << 10, data.length - off));
+                out.flush();
+                Thread.sleep(20);
+            }
+            int length = in.readInt();
+            assertEquals(42, in.readInt());
+            // 语句无效，返回错误，连接仍然可用
+            assertEquals(1, in.readByte());
+            in.readFully(new byte[length - 5]);
+
+            out.writeInt(5);
+            out.writeInt(43);
+            out.writeByte(0);
+            out.flush();
+            in.readInt();
+            assertEquals(43, in.readInt());
+        }
+    }
+
+    /**
+     * 发送一帧版本 2 起格式的请求
+     */
+    private static void send(DataOutputStream out, int id, String sql) throws Exception {
+        byte[] data = sql.getBytes();
+        out.writeInt(data.length + 5);
+        out.writeInt(id);
+        out.writeByte(0);
+        out.write(data);
+        out.flush();
+    }
+
+    @Test
+    public void testLargeResultStreamed() throws Exception {
+        try (Socket s = connect(Transporter.STREAM_VERSION, Transporter.STREAM_VERSION)) {
+            DataInputStream in = new DataInputStream(s.getInputStream());
+            DataOutputStream out = new DataOutputStream(s.getOutputStream());
+            StringBuilder sql = new StringBuilder("insert into stream values ");
+            for (int i = 0; i < 4000; i++) {
+                sql.append(i == 0 ? "" : ", ").append("(").append(i).append(", \"name of row ").append(i).append("\")");
+            }
+            send(out, 1, "create table stream id int64, name string (index id)");
+            send(out, 2, sql.toString());
+            send(out, 3, "select * from stream");
+            for (int id = 1; id <= 2; id++) {
+                int length = in.readInt();
+                assertEquals(id, in.readInt());
+                assertEquals(0, in.readByte());
+                in.readFully(new byte[length - 5]);
+            }
+            // 除最后一帧外 Flag 为 3，每一帧都只包含完整的行
+            int partial = 0, rows = 0;
+            while (true) {
+                int length = in.readInt();
+                assertEquals(3, in.readInt());
+                byte flag = in.readByte();
+                byte[] data = new byte[length - 5];
+                in.readFully(data);
+                String text = new String(data);
+                assertTrue(text.isEmpty() || text.endsWith("\n"));
+                rows += text.isEmpty() ? 0 : text.split("\n").length;
+                if(flag == 0) {
+                    break;
+                }
+                assertEquals(3, flag);
+                partial ++;
+            }
+            assertTrue(partial > 0);
+            assertEquals(4000, rows);
+        }
+    }
+}
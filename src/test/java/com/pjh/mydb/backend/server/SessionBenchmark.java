@@ -0,0 +1,145 @@
+package com.pjh.mydb.backend.server;
+
+import com.pjh.mydb.backend.dm.DataManager;
+import com.pjh.mydb.backend.tbm.TableManager;
+import com.pjh.mydb.backend.tm.TransactionManager;
+import com.pjh.mydb.backend.vm.VersionManager;
+import com.pjh.mydb.backend.vm.VersionManagerImpl;
+import com.pjh.mydb.client.Client;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 服务器在大量并发会话下的基准测试，不是单元测试，需要手动运行。服务端和客户端分别在两个 JVM 中运行：
+ *
+ * java -Xss256k -cp ... com.pjh.mydb.backend.server.SessionBenchmark server 9999 [vthreads]
+ * java -cp ... com.pjh.mydb.backend.server.SessionBenchmark client 9999 10000 5 20
+ *
+ * 服务端在临时目录中新建数据库，加上 vthreads 时用虚拟线程执行语句，每秒输出一次峰值线程数。
+ * 客户端建表并导入 ROWS 行，然后建立 sessions 个连接，所有会话同时开始，每个会话执行 stmts 条语句，
+ * 其中 update% 是 update t set v = v + 1 where id = ?，其余是按主键的 select；最后输出耗时、吞吐量和延迟的分位数，
+ * 以及 sum(v) 和 update 返回的更新行数之和，两者应当相等。
+ * 客户端每个会话一个线程，运行在 JDK 21 及以上时使用虚拟线程。
+ *
+ * @author Joseph Peng
+ * @date 2026/10/20 04:30
+ */
+public class SessionBenchmark {
+
+    private static final int ROWS = 10000;
+
+    public static void main(String[] args) throws Exception {
+        if(args.length >= 2 && "server".equals(args[0])) {
+            server(Integer.parseInt(args[1]), args.length > 2 && "vthreads".equals(args[2]));
+        } else if(args.length == 5 && "client".equals(args[0])) {
+            client(Integer.parseInt(args[1]), Integer.parseInt(args[2]), Integer.parseInt(args[3]), Integer.parseInt(args[4]));
+        } else {
+            System.out.println("Usage: SessionBenchmark server <port> [vthreads]");
+            System.out.println("       SessionBenchmark client <port> <sessions> <stmts> <update%>");
+        }
+    }
+
+    private static void server(int port, boolean virtualThreads) throws Exception {
+        String path = Files.createTempDirectory("bench").resolve("db").toString();
+        TransactionManager tm = TransactionManager.create(path);
+        DataManager dm = DataManager.create(path, 256L << 20, tm);
+        VersionManager vm = new VersionManagerImpl(tm, dm);
+        TableManager tbm = TableManager.create(path, vm, dm);
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        Thread monitor = new Thread(() -> {
+            int reported = 0;
+            while (true) {
+                int peak = threads.getPeakThreadCount();
+                if(peak != reported) {
+                    System.out.println("peak platform threads " + peak);
+                    reported = peak;
+                }
+                try {
+                    Thread.sleep(1000);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        });
+        monitor.setDaemon(true);
+        monitor.start();
+        new Server(port, tbm, virtualThreads).start();
+    }
+
+    private static void client(int port, int sessions, int stmts, int updatePercent) throws Exception {
+        Client admin = Client.connect("127.0.0.1", port);
+        admin.execute("create table t id int64, v int64 (index id)".getBytes());
+        List<String[]> rows = new ArrayList<>(ROWS);
+        for (int i = 0; i < ROWS; i++) {
+            rows.add(new String[]{String.valueOf(i), "0"});
+        }
+        admin.load("t", rows);
+
+        long start = System.nanoTime();
+        List<Client> clients = new ArrayList<>(sessions);
+        for (int i = 0; i < sessions; i++) {
+            clients.add(Client.connect("127.0.0.1", port));
+        }
+        System.out.printf("connected %d sessions in %.1fs%n", sessions, (System.nanoTime() - start) / 1e9);
+
+        long[] latency = new long[sessions * stmts];
+        AtomicInteger next = new AtomicInteger(), errors = new AtomicInteger(), updated = new AtomicInteger();
+        ExecutorService es = newSessionExecutor();
+        start = System.nanoTime();
+        for (Client c : clients) {
+            es.execute(() -> {
+                Random r = new Random();
+                for (int k = 0; k < stmts; k++) {
+                    int id = r.nextInt(ROWS);
+                    boolean update = r.nextInt(100) < updatePercent;
+                    String sql = update ? "update t set v = v + 1 where id = " + id : "select * from t where id = " + id;
+                    long t0 = System.nanoTime();
+                    try {
+                        byte[] res = c.execute(sql.getBytes());
+                        if(update) {
+                            updated.addAndGet(Integer.parseInt(new String(res).substring("update ".length())));
+                        }
+                    } catch (Exception e) {
+                        errors.incrementAndGet();
+                    }
+                    latency[next.getAndIncrement()] = System.nanoTime() - t0;
+                }
+            });
+        }
+        es.shutdown();
+        es.awaitTermination(1, TimeUnit.DAYS);
+        long elapsed = System.nanoTime() - start;
+
+        Arrays.sort(latency);
+        System.out.printf("%d sessions x %d stmts, %d%% updates: %.1fs, %.0f stmt/s, p50 %.1fms, p99 %.1fms, errors %d%n",
+                sessions, stmts, updatePercent, elapsed / 1e9, latency.length / (elapsed / 1e9),
+                latency[latency.length / 2] / 1e6, latency[latency.length * 99 / 100] / 1e6, errors.get());
+        String sum = new String(admin.execute("select sum(v) from t".getBytes())).trim();
+        System.out.println("sum(v) " + sum + ", updated rows " + updated.get());
+        for (Client c : clients) {
+            c.close();
+        }
+        admin.close();
+    }
+
+    /**
+     * JDK 21 及以上时每个会话一个虚拟线程，否则一个平台线程
+     */
+    private static ExecutorService newSessionExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return Executors.newCachedThreadPool();
+        }
+    }
+}
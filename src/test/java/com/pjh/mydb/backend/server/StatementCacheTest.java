@@ -0,0 +1,50 @@
+package com.pjh.mydb.backend.server;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class StatementCacheTest {
+
+    @Test
+    public void testCachedStatementReused() throws Exception {
+        StatementCache cache = new StatementCache(16);
+        Object stat = cache.get("select * from t where id = 1".getBytes());
+        assertSame(stat, cache.get("select * from t where id = 1".getBytes()));
+        assertNotSame(stat, cache.get("select * from t where id = 2".getBytes()));
+        assertEquals(2, cache.size());
+    }
+
+    @Test
+    public void testOneOffStatementsNotCached() throws Exception {
+        StatementCache cache = new StatementCache(16);
+        cache.get("execute p 1".getBytes());
+        cache.get("insert into t values (1, 2), (3, 4)".getBytes());
+        char[] pad = new char[StatementCache.MAX_STATEMENT_LENGTH];
+        Arrays.fill(pad, '1');
+        cache.get(("select * from t where id = " + new String(pad)).getBytes());
+        assertEquals(0, cache.size());
+
+        cache.get("insert into t values 1 2".getBytes());
+        assertEquals(1, cache.size());
+    }
+
+    @Test
+    public void testEvictByCountAndBytes() throws Exception {
+        StatementCache byCount = new StatementCache(2);
+        Object first = byCount.get("select * from t where id = 1".getBytes());
+        byCount.get("select * from t where id = 2".getBytes());
+        byCount.get("select * from t where id = 3".getBytes());
+        assertEquals(2, byCount.size());
+        assertNotSame(first, byCount.get("select * from t where id = 1".getBytes()));
+
+        // 每条语句 28 字节，总长度不超过 100 字节时至多保留 3 条
+        StatementCache byBytes = new StatementCache(1024, 100);
+        for (int i = 0; i < 10; i++) {
+            byBytes.get(("select * from t where id = " + i).getBytes());
+        }
+        assertEquals(3, byBytes.size());
+    }
+}
@@ -0,0 +1,97 @@
+package com.pjh.mydb.backend.stats;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class HistogramTest {
+
+    @Test
+    public void testEmpty() {
+        Histogram h = new Histogram();
+        assertEquals(0, h.count());
+        assertEquals(0, h.max());
+        assertEquals(0, h.mean(), 0);
+        assertEquals(0, h.percentile(50));
+        assertEquals(0, h.percentile(100));
+    }
+
+    @Test
+    public void testSmallValuesExact() {
+        Histogram h = new Histogram();
+        for (int i = 0; i < 16; i++) {
+            h.record(i);
+        }
+        assertEquals(16, h.count());
+        assertEquals(15, h.max());
+        assertEquals(7.5, h.mean(), 1e-9);
+        assertEquals(0, h.percentile(0));
+        assertEquals(7, h.percentile(50));
+        assertEquals(15, h.percentile(100));
+    }
+
+    @Test
+    public void testRelativeError() {
+        Histogram h = new Histogram();
+        int n = 100000;
+        long sum = 0;
+        for (int i = 1; i <= n; i++) {
+            // 跨越多个数量级
+            long v = (long) i * i;
+            h.record(v);
+            sum += v;
+        }
+        assertEquals(n, h.count());
+        assertEquals((long) n * n, h.max());
+        assertEquals((double) sum / n, h.mean(), 1e-6 * sum / n);
+        for (double p : new double[]{1, 10, 50, 90, 99, 99.9}) {
+            long k = (long) Math.ceil(p / 100 * n);
+            long exact = k * k;
+            long got = h.percentile(p);
+            // 返回所在桶的上界，不小于真实值，相对误差不超过 1/16
+            assertTrue(p + ": " + got + " < " + exact, got >= exact);
+            assertTrue(p + ": " + got + " > " + exact, got <= exact + exact / 16);
+        }
+        assertEquals((long) n * n, h.percentile(100));
+    }
+
+    @Test
+    public void testExtremeValues() {
+        Histogram h = new Histogram();
+        h.record(-5);
+        h.record(Long.MAX_VALUE);
+        assertEquals(2, h.count());
+        assertEquals(0, h.percentile(50));
+        assertEquals(Long.MAX_VALUE, h.percentile(100));
+        assertEquals(Long.MAX_VALUE, h.max());
+    }
+
+    @Test
+    public void testConcurrentRecords() throws Exception {
+        Histogram h = new Histogram();
+        int threads = 8, each = 20000;
+        List<Thread> list = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            final int base = t * each;
+            Thread thread = new Thread(() -> {
+                for (int i = 1; i <= each; i++) {
+                    h.record(base + i);
+                }
+            });
+            list.add(thread);
+            thread.start();
+        }
+        for (Thread thread : list) {
+            thread.join();
+        }
+        int n = threads * each;
+        assertEquals(n, h.count());
+        assertEquals(n, h.max());
+        assertEquals((n + 1) / 2.0, h.mean(), 1e-6);
+        long p50 = h.percentile(50);
+        assertTrue(p50 >= n / 2 && p50 <= n / 2 + n / 32);
+    }
+}
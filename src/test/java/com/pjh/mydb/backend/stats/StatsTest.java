@@ -0,0 +1,117 @@
+package com.pjh.mydb.backend.stats;
+
+import com.pjh.mydb.TestDB;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.management.Attribute;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.*;
+
+public class StatsTest {
+
+    private TestDB db;
+
+    @Before
+    public void setUp() throws Exception {
+        db = TestDB.create();
+        db.run("create table t id int64, name string (index id)");
+        db.run("insert into t values (1, \"a\"), (2, \"b\"), (3, \"c\")");
+    }
+
+    @After
+    public void tearDown() {
+        Stats.setSlowQueryThreshold(Stats.DEFAULT_SLOW_QUERY_MILLIS);
+    }
+
+    /**
+     * show stats 中某种语句的执行次数和出错次数
+     */
+    private static long[] kind(String report, String kind) {
+        Matcher m = Pattern.compile("^" + kind + " count (\\d+), .*, errors (\\d+)$", Pattern.MULTILINE).matcher(report);
+        if(!m.find()) {
+            return new long[]{0, 0};
+        }
+        return new long[]{Long.parseLong(m.group(1)), Long.parseLong(m.group(2))};
+    }
+
+    private static long number(String report, String regex) {
+        Matcher m = Pattern.compile(regex).matcher(report);
+        assertTrue(report, m.find());
+        return Long.parseLong(m.group(1));
+    }
+
+    @Test
+    public void testStatementKinds() throws Exception {
+        String before = Stats.report();
+        db.run("select * from t");
+        db.run("select * from t where id = 2");
+        db.error("select * from nosuch");
+        db.error("insert into nosuch values 1");
+        db.error("what is this");
+        String after = db.run("show stats");
+        long[] select = kind(after, "select"), select0 = kind(before, "select");
+        assertEquals(3, select[0] - select0[0]);
+        assertEquals(1, select[1] - select0[1]);
+        long[] insert = kind(after, "insert"), insert0 = kind(before, "insert");
+        assertEquals(1, insert[0] - insert0[0]);
+        assertEquals(1, insert[1] - insert0[1]);
+        long[] invalid = kind(after, "invalid"), invalid0 = kind(before, "invalid");
+        assertEquals(1, invalid[0] - invalid0[0]);
+        assertEquals(1, invalid[1] - invalid0[1]);
+        for (String line : new String[]{"sessions ", "rows scanned ", "page cache hit ratio ", "lock wait count ",
+                "log fsync count ", "slow queries "}) {
+            assertTrue(line, after.contains(line));
+        }
+    }
+
+    @Test
+    public void testRowsReturned() throws Exception {
+        long returned = number(Stats.report(), "returned (\\d+)");
+        db.run("select * from t");
+        db.run("select * from t where id = 3");
+        assertEquals(4, number(Stats.report(), "returned (\\d+)") - returned);
+    }
+
+    @Test
+    public void testSlowQueryThreshold() throws Exception {
+        long slow = number(Stats.report(), "slow queries (\\d+)");
+        db.run("select * from t");
+        assertEquals(slow, number(Stats.report(), "slow queries (\\d+)"));
+        assertEquals(Stats.DEFAULT_SLOW_QUERY_MILLIS, number(Stats.report(), "threshold (\\d+)ms"));
+
+        Stats.setSlowQueryThreshold(0);
+        db.run("select * from t");
+        db.error("select * from nosuch");
+        String report = Stats.report();
+        assertEquals(2, number(report, "slow queries (\\d+)") - slow);
+        assertEquals(0, number(report, "threshold (\\d+)ms"));
+    }
+
+    @Test
+    public void testJmx() throws Exception {
+        Stats.register();
+        // 重复注册被忽略
+        Stats.register();
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName("com.pjh.mydb:type=Stats");
+        server.setAttribute(name, new Attribute("SlowQueryThresholdMillis", 0L));
+        assertEquals(0, number(Stats.report(), "threshold (\\d+)ms"));
+        long slow = (Long) server.getAttribute(name, "SlowQueryCount");
+        db.run("select * from t");
+        assertEquals(slow + 1, (long) (Long) server.getAttribute(name, "SlowQueryCount"));
+        String[] latencies = (String[]) server.getAttribute(name, "StatementLatencies");
+        boolean found = false;
+        for (String line : latencies) {
+            found |= line.startsWith("select count ");
+        }
+        assertTrue(found);
+        assertTrue(((String) server.getAttribute(name, "Report")).contains("slow queries "));
+    }
+}
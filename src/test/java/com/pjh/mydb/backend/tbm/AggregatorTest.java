@@ -0,0 +1,81 @@
+package com.pjh.mydb.backend.tbm;
+
+import com.pjh.mydb.TestDB;
+import com.pjh.mydb.common.Error;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class AggregatorTest {
+
+    private TestDB db;
+
+    @Before
+    public void setUp() throws Exception {
+        db = TestDB.create();
+        db.run("create table t id int64, grp int32, name string (index id)");
+    }
+
+    /**
+     * id 从 1 到 n，grp 为 id % 3，name 为 n 加上 id
+     */
+    private void insert(int n) throws Exception {
+        db.run("begin");
+        for (int i = 1; i <= n; i++) {
+            db.run("insert into t values " + i + " " + (i % 3) + " \"n" + i + "\"");
+        }
+        db.run("commit");
+    }
+
+    @Test
+    public void testEmptyTable() throws Exception {
+        assertEquals("[0, null, null, null, null]\n", db.run("select count(*), sum(id), min(id), max(name), avg(grp) from t"));
+        assertEquals("", db.run("select grp, count(*) from t group by grp"));
+    }
+
+    @Test
+    public void testAggregatesWithoutGroupBy() throws Exception {
+        // 超过一批的记录，检查按批累加的结果
+        insert(3000);
+        assertEquals("[3000, 4501500, 1, 3000]\n", db.run("select count(*), sum(id), min(id), max(id) from t"));
+        assertEquals("[1500.0]\n", db.run("select avg(id) from t where id < 3000"));
+        assertEquals("[n1, n999]\n", db.run("select min(name), max(name) from t"));
+        assertEquals("[10, 155]\n", db.run("select count(id), sum(id) from t where id > 10 and id < 21"));
+    }
+
+    @Test
+    public void testGroupBy() throws Exception {
+        insert(10);
+        // 按分组第一次出现的顺序输出
+        assertEquals("[1, 4, 22, n1, n7]\n[2, 3, 15, n2, n8]\n[0, 3, 18, n3, n9]\n",
+                db.run("select grp, count(*), sum(id), min(name), max(name) from t group by grp"));
+        assertEquals("[1, 3]\n[2, 2]\n[0, 2]\n", db.run("select grp, count(*) from t where id > 3 and id < 11 group by grp"));
+    }
+
+    @Test
+    public void testGroupByWithOrderBy() throws Exception {
+        insert(10);
+        assertEquals("[0, 3]\n[1, 4]\n[2, 3]\n", db.run("select grp, count(*) from t group by grp order by grp"));
+        assertEquals("[2, 5.0]\n", db.run("select grp, avg(id) from t group by grp order by grp desc limit 1"));
+        assertEquals("[1, 3]\n", db.run("select grp, count(*) from t where id > 3 and id < 11 group by grp order by grp limit 1 offset 1"));
+        // 分组后不能按分组以外的字段排序
+        assertSame(Error.InvalidAggregateException, db.error("select grp, count(*) from t group by grp order by id"));
+    }
+
+    @Test
+    public void testMinMaxFromIndex() throws Exception {
+        insert(100);
+        db.run("delete from t where id < 5");
+        db.run("delete from t where id > 97");
+        // 直接从索引两端取值，跳过已经删除的记录
+        assertEquals("[5, 97]\n", db.run("select min(id), max(id) from t"));
+    }
+
+    @Test
+    public void testInvalidAggregates() {
+        assertSame(Error.InvalidAggregateException, db.error("select name, count(*) from t"));
+        assertSame(Error.InvalidAggregateException, db.error("select sum(name) from t"));
+        assertSame(Error.InvalidAggregateException, db.error("select avg(name) from t"));
+    }
+}
@@ -0,0 +1,104 @@
+package com.pjh.mydb.backend.tbm;
+
+import com.pjh.mydb.TestDB;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class CompositeIndexTest {
+
+    private static final int ROWS = 200;
+
+    private TestDB db;
+
+    /**
+     * id 从 0 到 ROWS-1，a 为 id % 10，b 为 id，name 为 n 加上 id % 7；(a, b) 和 (a, name) 上有联合索引
+     */
+    @Before
+    public void setUp() throws Exception {
+        db = TestDB.create();
+        db.run("create table t id int64, a int32, b int64, name string (index id)");
+        for (int i = 0; i < ROWS; i++) {
+            db.run("insert into t values " + i + " " + (i % 10) + " " + i + " \"n" + (i % 7) + "\"");
+        }
+        db.run("create index on t (a, b)");
+        db.run("create index on t (a, name)");
+    }
+
+    /**
+     * 查询结果中每行的 id，按返回的顺序
+     */
+    private String ids(String where) throws Exception {
+        StringBuilder sb = new StringBuilder();
+        for (String line : db.run("select * from t where " + where).split("\n")) {
+            if(!line.isEmpty()) {
+                sb.append(sb.length() == 0 ? "" : " ").append(line.substring(1, line.indexOf(',')));
+            }
+        }
+        return sb.toString();
+    }
+
+    @Test
+    public void testPrefixEquality() throws Exception {
+        String res = ids("a = 3");
+        assertEquals(ROWS / 10, res.split(" ").length);
+        // 按 (a, b) 的顺序读出
+        assertTrue(res.startsWith("3 13 23 "));
+        assertEquals(ROWS / 10, db.scanned("select * from t where a = 3"));
+    }
+
+    @Test
+    public void testPrefixEqualityAndRange() throws Exception {
+        assertEquals("153 163 173 183 193", ids("a = 3 and b > 150"));
+        assertEquals("3 13 23", ids("a = 3 and b < 30"));
+        assertEquals("", ids("a = 3 and b < 3"));
+        // a = 3 之后的范围是 B+ 树上的一段连续区间，只读取区间内的记录
+        assertEquals(5, db.scanned("select * from t where a = 3 and b > 150"));
+    }
+
+    @Test
+    public void testPrefixEqualityAndStringRange() throws Exception {
+        // a = 3 的行中 name 为 n3、n6、n2、n5、n1、n4、n0 循环
+        String res = db.run("select * from t where a = 3 and name > \"n4\"");
+        for (String line : res.split("\n")) {
+            assertTrue(line, line.endsWith(", n5]") || line.endsWith(", n6]"));
+        }
+        assertEquals(6, res.split("\n").length);
+        // 键相同的记录之间没有约定的顺序
+        String[] found = ids("a = 3 and name = \"n3\"").split(" ");
+        Arrays.sort(found);
+        assertArrayEquals(new String[]{"143", "3", "73"}, found);
+        assertEquals(6, db.scanned("select * from t where a = 3 and name > \"n4\""));
+    }
+
+    @Test
+    public void testUncoveredConditionRechecked() throws Exception {
+        // 索引没有用上的条件在读出记录后检查
+        assertEquals("3 13 23", ids("a = 3 and id < 30"));
+        assertEquals("103", ids("b = 103 and a = 3"));
+    }
+
+    @Test
+    public void testKeysFollowUpdates() throws Exception {
+        db.run("update t set b = 1013 where id = 13");
+        db.run("update t set a = 4 where id = 23");
+        db.run("delete from t where id = 33");
+        assertEquals("13", ids("a = 3 and b > 1000"));
+        // 旧版本的 key 仍在索引中，读出后按新值检查
+        assertEquals("3", ids("a = 3 and b < 20"));
+        assertEquals("", ids("a = 3 and b = 23"));
+        assertEquals("23", ids("a = 4 and b = 23"));
+        assertEquals("", ids("a = 3 and b = 33"));
+        assertEquals(ROWS / 10 - 2, ids("a = 3").split(" ").length);
+
+        // 撤销的更新不改变查找的结果
+        db.run("begin");
+        db.run("update t set a = 5 where id = 43");
+        db.run("abort");
+        assertEquals("43", ids("a = 3 and b = 43"));
+        assertEquals("", ids("a = 5 and b = 43"));
+    }
+}
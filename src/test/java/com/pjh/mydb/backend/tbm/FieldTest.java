@@ -0,0 +1,63 @@
+package com.pjh.mydb.backend.tbm;
+
+import com.pjh.mydb.TestDB;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class FieldTest {
+
+    private static void assertKeyOrder(String type, Object... values) {
+        Field fd = new Field(null, "f", type, 0);
+        for (int i = 1; i < values.length; i++) {
+            byte[] a = fd.value2Key(values[i - 1]), b = fd.value2Key(values[i]);
+            assertTrue(values[i - 1] + " < " + values[i], Index.compare(a, b) < 0);
+        }
+    }
+
+    @Test
+    public void testNumberKeysKeepOrder() {
+        assertKeyOrder("int32", Integer.MIN_VALUE, -70000, -1, 0, 1, 255, 256, Integer.MAX_VALUE);
+        assertKeyOrder("int64", Long.MIN_VALUE, -1L << 40, -1L, 0L, 1L, 1L << 40, Long.MAX_VALUE);
+    }
+
+    @Test
+    public void testStringKeysKeepOrder() {
+        // 前缀排在前面，0x00 转义后仍小于任何其他字节，多字节字符按 UTF-8 字节序
+        assertKeyOrder("string", "", "\0", "\0\0", "\0a", "a", "a\0", "a\0b", "aa", "ab", "b", "é", "中");
+    }
+
+    @Test
+    public void testStringKeyIsNotPrefixOfAnother() {
+        Field fd = new Field(null, "f", "string", 0);
+        List<String> values = Arrays.asList("", "a", "a\0", "ab", "a\1");
+        for (String x : values) {
+            for (String y : values) {
+                if(x.equals(y)) continue;
+                byte[] kx = fd.value2Key(x), ky = fd.value2Key(y);
+                assertFalse(x + " / " + y, ky.length >= kx.length && Arrays.equals(kx, Arrays.copyOf(ky, kx.length)));
+            }
+        }
+    }
+
+    @Test
+    public void testStringIndexQueries() throws Exception {
+        TestDB db = TestDB.create();
+        db.run("create table t name string, v int32 (index name)");
+        // 超过内联宽度、前缀相同的 key 需要读取溢出部分才能比较
+        String prefix = "abcdefghijklmnopqrstuvwxyz";
+        String[] names = {"b", prefix + "2", "a", prefix + "10", prefix + "1", prefix, "c"};
+        for (int i = 0; i < names.length; i++) {
+            db.run("insert into t values \"" + names[i] + "\" " + i);
+        }
+        assertEquals("[" + prefix + "10, 3]\n", db.run("select * from t where name = \"" + prefix + "10\""));
+        assertEquals("", db.run("select * from t where name = \"" + prefix + "3\""));
+        assertEquals("[" + prefix + "1, 4]\n[" + prefix + "10, 3]\n",
+                db.run("select * from t where name > \"" + prefix + "\" and name < \"" + prefix + "2\""));
+        assertEquals("[a, 2]\n", db.run("select * from t where name < \"abc\""));
+        assertEquals("[c, 6]\n", db.run("select * from t where name > \"b\""));
+    }
+}
@@ -0,0 +1,107 @@
+package com.pjh.mydb.backend.tbm;
+
+import com.pjh.mydb.TestDB;
+import com.pjh.mydb.common.Error;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class JoinerTest {
+
+    private TestDB db;
+
+    @Before
+    public void setUp() throws Exception {
+        db = TestDB.create();
+        // class 的 id 上有索引，teacher 的 cls 上没有
+        db.run("create table class id int64, name string (index id)");
+        db.run("create table student id int64, name string, class_id int64 (index id)");
+        db.run("create table teacher tid int64, cls int64, name string (index tid)");
+        db.run("insert into class values 1 \"c1\"");
+        db.run("insert into class values 2 \"c2\"");
+        db.run("insert into class values 3 \"c3\"");
+        db.run("insert into student values 1 \"s1\" 1");
+        db.run("insert into student values 2 \"s2\" 2");
+        db.run("insert into student values 3 \"s3\" 1");
+        db.run("insert into student values 4 \"s4\" 9");
+        db.run("insert into teacher values 1 1 \"t1\"");
+        db.run("insert into teacher values 2 1 \"t2\"");
+        db.run("insert into teacher values 3 3 \"t3\"");
+    }
+
+    @Test
+    public void testIndexNestedLoopJoin() throws Exception {
+        assertEquals("[s1, c1]\n[s2, c2]\n[s3, c1]\n",
+                db.run("select student.name, class.name from student join class on student.class_id = class.id"));
+        assertEquals("[s1, c1]\n[s2, c2]\n[s3, c1]\n",
+                db.run("select student.name, class.name from student inner join class on class.id = class_id"));
+    }
+
+    @Test
+    public void testHashJoin() throws Exception {
+        assertEquals("[c1, t1]\n[c1, t2]\n[c3, t3]\n",
+                db.run("select class.name, teacher.name from class join teacher on class.id = teacher.cls order by teacher.name"));
+    }
+
+    @Test
+    public void testLeftJoin() throws Exception {
+        assertEquals("[s1, c1]\n[s2, c2]\n[s3, c1]\n[s4, null]\n",
+                db.run("select student.name, class.name from student left join class on student.class_id = class.id"));
+        // 右侧的表没有索引时同样补 null
+        assertEquals("[c1, t1]\n[c1, t2]\n[c2, null]\n[c3, t3]\n",
+                db.run("select class.name, teacher.name from class left join teacher on class.id = teacher.cls order by class.name, teacher.name"));
+    }
+
+    @Test
+    public void testThreeTables() throws Exception {
+        assertEquals("[s1, t1]\n[s1, t2]\n[s3, t1]\n[s3, t2]\n",
+                db.run("select student.name, teacher.name from student join class on student.class_id = class.id "
+                        + "join teacher on teacher.cls = class.id order by student.name, teacher.name"));
+    }
+
+    @Test
+    public void testWhere() throws Exception {
+        // 第一张表上的条件走索引，被连接的表上的条件在读取时检查
+        assertEquals("[s3, c1]\n",
+                db.run("select student.name, class.name from student join class on student.class_id = class.id "
+                        + "where student.id > 2 and class.name = \"c1\""));
+        // 跨两张表的 or 在连接之后检查
+        assertEquals("[s2, c2]\n[s4, null]\n",
+                db.run("select student.name, class.name from student left join class on student.class_id = class.id "
+                        + "where student.id > 3 or class.name = \"c2\""));
+        assertEquals("[1, s1, 1, 1, c1]\n",
+                db.run("select * from student join class on student.class_id = class.id where student.id = 1"));
+    }
+
+    @Test
+    public void testQualifiedFieldUsesIndex() throws Exception {
+        db.run("create table t id int64, v int32 (index id)");
+        db.run("begin");
+        for (int i = 0; i < 2000; i++) {
+            db.run("insert into t values " + i + " " + (i % 10));
+        }
+        db.run("commit");
+        // 用表名限定的字段和不限定时一样走索引
+        assertEquals(1, db.scanned("select * from t where t.id = 5"));
+        assertEquals("[5, 5]\n", db.run("select * from t where t.id = 5"));
+        assertEquals(2, db.scanned("select * from t where t.id < 10 and id > 7"));
+        assertEquals(1, db.scanned("update t set v = 100 where t.id = 3"));
+        assertEquals("[3, 100]\n", db.run("select * from t where id = 3"));
+        assertEquals(1, db.scanned("select * from student where student.id = 2"));
+    }
+
+    @Test
+    public void testInvalidJoins() {
+        assertSame(Error.AmbiguousFieldException,
+                db.error("select name from student join class on student.class_id = class.id"));
+        assertSame(Error.FieldNotFoundException,
+                db.error("select student.nosuch from student join class on student.class_id = class.id"));
+        assertSame(Error.InvalidJoinException,
+                db.error("select student.name from student join class on student.name = class.id"));
+        assertSame(Error.InvalidJoinException,
+                db.error("select student.name from student join student on student.id = student.id"));
+        assertSame(Error.InvalidJoinException,
+                db.error("select count(*) from student join class on student.class_id = class.id"));
+    }
+}
@@ -0,0 +1,114 @@
+package com.pjh.mydb.backend.tbm;
+
+import com.pjh.mydb.TestDB;
+import com.pjh.mydb.backend.server.Executor;
+import com.pjh.mydb.common.Error;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class LoaderTest {
+
+    private TestDB db;
+
+    @Before
+    public void setUp() throws Exception {
+        db = TestDB.create();
+        db.run("create table t id int64, name string, v int32 (index id name)");
+        db.run("create index on t (v, id)");
+    }
+
+    /**
+     * 第 from 到 to-1 行的数据
+     */
+    private static String lines(int from, int to) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = from; i < to; i++) {
+            sb.append(i).append('\t').append("n").append(i).append('\t').append(i % 7).append('\n');
+        }
+        return sb.toString();
+    }
+
+    @Test
+    public void testLoadIntoEmptyTable() throws Exception {
+        assertEquals("load", db.run("load into t"));
+        // 超过一批的记录分几段发送
+        assertEquals("load 1500", db.run(lines(0, 1500)));
+        assertEquals("load 3000", db.run(lines(1500, 3000)));
+        assertEquals("load 3000", db.run("\\."));
+        assertEquals("[3000]\n", db.run("select count(*) from t"));
+        assertEquals("[1234, n1234, 2]\n", db.run("select * from t where id = 1234"));
+        assertEquals("[2999]\n", db.run("select id from t where name = \"n2999\""));
+        assertEquals("[5]\n", db.run("select id from t where v = 5 and id < 10"));
+        // 导入之后正常插入和查找
+        db.run("insert into t values 3000 \"x\" 1");
+        assertEquals("[3000, x, 1]\n", db.run("select * from t where id = 3000"));
+    }
+
+    @Test
+    public void testLoadMergesIntoExistingIndexes() throws Exception {
+        db.run("insert into t values (5000, \"a\", 1), (0, \"b\", 2)");
+        db.run("load into t");
+        db.run(lines(1, 100) + "\\.\n");
+        assertEquals("[101]\n", db.run("select count(*) from t"));
+        assertEquals("[0]\n[1]\n[2]\n", db.run("select id from t where id < 3"));
+        assertEquals("[5000]\n", db.run("select id from t order by id desc limit 1"));
+        assertEquals("[n50]\n", db.run("select name from t where id = 50"));
+    }
+
+    @Test
+    public void testEscapes() throws Exception {
+        db.run("load into t");
+        db.run("1\ta\\tb\\nc\\\\d\t1\r\n2\t\t2\n\\.\r\n");
+        assertEquals("[a\tb\nc\\d]\n", db.run("select name from t where id = 1"));
+        assertEquals("[]\n", db.run("select name from t where id = 2"));
+    }
+
+    @Test
+    public void testBadDataAbortsLoad() throws Exception {
+        db.run("load into t");
+        db.run(lines(0, 10));
+        assertSame(Error.InvalidValuesException, db.error("11\tbad\\x\t1\n"));
+        // 导入已经结束，整个临时事务回滚
+        assertEquals("[0]\n", db.run("select count(*) from t"));
+
+        db.run("load into t");
+        assertSame(Error.InvalidValuesException, db.error("1\ta\t1\n\\.\n2\tb\t2\n"));
+        assertEquals("[0]\n", db.run("select count(*) from t"));
+    }
+
+    @Test
+    public void testLoadInTransaction() throws Exception {
+        Executor other = db.session();
+        db.run("begin");
+        db.run("insert into t values 0 \"first\" 0");
+        db.run("load into t");
+        db.run(lines(1, 10) + "\\.\n");
+        // 导入结束后事务继续，提交前其他事务看不到
+        assertEquals("[10]\n", db.run("select count(*) from t"));
+        assertEquals("[0]\n", TestDB.run(other, "select count(*) from t"));
+        db.run("commit");
+        assertEquals("[10]\n", TestDB.run(other, "select count(*) from t"));
+    }
+
+    @Test
+    public void testFailedLoadAbortsTransaction() throws Exception {
+        db.run("begin");
+        db.run("insert into t values 0 \"first\" 0");
+        db.run("load into t");
+        assertSame(Error.InvalidValuesException, db.error("1\tbad\\x\t1\n"));
+        // 客户端开启的事务被回滚，发送 abort 之前的语句都失败
+        assertSame(Error.TransactionAbortedException, db.error("select count(*) from t"));
+        assertSame(Error.TransactionAbortedException, db.error("commit"));
+        assertEquals("abort", db.run("abort"));
+        assertEquals("[0]\n", db.run("select count(*) from t"));
+    }
+
+    @Test
+    public void testLoadMissingTable() throws Exception {
+        assertSame(Error.TableNotFoundException, db.error("load into nosuch"));
+        // 没有进入导入模式
+        assertEquals("[0]\n", db.run("select count(*) from t"));
+    }
+}
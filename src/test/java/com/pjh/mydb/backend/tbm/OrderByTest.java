@@ -0,0 +1,121 @@
+package com.pjh.mydb.backend.tbm;
+
+import com.pjh.mydb.TestDB;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class OrderByTest {
+
+    // 超过一个叶子节点的 key 数，逆序扫描需要跨过多个叶子
+    private static final int ROWS = 2000;
+
+    private TestDB db;
+
+    @Before
+    public void setUp() throws Exception {
+        db = TestDB.create();
+        db.run("create table t id int64, v int32, name string (index id)");
+        // v 和 name 打乱顺序，不能按索引读取
+        db.run("begin");
+        for (int i = 0; i < ROWS; i++) {
+            int v = (int) ((i * 7919L) % ROWS);
+            db.run("insert into t values " + i + " " + v / 2 + " \"n" + v % 10 + "\"");
+        }
+        db.run("commit");
+    }
+
+    private static String rows(long... ids) {
+        StringBuilder sb = new StringBuilder();
+        for (long id : ids) {
+            sb.append("[").append(id).append("]\n");
+        }
+        return sb.toString();
+    }
+
+    @Test
+    public void testIndexOrder() throws Exception {
+        assertEquals(rows(0, 1, 2), db.run("select id from t order by id limit 3"));
+        assertEquals(rows(1999, 1998, 1997), db.run("select id from t order by id desc limit 3"));
+        assertEquals(rows(1995, 1994), db.run("select id from t order by id desc limit 2 offset 4"));
+        // 按索引顺序读取，取够之后停止
+        assertEquals(3, db.scanned("select id from t order by id desc limit 3"));
+        db.run("delete from t where id > 1990");
+        assertEquals(rows(1990, 1989), db.run("select id from t order by id desc limit 2"));
+    }
+
+    @Test
+    public void testDescendingScanVisitsEveryLeaf() throws Exception {
+        String res = db.run("select id from t where id > 0 order by id desc");
+        String[] lines = res.split("\n");
+        assertEquals(ROWS - 1, lines.length);
+        for (int i = 0; i < lines.length; i++) {
+            assertEquals("[" + (ROWS - 1 - i) + "]", lines[i]);
+        }
+    }
+
+    @Test
+    public void testTopN() throws Exception {
+        // v 为 0 到 999，每个值出现两次
+        assertEquals("[0]\n[0]\n[1]\n", db.run("select v from t order by v limit 3"));
+        assertEquals("[998]\n[998]\n", db.run("select v from t order by v desc limit 2 offset 2"));
+        assertEquals("", db.run("select v from t order by v limit 0"));
+        assertEquals("[n9, 999]\n[n9, 994]\n[n9, 989]\n",
+                db.run("select name, v from t order by name desc, v desc limit 3"));
+    }
+
+    @Test
+    public void testSortWithoutLimit() throws Exception {
+        String[] lines = db.run("select v, id from t where id < 100 order by v, id").split("\n");
+        assertEquals(100, lines.length);
+        for (int i = 1; i < lines.length; i++) {
+            String[] a = lines[i - 1].replaceAll("[\\[\\]]", "").split(", ");
+            String[] b = lines[i].replaceAll("[\\[\\]]", "").split(", ");
+            int c = Integer.compare(Integer.parseInt(a[0]), Integer.parseInt(b[0]));
+            assertTrue(c < 0 || c == 0 && Long.parseLong(a[1]) < Long.parseLong(b[1]));
+        }
+    }
+
+    @Test
+    public void testTopNKeepsSmallestKeys() {
+        OrderBy.TopN top = new OrderBy.TopN(3);
+        for (int i : new int[]{5, 1, 9, 3, 7, 1}) {
+            top.add(new byte[]{(byte) i}, new byte[]{(byte) i});
+        }
+        List<byte[]> sorted = top.sorted();
+        assertEquals(3, sorted.size());
+        assertEquals(1, sorted.get(0)[0]);
+        assertEquals(1, sorted.get(1)[0]);
+        assertEquals(3, sorted.get(2)[0]);
+        OrderBy.TopN none = new OrderBy.TopN(0);
+        none.add(new byte[]{1}, new byte[]{1});
+        assertTrue(none.sorted().isEmpty());
+    }
+
+    @Test
+    public void testRowSorterSpillsAndMerges() throws Exception {
+        List<Integer> expected = new ArrayList<>();
+        Random random = new Random(7);
+        // 预算很小，排序时产生多个 run 文件
+        try (RowSorter sorter = new RowSorter(1 << 10)) {
+            for (int i = 0; i < 500; i++) {
+                int x = random.nextInt(1 << 20);
+                expected.add(x);
+                byte[] key = {(byte) (x >>> 16), (byte) (x >>> 8), (byte) x};
+                sorter.add(key, Integer.toString(x).getBytes());
+            }
+            expected.sort(null);
+            try (RowSorter.RowIterator it = sorter.sort()) {
+                for (int x : expected) {
+                    assertEquals(Integer.toString(x), new String(it.next()));
+                }
+                assertNull(it.next());
+            }
+        }
+    }
+}
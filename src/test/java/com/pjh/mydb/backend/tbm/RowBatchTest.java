@@ -0,0 +1,88 @@
+package com.pjh.mydb.backend.tbm;
+
+import com.pjh.mydb.TestDB;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class RowBatchTest {
+
+    private static RowLayout layout() {
+        return RowLayout.create(Arrays.asList(new Field(null, "id", "int64", 0), new Field(null, "v", "int32", 0)),
+                RowLayout.COMPACT);
+    }
+
+    /**
+     * 装满一批需要的行数
+     */
+    private static int fill(RowBatch batch, RowLayout layout, long first) throws Exception {
+        int n = 0;
+        while (true) {
+            n ++;
+            if(batch.add(layout.encode(new Object[]{first + n, (int) (first + n) % 3}))) {
+                return n;
+            }
+            assertTrue(n < RowBatch.CAPACITY);
+        }
+    }
+
+    @Test
+    public void testCapacityGrows() throws Exception {
+        RowLayout layout = layout();
+        RowBatch batch = new RowBatch(layout);
+        // 从 64 行开始每批翻倍，到 1024 行后不再增长
+        int[] expected = {64, 128, 256, 512, 1024, 1024};
+        for (int size : expected) {
+            assertEquals(size, fill(batch, layout, 0));
+            assertEquals(size, batch.size);
+            batch.reset();
+            assertTrue(batch.isEmpty());
+            assertEquals(0, batch.size);
+        }
+    }
+
+    @Test
+    public void testColumnDecodedForSelectedRows() throws Exception {
+        RowLayout layout = layout();
+        RowBatch batch = new RowBatch(layout);
+        fill(batch, layout, 100);
+        // 只保留 v == 0 的行
+        int k = 0;
+        for (int i = 0; i < batch.selSize; i++) {
+            if(layout.numberAt(batch.rows[batch.sel[i]], 1) == 0) {
+                batch.sel[k++] = batch.sel[i];
+            }
+        }
+        batch.selSize = k;
+        long[] ids = batch.longs(0);
+        assertSame(ids, batch.longs(0));
+        for (int i = 0; i < batch.selSize; i++) {
+            assertEquals(0, ids[batch.sel[i]] % 3);
+        }
+        // 下一批重新解码
+        batch.reset();
+        batch.add(layout.encode(new Object[]{7L, 1}));
+        assertEquals(7, batch.longs(0)[0]);
+    }
+
+    @Test
+    public void testFilterWithLimitAcrossBatches() throws Exception {
+        TestDB db = TestDB.create();
+        db.run("create table t id int64, v int32 (index id)");
+        db.run("begin");
+        for (int i = 0; i < 3000; i++) {
+            db.run("insert into t values " + i + " " + (i % 100));
+        }
+        db.run("commit");
+        // v 上没有索引，整批过滤后只剩选择向量中的行；符合条件的行分布在多个批中
+        assertEquals("[7]\n[107]\n[207]\n", db.run("select id from t where v = 7 limit 3"));
+        assertEquals("[1507]\n[1607]\n", db.run("select id from t where v = 7 limit 2 offset 15"));
+        assertEquals("[2907]\n", db.run("select id from t where v = 7 limit 5 offset 29"));
+        assertEquals("[30, 43710]\n", db.run("select count(*), sum(id) from t where v = 7"));
+        assertEquals("[7, 1507]\n", db.run("select v, id from t where v = 7 and id > 1500 limit 1"));
+        // 第一批就写满 limit，不会读取后面更大的批
+        assertEquals(RowBatch.MIN_CAPACITY, db.scanned("select id from t where v = 7 limit 1"));
+    }
+}
@@ -0,0 +1,102 @@
+package com.pjh.mydb.backend.tbm;
+
+import com.pjh.mydb.common.Error;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class RowLayoutTest {
+
+    private static List<Field> fields(String... types) {
+        List<Field> fields = new ArrayList<>();
+        for (int i = 0; i < types.length; i++) {
+            fields.add(new Field(null, "f" + i, types[i], 0));
+        }
+        return fields;
+    }
+
+    private static final List<Field> MIXED = fields("string", "int32", "string", "int64", "string");
+    private static final Object[] ROW = {"中文", -7, "", Long.MIN_VALUE, "tail"};
+
+    @Test
+    public void testCompactRoundTrip() throws Exception {
+        RowLayout layout = RowLayout.create(MIXED, RowLayout.COMPACT);
+        assertTrue(layout instanceof CompactRowLayout);
+        byte[] raw = layout.encode(ROW);
+        // NullBitmap 1 字节，定长字段 12 字节，3 个 VarEnd 共 6 字节，之后是 string 的数据
+        assertEquals(1 + 12 + 6 + "中文".getBytes(StandardCharsets.UTF_8).length + 4, raw.length);
+        assertArrayEquals(ROW, layout.decode(raw));
+        for (int i = 0; i < ROW.length; i++) {
+            assertEquals(ROW[i], layout.valueAt(raw, i));
+        }
+        assertEquals(-7, layout.numberAt(raw, 1));
+        assertEquals(Long.MIN_VALUE, layout.numberAt(raw, 3));
+    }
+
+    @Test
+    public void testLegacyRoundTrip() throws Exception {
+        RowLayout layout = RowLayout.create(MIXED, RowLayout.LEGACY);
+        assertTrue(layout instanceof LegacyRowLayout);
+        byte[] raw = layout.encode(ROW);
+        assertArrayEquals(ROW, layout.decode(raw));
+        // 旧格式的字段依次排列，string 带 4 字节长度
+        assertEquals(4 + 6 + 4 + 4 + 8 + 4 + 4, raw.length);
+    }
+
+    @Test
+    public void testFixedFieldsAtFixedOffsets() throws Exception {
+        RowLayout layout = RowLayout.create(MIXED, RowLayout.COMPACT);
+        // 定长字段的位置不随 string 的长度变化
+        byte[] a = layout.encode(new Object[]{"", 1, "", 2L, ""});
+        byte[] b = layout.encode(new Object[]{"long string value", 1, "x", 2L, "y"});
+        assertEquals(layout.start(a, 1), layout.start(b, 1));
+        assertEquals(layout.start(a, 3), layout.start(b, 3));
+        assertEquals(17, layout.length(b, 0));
+        assertEquals(0, layout.length(a, 2));
+    }
+
+    @Test
+    public void testCompareAndAppend() throws Exception {
+        for (byte format : new byte[]{RowLayout.LEGACY, RowLayout.COMPACT}) {
+            RowLayout layout = RowLayout.create(MIXED, format);
+            byte[] raw = layout.encode(ROW);
+            assertEquals(0, layout.compareString(raw, 4, "tail".getBytes(StandardCharsets.UTF_8)));
+            assertTrue(layout.compareString(raw, 4, "tails".getBytes(StandardCharsets.UTF_8)) < 0);
+            assertTrue(layout.compareString(raw, 4, "tai".getBytes(StandardCharsets.UTF_8)) > 0);
+            assertTrue(layout.compareString(raw, 2, new byte[0]) == 0);
+            StringBuilder sb = new StringBuilder();
+            for (int i = 0; i < ROW.length; i++) {
+                layout.appendValue(sb, raw, i);
+                sb.append('|');
+            }
+            assertEquals("中文|-7||" + Long.MIN_VALUE + "|tail|", sb.toString());
+        }
+    }
+
+    @Test
+    public void testOnlyNumbers() throws Exception {
+        RowLayout layout = RowLayout.create(fields("int64", "int32"), RowLayout.COMPACT);
+        Object[] row = {42L, Integer.MAX_VALUE};
+        byte[] raw = layout.encode(row);
+        assertEquals(1 + 12, raw.length);
+        assertArrayEquals(row, layout.decode(raw));
+    }
+
+    @Test
+    public void testRowTooLarge() throws Exception {
+        RowLayout layout = RowLayout.create(fields("string"), RowLayout.COMPACT);
+        char[] big = new char[0x10000];
+        Arrays.fill(big, 'x');
+        try {
+            layout.encode(new Object[]{new String(big)});
+            fail();
+        } catch (Exception e) {
+            assertSame(Error.DataTooLargeException, e);
+        }
+    }
+}
@@ -0,0 +1,86 @@
+package com.pjh.mydb.backend.tbm;
+
+import com.pjh.mydb.TestDB;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class TableStatsTest {
+
+    private static final int ROWS = 1000;
+
+    private TestDB db;
+
+    @Before
+    public void setUp() throws Exception {
+        db = TestDB.create();
+    }
+
+    /**
+     * id 从 0 到 ROWS-1，v 为 id % 10，两个字段上各有索引
+     */
+    private void load() throws Exception {
+        db.run("create table t id int64, v int64 (index id v)");
+        db.run("begin");
+        for (int i = 0; i < ROWS; i++) {
+            db.run("insert into t values " + i + " " + (i % 10));
+        }
+        db.run("commit");
+    }
+
+    @Test
+    public void testHistogram() {
+        Field fd = new Field(null, "v", "int64", 0);
+        List<byte[]> keys = new ArrayList<>();
+        for (long i = 0; i < 100; i++) {
+            keys.add(fd.value2Key(i % 50));
+        }
+        TableStats.FieldStats fs = TableStats.FieldStats.build(keys, 100);
+        assertEquals(50, fs.distinct, 0);
+        assertEquals(0.02, fs.equalFraction(fd.value2Key(7L)), 1e-9);
+        assertEquals(0, fs.equalFraction(fd.value2Key(50L)), 0);
+        assertEquals(0, fs.fractionBelow(fd.value2Key(0L)), 0);
+        assertEquals(1, fs.fractionBelow(fd.value2Key(100L)), 0);
+        assertEquals(0.5, fs.fractionBelow(fd.value2Key(25L)), 1.0 / TableStats.BUCKETS);
+    }
+
+    @Test
+    public void testDistinctEstimatedFromSample() {
+        // 样本中的值都只出现一次，全表的不同值个数按全表行数估算
+        Field fd = new Field(null, "v", "int64", 0);
+        List<byte[]> keys = new ArrayList<>();
+        for (long i = 0; i < 100; i++) {
+            keys.add(fd.value2Key(i));
+        }
+        assertEquals(1000, TableStats.FieldStats.build(keys, 1000).distinct, 1e-6);
+    }
+
+    @Test
+    public void testSelectiveIndexChosen() throws Exception {
+        load();
+        db.run("analyze t");
+        assertEquals(1, db.scanned("select * from t where id = 5"));
+        assertEquals(ROWS / 10, db.scanned("select * from t where v = 3"));
+        // 两个索引中 id 上的条件选择率更低
+        assertEquals("[13, 3]\n", db.run("select * from t where v = 3 and id = 13"));
+        assertEquals(1, db.scanned("select * from t where v = 3 and id = 13"));
+    }
+
+    @Test
+    public void testScanChosenForUnselectiveConditions() throws Exception {
+        load();
+        // 没有统计信息时范围条件按默认选择率估算，or 的两边分别走索引，只读取两边结果的并集
+        assertEquals(ROWS - 11 + 1, db.scanned("select * from t where id > 10 or v = 3"));
+        db.run("analyze t");
+        // 统计信息表明 id > 10 几乎包括所有的行，两边查找的代价之和超过顺序扫描
+        assertEquals(ROWS, db.scanned("select * from t where id > 10 or v = 3"));
+        assertEquals(ROWS - 11 + 1, db.run("select * from t where id > 10 or v = 3").split("\n").length);
+        // 条件不排除任何行时，单个索引的代价也超过顺序扫描
+        assertEquals(ROWS, db.scanned("select * from t where id < " + ROWS * 5));
+        assertEquals(1, db.scanned("select * from t where id > " + (ROWS - 2)));
+    }
+}
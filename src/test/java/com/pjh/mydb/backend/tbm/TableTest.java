@@ -0,0 +1,87 @@
+package com.pjh.mydb.backend.tbm;
+
+import com.pjh.mydb.TestDB;
+import com.pjh.mydb.common.Error;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class TableTest {
+
+    private TestDB db;
+
+    @Before
+    public void setUp() throws Exception {
+        db = TestDB.create();
+    }
+
+    @Test
+    public void testCreateTableIndexOnUnknownField() throws Exception {
+        assertSame(Error.TableNoIndexException, db.error("create table t id int64 (index nosuch)"));
+        // 失败的建表没有留下表
+        assertEquals("", db.run("show").trim());
+    }
+
+    @Test
+    public void testWhereOnNonIndexedField() throws Exception {
+        db.run("create table t id int64, v int32 (index id)");
+        for (int i = 0; i < 10; i++) {
+            db.run("insert into t values " + i + " " + (i % 3));
+        }
+        assertEquals("[1, 1]\n[4, 1]\n[7, 1]\n", db.run("select * from t where v = 1"));
+        assertEquals("[4, 1]\n[7, 1]\n", db.run("select * from t where v = 1 and id > 3"));
+    }
+
+    @Test
+    public void testProjectionOrder() throws Exception {
+        // string 字段之后的字段没有固定偏移，需要跳过前面的 string 定位
+        db.run("create table t id int64, s1 string, v int32, s2 string, w int64 (index id)");
+        db.run("insert into t values 1 \"a\" 10 \"bb\" 100");
+        db.run("insert into t values 2 \"c\" 20 \"d\" 200");
+        assertEquals("[100, bb, 1]\n[200, d, 2]\n", db.run("select w, s2, id from t where id > 0"));
+        assertEquals("[a, 10]\n[c, 20]\n", db.run("select s1, v from t"));
+        assertEquals("[d]\n", db.run("select s2 from t where id = 2"));
+        // 条件中的字段不在投影中
+        assertEquals("[bb]\n", db.run("select s2 from t where w < 150"));
+        assertEquals("[1, a, 10, bb, 100]\n", db.run("select * from t where id = 1"));
+        assertSame(Error.FieldNotFoundException, db.error("select id, nosuch from t"));
+    }
+
+    @Test
+    public void testHotUpdates() throws Exception {
+        db.run("create table t id int64, v int32, name string (index id)");
+        db.run("insert into t values (1, 0, \"a\"), (2, 0, \"b\")");
+        for (int i = 0; i < 5; i++) {
+            db.run("update t set v = v + 1, name = name + \"x\" where id = 1");
+        }
+        assertEquals("[1, 5, axxxxx]\n", db.run("select * from t where id = 1"));
+        assertEquals("[2]\n", db.run("select count(*) from t"));
+        // 撤销的更新不可见，之后的更新继续链接
+        db.run("begin");
+        db.run("update t set v = 100 where id = 1");
+        db.run("abort");
+        db.run("update t set v = v + 1 where id = 1");
+        assertEquals("[1, 6]\n", db.run("select id, v from t where id = 1"));
+        // 修改索引字段的更新插入索引
+        db.run("update t set id = 3 where id = 2");
+        assertEquals("[1]\n[3]\n", db.run("select id from t where id > 0"));
+    }
+
+    @Test
+    public void testCreateIndexCutsVersionChains() throws Exception {
+        db.run("create table t id int64, v int32 (index id)");
+        db.run("insert into t values (1, 0), (2, 0)");
+        db.run("update t set v = 7 where id = 1");
+        db.run("update t set v = 8 where id = 1");
+        // v 在版本链上变化过，补建索引时断开版本链，最新的版本进入 id 和 v 的索引
+        db.run("create index on t (v)");
+        assertEquals("[1, 8]\n", db.run("select * from t where v = 8"));
+        assertEquals("", db.run("select * from t where v = 7"));
+        assertEquals("[1, 8]\n", db.run("select * from t where id = 1"));
+        assertEquals("[2]\n", db.run("select count(*) from t"));
+        db.run("update t set v = 9 where id = 1");
+        assertEquals("[1, 9]\n", db.run("select * from t where v = 9"));
+        assertEquals("[1, 9]\n", db.run("select * from t where id = 1"));
+    }
+}
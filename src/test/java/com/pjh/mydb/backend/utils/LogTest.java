@@ -0,0 +1,124 @@
+package com.pjh.mydb.backend.utils;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.*;
+
+public class LogTest {
+
+    private PrintStream stdout;
+    private ByteArrayOutputStream captured;
+    private PrintStream capture;
+
+    @Before
+    public void setUp() throws Exception {
+        stdout = System.out;
+        captured = new ByteArrayOutputStream();
+        capture = new PrintStream(captured, true, "UTF-8");
+        System.setOut(capture);
+        // 之后的输出都写到 capture
+        Log.flush();
+    }
+
+    @After
+    public void tearDown() {
+        Log.flush();
+        System.setOut(stdout);
+        Log.configure(System.getProperty("mydb.log", "info"));
+    }
+
+    private String output() {
+        Log.flush();
+        return new String(captured.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void testLevels() {
+        Log.configure("warn, logtest.levels.a = debug");
+        Log a = Log.get("logtest.levels.a"), b = Log.get("logtest.levels.b");
+        assertSame(a, Log.get("logtest.levels.a"));
+        for (Log.Level l : Log.Level.values()) {
+            assertTrue(l.name(), l == Log.Level.OFF || a.isEnabled(l));
+        }
+        assertFalse(b.isEnabled(Log.Level.DEBUG));
+        assertFalse(b.isEnabled(Log.Level.INFO));
+        assertTrue(b.isEnabled(Log.Level.WARN));
+        assertTrue(b.isEnabled(Log.Level.ERROR));
+
+        // 子系统单独设置的级别不随默认级别改变
+        Log.configure("off");
+        assertFalse(b.isEnabled(Log.Level.ERROR));
+        assertTrue(a.isEnabled(Log.Level.DEBUG));
+        Log.configure("logtest.levels.a=error");
+        assertFalse(a.isEnabled(Log.Level.WARN));
+        assertTrue(a.isEnabled(Log.Level.ERROR));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidLevel() {
+        Log.configure("logtest.invalid=verbose");
+    }
+
+    @Test
+    public void testOutput() {
+        Log.configure("info");
+        Log log = Log.get("logtest.output");
+        log.debug("logtest debug message");
+        log.info("logtest info message");
+        log.warn("logtest warn message", new IllegalStateException("logtest cause"));
+        String out = output();
+        String thread = Thread.currentThread().getName();
+        assertFalse(out.contains("logtest debug message"));
+        assertTrue(out, out.contains(" INFO logtest.output [" + thread + "] logtest info message"));
+        assertTrue(out, out.contains(" WARN logtest.output [" + thread + "] logtest warn message"));
+        assertTrue(out, out.contains("java.lang.IllegalStateException: logtest cause"));
+        assertTrue(out.indexOf("logtest info message") < out.indexOf("logtest warn message"));
+    }
+
+    @Test
+    public void testWrittenInBackground() throws Exception {
+        Log.get("logtest.background").info("logtest background message");
+        // 不调用 flush，后台线程很快写出
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!new String(captured.toByteArray(), StandardCharsets.UTF_8).contains("logtest background message")) {
+            assertTrue(System.currentTimeMillis() < deadline);
+            Thread.sleep(5);
+        }
+    }
+
+    @Test
+    public void testDroppedWhenFull() {
+        Log.configure("info");
+        Log log = Log.get("logtest.dropped");
+        long dropped = Log.dropped();
+        int n = 20000;
+        // 占住 PrintStream 的锁，后台线程写第一条时被阻塞，缓冲区随后被写满
+        synchronized (capture) {
+            for (int i = 0; i < n; i++) {
+                log.info("logtest dropped " + i);
+            }
+        }
+        long d = Log.dropped() - dropped;
+        assertTrue(String.valueOf(d), d >= n / 2 && d < n);
+        String out = output();
+        // 放入缓冲区的日志按顺序输出，之后是丢弃了多少条的警告
+        Matcher m = Pattern.compile("logtest dropped (\\d+)\\R").matcher(out);
+        int last = -1, written = 0;
+        while (m.find()) {
+            int i = Integer.parseInt(m.group(1));
+            assertTrue(i > last);
+            last = i;
+            written++;
+        }
+        assertEquals(n, written + d);
+        assertTrue(out, out.contains(" WARN log [") && out.contains("] " + d + " log messages dropped, buffer full"));
+    }
+}
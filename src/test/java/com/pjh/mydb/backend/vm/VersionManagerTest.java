@@ -0,0 +1,130 @@
+package com.pjh.mydb.backend.vm;
+
+import com.pjh.mydb.TestDB;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class VersionManagerTest {
+
+    private static final int READ_COMMITTED = 0, REPEATABLE_READ = 1;
+
+    private VersionManager vm;
+    // 已提交的第一个版本
+    private long head;
+
+    @Before
+    public void setUp() throws Exception {
+        vm = TestDB.create().vm;
+        long tid = vm.begin(READ_COMMITTED);
+        head = vm.insert(tid, "v1".getBytes());
+        vm.commit(tid);
+    }
+
+    private String read(long uid) throws Exception {
+        long tid = vm.begin(READ_COMMITTED);
+        try {
+            byte[] data = vm.read(tid, uid);
+            return data == null ? null : new String(data);
+        } finally {
+            vm.commit(tid);
+        }
+    }
+
+    /**
+     * 在一个事务中做 HOT 更新并提交，返回新版本的 UID
+     */
+    private long hotUpdate(long uid, String data) throws Exception {
+        long tid = vm.begin(READ_COMMITTED);
+        ReadRes r = vm.readVersion(tid, uid);
+        assertTrue(r.chained);
+        long next = vm.update(tid, r.uid, data.getBytes(), true);
+        vm.commit(tid);
+        return next;
+    }
+
+    @Test
+    public void testReadFollowsChain() throws Exception {
+        long v2 = hotUpdate(head, "v2");
+        long v3 = hotUpdate(head, "v3");
+        assertEquals(v2, vm.nextVersion(head));
+        assertEquals(v3, vm.nextVersion(v2));
+        assertEquals(0, vm.nextVersion(v3));
+        // 索引仍指向第一个版本，读取时沿版本链找到可见的版本
+        assertEquals("v3", read(head));
+        long tid = vm.begin(READ_COMMITTED);
+        assertEquals(v3, vm.readVersion(tid, head).uid);
+        vm.commit(tid);
+    }
+
+    @Test
+    public void testSnapshotSeesOldVersion() throws Exception {
+        long old = vm.begin(REPEATABLE_READ);
+        hotUpdate(head, "v2");
+        assertEquals("v1", new String(vm.read(old, head)));
+        assertEquals(head, vm.readVersion(old, head).uid);
+        vm.commit(old);
+        assertEquals("v2", read(head));
+    }
+
+    @Test
+    public void testAbortedUpdateInvisible() throws Exception {
+        long tid = vm.begin(READ_COMMITTED);
+        long v2 = vm.update(tid, head, "v2".getBytes(), true);
+        assertEquals("v2", new String(vm.read(tid, head)));
+        vm.abort(tid);
+        assertEquals("v1", read(head));
+        // 撤销之后可以再次更新，旧版本链接到新的版本
+        long v3 = hotUpdate(head, "v3");
+        assertNotEquals(v2, v3);
+        assertEquals(v3, vm.nextVersion(head));
+        assertEquals("v3", read(head));
+    }
+
+    @Test
+    public void testDeleteFollowsChain() throws Exception {
+        long v2 = hotUpdate(head, "v2");
+        long tid = vm.begin(READ_COMMITTED);
+        assertTrue(vm.delete(tid, head));
+        vm.commit(tid);
+        assertNull(read(head));
+        assertNull(read(v2));
+    }
+
+    @Test
+    public void testReadCommittedUpdateAfterConcurrentCommit() throws Exception {
+        long a = vm.begin(READ_COMMITTED);
+        assertEquals("v1", new String(vm.read(a, head)));
+        hotUpdate(head, "v2");
+        // 读已提交时旧版本已不可见，update 返回 0，重新读取得到新版本
+        assertEquals(0, vm.update(a, head, "v3".getBytes(), true));
+        ReadRes r = vm.readVersion(a, head);
+        assertEquals("v2", new String(r.data));
+        vm.update(a, r.uid, "v3".getBytes(), true);
+        vm.commit(a);
+        assertEquals("v3", read(head));
+    }
+
+    @Test
+    public void testCutVersionChain() throws Exception {
+        long v2 = hotUpdate(head, "v2");
+        vm.cutVersionChain(head);
+        assertEquals(0, vm.nextVersion(head));
+        // 第一个版本已被删除，断开之后只能直接读取第二个版本
+        assertNull(read(head));
+        assertEquals("v2", read(v2));
+        assertEquals("v1", new String(vm.readAnyVersion(head)));
+    }
+
+    @Test
+    public void testNonHotUpdate() throws Exception {
+        long tid = vm.begin(READ_COMMITTED);
+        long v2 = vm.update(tid, head, "v2".getBytes(), false);
+        vm.commit(tid);
+        // 没有链接，新版本需要由索引指向
+        assertEquals(0, vm.nextVersion(head));
+        assertNull(read(head));
+        assertEquals("v2", read(v2));
+    }
+}
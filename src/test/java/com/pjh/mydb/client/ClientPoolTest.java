@@ -0,0 +1,179 @@
+package com.pjh.mydb.client;
+
+import com.pjh.mydb.TestDB;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.junit.Assert.*;
+
+public class ClientPoolTest {
+
+    private ClientPool pool;
+
+    @Before
+    public void setUp() throws Exception {
+        int port = TestDB.create().startServer();
+        pool = new ClientPool("127.0.0.1", port, 0, 4, 4, 1000);
+        pool.execute("create table t id int64, v int32 (index id)".getBytes());
+    }
+
+    @After
+    public void tearDown() {
+        pool.close();
+    }
+
+    private String query(String sql) throws Exception {
+        return new String(pool.execute(sql.getBytes()));
+    }
+
+    private static List<String[]> rows(int from, int to) {
+        List<String[]> rows = new ArrayList<>();
+        for (int i = from; i < to; i++) {
+            rows.add(new String[]{String.valueOf(i), String.valueOf(i)});
+        }
+        return rows;
+    }
+
+    @Test
+    public void testDanglingTransactionRolledBack() throws Exception {
+        Client c = pool.borrow();
+        c.execute("begin".getBytes());
+        c.execute("insert into t values 1 1".getBytes());
+        c.prepare("p", "select * from t where id = ?");
+        pool.release(c);
+
+        Client again = pool.borrow();
+        assertSame(c, again);
+        assertEquals("", new String(again.execute("select * from t".getBytes())));
+        // 预编译的语句已经释放，可以重新预编译
+        again.prepare("p", "select * from t where id = ?");
+        pool.release(again);
+    }
+
+    @Test
+    public void testConcurrentBorrowers() throws Exception {
+        int threads = 8, n = 50;
+        List<Thread> ts = new ArrayList<>();
+        List<Throwable> errors = new CopyOnWriteArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            int base = t * n;
+            ts.add(new Thread(() -> {
+                try {
+                    for (int i = base; i < base + n; i++) {
+                        pool.execute(("insert into t values " + i + " " + i).getBytes());
+                    }
+                } catch (Throwable e) {
+                    errors.add(e);
+                }
+            }));
+        }
+        ts.forEach(Thread::start);
+        for (Thread t : ts) {
+            t.join();
+        }
+        assertTrue(errors.toString(), errors.isEmpty());
+        // 连接数不超过 maxTotal，都已归还
+        assertTrue(pool.totalCount() <= 4);
+        assertEquals(pool.totalCount(), pool.idleCount());
+        assertEquals(threads * n, query("select * from t").split("\n").length);
+    }
+
+    @Test
+    public void testFailedLoadKeepsConnection() throws Exception {
+        Client c = pool.borrow();
+        try {
+            c.load("nosuch", rows(0, 10));
+            fail();
+        } catch (Exception e) {
+        }
+        assertFalse(c.isDirty());
+        // 仍然记录事务，归还时回滚
+        c.execute("begin".getBytes());
+        c.execute("insert into t values 1 1".getBytes());
+        pool.release(c);
+        assertSame(c, pool.borrow());
+        assertEquals("", new String(c.execute("select * from t".getBytes())));
+        pool.release(c);
+        assertEquals(1, pool.totalCount());
+    }
+
+    @Test
+    public void testFailedChunkEndsLoad() throws Exception {
+        Client c = pool.borrow();
+        List<String[]> rows = rows(0, 10);
+        rows.add(new String[]{"bad"});
+        try {
+            c.load("t", rows);
+            fail();
+        } catch (Exception e) {
+        }
+        assertFalse(c.isDirty());
+        // 服务器已经结束导入，之后的语句正常执行
+        assertEquals("[0]", new String(c.execute("select count(*) from t".getBytes())).trim());
+        pool.release(c);
+        assertSame(c, pool.borrow());
+        pool.release(c);
+    }
+
+    @Test
+    public void testLoadThroughExecute() throws Exception {
+        Client c = pool.borrow();
+        c.execute("load into t".getBytes());
+        assertTrue(c.isDirty());
+        c.execute("1\t1\n2\t2\n".getBytes());
+        assertTrue(c.isDirty());
+        assertEquals("load 3", new String(c.execute("3\t3\n\\.\n".getBytes())));
+        assertFalse(c.isDirty());
+        pool.release(c);
+        assertSame(c, pool.borrow());
+        pool.release(c);
+        assertEquals("[3]", query("select count(*) from t").trim());
+    }
+
+    @Test
+    public void testLoadInterruptedByClientDiscardsConnection() throws Exception {
+        Client c = pool.borrow();
+        Iterable<String[]> failing = () -> new Iterator<String[]>() {
+            int i;
+
+            @Override
+            public boolean hasNext() {
+                return true;
+            }
+
+            @Override
+            public String[] next() {
+                if(i == 5) {
+                    throw new IllegalStateException("source failed");
+                }
+                i ++;
+                return new String[]{String.valueOf(i), "0"};
+            }
+        };
+        try {
+            c.load("t", failing);
+            fail();
+        } catch (IllegalStateException e) {
+        }
+        // 服务器仍在导入，连接不能复用
+        assertTrue(c.isDirty());
+        pool.release(c);
+        assertEquals(0, pool.totalCount());
+        assertEquals("[0]", query("select count(*) from t").trim());
+    }
+
+    @Test
+    public void testLoad() throws Exception {
+        Client c = pool.borrow();
+        assertEquals("load 3000", new String(c.load("t", rows(0, 3000))));
+        pool.release(c);
+        assertEquals("[1500, 1500]", query("select * from t where id = 1500").trim());
+        assertEquals("[3000]", query("select count(*) from t").trim());
+    }
+}
@@ -0,0 +1,233 @@
+package com.pjh.mydb.client;
+
+import com.pjh.mydb.TestDB;
+import com.pjh.mydb.transport.Package;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import static org.junit.Assert.*;
+
+public class ClientTest {
+
+    private static int port;
+    private static int tables;
+
+    private Client client;
+    // 每个测试使用自己的表
+    private String table;
+
+    @BeforeClass
+    public static void setUpServer() throws Exception {
+        port = TestDB.create().startServer();
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        client = Client.connect("127.0.0.1", port);
+        table = "t" + (tables++);
+        run("create table " + table + " id int64, v int32, name string (index id)");
+    }
+
+    @After
+    public void tearDown() {
+        client.close();
+    }
+
+    private String run(String sql) throws Exception {
+        return new String(client.execute(sql.getBytes()));
+    }
+
+    @Test
+    public void testPipelining() throws Exception {
+        List<CompletableFuture<byte[]>> futures = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            futures.add(client.executeAsync(("insert into " + table + " values " + i + " " + i + " \"n\"").getBytes()));
+        }
+        futures.add(client.executeAsync(("select count(*) from " + table).getBytes()));
+        CompletableFuture<byte[]> bad = client.executeAsync("nosuch".getBytes());
+        CompletableFuture<byte[]> after = client.executeAsync(("select v from " + table + " where id = 42").getBytes());
+        // 回复按发送的顺序对应到各自的请求
+        assertEquals("[100]\n", new String(futures.get(100).get()));
+        try {
+            bad.join();
+            fail();
+        } catch (Exception e) {
+            assertTrue(e.getCause().getMessage().startsWith("Invalid"));
+        }
+        assertEquals("[42]\n", new String(after.get()));
+    }
+
+    @Test
+    public void testBatch() throws Exception {
+        List<Package> res = client.executeBatch(Arrays.asList(
+                ("insert into " + table + " values 1 1 \"a\"").getBytes(),
+                ("insert into " + table + " values 1 2 x y").getBytes(),
+                ("select name from " + table + " where id = 1").getBytes(),
+                ("select name from " + table + " where id = 2").getBytes()));
+        assertEquals(4, res.size());
+        assertNull(res.get(0).getErr());
+        // 出错的语句不影响后面的语句
+        assertNotNull(res.get(1).getErr());
+        assertEquals("[a]\n", new String(res.get(2).getData()));
+        assertEquals(0, res.get(3).getData().length);
+
+        List<Package> async = client.executeBatchAsync(Arrays.asList(
+                ("update " + table + " set v = 5 where id = 1").getBytes(),
+                ("select v from " + table + " where id = 1").getBytes())).get();
+        assertEquals("[5]\n", new String(async.get(1).getData()));
+    }
+
+    @Test
+    public void testBatchInTransaction() throws Exception {
+        client.executeBatch(Arrays.asList(
+                "begin".getBytes(),
+                ("insert into " + table + " values 1 1 \"a\"").getBytes(),
+                "abort".getBytes()));
+        assertEquals("[0]\n", run("select count(*) from " + table));
+    }
+
+    /**
+     * 插入 n 行，结果的文本远超过一段
+     */
+    private void insertRows(int n) throws Exception {
+        StringBuilder sql = new StringBuilder("insert into " + table + " values ");
+        for (int i = 0; i < n; i++) {
+            sql.append(i == 0 ? "" : ", ").append("(").append(i).append(", ").append(i % 100)
+                    .append(", \"a fairly long name for row ").append(i).append("\")");
+        }
+        run(sql.toString());
+    }
+
+    @Test
+    public void testCursorReadsAllChunks() throws Exception {
+        insertRows(5000);
+        long n = 0;
+        try (Cursor cursor = client.query(("select id from " + table).getBytes())) {
+            while (cursor.next()) {
+                assertEquals(n, Long.parseLong(cursor.getString(0)));
+                n++;
+            }
+            assertFalse(cursor.next());
+        }
+        assertEquals(5000, n);
+    }
+
+    @Test
+    public void testCursorClosedEarly() throws Exception {
+        insertRows(5000);
+        Cursor cursor = client.query(("select * from " + table).getBytes());
+        assertEquals(10, cursor.fetch(10).size());
+        // 未读完的结果被丢弃，之后的回复仍然对得上
+        cursor.close();
+        assertEquals("[5000]\n", run("select count(*) from " + table));
+        try (Cursor again = client.query(("select id from " + table + " where id > 4997").getBytes())) {
+            List<Object[]> rows = again.fetch(10);
+            assertEquals(2, rows.size());
+            assertTrue(again.fetch(10).isEmpty());
+        }
+    }
+
+    @Test
+    public void testCursorError() throws Exception {
+        try (Cursor cursor = client.query(("select nosuch from " + table).getBytes())) {
+            cursor.next();
+            fail();
+        } catch (Exception e) {
+            assertNotNull(e.getMessage());
+        }
+        assertEquals("[0]\n", run("select count(*) from " + table));
+    }
+
+    @Test
+    public void testQueryNonSelect() throws Exception {
+        try (Cursor cursor = client.query(("insert into " + table + " values 1 1 \"a\"").getBytes())) {
+            assertNull(cursor.columns());
+            assertTrue(cursor.next());
+            assertEquals("insert", cursor.getString(0));
+            assertFalse(cursor.next());
+        }
+    }
+
+    @Test
+    public void testTypedRows() throws Exception {
+        run("insert into " + table + " values (1, " + Integer.MAX_VALUE + ", \"a b\"), (" + Long.MAX_VALUE + ", 7, \"z\")");
+        try (Cursor cursor = client.query(("select name, id, v from " + table + " where id > 0").getBytes())) {
+            assertArrayEquals(new String[]{"name", "id", "v"}, cursor.columns());
+            assertArrayEquals(new String[]{"string", "int64", "int32"}, cursor.types());
+            assertTrue(cursor.next());
+            assertEquals("a b", cursor.getString(0));
+            assertEquals(1L, cursor.getLong(1));
+            assertEquals(Integer.MAX_VALUE, cursor.getInt(2));
+            assertEquals((long) Integer.MAX_VALUE, cursor.getLong(2));
+            assertEquals(Integer.valueOf(Integer.MAX_VALUE), cursor.getObject(2));
+            assertFalse(cursor.isNull(0));
+            assertTrue(cursor.next());
+            assertEquals("z", cursor.getString(0));
+            assertEquals(Long.MAX_VALUE, cursor.getObject(1));
+            assertEquals("7", cursor.getString(2));
+            assertFalse(cursor.next());
+        }
+    }
+
+    @Test
+    public void testTypedRowsTypeMismatch() throws Exception {
+        run("insert into " + table + " values 1 2 \"a\"");
+        try (Cursor cursor = client.query(("select * from " + table).getBytes())) {
+            assertTrue(cursor.next());
+            for (int[] bad : new int[][]{{0, 0}, {2, 0}, {2, 1}}) {
+                try {
+                    if(bad[1] == 0) {
+                        cursor.getInt(bad[0]);
+                    } else {
+                        cursor.getLong(bad[0]);
+                    }
+                    fail();
+                } catch (Exception e) {
+                    assertEquals("Column type mismatch!", e.getMessage());
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testTypedRowsWithNulls() throws Exception {
+        String other = table + "x";
+        run("create table " + other + " id int64, label string, n int32 (index id)");
+        run("insert into " + table + " values (1, 1, \"a\"), (2, 2, \"b\")");
+        run("insert into " + other + " values 1 \"one\" 9");
+        try (Cursor cursor = client.query(("select " + table + ".id, " + other + ".label, " + other + ".n from " + table
+                + " left join " + other + " on " + table + ".id = " + other + ".id").getBytes())) {
+            assertTrue(cursor.next());
+            assertEquals("one", cursor.getString(1));
+            assertEquals(9, cursor.getInt(2));
+            assertTrue(cursor.next());
+            assertEquals(2L, cursor.getLong(0));
+            // 没有匹配的行右侧的列为 NULL
+            assertTrue(cursor.isNull(1));
+            assertTrue(cursor.isNull(2));
+            assertNull(cursor.getString(1));
+            assertNull(cursor.getObject(2));
+            assertEquals(0, cursor.getInt(2));
+            assertFalse(cursor.next());
+        }
+    }
+
+    @Test
+    public void testAggregateResultIsText() throws Exception {
+        run("insert into " + table + " values (1, 1, \"a\"), (2, 1, \"b\")");
+        try (Cursor cursor = client.query(("select v, count(*) from " + table + " group by v").getBytes())) {
+            assertNull(cursor.columns());
+            assertNull(cursor.types());
+            assertTrue(cursor.next());
+            assertEquals("[1, 2]", cursor.getString(0));
+            assertFalse(cursor.next());
+        }
+    }
+}
@@ -0,0 +1,183 @@
+package com.pjh.mydb.transport;
+
+import com.pjh.mydb.TestDB;
+import com.pjh.mydb.client.Client;
+import com.pjh.mydb.common.Error;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.Deflater;
+
+import static org.junit.Assert.*;
+
+public class CompressionTest {
+
+    /**
+     * 可以压缩、压缩比不高的数据
+     */
+    private static byte[] text(int length) {
+        StringBuilder sb = new StringBuilder();
+        Random random = new Random(length);
+        while (sb.length() < length) {
+            sb.append("[").append(random.nextInt(100000)).append(", name").append(random.nextInt(1000)).append("]\n");
+        }
+        return sb.substring(0, length).getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * 不经过 Compression 的检查，直接构造 [RawLength][Deflated]
+     */
+    private static byte[] deflate(int declared, byte[] data) {
+        Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION, true);
+        deflater.setInput(data);
+        deflater.finish();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(ByteBuffer.allocate(4).putInt(declared).array(), 0, 4);
+        byte[] buf = new byte[1 << 12];
+        while (!deflater.finished()) {
+            out.write(buf, 0, deflater.deflate(buf));
+        }
+        deflater.end();
+        return out.toByteArray();
+    }
+
+    private static byte[] bytes(ByteBuffer buf) {
+        return Arrays.copyOfRange(buf.array(), buf.arrayOffset() + buf.position(), buf.arrayOffset() + buf.limit());
+    }
+
+    private static Exception decompressError(byte[] data) {
+        try {
+            Compression.decompress(data, 0, data.length);
+        } catch (Exception e) {
+            return e;
+        }
+        fail("decompressed");
+        return null;
+    }
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        // 依次变长再变短，复用的输出缓冲区需要扩大
+        for (int length : new int[]{Compression.THRESHOLD, 10 << 10, 300 << 10, 3 << 20, 5 << 10}) {
+            byte[] data = text(length);
+            ByteBuffer deflated = Compression.compress(data);
+            assertNotNull(deflated);
+            byte[] d = bytes(deflated);
+            assertTrue(d.length < data.length);
+            assertEquals(data.length, ByteBuffer.wrap(d).getInt());
+            assertArrayEquals(data, Compression.decompress(d, 0, d.length));
+        }
+    }
+
+    @Test
+    public void testCompressedBufferNotShared() throws Exception {
+        // 返回的数据在异步写出之前不能被下一次压缩覆盖
+        byte[] a = text(8 << 10), b = text(9 << 10);
+        ByteBuffer da = Compression.compress(a);
+        byte[] before = bytes(da);
+        Compression.compress(b);
+        assertArrayEquals(before, bytes(da));
+    }
+
+    @Test
+    public void testNotCompressed() {
+        assertNull(Compression.compress(text(Compression.THRESHOLD - 1)));
+        byte[] random = new byte[64 << 10];
+        new Random(1).nextBytes(random);
+        assertNull(Compression.compress(random));
+    }
+
+    @Test
+    public void testCompressedWithinRatio() throws Exception {
+        // 压缩比最高的数据，发出的压缩数据也在接收方接受的范围内
+        byte[] zeros = new byte[4 << 20];
+        ByteBuffer deflated = Compression.compress(zeros);
+        if(deflated != null) {
+            byte[] d = bytes(deflated);
+            assertTrue((long) (d.length - 4) * Compression.MAX_RATIO >= zeros.length);
+            assertArrayEquals(zeros, Compression.decompress(d, 0, d.length));
+        }
+    }
+
+    @Test
+    public void testDeclaredLengthBeyondRatioRejected() {
+        // 很短的数据声明解压出 1MB
+        byte[] bomb = deflate(1 << 20, new byte[1 << 20]);
+        assertTrue((long) (bomb.length - 4) * Compression.MAX_RATIO < 1 << 20);
+        assertSame(Error.InvalidPkgDataException, decompressError(bomb));
+        assertSame(Error.InvalidPkgDataException, decompressError(deflate(-1, text(2048))));
+        assertSame(Error.InvalidPkgDataException, decompressError(new byte[3]));
+    }
+
+    @Test
+    public void testDeclaredLengthBeyondFrameLimitRejected() {
+        byte[] data = text(128 << 10);
+        byte[] d = bytes(Compression.compress(data));
+        int max = Transporter.maxFrame();
+        Transporter.setMaxFrame(64 << 10);
+        try {
+            assertSame(Error.FrameTooLargeException, decompressError(d));
+        } finally {
+            Transporter.setMaxFrame(max);
+        }
+    }
+
+    @Test
+    public void testDeclaredLengthMismatch() throws Exception {
+        byte[] data = text(8 << 10);
+        // 实际数据比声明的短
+        assertSame(Error.InvalidPkgDataException, decompressError(deflate(data.length + 1, data)));
+        // 只取声明的长度，不会解压出更多
+        byte[] d = deflate(data.length - 10, data);
+        assertArrayEquals(Arrays.copyOf(data, data.length - 10), Compression.decompress(d, 0, d.length));
+    }
+
+    @Test
+    public void testTruncatedOrCorruptRejected() {
+        byte[] d = bytes(Compression.compress(text(8 << 10)));
+        assertSame(Error.InvalidPkgDataException, decompressError(Arrays.copyOf(d, d.length / 2)));
+        byte[] corrupt = d.clone();
+        Arrays.fill(corrupt, 4, 20, (byte) 0xFF);
+        assertSame(Error.InvalidPkgDataException, decompressError(corrupt));
+    }
+
+    @Test
+    public void testInflateFrame() throws Exception {
+        byte[] data = text(4 << 10);
+        byte[] d = bytes(Compression.compress(data));
+        ByteBuffer frame = ByteBuffer.allocate(5 + d.length);
+        frame.putInt(9).put((byte) (1 | Transporter.COMPRESSED)).put(d);
+        byte[] res = Compression.inflateFrame(frame.array());
+        assertEquals(5 + data.length, res.length);
+        assertEquals(9, ByteBuffer.wrap(res).getInt());
+        assertEquals(1, res[4]);
+        assertArrayEquals(data, Arrays.copyOfRange(res, 5, res.length));
+
+        byte[] plain = {0, 0, 0, 9, 0, 'a'};
+        assertSame(plain, Compression.inflateFrame(plain));
+    }
+
+    @Test
+    public void testCompressedConnection() throws Exception {
+        int port = TestDB.create().startServer();
+        Client client = Client.connect("127.0.0.1", port, true);
+        try {
+            client.execute("create table t id int64, name string (index id)".getBytes());
+            char[] name = new char[4 << 10];
+            Arrays.fill(name, 'n');
+            StringBuilder expected = new StringBuilder();
+            for (int i = 0; i < 50; i++) {
+                String s = new String(name) + i;
+                client.execute(("insert into t values " + i + " \"" + s + "\"").getBytes());
+                expected.append("[").append(i).append(", ").append(s).append("]\n");
+            }
+            assertEquals(expected.toString(), new String(client.execute("select * from t".getBytes())));
+        } finally {
+            client.close();
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package com.pjh.mydb.transport;
+
+import com.pjh.mydb.common.Error;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class EncoderTest {
+
+    private final Encoder encoder = new Encoder();
+
+    /**
+     * 按版本 2 起的格式在编码结果前加上请求编号
+     */
+    private static byte[] withId(int id, byte[] encoded) {
+        return ByteBuffer.allocate(4 + encoded.length).putInt(id).put(encoded).array();
+    }
+
+    private Exception decodeError(byte[] data) {
+        try {
+            encoder.decode(data, Transporter.VERSION);
+        } catch (Exception e) {
+            return e;
+        }
+        fail("decoded");
+        return null;
+    }
+
+    @Test
+    public void testFlags() throws Exception {
+        assertEquals(0, encoder.flag(new Package("a".getBytes(), null)));
+        assertEquals(1, encoder.flag(new Package(null, new RuntimeException("e"))));
+        assertEquals(2, encoder.flag(new Package(Arrays.asList(new Package("a".getBytes(), null)))));
+    }
+
+    @Test
+    public void testDecodeWithId() throws Exception {
+        Package pkg = encoder.decode(withId(7, encoder.encode(new Package("abc".getBytes(), null))), Transporter.VERSION);
+        assertEquals(7, pkg.getId());
+        assertArrayEquals("abc".getBytes(), pkg.getData());
+
+        // 版本 1 没有请求编号
+        pkg = encoder.decode(encoder.encode(new Package(null, new RuntimeException("boom"))), 1);
+        assertEquals("boom", pkg.getErr().getMessage());
+    }
+
+    @Test
+    public void testBatchRoundTrip() throws Exception {
+        Package batch = new Package(Arrays.asList(
+                new Package("one".getBytes(), null),
+                new Package(null, new RuntimeException("two")),
+                new Package(new byte[0], null)));
+        Package pkg = encoder.decode(withId(3, encoder.encode(batch)), Transporter.VERSION);
+        assertEquals(3, pkg.getId());
+        List<Package> res = pkg.getBatch();
+        assertEquals(3, res.size());
+        assertArrayEquals("one".getBytes(), res.get(0).getData());
+        assertEquals("two", res.get(1).getErr().getMessage());
+        assertArrayEquals(new byte[0], res.get(2).getData());
+    }
+
+    @Test
+    public void testMalformedBatchRejected() {
+        byte[] good = withId(1, encoder.encode(new Package(Arrays.asList(new Package("abc".getBytes(), null)))));
+        // 截断、多余的字节、声明的个数或长度不对
+        assertSame(Error.InvalidPkgDataException, decodeError(Arrays.copyOf(good, good.length - 1)));
+        assertSame(Error.InvalidPkgDataException, decodeError(Arrays.copyOf(good, good.length + 1)));
+        byte[] count = good.clone();
+        ByteBuffer.wrap(count).putInt(5, 1000);
+        assertSame(Error.InvalidPkgDataException, decodeError(count));
+        byte[] length = good.clone();
+        ByteBuffer.wrap(length).putInt(10, -1);
+        assertSame(Error.InvalidPkgDataException, decodeError(length));
+        assertSame(Error.InvalidPkgDataException, decodeError(new byte[]{0, 0, 0, 1, 9}));
+        assertSame(Error.InvalidPkgDataException, decodeError(new byte[]{0, 0}));
+    }
+
+    @Test
+    public void testPartial() throws Exception {
+        assertEquals(3, encoder.flag(Package.partial("a".getBytes())));
+        Package pkg = encoder.decode(withId(7, encoder.encode(Package.partial("abc".getBytes()))), Transporter.VERSION);
+        assertTrue(pkg.isPartial());
+        assertArrayEquals("abc".getBytes(), pkg.getData());
+        // 批量消息中不能出现分段的结果
+        byte[] partial = withId(1, encoder.encode(new Package(Arrays.asList(new Package("abc".getBytes(), null)))));
+        partial[9] = 3;
+        assertSame(Error.InvalidPkgDataException, decodeError(partial));
+    }
+
+    @Test
+    public void testRows() throws Exception {
+        assertEquals(4, encoder.flag(Package.rows("a".getBytes())));
+        Package batch = new Package(Arrays.asList(Package.rows(new byte[]{1, 2, 3}), new Package("a".getBytes(), null)));
+        List<Package> res = encoder.decode(withId(3, encoder.encode(batch)), Transporter.VERSION).getBatch();
+        assertTrue(res.get(0).isRows());
+        assertArrayEquals(new byte[]{1, 2, 3}, res.get(0).getData());
+        assertFalse(res.get(1).isRows());
+    }
+}
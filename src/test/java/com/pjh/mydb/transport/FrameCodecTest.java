@@ -0,0 +1,97 @@
+package com.pjh.mydb.transport;
+
+import com.pjh.mydb.common.Error;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class FrameCodecTest {
+
+    private static ByteBuffer handshake(int version) {
+        ByteBuffer buf = ByteBuffer.allocate(Transporter.MAGIC.length + 1);
+        buf.put(Transporter.MAGIC).put((byte) version).flip();
+        return buf;
+    }
+
+    private static ByteBuffer concat(ByteBuffer... bufs) {
+        int size = 0;
+        for (ByteBuffer b : bufs) {
+            size += b.remaining();
+        }
+        ByteBuffer res = ByteBuffer.allocate(size);
+        for (ByteBuffer b : bufs) {
+            res.put(b);
+        }
+        res.flip();
+        return res;
+    }
+
+    @Test
+    public void testDecodeWaitsForWholeFrame() throws Exception {
+        FrameCodec server = new FrameCodec();
+        byte[] data = "select * from t".getBytes(StandardCharsets.UTF_8);
+        ByteBuffer frame = ByteBuffer.allocate(9 + data.length);
+        frame.putInt(5 + data.length).putInt(7).put((byte) 0).put(data).flip();
+        ByteBuffer all = concat(handshake(Transporter.VERSION), frame);
+
+        ByteBuffer part = ByteBuffer.wrap(all.array(), 0, all.limit() - 1);
+        assertNull(server.decode(part));
+        assertEquals(Transporter.VERSION, server.version());
+        assertNotNull(server.handshake());
+        assertEquals(Transporter.MAGIC.length + 1, part.position());
+
+        ByteBuffer rest = ByteBuffer.wrap(all.array(), part.position(), all.limit() - part.position());
+        byte[] res = server.decode(rest);
+        assertEquals(5 + data.length, res.length);
+        assertEquals(7, ByteBuffer.wrap(res).getInt());
+        assertArrayEquals(data, Arrays.copyOfRange(res, 5, res.length));
+    }
+
+    @Test
+    public void testOversizedFrameRejected() throws Exception {
+        FrameCodec server = new FrameCodec();
+        ByteBuffer head = ByteBuffer.allocate(4);
+        head.putInt(Transporter.maxFrame() + 1).flip();
+        try {
+            // 只有帧头，不等数据到达就拒绝
+            server.decode(concat(handshake(Transporter.VERSION), head));
+            fail();
+        } catch (Exception e) {
+            assertSame(Error.FrameTooLargeException, e);
+        }
+    }
+
+    @Test
+    public void testHexLineLimit() throws Exception {
+        int old = Transporter.maxFrame();
+        Transporter.setMaxFrame(16);
+        try {
+            FrameCodec server = new FrameCodec();
+            byte[] line = new byte[40];
+            Arrays.fill(line, (byte) 'a');
+            assertNull(server.decode(ByteBuffer.wrap(line, 0, 20)));
+            try {
+                server.decode(ByteBuffer.wrap(line));
+                fail();
+            } catch (Exception e) {
+                assertSame(Error.FrameTooLargeException, e);
+            }
+        } finally {
+            Transporter.setMaxFrame(old);
+        }
+    }
+
+    @Test
+    public void testHexRoundTrip() throws Exception {
+        FrameCodec server = new FrameCodec();
+        byte[] res = server.decode(ByteBuffer.wrap("0061\n".getBytes(StandardCharsets.US_ASCII)));
+        assertEquals(Transporter.HEX, server.version());
+        assertArrayEquals(new byte[]{0, 'a'}, res);
+        ByteBuffer[] out = server.encode(0, (byte) 1, "err".getBytes(StandardCharsets.UTF_8));
+        assertEquals("01657272\n", StandardCharsets.US_ASCII.decode(out[0]).toString());
+    }
+}